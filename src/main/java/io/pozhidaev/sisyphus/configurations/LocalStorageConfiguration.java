@@ -2,11 +2,15 @@ package io.pozhidaev.sisyphus.configurations;
 
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
 
 import java.io.IOException;
 import java.nio.channels.AsynchronousFileChannel;
 import java.nio.file.Path;
+import java.util.concurrent.Executors;
 import java.util.function.Function;
 
 import static java.nio.file.StandardOpenOption.WRITE;
@@ -24,5 +28,12 @@ public class LocalStorageConfiguration {
             }
         });
     }
+
+    @Bean(destroyMethod = "dispose")
+    Scheduler storageScheduler(final SisyphusServerConfiguration configuration) {
+        return Schedulers.fromExecutorService(Executors.newFixedThreadPool(
+            configuration.getStoragePoolSize(), new CustomizableThreadFactory("sisyphus-storage-")
+        ));
+    }
 }
 
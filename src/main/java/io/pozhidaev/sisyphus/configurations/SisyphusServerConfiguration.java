@@ -1,31 +1,84 @@
 package io.pozhidaev.sisyphus.configurations;
 
 import io.pozhidaev.sisyphus.domain.Token;
+import io.pozhidaev.sisyphus.repository.UploadIdGenerator;
+import io.pozhidaev.sisyphus.service.ClusterRouting;
+import io.pozhidaev.sisyphus.service.DurabilityPolicy;
+import io.pozhidaev.sisyphus.service.Preallocation;
+import io.pozhidaev.sisyphus.service.StorageBackend;
+import io.pozhidaev.sisyphus.service.StorageLayout;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.orm.jpa.HibernatePropertiesCustomizer;
 import org.springframework.boot.context.properties.ConfigurationProperties;
-import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.util.unit.DataSize;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
 
 import java.io.IOException;
 import java.nio.file.AccessDeniedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.Executors;
 
 @Getter
 @Setter
 @Slf4j
 @Configuration
 @ConfigurationProperties(prefix = "sisyphus-server")
-@EnableConfigurationProperties(SisyphusServerConfiguration.class)
 public class SisyphusServerConfiguration {
 
     private String fileDirectory;
     private String token;
+    private int jdbcPoolSize = 10;
+    private int stateCacheSize = 10_000;
+    private Duration stateFlushInterval = Duration.ofSeconds(1);
+    private Duration stateIdleTimeout = Duration.ofMinutes(10);
+    private Duration metadataBatchWindow = Duration.ofMillis(2);
+    private int metadataBatchSize = 256;
+    private int channelPoolSize = 256;
+    private Duration channelIdleTimeout = Duration.ofSeconds(30);
+    private int storagePoolSize = 4;
+    private String fileDigestAlgorithm;
+    private StorageLayout storageLayout = StorageLayout.FLAT;
+    private int storageDepth = 2;
+    private boolean storageMigrate;
+    private Preallocation preallocation = Preallocation.NONE;
+    private DurabilityPolicy durabilityPolicy = DurabilityPolicy.NONE;
+    private Duration groupCommitWindow = Duration.ofMillis(2);
+    private int groupCommitSize = 256;
+    private DataSize mappedThreshold = DataSize.ofBytes(0);
+    private DataSize uploadBufferLimit = DataSize.ofMegabytes(1);
+    private DataSize globalBufferLimit = DataSize.ofMegabytes(64);
+    private Duration uploadExpiration = Duration.ofHours(24);
+    private Duration expirationSweepInterval = Duration.ofMinutes(1);
+    private int expirationBatchSize = 500;
+    private int expirationDeleteRate = 100;
+    private Duration reclaimInterval = Duration.ofSeconds(5);
+    private int reclaimBatchSize = 100;
+    private int fingerprintIndexSize = 100_000;
+    private boolean reuseIncompleteUploads;
+    private boolean deduplication;
+    private StorageBackend storageBackend = StorageBackend.LOCAL;
+    private String s3Endpoint;
+    private String s3Region = "us-east-1";
+    private String s3Bucket;
+    private String s3AccessKey;
+    private String s3SecretKey;
+    private DataSize s3PartSize = DataSize.ofMegabytes(5);
+    private int s3PartBuffers = 32;
+    private List<String> clusterNodes = new ArrayList<>();
+    private int clusterNodeId;
+    private ClusterRouting clusterRouting = ClusterRouting.PROXY;
 
     @Bean
     public Token authToken(){
@@ -55,4 +108,23 @@ public class SisyphusServerConfiguration {
         return writeDirectoryPath;
     }
 
+    /**
+     * Passes the node id to the upload id generator in cluster mode.
+     */
+    @Bean
+    public HibernatePropertiesCustomizer uploadIdCustomizer() {
+        return properties -> {
+            if (!clusterNodes.isEmpty()) {
+                properties.put(UploadIdGenerator.NODE_ID_PROPERTY, clusterNodeId);
+            }
+        };
+    }
+
+    @Bean(destroyMethod = "dispose")
+    public Scheduler jdbcScheduler() {
+        return Schedulers.fromExecutorService(
+            Executors.newFixedThreadPool(jdbcPoolSize, new CustomizableThreadFactory("sisyphus-jdbc-"))
+        );
+    }
+
 }
@@ -0,0 +1,36 @@
+package io.pozhidaev.sisyphus.configurations;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.MediaType;
+import org.springframework.http.codec.ServerCodecConfigurer;
+import org.springframework.http.codec.json.Jackson2JsonEncoder;
+import org.springframework.web.reactive.config.WebFluxConfigurer;
+
+import java.util.Collections;
+
+/**
+ * Adds a Jackson writer for application/x-ndjson: one document per line, flushed as each element is produced,
+ * the way the default one writes application/stream+json. Other json types stay with the default writer.
+ */
+@Configuration
+public class WebConfiguration implements WebFluxConfigurer {
+
+    public static final String APPLICATION_NDJSON_VALUE = "application/x-ndjson";
+    public static final MediaType APPLICATION_NDJSON = MediaType.valueOf(APPLICATION_NDJSON_VALUE);
+
+    private final ObjectMapper objectMapper;
+
+    @Autowired
+    public WebConfiguration(final ObjectMapper objectMapper) {
+        this.objectMapper = objectMapper;
+    }
+
+    @Override
+    public void configureHttpMessageCodecs(final ServerCodecConfigurer configurer) {
+        final Jackson2JsonEncoder encoder = new Jackson2JsonEncoder(objectMapper, APPLICATION_NDJSON);
+        encoder.setStreamingMediaTypes(Collections.singletonList(APPLICATION_NDJSON));
+        configurer.customCodecs().encoder(encoder);
+    }
+}
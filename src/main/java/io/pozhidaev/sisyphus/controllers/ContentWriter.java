@@ -0,0 +1,270 @@
+package io.pozhidaev.sisyphus.controllers;
+
+import io.pozhidaev.sisyphus.domain.File;
+import io.pozhidaev.sisyphus.service.ObjectResource;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.ResolvableType;
+import org.springframework.core.codec.ResourceRegionEncoder;
+import org.springframework.core.io.AbstractResource;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.support.ResourceRegion;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpRange;
+import org.springframework.http.InvalidMediaTypeException;
+import org.springframework.http.MediaType;
+import org.springframework.http.ZeroCopyHttpOutputMessage;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.http.server.reactive.ServerHttpResponse;
+import org.springframework.util.MimeTypeUtils;
+import org.springframework.web.server.ServerWebExchange;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static org.springframework.http.HttpStatus.OK;
+import static org.springframework.http.HttpStatus.PARTIAL_CONTENT;
+import static org.springframework.http.HttpStatus.PRECONDITION_FAILED;
+import static org.springframework.http.HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE;
+
+/**
+ * Writes upload content up to its current offset, with conditional and range requests.
+ * Whole files and single ranges of local files go out with zero-copy, multiple ranges as multipart/byteranges.
+ * Objects of a store are streamed range by range as the store sends them, never read through blocking streams.
+ */
+@Slf4j
+class ContentWriter {
+
+    private static final ResolvableType REGION_TYPE = ResolvableType.forClass(ResourceRegion.class);
+
+    private final ResourceRegionEncoder regionEncoder = new ResourceRegionEncoder();
+
+    Mono<Void> write(
+        @NonNull final File file,
+        @NonNull final Resource stored,
+        @NonNull final ServerWebExchange exchange
+    ) {
+        final long length = file.getContentOffset();
+        final Resource resource = new OffsetResource(stored, length);
+        final ObjectResource object = stored instanceof ObjectResource ? (ObjectResource) stored : null;
+        final String etag = "\"" + file.getId() + "-" + length + "\"";
+        final ServerHttpRequest request = exchange.getRequest();
+        final ServerHttpResponse response = exchange.getResponse();
+        final HttpHeaders headers = response.getHeaders();
+        headers.set(HttpHeaders.ACCEPT_RANGES, "bytes");
+
+        if (!ifMatch(request.getHeaders(), etag)) {
+            response.setStatusCode(PRECONDITION_FAILED);
+            return response.setComplete();
+        }
+        if (exchange.checkNotModified(etag)) {
+            return response.setComplete();
+        }
+        headers.setETag(etag);
+
+        final List<HttpRange> ranges;
+        try {
+            ranges = ifRange(request.getHeaders(), etag) ? request.getHeaders().getRange() : Collections.emptyList();
+        } catch (IllegalArgumentException e) {
+            return notSatisfiable(response, length);
+        }
+
+        final MediaType mediaType = mediaType(file);
+        if (ranges.isEmpty()) {
+            response.setStatusCode(OK);
+            headers.setContentType(mediaType);
+            headers.setContentLength(length);
+            return writeRegion(request, response, new ResourceRegion(resource, 0, length), mediaType, object);
+        }
+
+        final List<ResourceRegion> regions = new ArrayList<>(ranges.size());
+        for (final HttpRange range : ranges) {
+            final long start = range.getRangeStart(length);
+            final long end = range.getRangeEnd(length);
+            if (start >= length || start > end) {
+                return notSatisfiable(response, length);
+            }
+            regions.add(new ResourceRegion(resource, start, end - start + 1));
+        }
+
+        response.setStatusCode(PARTIAL_CONTENT);
+        if (regions.size() == 1) {
+            final ResourceRegion region = regions.get(0);
+            final long end = region.getPosition() + region.getCount() - 1;
+            headers.setContentType(mediaType);
+            headers.set(HttpHeaders.CONTENT_RANGE, "bytes " + region.getPosition() + "-" + end + "/" + length);
+            headers.setContentLength(region.getCount());
+            return writeRegion(request, response, region, mediaType, object);
+        }
+
+        final String boundary = MimeTypeUtils.generateMultipartBoundaryString();
+        headers.setContentType(MediaType.parseMediaType("multipart/byteranges;boundary=" + boundary));
+        if (request.getMethod() == HttpMethod.HEAD) {
+            return response.setComplete();
+        }
+        if (object != null) {
+            return response.writeWith(byteRanges(regions, boundary, mediaType, length, object, response.bufferFactory()));
+        }
+        return response.writeWith(regionEncoder.encode(
+            Flux.fromIterable(regions),
+            response.bufferFactory(),
+            REGION_TYPE,
+            mediaType,
+            Collections.singletonMap(ResourceRegionEncoder.BOUNDARY_STRING_HINT, boundary)
+        ));
+    }
+
+    private Mono<Void> writeRegion(
+        final ServerHttpRequest request,
+        final ServerHttpResponse response,
+        final ResourceRegion region,
+        final MediaType mediaType,
+        final ObjectResource object
+    ) {
+        if (region.getCount() == 0 || request.getMethod() == HttpMethod.HEAD) {
+            return response.setComplete();
+        }
+        if (object != null) {
+            return response.writeWith(object.read(region.getPosition(), region.getCount()));
+        }
+        final Resource resource = region.getResource();
+        if (response instanceof ZeroCopyHttpOutputMessage && resource.isFile()) {
+            try {
+                return ((ZeroCopyHttpOutputMessage) response)
+                    .writeWith(resource.getFile(), region.getPosition(), region.getCount());
+            } catch (IOException e) {
+                return Mono.error(e);
+            }
+        }
+        return response.writeWith(regionEncoder.encode(
+            Mono.just(region),
+            response.bufferFactory(),
+            REGION_TYPE,
+            mediaType,
+            Collections.emptyMap()
+        ));
+    }
+
+    /**
+     * Parts laid out like the {@link ResourceRegionEncoder} does, each range read from the store in turn.
+     */
+    private Flux<DataBuffer> byteRanges(
+        final List<ResourceRegion> regions,
+        final String boundary,
+        final MediaType mediaType,
+        final long length,
+        final ObjectResource object,
+        final DataBufferFactory bufferFactory
+    ) {
+        return Flux
+            .fromIterable(regions)
+            .concatMap(region -> Flux.concat(
+                Mono.fromSupplier(() -> ascii(bufferFactory, "\r\n--" + boundary + "\r\n"
+                    + "Content-Type: " + mediaType + "\r\n"
+                    + "Content-Range: bytes " + region.getPosition() + "-" + (region.getPosition() + region.getCount() - 1)
+                    + "/" + length + "\r\n\r\n")),
+                object.read(region.getPosition(), region.getCount())
+            ))
+            .concatWith(Mono.fromSupplier(() -> ascii(bufferFactory, "\r\n--" + boundary + "--")));
+    }
+
+    private static DataBuffer ascii(final DataBufferFactory bufferFactory, final String text) {
+        return bufferFactory.wrap(text.getBytes(US_ASCII));
+    }
+
+    private Mono<Void> notSatisfiable(final ServerHttpResponse response, final long length) {
+        response.setStatusCode(REQUESTED_RANGE_NOT_SATISFIABLE);
+        response.getHeaders().set(HttpHeaders.CONTENT_RANGE, "bytes */" + length);
+        return response.setComplete();
+    }
+
+    private boolean ifMatch(final HttpHeaders headers, final String etag) {
+        final List<String> ifMatch = headers.getIfMatch();
+        return ifMatch.isEmpty() || ifMatch.contains("*") || ifMatch.contains(etag);
+    }
+
+    /**
+     * Ranges only apply when If-Range carries the current strong ETag, dates never match as no Last-Modified is sent.
+     */
+    private boolean ifRange(final HttpHeaders headers, final String etag) {
+        final String ifRange = headers.getFirst(HttpHeaders.IF_RANGE);
+        return ifRange == null || ifRange.equals(etag);
+    }
+
+    private MediaType mediaType(final File file) {
+        final String mimeType = file.getMimeType();
+        if (mimeType == null || mimeType.isEmpty()) {
+            return MediaType.APPLICATION_OCTET_STREAM;
+        }
+        try {
+            return MediaType.parseMediaType(mimeType);
+        } catch (InvalidMediaTypeException e) {
+            log.debug("Unknown mime type of {}: {}", file.getId(), mimeType);
+            return MediaType.APPLICATION_OCTET_STREAM;
+        }
+    }
+
+    /**
+     * Stored file seen only up to the uploaded offset, so multipart Content-Range headers carry the served length.
+     */
+    private static final class OffsetResource extends AbstractResource {
+
+        private final Resource delegate;
+        private final long length;
+
+        private OffsetResource(final Resource delegate, final long length) {
+            this.delegate = delegate;
+            this.length = length;
+        }
+
+        @Override
+        public boolean exists() {
+            return delegate.exists();
+        }
+
+        @Override
+        public boolean isFile() {
+            return delegate.isFile();
+        }
+
+        @Override
+        public java.io.File getFile() throws IOException {
+            return delegate.getFile();
+        }
+
+        @Override
+        public ReadableByteChannel readableChannel() throws IOException {
+            return delegate.readableChannel();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return delegate.getInputStream();
+        }
+
+        @Override
+        public long contentLength() {
+            return length;
+        }
+
+        @Override
+        public String getFilename() {
+            return delegate.getFilename();
+        }
+
+        @Override
+        public String getDescription() {
+            return delegate.getDescription() + " up to " + length;
+        }
+    }
+}
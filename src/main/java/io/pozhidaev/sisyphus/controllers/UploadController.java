@@ -1,24 +1,50 @@
 package io.pozhidaev.sisyphus.controllers;
 
+import io.pozhidaev.sisyphus.configurations.WebConfiguration;
+import io.pozhidaev.sisyphus.domain.ConcatType;
 import io.pozhidaev.sisyphus.domain.File;
-import io.pozhidaev.sisyphus.repository.FileRepository;
+import io.pozhidaev.sisyphus.domain.UploadStatus;
+import io.pozhidaev.sisyphus.repository.FileCursor;
+import io.pozhidaev.sisyphus.repository.FileFilter;
+import io.pozhidaev.sisyphus.repository.ReactiveFileRepository;
+import io.pozhidaev.sisyphus.service.ChecksumAlgorithm;
+import io.pozhidaev.sisyphus.service.ChecksumMismatchException;
 import io.pozhidaev.sisyphus.service.UploadService;
+import io.pozhidaev.sisyphus.service.UploadState;
 import lombok.NonNull;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.data.domain.PageRequest;
+import org.springframework.format.annotation.DateTimeFormat;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.ResponseEntity;
 import org.springframework.http.server.PathContainer;
 import org.springframework.http.server.reactive.ServerHttpRequest;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.server.ServerWebExchange;
 import org.springframework.web.util.UriComponentsBuilder;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.net.URI;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
+import static org.springframework.format.annotation.DateTimeFormat.ISO.DATE_TIME;
+import static org.springframework.http.HttpStatus.BAD_REQUEST;
+import static org.springframework.http.HttpStatus.GONE;
 import static org.springframework.http.HttpStatus.INTERNAL_SERVER_ERROR;
+import static org.springframework.http.HttpStatus.NOT_FOUND;
 import static org.springframework.http.HttpStatus.NO_CONTENT;
 
 @Slf4j
@@ -26,48 +52,149 @@ import static org.springframework.http.HttpStatus.NO_CONTENT;
 @RequestMapping("/upload")
 public class UploadController {
 
+    private static final int CHECKSUM_MISMATCH = 460;
+    private static final int MAX_PAGE_SIZE = 1000;
+    private static final int STREAM_BATCH_SIZE = 500;
+
     private final UploadService uploadService;
-    private final FileRepository filesRepository;
+    private final ReactiveFileRepository filesRepository;
+    private final ContentWriter contentWriter = new ContentWriter();
 
 
     @Autowired
     public UploadController(
         final UploadService uploadService,
-        final FileRepository filesRepository
+        final ReactiveFileRepository filesRepository
     ) {
         this.uploadService = uploadService;
         this.filesRepository = filesRepository;
     }
 
+    /**
+     * A page of uploads in creation order. When the page is full, the Link header points at the next one.
+     */
     @GetMapping
-    public Mono<ResponseEntity<?>> getFilesList(@RequestParam(name = "page", defaultValue = "0") int page) {
+    public Mono<ResponseEntity<List<File>>> getFilesList(
+        @RequestParam(name = "after", required = false) final String after,
+        @RequestParam(name = "limit", defaultValue = "50") final int limit,
+        @RequestParam(name = "status", required = false) final String status,
+        @RequestParam(name = "fingerprint", required = false) final String fingerprint,
+        @RequestParam(name = "createdFrom", required = false) @DateTimeFormat(iso = DATE_TIME) final LocalDateTime createdFrom,
+        @RequestParam(name = "createdTo", required = false) @DateTimeFormat(iso = DATE_TIME) final LocalDateTime createdTo,
+        @NonNull final ServerHttpRequest request
+    ) {
+        if (limit < 1 || limit > MAX_PAGE_SIZE) {
+            return Mono.error(new ResponseStatusException(BAD_REQUEST, "Limit should be within 1.." + MAX_PAGE_SIZE + ": " + limit));
+        }
         return Mono
-            .fromSupplier(() -> ResponseEntity.ok(filesRepository.findAll(PageRequest.of(page, 50))));
+            .defer(() -> filesRepository.findPage(filter(status, fingerprint, createdFrom, createdTo), cursor(after), limit))
+            .map(files -> {
+                final ResponseEntity.BodyBuilder response = ResponseEntity.ok()
+                    .header("Access-Control-Expose-Headers", "Link");
+                if (files.size() == limit) {
+                    final String next = UriComponentsBuilder.fromHttpRequest(request)
+                        .replaceQueryParam("after", FileCursor.after(files.get(files.size() - 1)).encode())
+                        .build()
+                        .toUriString();
+                    response.header("Link", "<" + next + ">; rel=\"next\"");
+                }
+                return response.body(files);
+            });
+    }
+
+    /**
+     * Every matching upload as newline delimited json, read from the database while the client consumes it.
+     */
+    @GetMapping(produces = WebConfiguration.APPLICATION_NDJSON_VALUE)
+    public Flux<File> streamFilesList(
+        @RequestParam(name = "status", required = false) final String status,
+        @RequestParam(name = "fingerprint", required = false) final String fingerprint,
+        @RequestParam(name = "createdFrom", required = false) @DateTimeFormat(iso = DATE_TIME) final LocalDateTime createdFrom,
+        @RequestParam(name = "createdTo", required = false) @DateTimeFormat(iso = DATE_TIME) final LocalDateTime createdTo
+    ) {
+        return Flux.defer(() -> filesRepository.stream(filter(status, fingerprint, createdFrom, createdTo), STREAM_BATCH_SIZE));
+    }
+
+
+    /**
+     * The unfinished upload of a fingerprint and length, for clients that lost its url to resume instead of starting over.
+     */
+    @GetMapping("/lookup")
+    public Mono<ResponseEntity<File>> lookup(
+        @RequestParam(name = "fingerprint") final String fingerprint,
+        @RequestParam(name = "length") final long length,
+        @NonNull final UriComponentsBuilder uriComponentsBuilder,
+        @NonNull final ServerHttpRequest request
+    ) {
+        final PathContainer base = request.getPath().subPath(0, request.getPath().elements().size() - 2);
+        return uploadService
+            .findResumable(fingerprint, length)
+            .map(f -> ResponseEntity
+                .ok()
+                .location(location(f, uriComponentsBuilder, base))
+                .headers(expiresHeaders(uploadService.expiresAt(f)))
+                .header("Access-Control-Expose-Headers", "Location, Tus-Resumable, Upload-Offset, Upload-Length, Upload-Expires")
+                .header("Cache-Control", "no-store")
+                .header("Upload-Length", f.getContentLength().toString())
+                .header("Upload-Offset", f.getContentOffset().toString())
+                .header("Tus-Resumable", "1.0.0")
+                .body(f)
+            )
+            .defaultIfEmpty(ResponseEntity.notFound().build());
     }
 
 
     @GetMapping("/{id}")
     public Mono<ResponseEntity<?>> getFileInfo(@NonNull @PathVariable("id") Long id) {
-        return Mono
-            .fromSupplier(() ->
-                filesRepository.findById(id)
-                    .map(ResponseEntity::ok)
-                    .orElseGet(() -> ResponseEntity.notFound().build())
+        return uploadService
+            .getFile(id)
+            .<ResponseEntity<?>>map(ResponseEntity::ok)
+            .defaultIfEmpty(ResponseEntity.notFound().build());
+    }
+
+
+    /**
+     * Serves what has been uploaded so far, Range and conditional requests included.
+     */
+    @GetMapping("/{id}/content")
+    public Mono<Void> getContent(
+        @NonNull @PathVariable("id") final Long id,
+        @NonNull final ServerWebExchange exchange
+    ) {
+        return uploadService
+            .getFile(id)
+            .switchIfEmpty(Mono.error(() -> new ResponseStatusException(NOT_FOUND, "Upload not found: " + id)))
+            .flatMap(file -> uploadService
+                .getContent(id)
+                .switchIfEmpty(Mono.error(() -> new ResponseStatusException(NOT_FOUND, "Upload content not found: " + id)))
+                .flatMap(resource -> contentWriter.write(file, resource, exchange))
             );
     }
 
 
+    /**
+     * Creates an upload. With sisyphus-server.reuse-incomplete-uploads on, an unfinished upload of the same fingerprint
+     * and length is answered instead, with 200 and the offset to continue from.
+     */
     @PostMapping
     public Mono<ResponseEntity<Object>> uploadStart(
-        @RequestHeader(name = "Upload-Length") final Long fileSize,
-        @RequestHeader(name = "Upload-Metadata") final String metadata,
+        @RequestHeader(name = "Upload-Length", required = false) final Long fileSize,
+        @RequestHeader(name = "Upload-Metadata", defaultValue = "") final String metadata,
         @RequestHeader(name = "Mime-Type", defaultValue = "") final String mimeType,
+        @RequestHeader(name = "Upload-Concat", required = false) final String concat,
         @NonNull final UriComponentsBuilder uriComponentsBuilder,
         @NonNull final ServerHttpRequest request
     ) {
         request.getHeaders().forEach((k, v) -> log.debug("headers: {} {}", k, v));
 
-        final Map<String, String> parsedMetadata = uploadService.parseMetadata(metadata);
+        final boolean finalUpload = concat != null && concat.startsWith("final;");
+        if (fileSize == null && !finalUpload) {
+            return Mono.just(ResponseEntity.badRequest().build());
+        }
+
+        final Map<String, String> parsedMetadata = metadata.isEmpty()
+            ? Collections.emptyMap()
+            : uploadService.parseMetadata(metadata);
 
         final File file = File.builder()
                 .mimeType(mimeType)
@@ -75,24 +202,40 @@ public class UploadController {
                 .originalName(parsedMetadata.getOrDefault("filename", "FILE NAME NOT EXISTS"))
                 .contentOffset(0L)
                 .lastUploadedChunkNumber(0L)
-                .fingerprint(parsedMetadata.getOrDefault("fingerprint", "FINGERPRINT NAME NOT EXISTS"))
+                .fingerprint(parsedMetadata.getOrDefault("fingerprint", File.NO_FINGERPRINT))
+                .concatType("partial".equals(concat) ? ConcatType.PARTIAL : null)
                 .build();
 
+        final Mono<File> upload = finalUpload
+            ? Mono.fromSupplier(() -> parseConcatParts(concat)).flatMap(ids -> uploadService.concatenateUploads(file, ids))
+            : Mono.defer(() -> uploadService.createUpload(file));
+
+        final Mono<ResponseEntity<Object>> created = upload
+            .map(f -> ResponseEntity
+                .created(location(f, uriComponentsBuilder, request.getPath()))
+                .headers(expiresHeaders(uploadService.expiresAt(f)))
+                .header("Access-Control-Expose-Headers", "Location, Tus-Resumable, Upload-Expires")
+                .header("Tus-Resumable", "1.0.0")
+                .build()
+            );
+
         return uploadService
-            .createUpload(file)
-            .map(f -> Stream.concat(
-                request.getPath().elements().stream().map(PathContainer.Element::value),
-                Stream.of(f.getId().toString())
-            ))
-            .map(stringStream -> stringStream.filter(s -> !"/".equals(s)).toArray(String[]::new))
-            .map(strings -> uriComponentsBuilder.pathSegment(strings).build().toUri())
-            .map(s -> ResponseEntity
-                .created(s)
-                .header("Access-Control-Expose-Headers", "Location, Tus-Resumable")
+            .findReusable(file)
+            .map(f -> ResponseEntity
+                .ok()
+                .location(location(f, uriComponentsBuilder, request.getPath()))
+                .headers(expiresHeaders(uploadService.expiresAt(f)))
+                .header("Access-Control-Expose-Headers", "Location, Tus-Resumable, Upload-Offset, Upload-Expires")
+                .header("Upload-Offset", f.getContentOffset().toString())
                 .header("Tus-Resumable", "1.0.0")
                 .build()
             )
+            .switchIfEmpty(created)
             .doOnError(throwable -> log.error("Error on file create", throwable))
+            .onErrorResume(ResponseStatusException.class, e -> Mono.just(ResponseEntity
+                .status(e.getStatus())
+                .build()
+            ))
             .onErrorReturn(ResponseEntity
                 .status(INTERNAL_SERVER_ERROR)
                 .build()
@@ -108,9 +251,12 @@ public class UploadController {
         @NonNull @PathVariable("id") final Long id,
         @NonNull final ServerHttpRequest request,
         @RequestHeader(name = "Upload-Offset") final long offset,
-        @RequestHeader(name = "Content-Length") final long length
+        @RequestHeader(name = "Content-Length") final long length,
+        @RequestHeader(name = "Upload-Checksum", required = false) final String checksum
     ) {
-        request.getHeaders().forEach((k, v) -> log.debug("headers: {} {}", k, v));
+        if (log.isDebugEnabled()) {
+            request.getHeaders().forEach((k, v) -> log.debug("headers: {} {}", k, v));
+        }
 
         return
             uploadService
@@ -118,33 +264,65 @@ public class UploadController {
                     id,
                     request.getBody(),
                     offset,
-                    length
+                    length,
+                    checksum
                 )
-                .log()
                 .map(e -> ResponseEntity
                     .status(NO_CONTENT)
-                    .header("Access-Control-Expose-Headers", "Location, Tus-Resumable")
+                    .headers(expiresHeaders(uploadService.expiresAt(e)))
+                    .header("Access-Control-Expose-Headers", "Location, Tus-Resumable, Upload-Expires")
                     .header("Upload-Offset", Long.toString(e.getContentOffset()))
                     .header("Tus-Resumable", "1.0.0")
                     .build()
                 )
-                .doOnNext(r -> log.info("{}", r.getHeaders()))
+                .onErrorResume(ChecksumMismatchException.class, e -> {
+                    log.warn(e.getMessage());
+                    return Mono.just(ResponseEntity
+                        .status(CHECKSUM_MISMATCH)
+                        .header("Tus-Resumable", "1.0.0")
+                        .build());
+                })
+                .onErrorResume(ResponseStatusException.class, e -> {
+                    log.debug(e.getMessage());
+                    return Mono.just(ResponseEntity
+                        .status(e.getStatus())
+                        .header("Tus-Resumable", "1.0.0")
+                        .build());
+                })
+                .doOnNext(r -> log.debug("{}", r.getHeaders()))
             ;
     }
 
 
     @RequestMapping(method = RequestMethod.HEAD, value = "/{id}")
     public Mono<ResponseEntity<?>> header(@NonNull @PathVariable("id") final Long id) {
-        return Mono.just(filesRepository.findById(id).map(e ->
-            ResponseEntity
+        return uploadService
+            .getUploadState(id)
+            .<ResponseEntity<?>>map(e -> e.isTerminated() ? ResponseEntity.status(GONE).build() : ResponseEntity
                 .status(NO_CONTENT)
-                .headers(new HttpHeaders())
+                .headers(concatHeaders(e))
+                .headers(expiresHeaders(uploadService.expiresAt(e)))
                 .header("Location", e.getId().toString())
                 .header("Cache-Control", "no-store")
                 .header("Upload-Length", e.getContentLength().toString())
-                .header("Upload-Offset", e.getContentOffset().toString())
+                .header("Upload-Offset", Long.toString(e.getContentOffset()))
                 .build())
-            .orElseGet(() -> ResponseEntity.notFound().build()));
+            .defaultIfEmpty(ResponseEntity.notFound().build());
+    }
+
+
+    /**
+     * Terminates the upload right away, its space is reclaimed in the background.
+     */
+    @DeleteMapping("/{id}")
+    public Mono<ResponseEntity<Object>> terminate(@NonNull @PathVariable("id") final Long id) {
+        return uploadService
+            .terminate(id)
+            .map(terminated -> ResponseEntity
+                .status(terminated ? NO_CONTENT : NOT_FOUND)
+                .header("Tus-Resumable", "1.0.0")
+                .build()
+            );
     }
 
 
@@ -152,13 +330,85 @@ public class UploadController {
     public Mono<ResponseEntity> processOptions() {
         return Mono.just(ResponseEntity
             .status(NO_CONTENT)
-            .header("Access-Control-Expose-Headers", "Tus-Resumable, Tus-Version, Tus-Max-Size, Tus-Extension")
+            .header("Access-Control-Expose-Headers", "Tus-Resumable, Tus-Version, Tus-Max-Size, Tus-Extension, Tus-Checksum-Algorithm")
             .header("Tus-Resumable", "1.0.0")
             .header("Tus-Version", "1.0.0,0.2.2,0.2.1")
-            .header("Tus-Extension", "creation,expiration")
+            .header("Tus-Extension", "creation,expiration,concatenation,checksum,termination")
+            .header("Tus-Checksum-Algorithm", ChecksumAlgorithm.supported())
             .header("Access-Control-Allow-Methods", "GET,PUT,PATCH,POST,DELETE")
             .build());
     }
 
+    /**
+     * Reads upload ids from the last path segment of every url in "final;/upload/1 /upload/2".
+     */
+    List<Long> parseConcatParts(@NonNull final String concat) {
+        try {
+            return Arrays.stream(concat.substring("final;".length()).trim().split(" +"))
+                .map(url -> url.substring(url.lastIndexOf('/') + 1))
+                .map(Long::valueOf)
+                .collect(Collectors.toList());
+        } catch (NumberFormatException e) {
+            throw new ResponseStatusException(BAD_REQUEST, "Invalid Upload-Concat: " + concat);
+        }
+    }
+
+    private FileFilter filter(
+        final String status,
+        final String fingerprint,
+        final LocalDateTime createdFrom,
+        final LocalDateTime createdTo
+    ) {
+        try {
+            return FileFilter.builder()
+                .status(status == null ? null : UploadStatus.valueOf(status.toUpperCase(Locale.ROOT)))
+                .fingerprint(fingerprint)
+                .createdFrom(createdFrom)
+                .createdTo(createdTo)
+                .build();
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(BAD_REQUEST, "Invalid status: " + status);
+        }
+    }
+
+    private FileCursor cursor(final String after) {
+        try {
+            return after == null ? FileCursor.START : FileCursor.decode(after);
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(BAD_REQUEST, e.getMessage());
+        }
+    }
 
+    private URI location(final File file, final UriComponentsBuilder uriComponentsBuilder, final PathContainer base) {
+        final String[] segments = Stream.concat(
+                base.elements().stream().map(PathContainer.Element::value),
+                Stream.of(file.getId().toString())
+            )
+            .filter(s -> !"/".equals(s))
+            .toArray(String[]::new);
+        return uriComponentsBuilder.pathSegment(segments).build().toUri();
+    }
+
+    /**
+     * Upload-Expires in the RFC 7231 date format, left out for uploads that don't expire.
+     */
+    private HttpHeaders expiresHeaders(final Optional<ZonedDateTime> expiresAt) {
+        final HttpHeaders headers = new HttpHeaders();
+        expiresAt.ifPresent(expires -> headers.set(
+            "Upload-Expires", DateTimeFormatter.RFC_1123_DATE_TIME.format(expires.withZoneSameInstant(ZoneOffset.UTC))
+        ));
+        return headers;
+    }
+
+    private HttpHeaders concatHeaders(final UploadState state) {
+        final HttpHeaders headers = new HttpHeaders();
+        if (state.getConcatType() == ConcatType.PARTIAL) {
+            headers.set("Upload-Concat", "partial");
+        } else if (state.getConcatType() == ConcatType.FINAL) {
+            headers.set("Upload-Concat", Arrays.stream(state.getConcatParts().split(" "))
+                .map(id -> "/upload/" + id)
+                .collect(Collectors.joining(" ", "final;", "")));
+        }
+        return headers;
+    }
 }
@@ -0,0 +1,9 @@
+package io.pozhidaev.sisyphus.domain;
+
+/**
+ * Role of an upload in the tus concatenation extension.
+ */
+public enum ConcatType {
+    PARTIAL,
+    FINAL
+}
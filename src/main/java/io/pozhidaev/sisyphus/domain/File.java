@@ -5,10 +5,12 @@ import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Data;
 import lombok.NoArgsConstructor;
+import org.hibernate.annotations.GenericGenerator;
 
 import javax.persistence.*;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
 
 @Entity
 @Data
@@ -18,8 +20,22 @@ import java.time.ZoneId;
 @JsonIgnoreProperties({"hibernateLazyInitializer", "handler"})
 public class File {
 
+    /**
+     * Fingerprint of uploads created without one, never matched by resume lookups.
+     */
+    public static final String NO_FINGERPRINT = "FINGERPRINT NAME NOT EXISTS";
+
+    /**
+     * Room for the space separated part ids of a final upload in the concat_parts column.
+     */
+    public static final int MAX_CONCAT_PARTS_LENGTH = 4000;
+
+    /**
+     * Assigned by the database, or with sisyphus-server.cluster-nodes set, encodes the node owning the upload.
+     */
     @Id
-    @GeneratedValue(strategy= GenerationType.IDENTITY)
+    @GeneratedValue(generator = "upload-id")
+    @GenericGenerator(name = "upload-id", strategy = "io.pozhidaev.sisyphus.repository.UploadIdGenerator")
     private Long id;
 
     @Column(name = "MIME_TYPE")
@@ -40,21 +56,49 @@ public class File {
     @Column(name = "FINGERPRINT")
     private String fingerprint;
 
+    @Enumerated(EnumType.STRING)
+    @Column(name = "CONCAT_TYPE")
+    private ConcatType concatType;
+
+    @Column(name = "CONCAT_PARTS")
+    private String concatParts;
+
+    @Column(name = "CHECKSUM")
+    private String checksum;
+
     @Column(name = "CREATED_AT")
     private LocalDateTime createdAt;
 
     @Column(name = "UPDATED_AT")
     private LocalDateTime updatedAt;
 
+    @Column(name = "TERMINATED_AT")
+    private LocalDateTime terminatedAt;
+
+    /**
+     * Bumped by every write of the row, offset flushes included, so saving a stale copy fails.
+     */
+    @Version
+    @Column(name = "VERSION")
+    private Long version;
+
+
+    /**
+     * The current time at the microsecond precision the database keeps, so the timestamps of a saved upload
+     * match its row and a cursor built from them doesn't land before it.
+     */
+    public static LocalDateTime now() {
+        return LocalDateTime.now(ZoneId.systemDefault()).truncatedTo(ChronoUnit.MICROS);
+    }
 
     @PrePersist
     protected void onPersist(){
-        createdAt = LocalDateTime.now(ZoneId.systemDefault());
-        updatedAt = LocalDateTime.now(ZoneId.systemDefault());
+        createdAt = now();
+        updatedAt = createdAt;
     }
 
     @PreUpdate
     protected void onUpdate(){
-        updatedAt = LocalDateTime.now(ZoneId.systemDefault());
+        updatedAt = now();
     }
 }
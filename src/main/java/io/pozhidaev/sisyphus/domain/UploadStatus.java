@@ -0,0 +1,9 @@
+package io.pozhidaev.sisyphus.domain;
+
+/**
+ * Whether an upload still waits for content, used to filter listings.
+ */
+public enum UploadStatus {
+    ACTIVE,
+    COMPLETE
+}
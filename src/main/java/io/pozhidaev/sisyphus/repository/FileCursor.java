@@ -0,0 +1,50 @@
+package io.pozhidaev.sisyphus.repository;
+
+import io.pozhidaev.sisyphus.domain.File;
+import lombok.NonNull;
+import lombok.Value;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.Base64;
+
+/**
+ * Position in the (createdAt, id) listing order, handed to clients as an opaque url-safe token.
+ */
+@Value
+public class FileCursor {
+
+    public static final FileCursor START = new FileCursor(LocalDateTime.of(1970, 1, 1, 0, 0), 0L);
+
+    @NonNull LocalDateTime createdAt;
+    long id;
+
+    public static FileCursor after(@NonNull final File file) {
+        return new FileCursor(file.getCreatedAt(), file.getId());
+    }
+
+    public String encode() {
+        return Base64.getUrlEncoder().withoutPadding()
+            .encodeToString((createdAt + "," + id).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * @throws IllegalArgumentException when the token wasn't made by {@link #encode()}
+     */
+    public static FileCursor decode(@NonNull final String token) {
+        try {
+            final String decoded = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.US_ASCII);
+            final int comma = decoded.indexOf(',');
+            if (comma < 0) {
+                throw new IllegalArgumentException("Invalid cursor: " + token);
+            }
+            return new FileCursor(
+                LocalDateTime.parse(decoded.substring(0, comma)),
+                Long.parseLong(decoded.substring(comma + 1))
+            );
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Invalid cursor: " + token, e);
+        }
+    }
+}
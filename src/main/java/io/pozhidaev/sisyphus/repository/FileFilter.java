@@ -0,0 +1,23 @@
+package io.pozhidaev.sisyphus.repository;
+
+import io.pozhidaev.sisyphus.domain.UploadStatus;
+import lombok.Builder;
+import lombok.Value;
+
+import java.time.LocalDateTime;
+
+/**
+ * Listing filters, every field left null matches all uploads.
+ * The creation range includes createdFrom and excludes createdTo.
+ */
+@Value
+@Builder
+public class FileFilter {
+
+    public static final FileFilter ALL = FileFilter.builder().build();
+
+    UploadStatus status;
+    String fingerprint;
+    LocalDateTime createdFrom;
+    LocalDateTime createdTo;
+}
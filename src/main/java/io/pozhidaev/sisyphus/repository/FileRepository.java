@@ -2,9 +2,72 @@ package io.pozhidaev.sisyphus.repository;
 
 
 import io.pozhidaev.sisyphus.domain.File;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.PagingAndSortingRepository;
+import org.springframework.data.repository.query.Param;
 
-public interface FileRepository extends PagingAndSortingRepository<File, Long> {
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
 
+public interface FileRepository extends PagingAndSortingRepository<File, Long>, FileRepositoryCustom {
+
+    /**
+     * Unfinished uploads not updated since before the given time, in (updatedAt, id) order after the given pair.
+     */
+    @Query("select f from File f where f.updatedAt < :before " +
+        "and f.terminatedAt is null and (f.contentLength is null or f.contentOffset < f.contentLength) " +
+        "and (f.updatedAt > :afterUpdatedAt or (f.updatedAt = :afterUpdatedAt and f.id > :afterId)) " +
+        "order by f.updatedAt, f.id")
+    List<File> findExpired(
+        @Param("before") LocalDateTime before,
+        @Param("afterUpdatedAt") LocalDateTime afterUpdatedAt,
+        @Param("afterId") Long afterId,
+        Pageable pageable
+    );
+
+    /**
+     * Removes the upload unless it was updated since the given time.
+     */
+    @Modifying
+    @Query("delete from File f where f.id = :id and f.updatedAt < :before")
+    int deleteExpired(@Param("id") Long id, @Param("before") LocalDateTime before);
+
+    /**
+     * Marks the upload terminated, zero when it doesn't exist or is terminated already.
+     */
+    @Modifying
+    @Query("update File f set f.version = f.version + 1, f.terminatedAt = :terminatedAt where f.id = :id and f.terminatedAt is null")
+    int terminate(@Param("id") Long id, @Param("terminatedAt") LocalDateTime terminatedAt);
+
+    /**
+     * Terminated uploads owned by the node, of every node with a negative one, the earliest terminated first.
+     */
+    @Query("select f from File f where f.terminatedAt is not null and (:node < 0 " +
+        "or (f.id < " + UploadIdGenerator.FIRST_ID + " and :node = 0) " +
+        "or (f.id >= " + UploadIdGenerator.FIRST_ID + " and mod(f.id / " + UploadIdGenerator.NODE_UNIT + ", " +
+        UploadIdGenerator.MAX_NODES + ") = :node)) order by f.terminatedAt, f.id")
+    List<File> findTerminated(@Param("node") int node, Pageable pageable);
+
+    @Modifying
+    @Query("delete from File f where f.id in :ids and f.terminatedAt is not null")
+    int deleteTerminated(@Param("ids") Collection<Long> ids);
+
+    @Modifying
+    @Query("delete from File f where f.id = :id")
+    int deleteUpload(@Param("id") Long id);
+
+    /**
+     * Unfinished uploads of the fingerprint and length, the latest first.
+     */
+    @Query("select f from File f where f.fingerprint = :fingerprint and f.contentLength = :contentLength " +
+        "and f.terminatedAt is null and f.contentOffset < f.contentLength order by f.id desc")
+    List<File> findResumable(
+        @Param("fingerprint") String fingerprint,
+        @Param("contentLength") Long contentLength,
+        Pageable pageable
+    );
 
 }
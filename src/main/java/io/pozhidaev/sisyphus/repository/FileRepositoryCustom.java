@@ -0,0 +1,28 @@
+package io.pozhidaev.sisyphus.repository;
+
+import io.pozhidaev.sisyphus.domain.File;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+public interface FileRepositoryCustom {
+
+    /**
+     * Up to limit uploads matching the filter, not terminated, in (createdAt, id) order after the cursor.
+     * Seeks on the created_at index instead of skipping rows and runs no count query.
+     */
+    List<File> findPage(FileFilter filter, FileCursor after, int limit);
+
+    /**
+     * Inserts new uploads in one JDBC batch of the current transaction and sets their ids, timestamps and version.
+     * The files are not attached to the persistence context.
+     */
+    void insertAll(List<File> files);
+
+    /**
+     * Writes offsets, chunk numbers and known checksums in one JDBC batch of the current transaction, rows updated
+     * per file in order. Flushes run concurrently with the final flush of a completed upload, offsets never go back.
+     * The version is bumped like an entity save would, so copies of the row loaded before fail to save.
+     */
+    int[] updateOffsets(List<File> files, LocalDateTime updatedAt);
+}
@@ -0,0 +1,178 @@
+package io.pozhidaev.sisyphus.repository;
+
+import io.pozhidaev.sisyphus.domain.File;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.id.IdentifierGenerator;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Path;
+import javax.persistence.criteria.Predicate;
+import javax.persistence.criteria.Root;
+import java.io.Serializable;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+public class FileRepositoryCustomImpl implements FileRepositoryCustom {
+
+    private static final String INSERT_COLUMNS = "mime_type, content_length, content_offset, last_uploaded_chunk_number, " +
+        "original_name, fingerprint, concat_type, concat_parts, checksum, created_at, updated_at, version";
+    private static final String INSERT = "insert into file (" + INSERT_COLUMNS + ") values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, 0)";
+    private static final String INSERT_WITH_ID = "insert into file (id, " + INSERT_COLUMNS + ") " +
+        "values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, 0)";
+    private static final String UPDATE_OFFSET = "update file set version = version + 1, content_offset = ?, " +
+        "last_uploaded_chunk_number = ?, checksum = coalesce(?, checksum), updated_at = ? " +
+        "where id = ? and content_offset <= ?";
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Override
+    public List<File> findPage(final FileFilter filter, final FileCursor after, final int limit) {
+        final CriteriaBuilder cb = entityManager.getCriteriaBuilder();
+        final CriteriaQuery<File> query = cb.createQuery(File.class);
+        final Root<File> file = query.from(File.class);
+        final Path<LocalDateTime> createdAt = file.get("createdAt");
+        final Path<Long> id = file.get("id");
+        final Path<Long> contentOffset = file.get("contentOffset");
+        final Path<Long> contentLength = file.get("contentLength");
+
+        final List<Predicate> predicates = new ArrayList<>();
+        predicates.add(cb.isNull(file.get("terminatedAt")));
+        predicates.add(cb.or(
+            cb.greaterThan(createdAt, after.getCreatedAt()),
+            cb.and(cb.equal(createdAt, after.getCreatedAt()), cb.greaterThan(id, after.getId()))
+        ));
+        if (filter.getStatus() != null) {
+            switch (filter.getStatus()) {
+                case ACTIVE:
+                    predicates.add(cb.or(cb.isNull(contentLength), cb.lessThan(contentOffset, contentLength)));
+                    break;
+                case COMPLETE:
+                    predicates.add(cb.greaterThanOrEqualTo(contentOffset, contentLength));
+                    break;
+            }
+        }
+        if (filter.getFingerprint() != null) {
+            predicates.add(cb.equal(file.get("fingerprint"), filter.getFingerprint()));
+        }
+        if (filter.getCreatedFrom() != null) {
+            predicates.add(cb.greaterThanOrEqualTo(createdAt, filter.getCreatedFrom()));
+        }
+        if (filter.getCreatedTo() != null) {
+            predicates.add(cb.lessThan(createdAt, filter.getCreatedTo()));
+        }
+
+        return entityManager
+            .createQuery(query
+                .where(predicates.toArray(new Predicate[0]))
+                .orderBy(cb.asc(createdAt), cb.asc(id)))
+            .setMaxResults(limit)
+            .getResultList();
+    }
+
+    /**
+     * Ids come from the generator of the entity, the same one a save uses: time based in cluster mode,
+     * otherwise the identity column, read back from the generated keys of the batch.
+     */
+    @Override
+    public void insertAll(final List<File> files) {
+        if (files.isEmpty()) {
+            return;
+        }
+        final SessionImplementor session = entityManager.unwrap(SessionImplementor.class);
+        final IdentifierGenerator generator = session.getFactory().getMetamodel().entityPersister(File.class).getIdentifierGenerator();
+        final LocalDateTime now = File.now();
+        for (final File file : files) {
+            final Serializable id = generator.generate(session, file);
+            file.setId(id instanceof Long ? (Long) id : null);
+            file.setCreatedAt(now);
+            file.setUpdatedAt(now);
+            file.setVersion(0L);
+        }
+        final List<File> assigned = files.stream().filter(f -> f.getId() != null).collect(Collectors.toList());
+        final List<File> generated = files.stream().filter(f -> f.getId() == null).collect(Collectors.toList());
+        session.doWork(connection -> {
+            if (!assigned.isEmpty()) {
+                insert(connection, assigned);
+            }
+            if (!generated.isEmpty()) {
+                insertGenerated(connection, generated);
+            }
+        });
+    }
+
+    @Override
+    public int[] updateOffsets(final List<File> files, final LocalDateTime updatedAt) {
+        if (files.isEmpty()) {
+            return new int[0];
+        }
+        return entityManager.unwrap(SessionImplementor.class).doReturningWork(connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(UPDATE_OFFSET)) {
+                for (final File file : files) {
+                    statement.setObject(1, file.getContentOffset(), Types.BIGINT);
+                    statement.setObject(2, file.getLastUploadedChunkNumber(), Types.BIGINT);
+                    statement.setObject(3, file.getChecksum(), Types.VARCHAR);
+                    statement.setTimestamp(4, Timestamp.valueOf(updatedAt));
+                    statement.setObject(5, file.getId(), Types.BIGINT);
+                    statement.setObject(6, file.getContentOffset(), Types.BIGINT);
+                    statement.addBatch();
+                }
+                return statement.executeBatch();
+            }
+        });
+    }
+
+    private static void insert(final Connection connection, final List<File> files) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(INSERT_WITH_ID)) {
+            for (final File file : files) {
+                statement.setLong(1, file.getId());
+                bind(statement, 2, file);
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+    }
+
+    private static void insertGenerated(final Connection connection, final List<File> files) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(INSERT, new String[]{"ID"})) {
+            for (final File file : files) {
+                bind(statement, 1, file);
+                statement.addBatch();
+            }
+            statement.executeBatch();
+            try (ResultSet keys = statement.getGeneratedKeys()) {
+                for (final File file : files) {
+                    if (!keys.next()) {
+                        throw new IllegalStateException("Fewer generated ids than inserted uploads: " + files.size());
+                    }
+                    file.setId(keys.getLong(1));
+                }
+            }
+        }
+    }
+
+    private static void bind(final PreparedStatement statement, final int first, final File file) throws SQLException {
+        statement.setObject(first, file.getMimeType(), Types.VARCHAR);
+        statement.setObject(first + 1, file.getContentLength(), Types.BIGINT);
+        statement.setObject(first + 2, file.getContentOffset(), Types.BIGINT);
+        statement.setObject(first + 3, file.getLastUploadedChunkNumber(), Types.BIGINT);
+        statement.setObject(first + 4, file.getOriginalName(), Types.VARCHAR);
+        statement.setObject(first + 5, file.getFingerprint(), Types.VARCHAR);
+        statement.setObject(first + 6, file.getConcatType() == null ? null : file.getConcatType().name(), Types.VARCHAR);
+        statement.setObject(first + 7, file.getConcatParts(), Types.VARCHAR);
+        statement.setObject(first + 8, file.getChecksum(), Types.VARCHAR);
+        statement.setTimestamp(first + 9, Timestamp.valueOf(file.getCreatedAt()));
+        statement.setTimestamp(first + 10, Timestamp.valueOf(file.getUpdatedAt()));
+    }
+}
@@ -0,0 +1,204 @@
+package io.pozhidaev.sisyphus.repository;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.pozhidaev.sisyphus.domain.File;
+import lombok.NonNull;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Reactive facade over the blocking JPA {@link FileRepository}.
+ * Every call is shifted to the bounded jdbc scheduler, so callers on Netty event loop never block on the database.
+ * Time spent on the scheduler is recorded per operation, queueing for a jdbc thread is not.
+ */
+@Component
+public class ReactiveFileRepository {
+
+    private final FileRepository fileRepository;
+    private final Scheduler jdbcScheduler;
+    private final TransactionTemplate transactionTemplate;
+    private final Timer findByIdTimer;
+    private final Timer saveTimer;
+    private final Timer findPageTimer;
+    private final Timer writeTimer;
+    private final Timer findExpiredTimer;
+    private final Timer deleteExpiredTimer;
+    private final Timer terminateTimer;
+    private final Timer findTerminatedTimer;
+    private final Timer deleteTerminatedTimer;
+    private final Timer deleteByIdTimer;
+    private final Timer findResumableTimer;
+
+    @Autowired
+    public ReactiveFileRepository(
+        final FileRepository fileRepository,
+        @Qualifier("jdbcScheduler") final Scheduler jdbcScheduler,
+        final PlatformTransactionManager transactionManager,
+        final MeterRegistry meterRegistry
+    ) {
+        this.fileRepository = fileRepository;
+        this.jdbcScheduler = jdbcScheduler;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.findByIdTimer = timer(meterRegistry, "findById");
+        this.saveTimer = timer(meterRegistry, "save");
+        this.findPageTimer = timer(meterRegistry, "findPage");
+        this.writeTimer = timer(meterRegistry, "write");
+        this.findExpiredTimer = timer(meterRegistry, "findExpired");
+        this.deleteExpiredTimer = timer(meterRegistry, "deleteExpired");
+        this.terminateTimer = timer(meterRegistry, "terminate");
+        this.findTerminatedTimer = timer(meterRegistry, "findTerminated");
+        this.deleteTerminatedTimer = timer(meterRegistry, "deleteTerminated");
+        this.deleteByIdTimer = timer(meterRegistry, "deleteById");
+        this.findResumableTimer = timer(meterRegistry, "findResumable");
+    }
+
+    public Mono<File> findById(@NonNull final Long id) {
+        return Mono
+            .defer(() -> Mono.justOrEmpty(findByIdTimer.record(() -> fileRepository.findById(id))))
+            .subscribeOn(jdbcScheduler);
+    }
+
+    public Mono<File> save(@NonNull final File file) {
+        return Mono
+            .fromCallable(() -> saveTimer.recordCallable(() -> fileRepository.save(file)))
+            .subscribeOn(jdbcScheduler);
+    }
+
+    /**
+     * Up to limit uploads that match the filter and are not terminated, following the cursor.
+     */
+    public Mono<List<File>> findPage(@NonNull final FileFilter filter, @NonNull final FileCursor after, final int limit) {
+        return Mono
+            .fromCallable(() -> findPageTimer.recordCallable(() -> fileRepository.findPage(filter, after, limit)))
+            .subscribeOn(jdbcScheduler);
+    }
+
+    /**
+     * Every upload that matches the filter and is not terminated, read page by page as the subscriber asks for more.
+     * At most one page is held at a time and no connection is kept between pages, however long the walk.
+     */
+    public Flux<File> stream(@NonNull final FileFilter filter, final int batchSize) {
+        return findPage(filter, FileCursor.START, batchSize)
+            .expand(page -> page.size() < batchSize
+                ? Mono.empty()
+                : findPage(filter, FileCursor.after(page.get(page.size() - 1)), batchSize)
+            )
+            .concatMapIterable(Function.identity(), 1);
+    }
+
+    /**
+     * Inserts new uploads, setting their ids, and writes content offsets, chunk numbers and known checksums of others,
+     * each as one JDBC batch of a single transaction. Other columns are left untouched. Rows updated per offset write.
+     */
+    public Mono<int[]> write(@NonNull final List<File> inserts, @NonNull final List<File> offsetUpdates) {
+        return Mono
+            .fromCallable(() -> writeTimer.recordCallable(() -> transactionTemplate.execute(status -> {
+                fileRepository.insertAll(inserts);
+                return fileRepository.updateOffsets(offsetUpdates, File.now());
+            })))
+            .subscribeOn(jdbcScheduler);
+    }
+
+    /**
+     * Up to limit unfinished uploads idle since before the given time, following the given (updatedAt, id) pair.
+     */
+    public Mono<List<File>> findExpired(
+        @NonNull final LocalDateTime before,
+        @NonNull final LocalDateTime afterUpdatedAt,
+        @NonNull final Long afterId,
+        final int limit
+    ) {
+        return Mono
+            .fromCallable(() -> findExpiredTimer.recordCallable(() ->
+                fileRepository.findExpired(before, afterUpdatedAt, afterId, PageRequest.of(0, limit))
+            ))
+            .subscribeOn(jdbcScheduler);
+    }
+
+    /**
+     * True when the upload was removed, false when it is gone already or was updated since the given time.
+     */
+    public Mono<Boolean> deleteExpired(@NonNull final Long id, @NonNull final LocalDateTime before) {
+        return Mono
+            .fromCallable(() -> deleteExpiredTimer.recordCallable(() -> transactionTemplate.execute(status ->
+                fileRepository.deleteExpired(id, before) > 0
+            )))
+            .subscribeOn(jdbcScheduler);
+    }
+
+    /**
+     * True when the upload was marked terminated, false when it is unknown or was terminated already.
+     */
+    public Mono<Boolean> terminate(@NonNull final Long id, @NonNull final LocalDateTime terminatedAt) {
+        return Mono
+            .fromCallable(() -> terminateTimer.recordCallable(() -> transactionTemplate.execute(status ->
+                fileRepository.terminate(id, terminatedAt) > 0
+            )))
+            .subscribeOn(jdbcScheduler);
+    }
+
+    /**
+     * Up to limit terminated uploads owned by the node, of every node with a negative one, the earliest terminated first.
+     */
+    public Mono<List<File>> findTerminated(final int node, final int limit) {
+        return Mono
+            .fromCallable(() -> findTerminatedTimer.recordCallable(() ->
+                fileRepository.findTerminated(node, PageRequest.of(0, limit))
+            ))
+            .subscribeOn(jdbcScheduler);
+    }
+
+    /**
+     * Removes rows of terminated uploads in one statement, ids of uploads that aren't terminated are skipped.
+     */
+    public Mono<Integer> deleteTerminated(@NonNull final Collection<Long> ids) {
+        return Mono
+            .fromCallable(() -> deleteTerminatedTimer.recordCallable(() -> transactionTemplate.execute(status ->
+                fileRepository.deleteTerminated(ids)
+            )))
+            .subscribeOn(jdbcScheduler);
+    }
+
+    /**
+     * True when the row of the upload was removed whatever its state, false when it is gone already.
+     */
+    public Mono<Boolean> deleteById(@NonNull final Long id) {
+        return Mono
+            .fromCallable(() -> deleteByIdTimer.recordCallable(() -> transactionTemplate.execute(status ->
+                fileRepository.deleteUpload(id) > 0
+            )))
+            .subscribeOn(jdbcScheduler);
+    }
+
+    /**
+     * The latest unfinished upload of the fingerprint and length, by its offset in the database.
+     */
+    public Mono<File> findResumable(@NonNull final String fingerprint, final long contentLength) {
+        return Mono
+            .fromCallable(() -> findResumableTimer.recordCallable(() ->
+                fileRepository.findResumable(fingerprint, contentLength, PageRequest.of(0, 1))
+            ))
+            .flatMap(files -> Mono.justOrEmpty(files.stream().findFirst()))
+            .subscribeOn(jdbcScheduler);
+    }
+
+    private static Timer timer(final MeterRegistry meterRegistry, final String operation) {
+        return Timer.builder("sisyphus.db.metadata")
+            .tag("operation", operation)
+            .publishPercentileHistogram()
+            .register(meterRegistry);
+    }
+}
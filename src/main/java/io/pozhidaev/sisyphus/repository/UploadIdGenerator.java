@@ -0,0 +1,88 @@
+package io.pozhidaev.sisyphus.repository;
+
+import org.hibernate.engine.config.spi.ConfigurationService;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.id.Configurable;
+import org.hibernate.id.IdentityGenerator;
+import org.hibernate.service.ServiceRegistry;
+import org.hibernate.type.Type;
+
+import java.io.Serializable;
+import java.util.Optional;
+import java.util.Properties;
+
+/**
+ * Ids of uploads in cluster mode: milliseconds since 2019, the node creating the upload and a sequence within
+ * the millisecond, so any node tells the owner of an upload by its id. Unique as long as node ids are.
+ * Without a node id the database assigns ids as before. Generated ids start at {@link #FIRST_ID}, database ids
+ * below it belong to node 0, whatever their bits say.
+ */
+public class UploadIdGenerator extends IdentityGenerator implements Configurable {
+
+    public static final String NODE_ID_PROPERTY = "sisyphus.cluster-node-id";
+    public static final int SEQUENCE_BITS = 12;
+    public static final int NODE_BITS = 10;
+    public static final int MAX_NODES = 1 << NODE_BITS;
+    public static final long NODE_UNIT = 1L << SEQUENCE_BITS;
+    /**
+     * The first id generated in cluster mode, of 2019-02-19, far above the ids a database assigns.
+     */
+    public static final long FIRST_ID = 1L << (32 + NODE_BITS + SEQUENCE_BITS);
+
+    static final long EPOCH = 1546300800000L;
+    private static final long FIRST_MILLIS = EPOCH + (FIRST_ID >>> (NODE_BITS + SEQUENCE_BITS));
+    private static final long MAX_SEQUENCE = NODE_UNIT - 1;
+
+    private Integer nodeId;
+    private long lastMillis;
+    private long sequence;
+
+    public UploadIdGenerator() {
+    }
+
+    UploadIdGenerator(final Integer nodeId) {
+        this.nodeId = nodeId;
+    }
+
+    @Override
+    public void configure(final Type type, final Properties params, final ServiceRegistry serviceRegistry) {
+        nodeId = Optional
+            .ofNullable(serviceRegistry.getService(ConfigurationService.class).getSettings().get(NODE_ID_PROPERTY))
+            .map(value -> Integer.valueOf(value.toString()))
+            .orElse(null);
+        if (nodeId != null && (nodeId < 0 || nodeId >= MAX_NODES)) {
+            throw new IllegalArgumentException("Cluster node id should be within 0.." + (MAX_NODES - 1) + ": " + nodeId);
+        }
+    }
+
+    @Override
+    public Serializable generate(final SharedSessionContractImplementor session, final Object object) {
+        return nodeId == null ? super.generate(session, object) : next(System.currentTimeMillis());
+    }
+
+    /**
+     * Never goes back with the clock, a sequence running out borrows the next millisecond.
+     */
+    synchronized long next(final long currentMillis) {
+        final long millis = Math.max(Math.max(currentMillis, FIRST_MILLIS), lastMillis);
+        if (millis == lastMillis) {
+            sequence = (sequence + 1) & MAX_SEQUENCE;
+            if (sequence == 0) {
+                lastMillis = millis + 1;
+                return id(lastMillis, 0);
+            }
+        } else {
+            sequence = 0;
+            lastMillis = millis;
+        }
+        return id(lastMillis, sequence);
+    }
+
+    public static int nodeOf(final long id) {
+        return id < FIRST_ID ? 0 : (int) ((id >>> SEQUENCE_BITS) & (MAX_NODES - 1));
+    }
+
+    private long id(final long millis, final long sequence) {
+        return (millis - EPOCH) << (NODE_BITS + SEQUENCE_BITS) | (long) nodeId << SEQUENCE_BITS | sequence;
+    }
+}
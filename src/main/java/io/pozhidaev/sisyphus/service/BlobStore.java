@@ -0,0 +1,138 @@
+package io.pozhidaev.sisyphus.service;
+
+import io.pozhidaev.sisyphus.configurations.SisyphusServerConfiguration;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.Optional;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * Completed uploads of the same content share one file through hard links. The .blobs directory holds one more link
+ * to every shared file, named by its whole file digest, so the file system counts the references: the bytes are freed
+ * once the last upload is unlinked and its blob entry, left as the only link, is released.
+ */
+@Slf4j
+@Component
+public class BlobStore {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final Path root;
+    @Getter
+    private final boolean enabled;
+
+    @Autowired
+    public BlobStore(final Path fileDirectory, final SisyphusServerConfiguration configuration) {
+        this(fileDirectory, configuration.isDeduplication());
+        if (enabled && !Optional
+            .ofNullable(configuration.getFileDigestAlgorithm())
+            .flatMap(ChecksumAlgorithm::of)
+            .filter(ChecksumAlgorithm::isCollisionResistant)
+            .isPresent()
+        ) {
+            throw new IllegalArgumentException("Deduplication needs sisyphus-server.file-digest-algorithm sha256 or sha512");
+        }
+    }
+
+    BlobStore(@NonNull final Path fileDirectory, final boolean enabled) {
+        this.root = fileDirectory.resolve(".blobs");
+        this.enabled = enabled;
+    }
+
+    /**
+     * Registers the completed file under its digest, or replaces it with a link to the identical file registered
+     * before. Returns the bytes freed, zero when the content is new. Content is told apart by the digest and length
+     * only, which is why deduplication takes sha256 or sha512 digests.
+     */
+    public long link(@NonNull final Path file, @NonNull final String checksum, final long length) throws IOException {
+        final Optional<Path> found = blob(checksum);
+        if (!found.isPresent()) {
+            return 0;
+        }
+        final Path blob = found.get();
+        Files.createDirectories(blob.getParent());
+        try {
+            Files.createLink(blob, file);
+            return 0;
+        } catch (FileAlreadyExistsException e) {
+            log.trace("Blob {} exists", blob);
+        }
+        if (Files.isSameFile(blob, file)) {
+            return 0;
+        }
+        if (Files.size(blob) != length) {
+            log.warn("Blob {} is not {} bytes long, {} keeps its own copy", blob, length, file);
+            return 0;
+        }
+        final Path link = file.resolveSibling(file.getFileName() + ".dedup");
+        Files.deleteIfExists(link);
+        Files.createLink(link, blob);
+        Files.move(link, file, ATOMIC_MOVE, REPLACE_EXISTING);
+        return length;
+    }
+
+    /**
+     * Whether the file is a link of the blob entry of the digest, that is shared by {@link #link(Path, String, long)}.
+     */
+    public boolean isLinked(@NonNull final Path file, @NonNull final String checksum) throws IOException {
+        final Optional<Path> found = blob(checksum);
+        return found.isPresent() && Files.exists(found.get()) && Files.exists(file)
+            && Files.isSameFile(found.get(), file);
+    }
+
+    /**
+     * Removes the blob entry of the digest once no upload links to it. An upload linking to it meanwhile keeps
+     * its content, it only won't be shared with later uploads.
+     */
+    public void release(@NonNull final String checksum) throws IOException {
+        final Optional<Path> found = blob(checksum);
+        if (!found.isPresent()) {
+            return;
+        }
+        try {
+            if (((Number) Files.getAttribute(found.get(), "unix:nlink")).intValue() <= 1) {
+                Files.deleteIfExists(found.get());
+            }
+        } catch (NoSuchFileException e) {
+            log.trace("Blob {} is gone", found.get());
+        }
+    }
+
+    /**
+     * .blobs/sha256/ab/ab12... for "sha256 qxI...", empty for checksums that aren't algorithm and base64 digest.
+     */
+    Optional<Path> blob(final String checksum) {
+        final int space = checksum.indexOf(' ');
+        if (space <= 0) {
+            return Optional.empty();
+        }
+        final byte[] digest;
+        try {
+            digest = Base64.getDecoder().decode(checksum.substring(space + 1));
+        } catch (IllegalArgumentException e) {
+            return Optional.empty();
+        }
+        if (digest.length == 0) {
+            return Optional.empty();
+        }
+        final char[] hex = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            hex[2 * i] = HEX[(digest[i] >> 4) & 0xf];
+            hex[2 * i + 1] = HEX[digest[i] & 0xf];
+        }
+        final String name = new String(hex);
+        return Optional.of(root.resolve(checksum.substring(0, space)).resolve(name.substring(0, 2)).resolve(name));
+    }
+}
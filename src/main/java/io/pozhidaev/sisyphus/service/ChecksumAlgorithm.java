@@ -0,0 +1,48 @@
+package io.pozhidaev.sisyphus.service;
+
+import lombok.Getter;
+
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+/**
+ * Checksum algorithms of the tus checksum extension, named as they appear in Upload-Checksum.
+ */
+public enum ChecksumAlgorithm {
+    SHA1("sha1", "SHA-1"),
+    MD5("md5", "MD5"),
+    SHA256("sha256", "SHA-256"),
+    SHA512("sha512", "SHA-512"),
+    CRC32("crc32", null);
+
+    @Getter
+    private final String tusName;
+    private final String jcaName;
+
+    ChecksumAlgorithm(final String tusName, final String jcaName) {
+        this.tusName = tusName;
+        this.jcaName = jcaName;
+    }
+
+    public StreamingDigest newDigest() {
+        return jcaName == null ? StreamingDigest.crc32(tusName) : StreamingDigest.messageDigest(tusName, jcaName);
+    }
+
+    /**
+     * Whether equal digests can be taken for equal content, which sharing files by their digest needs.
+     */
+    public boolean isCollisionResistant() {
+        return this == SHA256 || this == SHA512;
+    }
+
+    public static Optional<ChecksumAlgorithm> of(final String tusName) {
+        return Arrays.stream(values())
+            .filter(a -> a.tusName.equalsIgnoreCase(tusName))
+            .findFirst();
+    }
+
+    public static String supported() {
+        return Arrays.stream(values()).map(ChecksumAlgorithm::getTusName).collect(Collectors.joining(","));
+    }
+}
@@ -0,0 +1,13 @@
+package io.pozhidaev.sisyphus.service;
+
+/**
+ * Chunk body doesn't match its Upload-Checksum, answered with status 460.
+ */
+public class ChecksumMismatchException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public ChecksumMismatchException(final Long id, final String algorithm) {
+        super(String.format("Checksum mismatch, upload: %d, algorithm: %s", id, algorithm));
+    }
+}
@@ -0,0 +1,63 @@
+package io.pozhidaev.sisyphus.service;
+
+import io.pozhidaev.sisyphus.configurations.SisyphusServerConfiguration;
+import io.pozhidaev.sisyphus.repository.UploadIdGenerator;
+import lombok.Getter;
+import lombok.NonNull;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Nodes of the cluster by id and the node owning an upload, the one that created it and holds its content
+ * and offset. Without sisyphus-server.cluster-nodes the node runs alone and owns every upload.
+ */
+@Component
+public class ClusterNodes {
+
+    private final List<String> urls;
+    @Getter
+    private final int nodeId;
+    @Getter
+    private final ClusterRouting routing;
+
+    @Autowired
+    public ClusterNodes(@NonNull final SisyphusServerConfiguration configuration) {
+        this.urls = new ArrayList<>(configuration.getClusterNodes());
+        this.nodeId = configuration.getClusterNodeId();
+        this.routing = configuration.getClusterRouting();
+        if (urls.size() > UploadIdGenerator.MAX_NODES) {
+            throw new IllegalArgumentException("Cluster should have at most " + UploadIdGenerator.MAX_NODES + " nodes: " + urls.size());
+        }
+        if (!urls.isEmpty() && (nodeId < 0 || nodeId >= urls.size())) {
+            throw new IllegalArgumentException("Cluster node id should be within 0.." + (urls.size() - 1) + ": " + nodeId);
+        }
+        urls.replaceAll(url -> url.endsWith("/") ? url.substring(0, url.length() - 1) : url);
+    }
+
+    public boolean isEnabled() {
+        return !urls.isEmpty();
+    }
+
+    public boolean isLocal(final long id) {
+        return !isEnabled() || UploadIdGenerator.nodeOf(id) == nodeId;
+    }
+
+    /**
+     * Base URL of the node owning the upload, empty when it is this one or not a known node.
+     */
+    public Optional<String> ownerUrl(final long id) {
+        final int owner = UploadIdGenerator.nodeOf(id);
+        return isLocal(id) || owner >= urls.size() ? Optional.empty() : Optional.of(urls.get(owner));
+    }
+
+    /**
+     * Node whose uploads the background jobs take care of, -1 for all of them when running alone.
+     */
+    public int getOwnedNode() {
+        return isEnabled() ? nodeId : -1;
+    }
+}
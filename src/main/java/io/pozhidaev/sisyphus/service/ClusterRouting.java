@@ -0,0 +1,15 @@
+package io.pozhidaev.sisyphus.service;
+
+/**
+ * How a node answers requests for uploads owned by another node.
+ */
+public enum ClusterRouting {
+    /**
+     * Streams the request to the owner and its response back, clients see one address.
+     */
+    PROXY,
+    /**
+     * Sends the client to the owner with 307, the method and body are kept.
+     */
+    REDIRECT
+}
@@ -0,0 +1,170 @@
+package io.pozhidaev.sisyphus.service;
+
+import io.pozhidaev.sisyphus.configurations.SisyphusServerConfiguration;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.server.reactive.AbstractServerHttpResponse;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.http.server.reactive.ServerHttpResponse;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.BodyExtractors;
+import org.springframework.web.reactive.function.BodyInserters;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.server.ServerWebExchange;
+import org.springframework.web.server.WebFilter;
+import org.springframework.web.server.WebFilterChain;
+import reactor.core.publisher.Mono;
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import static org.springframework.http.HttpStatus.BAD_GATEWAY;
+import static org.springframework.http.HttpStatus.BAD_REQUEST;
+
+/**
+ * Sends requests for an upload of another node to the owner: chunks, HEAD, info, content and termination, and
+ * final concatenations of its partial uploads. Proxied bodies are streamed both ways as they arrive.
+ * Requests coming from another node are always served here, a misconfigured cluster can't loop.
+ */
+@Slf4j
+@Component
+@Order(Ordered.LOWEST_PRECEDENCE)
+public class ClusterRoutingFilter implements WebFilter {
+
+    static final String FORWARDED_BY = "X-Sisyphus-Forwarded-By";
+
+    private static final Pattern UPLOAD_PATH = Pattern.compile("/upload/(\\d{1,19})(/content)?/?");
+    private static final List<String> HOP_BY_HOP = Arrays.asList(
+        HttpHeaders.CONNECTION, "Keep-Alive", HttpHeaders.PROXY_AUTHENTICATE, HttpHeaders.PROXY_AUTHORIZATION,
+        HttpHeaders.TE, HttpHeaders.TRAILER, HttpHeaders.TRANSFER_ENCODING, HttpHeaders.UPGRADE, HttpHeaders.HOST,
+        HttpHeaders.EXPECT
+    );
+
+    private final ClusterNodes clusterNodes;
+    private final WebClient webClient;
+    private final boolean sharedStorage;
+
+    /**
+     * The client is built without the customizations of the application builder: its metrics filter fails on
+     * statuses missing from HttpStatus, like 460 of a checksum mismatch, that have to pass through unchanged.
+     */
+    @Autowired
+    public ClusterRoutingFilter(
+        @NonNull final ClusterNodes clusterNodes,
+        @NonNull final SisyphusServerConfiguration configuration
+    ) {
+        this.clusterNodes = clusterNodes;
+        this.webClient = WebClient.builder().build();
+        this.sharedStorage = configuration.getStorageBackend() == StorageBackend.S3;
+    }
+
+    @Override
+    public Mono<Void> filter(final ServerWebExchange exchange, final WebFilterChain chain) {
+        final ServerHttpRequest request = exchange.getRequest();
+        if (!clusterNodes.isEnabled() || request.getHeaders().containsKey(FORWARDED_BY)) {
+            return chain.filter(exchange);
+        }
+        final Optional<String> owner;
+        try {
+            owner = owner(request);
+        } catch (ResponseStatusException e) {
+            return Mono.error(e);
+        }
+        return owner
+            .map(url -> clusterNodes.getRouting() == ClusterRouting.REDIRECT ? redirect(exchange, url) : proxy(exchange, url))
+            .orElseGet(() -> chain.filter(exchange));
+    }
+
+    /**
+     * Base URL of the node to serve the request, empty when it is served here.
+     */
+    Optional<String> owner(final ServerHttpRequest request) {
+        final String path = request.getPath().pathWithinApplication().value();
+        final Matcher matcher = UPLOAD_PATH.matcher(path);
+        if (matcher.matches()) {
+            return id(matcher.group(1)).flatMap(clusterNodes::ownerUrl);
+        }
+        final String concat = request.getHeaders().getFirst("Upload-Concat");
+        if (request.getMethod() != HttpMethod.POST || concat == null || !concat.startsWith("final;")) {
+            return Optional.empty();
+        }
+        final Set<Optional<String>> owners = Arrays.stream(concat.substring("final;".length()).trim().split(" +"))
+            .map(url -> id(url.substring(url.lastIndexOf('/') + 1)))
+            .filter(Optional::isPresent)
+            .map(id -> clusterNodes.ownerUrl(id.get()))
+            .collect(Collectors.toSet());
+        if (owners.size() > 1 && !sharedStorage) {
+            throw new ResponseStatusException(BAD_REQUEST, "Partial uploads of a final upload are on different nodes: " + concat);
+        }
+        return owners.size() == 1 ? owners.iterator().next() : Optional.empty();
+    }
+
+    private Mono<Void> redirect(final ServerWebExchange exchange, final String ownerUrl) {
+        log.debug("{} {} redirected to {}", exchange.getRequest().getMethod(), exchange.getRequest().getPath(), ownerUrl);
+        final ServerHttpResponse response = exchange.getResponse();
+        response.setStatusCode(HttpStatus.TEMPORARY_REDIRECT);
+        response.getHeaders().setLocation(target(exchange.getRequest(), ownerUrl));
+        return response.setComplete();
+    }
+
+    private Mono<Void> proxy(final ServerWebExchange exchange, final String ownerUrl) {
+        final ServerHttpRequest request = exchange.getRequest();
+        final HttpHeaders requestHeaders = request.getHeaders();
+        log.debug("{} {} proxied to {}", request.getMethod(), request.getPath(), ownerUrl);
+        final WebClient.RequestBodySpec forwarded = webClient
+            .method(request.getMethod())
+            .uri(target(request, ownerUrl))
+            .headers(headers -> {
+                headers.addAll(requestHeaders);
+                HOP_BY_HOP.forEach(headers::remove);
+                headers.set(FORWARDED_BY, Integer.toString(clusterNodes.getNodeId()));
+            });
+        final boolean hasBody = requestHeaders.getContentLength() > 0 || requestHeaders.containsKey(HttpHeaders.TRANSFER_ENCODING);
+        return (hasBody ? forwarded.body(BodyInserters.fromDataBuffers(request.getBody())) : forwarded)
+            .exchange()
+            .onErrorMap(e -> {
+                log.warn("Proxying {} {} to {} failed", request.getMethod(), request.getPath(), ownerUrl, e);
+                return new ResponseStatusException(BAD_GATEWAY, "Owner of the upload unreachable: " + ownerUrl, e);
+            })
+            .flatMap(ownerResponse -> {
+                final ServerHttpResponse response = exchange.getResponse();
+                if (response instanceof AbstractServerHttpResponse) {
+                    ((AbstractServerHttpResponse) response).setStatusCodeValue(ownerResponse.rawStatusCode());
+                } else {
+                    response.setStatusCode(ownerResponse.statusCode());
+                }
+                response.getHeaders().addAll(ownerResponse.headers().asHttpHeaders());
+                HOP_BY_HOP.forEach(response.getHeaders()::remove);
+                return response.writeWith(ownerResponse.body(BodyExtractors.toDataBuffers()));
+            });
+    }
+
+    /**
+     * Malformed ids are left for the controller to answer.
+     */
+    private static Optional<Long> id(final String value) {
+        try {
+            return Optional.of(Long.valueOf(value));
+        } catch (NumberFormatException e) {
+            return Optional.empty();
+        }
+    }
+
+    private static URI target(final ServerHttpRequest request, final String ownerUrl) {
+        final URI uri = request.getURI();
+        return URI.create(ownerUrl + uri.getRawPath() + (uri.getRawQuery() == null ? "" : "?" + uri.getRawQuery()));
+    }
+}
@@ -0,0 +1,19 @@
+package io.pozhidaev.sisyphus.service;
+
+/**
+ * When written chunks are forced to disk, relative to acknowledging them with the new Upload-Offset.
+ */
+public enum DurabilityPolicy {
+    /**
+     * Left to the page cache, a crash can lose chunks behind an acknowledged offset.
+     */
+    NONE,
+    /**
+     * Every chunk is forced before its offset is advanced.
+     */
+    PER_CHUNK,
+    /**
+     * Chunks of concurrent uploads are forced together once per window before their offsets are advanced.
+     */
+    GROUP_COMMIT
+}
@@ -0,0 +1,131 @@
+package io.pozhidaev.sisyphus.service;
+
+import io.pozhidaev.sisyphus.configurations.SisyphusServerConfiguration;
+import io.pozhidaev.sisyphus.domain.File;
+import io.pozhidaev.sisyphus.repository.ReactiveFileRepository;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.List;
+
+/**
+ * Removes unfinished uploads, rows and files, once they got no chunk for sisyphus-server.upload-expiration.
+ * Every sweep takes one batch off the updated_at index, following the last upload of the previous sweep,
+ * and deletes it one upload at a time at a capped rate. Sweeps are skipped while storage can't keep up with clients.
+ * In a cluster every node expires the uploads it owns.
+ */
+@Slf4j
+@Component
+public class ExpirationSweeper {
+
+    private static final LocalDateTime START = LocalDateTime.of(1970, 1, 1, 0, 0);
+
+    private final UploadService uploadService;
+    private final ReactiveFileRepository fileRepository;
+    private final InFlightLimiter inFlightLimiter;
+    private final ClusterNodes clusterNodes;
+    private final Duration expiration;
+    private final Duration sweepInterval;
+    private final int batchSize;
+    private final Duration deletePause;
+
+    private LocalDateTime lastUpdatedAt = START;
+    private long lastId;
+    private Disposable sweeper;
+
+    @Autowired
+    public ExpirationSweeper(
+        final UploadService uploadService,
+        final ReactiveFileRepository fileRepository,
+        final InFlightLimiter inFlightLimiter,
+        final ClusterNodes clusterNodes,
+        final SisyphusServerConfiguration configuration
+    ) {
+        if (configuration.getExpirationBatchSize() <= 0 || configuration.getExpirationDeleteRate() <= 0) {
+            throw new IllegalArgumentException("Expiration batch size and delete rate should be positive: "
+                + configuration.getExpirationBatchSize() + ", " + configuration.getExpirationDeleteRate());
+        }
+        this.uploadService = uploadService;
+        this.fileRepository = fileRepository;
+        this.inFlightLimiter = inFlightLimiter;
+        this.clusterNodes = clusterNodes;
+        this.expiration = configuration.getUploadExpiration();
+        this.sweepInterval = configuration.getExpirationSweepInterval();
+        this.batchSize = configuration.getExpirationBatchSize();
+        this.deletePause = Duration.ofNanos(1_000_000_000L / configuration.getExpirationDeleteRate());
+    }
+
+    @PostConstruct
+    public void start() {
+        if (expiration.isZero() || expiration.isNegative()) {
+            return;
+        }
+        sweeper = Flux
+            .interval(sweepInterval)
+            .onBackpressureDrop()
+            .concatMap(tick -> sweep().onErrorResume(throwable -> {
+                log.error("Expiration sweep failed", throwable);
+                return Mono.empty();
+            }))
+            .subscribe();
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (sweeper != null) {
+            sweeper.dispose();
+        }
+    }
+
+    /**
+     * Expires the next batch and returns how many uploads were removed.
+     * A batch shorter than the batch size means the index was walked through, the next sweep starts over.
+     */
+    public Mono<Long> sweep() {
+        if (inFlightLimiter.isCongested()) {
+            log.debug("Expiration sweep skipped, uploads wait for buffers");
+            return Mono.just(0L);
+        }
+        final LocalDateTime before = LocalDateTime.now(ZoneId.systemDefault()).minus(expiration);
+        return fileRepository
+            .findExpired(before, lastUpdatedAt, lastId, batchSize)
+            .doOnNext(this::advance)
+            .flatMapMany(Flux::fromIterable)
+            .filter(file -> clusterNodes.isLocal(file.getId()))
+            .concatMap(file -> Mono
+                .delay(deletePause)
+                .then(uploadService.expire(file, before))
+                .onErrorResume(throwable -> {
+                    log.warn("Expiration of {} failed", file.getId(), throwable);
+                    return Mono.just(false);
+                })
+            )
+            .filter(Boolean::booleanValue)
+            .count()
+            .doOnNext(expired -> {
+                if (expired > 0) {
+                    log.info("Expired {} uploads idle since before {}", expired, before);
+                }
+            });
+    }
+
+    private void advance(final List<File> batch) {
+        if (batch.size() < batchSize) {
+            lastUpdatedAt = START;
+            lastId = 0;
+        } else {
+            final File last = batch.get(batch.size() - 1);
+            lastUpdatedAt = last.getUpdatedAt();
+            lastId = last.getId();
+        }
+    }
+}
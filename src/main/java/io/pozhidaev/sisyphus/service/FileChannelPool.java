@@ -0,0 +1,230 @@
+package io.pozhidaev.sisyphus.service;
+
+import io.pozhidaev.sisyphus.configurations.SisyphusServerConfiguration;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Keeps one open channel per active upload, so consecutive chunks don't pay for open and close.
+ * Handles are reference counted, idle ones are closed after a timeout or when the pool is over its cap.
+ */
+@Slf4j
+@Component
+public class FileChannelPool {
+
+    private final Function<Path, Mono<AsynchronousFileChannel>> channelFunction;
+    private final int maxOpenChannels;
+    private final Duration idleTimeout;
+    private final Map<Long, Handle> handles = new ConcurrentHashMap<>();
+
+    private final AtomicLong opens = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    private Disposable sweeper;
+
+    @Autowired
+    public FileChannelPool(
+        final Function<Path, Mono<AsynchronousFileChannel>> channelFunction,
+        final SisyphusServerConfiguration configuration
+    ) {
+        this.channelFunction = channelFunction;
+        this.maxOpenChannels = configuration.getChannelPoolSize();
+        this.idleTimeout = configuration.getChannelIdleTimeout();
+    }
+
+    @PostConstruct
+    public void start() {
+        sweeper = Flux
+            .interval(idleTimeout)
+            .onBackpressureDrop()
+            .subscribe(tick -> evictIdle());
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (sweeper != null) {
+            sweeper.dispose();
+        }
+        handles.keySet().forEach(this::invalidate);
+    }
+
+    /**
+     * Leases the channel of the upload, opening it if there is none. Every lease must be given back with
+     * {@link #release(Handle)}.
+     */
+    public Mono<Handle> acquire(@NonNull final Long id, @NonNull final Path path) {
+        return Mono.defer(() -> {
+            final Handle pooled = handles.get(id);
+            if (pooled != null && pooled.retain()) {
+                hits.incrementAndGet();
+                return Mono.just(pooled);
+            }
+            return channelFunction
+                .apply(path)
+                .doOnNext(channel -> opens.incrementAndGet())
+                .map(channel -> register(id, channel));
+        });
+    }
+
+    public void release(@NonNull final Handle handle) {
+        if (handle.release()) {
+            closeChannel(handle.getChannel());
+            return;
+        }
+        if (handles.size() > maxOpenChannels) {
+            evictEldest(handles.size() - maxOpenChannels);
+        }
+    }
+
+    /**
+     * Drops the channel of the upload from the pool, it is closed as soon as the last lease is released.
+     */
+    public void invalidate(@NonNull final Long id) {
+        final Handle handle = handles.remove(id);
+        if (handle != null && handle.retire()) {
+            closeChannel(handle.getChannel());
+        }
+    }
+
+    public int getOpenChannels() {
+        return handles.size();
+    }
+
+    public long getOpens() {
+        return opens.get();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    void evictIdle() {
+        final long deadline = System.nanoTime() - idleTimeout.toNanos();
+        handles.values().stream()
+            .filter(h -> h.getLastAccessTime() < deadline)
+            .forEach(this::evict);
+    }
+
+    void closeChannel(
+        @NonNull final AsynchronousFileChannel asynchronousFileChannel
+    ){
+        try {
+            asynchronousFileChannel.close();
+        } catch (IOException e) {
+            throw new RuntimeException("Channel close error");
+        }
+    }
+
+    private Handle register(final Long id, final AsynchronousFileChannel channel) {
+        final Handle handle = new Handle(id, channel);
+        final Handle leased = handles.compute(id, (k, previous) ->
+            previous != null && previous.retain() ? previous : handle
+        );
+        if (leased != handle) {
+            closeChannel(channel);
+            return leased;
+        }
+        if (handles.size() > maxOpenChannels) {
+            evictEldest(handles.size() - maxOpenChannels);
+        }
+        return handle;
+    }
+
+    private void evictEldest(final int count) {
+        handles.values().stream()
+            .filter(Handle::isIdle)
+            .sorted(Comparator.comparingLong(Handle::getLastAccessTime))
+            .limit(count)
+            .forEach(this::evict);
+    }
+
+    private void evict(final Handle handle) {
+        if (handle.retireIfIdle()) {
+            handles.remove(handle.getId(), handle);
+            evictions.incrementAndGet();
+            closeChannel(handle.getChannel());
+            log.debug("Channel evicted: {}", handle.getId());
+        }
+    }
+
+    /**
+     * Leased channel of one upload.
+     */
+    public static final class Handle {
+
+        @Getter
+        private final Long id;
+        @Getter
+        private final AsynchronousFileChannel channel;
+        private int refCount = 1;
+        private boolean retired;
+        private long lastAccessTime = System.nanoTime();
+
+        Handle(final Long id, final AsynchronousFileChannel channel) {
+            this.id = id;
+            this.channel = channel;
+        }
+
+        synchronized long getLastAccessTime() {
+            return lastAccessTime;
+        }
+
+        synchronized boolean isIdle() {
+            return refCount == 0;
+        }
+
+        synchronized boolean retain() {
+            if (retired) {
+                return false;
+            }
+            refCount++;
+            lastAccessTime = System.nanoTime();
+            return true;
+        }
+
+        /**
+         * @return true if the channel has to be closed by the caller
+         */
+        synchronized boolean release() {
+            refCount--;
+            lastAccessTime = System.nanoTime();
+            return refCount == 0 && retired;
+        }
+
+        synchronized boolean retire() {
+            retired = true;
+            return refCount == 0;
+        }
+
+        synchronized boolean retireIfIdle() {
+            if (refCount != 0 || retired) {
+                return false;
+            }
+            retired = true;
+            return true;
+        }
+    }
+}
@@ -2,13 +2,35 @@ package io.pozhidaev.sisyphus.service;
 
 
 import io.pozhidaev.sisyphus.domain.File;
+import org.springframework.core.io.Resource;
 import org.springframework.core.io.buffer.DataBuffer;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.util.List;
+
 
 public interface FileStorage {
+
+    /**
+     * Fails with 413 or 507 when an upload of the length can't be stored, before anything of it is created.
+     */
+    Mono<Void> checkSpace(final Long contentLength);
+
     Mono<File> createFile(final File file);
     Mono<Integer> putObject(final Long id, final Flux<DataBuffer> parts);
     Mono<Integer> writeChunk(final Long id, final Flux<DataBuffer> parts, final long offset);
+    Mono<Void> complete(final Long id);
+    Mono<File> concatenate(final File file, final List<File> parts);
+    Mono<Resource> getObject(final Long id);
+
+    /**
+     * Lets the completed upload share the stored content of an identical one, returns the bytes it freed.
+     */
+    Mono<Long> deduplicate(final Long id, final String checksum, final long contentLength);
+
+    /**
+     * Removes the file of the upload along with its reference to shared content.
+     */
+    Mono<Void> delete(final File file);
 }
@@ -0,0 +1,53 @@
+package io.pozhidaev.sisyphus.service;
+
+import lombok.Value;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Ids of recently created uploads by fingerprint and length, the least recently used are dropped past the max size.
+ * Entries may point at uploads that finished or are gone since, callers check what they find.
+ */
+final class FingerprintIndex {
+
+    private final Map<Key, Long> ids;
+
+    FingerprintIndex(final int maxSize) {
+        this.ids = Collections.synchronizedMap(new LinkedHashMap<Key, Long>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Key, Long> eldest) {
+                return size() > maxSize;
+            }
+        });
+    }
+
+    void put(final String fingerprint, final long contentLength, final Long id) {
+        ids.put(new Key(fingerprint, contentLength), id);
+    }
+
+    Optional<Long> get(final String fingerprint, final long contentLength) {
+        return Optional.ofNullable(ids.get(new Key(fingerprint, contentLength)));
+    }
+
+    /**
+     * Drops the entry unless it points at another upload by now.
+     */
+    void remove(final String fingerprint, final long contentLength, final Long id) {
+        ids.remove(new Key(fingerprint, contentLength), id);
+    }
+
+    int size() {
+        return ids.size();
+    }
+
+    @Value
+    private static class Key {
+        String fingerprint;
+        long contentLength;
+    }
+}
@@ -0,0 +1,142 @@
+package io.pozhidaev.sisyphus.service;
+
+import io.pozhidaev.sisyphus.configurations.SisyphusServerConfiguration;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+import reactor.core.scheduler.Scheduler;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Forces written chunks to disk according to the {@link DurabilityPolicy}.
+ * With group commit, chunks are collected for a window or until a batch is full, each channel of the batch
+ * is forced once and all of its chunks are acknowledged together.
+ */
+@Slf4j
+@Component
+public class GroupCommitter {
+
+    @Getter
+    private final DurabilityPolicy policy;
+    private final Scheduler storageScheduler;
+    private final Duration window;
+    private final int batchSize;
+
+    private final Object lock = new Object();
+    private List<Waiter> batch = new ArrayList<>();
+    private boolean scheduled;
+
+    @Autowired
+    public GroupCommitter(
+        @Qualifier("storageScheduler") final Scheduler storageScheduler,
+        final SisyphusServerConfiguration configuration
+    ) {
+        this.policy = configuration.getDurabilityPolicy();
+        this.storageScheduler = storageScheduler;
+        this.window = configuration.getGroupCommitWindow();
+        this.batchSize = configuration.getGroupCommitSize();
+    }
+
+    /**
+     * Completes once everything written to the channel so far is on disk. The channel must stay open until then.
+     */
+    public Mono<Void> commit(@NonNull final AsynchronousFileChannel channel) {
+        return commit(channel, () -> channel.force(false));
+    }
+
+    /**
+     * Completes once everything written to the mapping so far is on disk. Batched by the mapping, the force
+     * decides itself what to do with a mapping released meanwhile.
+     */
+    public Mono<Void> commit(@NonNull final MappedByteBuffer mapping, @NonNull final Force force) {
+        return commit((Object) mapping, force);
+    }
+
+    private Mono<Void> commit(final Object target, final Force force) {
+        switch (policy) {
+            case PER_CHUNK:
+                return Mono.<Void>fromCallable(() -> {
+                    force.force();
+                    return null;
+                }).subscribeOn(storageScheduler);
+            case GROUP_COMMIT:
+                return Mono.create(sink -> enqueue(new Waiter(target, force, sink)));
+            default:
+                return Mono.empty();
+        }
+    }
+
+    private void enqueue(final Waiter waiter) {
+        final boolean full;
+        final boolean schedule;
+        synchronized (lock) {
+            batch.add(waiter);
+            full = batch.size() >= batchSize;
+            schedule = !full && !scheduled;
+            scheduled |= schedule;
+        }
+        if (full) {
+            commitBatch();
+        } else if (schedule) {
+            Mono.delay(window).subscribe(tick -> commitBatch());
+        }
+    }
+
+    /**
+     * Forces every channel of the batch once, in parallel on the storage scheduler, so the filesystem can fold
+     * them into a single journal commit. Chunks arriving meanwhile go to the next batch.
+     */
+    void commitBatch() {
+        final List<Waiter> committing;
+        synchronized (lock) {
+            committing = batch;
+            batch = new ArrayList<>();
+            scheduled = false;
+        }
+        final Map<Object, List<Waiter>> targets = new IdentityHashMap<>();
+        committing.forEach(w -> targets.computeIfAbsent(w.target, t -> new ArrayList<>()).add(w));
+        log.trace("Group commit: {} chunks, {} files", committing.size(), targets.size());
+        targets.values().forEach(waiters -> storageScheduler.schedule(() -> {
+            try {
+                waiters.get(0).force.force();
+                waiters.forEach(w -> w.sink.success());
+            } catch (IOException e) {
+                final RuntimeException error = new RuntimeException("Chunk sync failed", e);
+                waiters.forEach(w -> w.sink.error(error));
+            }
+        }));
+    }
+
+    /**
+     * Forces written data, for channels the length of a growing file is part of it, timestamps are not.
+     */
+    @FunctionalInterface
+    public interface Force {
+        void force() throws IOException;
+    }
+
+    private static final class Waiter {
+        private final Object target;
+        private final Force force;
+        private final MonoSink<Void> sink;
+
+        private Waiter(final Object target, final Force force, final MonoSink<Void> sink) {
+            this.target = target;
+            this.force = force;
+            this.sink = sink;
+        }
+    }
+}
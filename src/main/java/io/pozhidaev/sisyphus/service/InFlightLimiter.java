@@ -0,0 +1,199 @@
+package io.pozhidaev.sisyphus.service;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.pozhidaev.sisyphus.configurations.SisyphusServerConfiguration;
+import lombok.NonNull;
+import org.reactivestreams.Subscription;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.BaseSubscriber;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caps request body bytes that were read from the socket but not written yet, per upload and for the whole server.
+ * A body is read one buffer at a time and only while both caps have room, otherwise nothing is requested
+ * and Netty stops reading the connection, so a slow disk slows the clients down instead of filling memory.
+ * <p>
+ * A buffer counts until the writer asks for the next one: writers must request after they are done with
+ * a buffer and never prefetch more than the per upload cap. Unbounded consumers can't tell when they are done,
+ * their bodies pass through unlimited.
+ */
+@Component
+public class InFlightLimiter {
+
+    private final long uploadLimit;
+    private final long globalLimit;
+    private final AtomicLong inFlight = new AtomicLong();
+    private final Queue<Gate> waiting = new ConcurrentLinkedQueue<>();
+
+    @Autowired
+    public InFlightLimiter(final SisyphusServerConfiguration configuration, final MeterRegistry meterRegistry) {
+        this.uploadLimit = configuration.getUploadBufferLimit().toBytes();
+        this.globalLimit = configuration.getGlobalBufferLimit().toBytes();
+        if (uploadLimit <= 0 || globalLimit < uploadLimit) {
+            throw new IllegalArgumentException(
+                "Buffer limits should be positive, the global one not below the upload one: " + uploadLimit + ", " + globalLimit
+            );
+        }
+
+        Gauge.builder("sisyphus.buffers.inflight", inFlight, AtomicLong::get)
+            .description("Request body bytes read from clients and not written yet")
+            .baseUnit("bytes")
+            .register(meterRegistry);
+        Gauge.builder("sisyphus.buffers.waiting", waiting, Queue::size)
+            .description("Uploads not read from until the global buffer limit has room")
+            .register(meterRegistry);
+        Gauge.builder("sisyphus.buffers.direct", PooledByteBufAllocator.DEFAULT.metric(), m -> m.usedDirectMemory())
+            .description("Direct memory held by the pooled Netty allocator")
+            .baseUnit("bytes")
+            .register(meterRegistry);
+    }
+
+    public Flux<DataBuffer> limit(@NonNull final Flux<DataBuffer> parts) {
+        return Flux.create(sink -> {
+            final Gate gate = new Gate(sink);
+            sink.onRequest(gate::downstreamRequest);
+            sink.onDispose(gate::close);
+            parts.subscribe(gate);
+        });
+    }
+
+    /**
+     * Uploads are waiting for the global limit, storage doesn't keep up with clients.
+     */
+    public boolean isCongested() {
+        return !waiting.isEmpty();
+    }
+
+    long getInFlight() {
+        return inFlight.get();
+    }
+
+    private void released(final long bytes) {
+        if (bytes > 0 && inFlight.addAndGet(-bytes) < globalLimit) {
+            Gate gate;
+            while (inFlight.get() < globalLimit && (gate = waiting.poll()) != null) {
+                gate.tryRequest();
+            }
+        }
+    }
+
+    /**
+     * One request body: asks upstream for one buffer at a time and keeps the sizes of the ones handed on
+     * until the writer asks for more.
+     */
+    private final class Gate extends BaseSubscriber<DataBuffer> {
+
+        private final FluxSink<DataBuffer> sink;
+        private final Deque<Integer> handedOn = new ArrayDeque<>();
+        private long demand;
+        private long held;
+        private boolean pending;
+        private boolean done;
+
+        private Gate(final FluxSink<DataBuffer> sink) {
+            this.sink = sink;
+        }
+
+        @Override
+        protected void hookOnSubscribe(final Subscription subscription) {
+            tryRequest();
+        }
+
+        @Override
+        protected void hookOnNext(final DataBuffer dataBuffer) {
+            final int size = dataBuffer.readableByteCount();
+            final boolean counted;
+            synchronized (this) {
+                pending = false;
+                if (done) {
+                    DataBufferUtils.release(dataBuffer);
+                    return;
+                }
+                counted = demand != Long.MAX_VALUE;
+                if (counted) {
+                    handedOn.add(size);
+                    held += size;
+                }
+            }
+            if (counted) {
+                inFlight.addAndGet(size);
+            }
+            sink.next(dataBuffer);
+            tryRequest();
+        }
+
+        @Override
+        protected void hookOnComplete() {
+            sink.complete();
+        }
+
+        @Override
+        protected void hookOnError(final Throwable throwable) {
+            sink.error(throwable);
+        }
+
+        /**
+         * Every buffer handed on before a request has been consumed by the writer.
+         */
+        void downstreamRequest(final long n) {
+            long freed = 0;
+            synchronized (this) {
+                for (long i = 0; i < n && !handedOn.isEmpty(); i++) {
+                    freed += handedOn.poll();
+                }
+                held -= freed;
+                demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+            }
+            released(freed);
+            tryRequest();
+        }
+
+        void tryRequest() {
+            synchronized (this) {
+                if (done || pending || demand == 0 || upstream() == null) {
+                    return;
+                }
+                if (demand != Long.MAX_VALUE) {
+                    if (held >= uploadLimit) {
+                        return;
+                    }
+                    if (inFlight.get() >= globalLimit) {
+                        waiting.add(this);
+                        if (inFlight.get() >= globalLimit) {
+                            return;
+                        }
+                        waiting.remove(this);
+                    }
+                    demand--;
+                }
+                pending = true;
+            }
+            request(1);
+        }
+
+        void close() {
+            final long freed;
+            synchronized (this) {
+                done = true;
+                freed = held;
+                held = 0;
+                handedOn.clear();
+            }
+            waiting.remove(this);
+            cancel();
+            released(freed);
+        }
+    }
+}
@@ -1,37 +1,97 @@
 package io.pozhidaev.sisyphus.service;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Timer;
+import io.pozhidaev.sisyphus.configurations.SisyphusServerConfiguration;
+import io.pozhidaev.sisyphus.domain.ConcatType;
 import io.pozhidaev.sisyphus.domain.File;
 import lombok.NonNull;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.commons.io.IOUtils;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Primary;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
 import org.springframework.core.io.buffer.DataBuffer;
 import org.springframework.core.io.buffer.DataBufferUtils;
 import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.nio.channels.AsynchronousFileChannel;
-import java.nio.file.*;
-import java.util.function.Function;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static org.springframework.http.HttpStatus.INSUFFICIENT_STORAGE;
+import static org.springframework.http.HttpStatus.PAYLOAD_TOO_LARGE;
 
 @Slf4j
+@Primary
 @Service
+@ConditionalOnProperty(prefix = "sisyphus-server", name = "storage-backend", havingValue = "local", matchIfMissing = true)
 public class LocalStorage implements FileStorage {
 
-    private Path fileDirectory;
-    private Function<Path, Mono<AsynchronousFileChannel>> channelFunction;
+    private static final ByteBuffer ZEROES = ByteBuffer.allocateDirect(1 << 20).asReadOnlyBuffer();
+
+    private StoragePathResolver pathResolver;
+    private FileChannelPool channelPool;
+    private Scheduler storageScheduler;
+    private Timer chunkWrites;
+    private Counter bytesWritten;
+    private Preallocation preallocation = Preallocation.NONE;
+    private GroupCommitter groupCommitter;
+    private BlobStore blobStore;
+    private final Object space = new Object();
+    private long booked;
+
+    @Autowired
+    public void setPathResolver(StoragePathResolver pathResolver) {
+        this.pathResolver = pathResolver;
+    }
+
+    @Autowired
+    public void setChannelPool(FileChannelPool channelPool) {
+        this.channelPool = channelPool;
+    }
+
+    @Autowired
+    public void setStorageScheduler(@Qualifier("storageScheduler") Scheduler storageScheduler) {
+        this.storageScheduler = storageScheduler;
+    }
 
     @Autowired
-    public void setFileDirectory(Path fileDirectory) {
-        this.fileDirectory = fileDirectory;
+    public void setMetrics(UploadMetrics metrics) {
+        this.chunkWrites = metrics.chunkWrites("local");
+        this.bytesWritten = metrics.bytesWritten("local");
     }
 
     @Autowired
-    public void setChannelFunction(Function<Path, Mono<AsynchronousFileChannel>> channelFunction) {
-        this.channelFunction = channelFunction;
+    public void setGroupCommitter(GroupCommitter groupCommitter) {
+        this.groupCommitter = groupCommitter;
+    }
+
+    @Autowired
+    public void setBlobStore(BlobStore blobStore) {
+        this.blobStore = blobStore;
+    }
+
+    @Autowired
+    public void setConfiguration(SisyphusServerConfiguration configuration) {
+        this.preallocation = configuration.getPreallocation();
     }
 
     @Override
@@ -39,23 +99,65 @@ public class LocalStorage implements FileStorage {
         @NonNull final Long id,
         @NonNull final Flux<DataBuffer> parts
     ) {
-        return parts
-            .map(v -> flushBufferToFile(v, id))
-            .reduce(0, Integer::sum);
+        return Flux
+            .using(
+                () -> FileChannel.open(pathResolver.prepare(id), CREATE, WRITE, APPEND),
+                channel -> DataBufferUtils.write(parts, channel).concatWith(Mono.<DataBuffer>fromRunnable(() -> sync(channel))),
+                this::closeChannel
+            )
+            .map(dataBuffer -> {
+                final int length = dataBuffer.readableByteCount();
+                DataBufferUtils.release(dataBuffer);
+                return length;
+            })
+            .reduce(0, Integer::sum)
+            .doOnNext(bytesWritten::increment)
+            .onErrorMap(IOException.class, e -> new RuntimeException("file write error", e));
     }
 
+    /**
+     * With preallocation on, uploads larger than the whole filesystem fail with 413 and ones that don't fit into
+     * its free space, less what creations still allocating are about to take, with 507.
+     */
+    @Override
+    public Mono<Void> checkSpace(final Long contentLength) {
+        return Mono.<Void>fromRunnable(() -> {
+            if (preallocation == Preallocation.NONE || contentLength == null || contentLength == 0) {
+                return;
+            }
+            try {
+                checkSpace(Files.getFileStore(pathResolver.getRoot()), contentLength);
+            } catch (IOException e) {
+                throw new ResponseStatusException(INSUFFICIENT_STORAGE, "Free space unknown", e);
+            }
+        }).subscribeOn(storageScheduler);
+    }
+
+    /**
+     * Creates the empty file of the upload, sized to its declared length when preallocation is on.
+     * Full preallocation writes the whole length, file system work on the storage scheduler like every write.
+     * Final uploads of a concatenation are left empty, the parts are transferred into them right away.
+     */
     @Override
     public Mono<File> createFile(@NonNull final File file) {
         return Mono.fromSupplier(() -> {
+            final Path path;
             try {
-                Files.createFile(Paths.get(fileDirectory.toString(), file.getId().toString()));
-                return file;
+                path = pathResolver.prepare(file.getId());
+                Files.createFile(path);
             } catch (IOException e) {
                 throw new RuntimeException("File creation failed: " + file, e);
             }
-        });
+            if (file.getConcatType() != ConcatType.FINAL) {
+                preallocate(path, file);
+            }
+            return file;
+        }).subscribeOn(storageScheduler);
     }
 
+    /**
+     * Completes once the chunk is as durable as the policy asks, its offset may only be advanced then.
+     */
     @Override
     public Mono<Integer> writeChunk(
         @NonNull final Long id,
@@ -63,56 +165,232 @@ public class LocalStorage implements FileStorage {
         final long offset
     ) {
 
-        final Path file = Paths.get(fileDirectory.toString(), id.toString());
-        final Mono<AsynchronousFileChannel> channel = channelFunction.apply(file);
+        return Mono.defer(() -> {
+            final Path file = pathResolver.resolve(id);
+            final long start = System.nanoTime();
+            return channelPool
+                .acquire(id, file)
+                .flatMap(handle -> DataBufferUtils
+                    .write(parts, handle.getChannel(), offset)
+                    .map(dataBuffer -> {
+                        final int length = dataBuffer.readableByteCount();
+                        DataBufferUtils.release(dataBuffer);
+                        return length;
+                    })
+                    .reduce(0, Integer::sum)
+                    .flatMap(written -> groupCommitter.commit(handle.getChannel()).thenReturn(written))
+                    .doFinally(signalType -> channelPool.release(handle))
+                )
+                .doOnNext(written -> {
+                    chunkWrites.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                    bytesWritten.increment(written);
+                });
+        });
+    }
 
-        return channel
-            .flatMapMany(asynchronousFileChannel -> DataBufferUtils.write(parts, asynchronousFileChannel, offset))
-            .map(dataBuffer -> {
-                final int capacity = dataBuffer.capacity();
-                DataBufferUtils.release(dataBuffer);
-                return capacity;
+    @Override
+    public Mono<Void> complete(@NonNull final Long id) {
+        return Mono.fromRunnable(() -> channelPool.invalidate(id));
+    }
+
+    /**
+     * Stitches the parts into the already created file with channel to channel transfers.
+     */
+    @Override
+    public Mono<File> concatenate(
+        @NonNull final File file,
+        @NonNull final List<File> parts
+    ) {
+        return Mono
+            .fromCallable(() -> {
+                final Path target = pathResolver.resolve(file.getId());
+                try (FileChannel out = FileChannel.open(target, WRITE)) {
+                    long position = 0;
+                    for (final File part : parts) {
+                        transfer(pathResolver.resolve(part.getId()), part.getContentLength(), out, position);
+                        position += part.getContentLength();
+                    }
+                    sync(out);
+                }
+                return file;
             })
-            .reduce(0, Integer::sum)
-            .doOnSuccessOrError((integer, throwable) -> channel.subscribe(this::closeChannel));
+            .onErrorMap(IOException.class, e -> new RuntimeException("File concatenation failed: " + file.getId(), e))
+            .subscribeOn(storageScheduler);
+    }
+
+    /**
+     * The stored file as is, readers bound it by the uploaded offset themselves.
+     */
+    @Override
+    public Mono<Resource> getObject(@NonNull final Long id) {
+        return Mono
+            .<Resource>fromSupplier(() -> new FileSystemResource(pathResolver.resolve(id)))
+            .filter(Resource::exists);
     }
 
-    void closeChannel(
-        @NonNull final AsynchronousFileChannel asynchronousFileChannel
-    ){
+    /**
+     * Replaces the file with a hard link to an identical one, a rename on the storage scheduler.
+     * Readers that opened the file before keep reading their copy.
+     */
+    @Override
+    public Mono<Long> deduplicate(@NonNull final Long id, @NonNull final String checksum, final long contentLength) {
+        if (blobStore == null || !blobStore.isEnabled()) {
+            return Mono.just(0L);
+        }
+        return Mono
+            .fromCallable(() -> blobStore.link(pathResolver.resolve(id), checksum, contentLength))
+            .onErrorMap(IOException.class, e -> new RuntimeException("Deduplication failed: " + id, e))
+            .subscribeOn(storageScheduler);
+    }
+
+    /**
+     * Closes pooled channels of the upload and removes its file, an unlink is metadata work on the storage scheduler.
+     * Shared content goes with the last upload linking to it, blob entries of uploads that weren't linked are left alone.
+     */
+    @Override
+    public Mono<Void> delete(@NonNull final File file) {
+        final Long id = file.getId();
+        return Mono
+            .<Void>fromRunnable(() -> {
+                channelPool.invalidate(id);
+                try {
+                    final Path path = pathResolver.resolve(id);
+                    final boolean linked = blobStore != null && blobStore.isEnabled() && file.getChecksum() != null
+                        && blobStore.isLinked(path, file.getChecksum());
+                    Files.deleteIfExists(path);
+                    if (linked) {
+                        blobStore.release(file.getChecksum());
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException("File removal failed: " + id, e);
+                }
+            })
+            .subscribeOn(storageScheduler);
+    }
+
+    /**
+     * Checks the space again, another upload may have taken it since. The length is booked while the blocks
+     * are allocated, so concurrent creations can't promise the same space twice.
+     * The file is removed when it doesn't fit, so the upload can be retried later.
+     */
+    private void preallocate(final Path path, final File file) {
+        final Long length = file.getContentLength();
+        if (preallocation == Preallocation.NONE || length == null || length == 0) {
+            return;
+        }
+        final boolean full = preallocation == Preallocation.FULL;
         try {
-            asynchronousFileChannel.close();
+            final FileStore store = Files.getFileStore(path);
+            synchronized (space) {
+                checkSpace(store, length);
+                if (full) {
+                    booked += length;
+                }
+            }
+            try {
+                if (full) {
+                    allocate(path, length);
+                } else {
+                    try (RandomAccessFile raf = new RandomAccessFile(path.toFile(), "rw")) {
+                        raf.setLength(length);
+                    }
+                }
+            } finally {
+                if (full) {
+                    synchronized (space) {
+                        booked -= length;
+                    }
+                }
+            }
         } catch (IOException e) {
-            throw new RuntimeException("Channel close error");
+            deleteQuietly(path);
+            throw new ResponseStatusException(INSUFFICIENT_STORAGE, "Space reservation failed: " + file.getId(), e);
+        } catch (ResponseStatusException e) {
+            deleteQuietly(path);
+            throw e;
         }
     }
 
-    int flushBufferToFile(
-        @NonNull final DataBuffer dataBuffer,
-        @NonNull final Long id
-    ) {
-        try {
-            final InputStream inputStream = dataBuffer.asInputStream(true);
-            int bytesLength = inputStream.available();
-            final Path file = Paths.get(fileDirectory.toString(), id.toString());
+    /**
+     * Zero-fills the file in large positional writes of a shared buffer and forces it, so the blocks and the length
+     * are on disk before the first chunk.
+     */
+    private static void allocate(final Path path, final long length) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, WRITE)) {
+            long position = 0;
+            while (position < length) {
+                final ByteBuffer zeroes = ZEROES.duplicate();
+                zeroes.limit((int) Math.min(zeroes.capacity(), length - position));
+                position += channel.write(zeroes, position);
+            }
+            channel.force(true);
+        }
+    }
 
-            if (!Files.exists(file)) {
-                Files.createFile(file);
+    private void checkSpace(final FileStore store, final long length) throws IOException {
+        if (length > store.getTotalSpace()) {
+            throw new ResponseStatusException(PAYLOAD_TOO_LARGE, "Upload exceeds storage size: " + length);
+        }
+        synchronized (space) {
+            if (length > store.getUsableSpace() - booked) {
+                throw new ResponseStatusException(INSUFFICIENT_STORAGE, "Not enough space for upload: " + length);
             }
+        }
+    }
+
+    long getBooked() {
+        synchronized (space) {
+            return booked;
+        }
+    }
 
-            Files.write(
-                file,
-                IOUtils.toByteArray(inputStream),
-                StandardOpenOption.APPEND
-            );
+    /**
+     * Whole objects are written by a single request, there is nothing to group their force with.
+     */
+    private void sync(final FileChannel channel) {
+        if (groupCommitter.getPolicy() == DurabilityPolicy.NONE) {
+            return;
+        }
+        try {
+            channel.force(false);
+        } catch (IOException e) {
+            throw new RuntimeException("File sync failed", e);
+        }
+    }
 
-            inputStream.close();
-            return bytesLength;
+    private void deleteQuietly(final Path path) {
+        try {
+            Files.deleteIfExists(path);
         } catch (IOException e) {
-            log.error("file write error");
-            throw new RuntimeException("file write error", e);
+            log.warn("Removal of {} failed", path, e);
+        }
+    }
+
+    private void transfer(
+        final Path source,
+        final long length,
+        final FileChannel out,
+        final long position
+    ) throws IOException {
+        out.position(position);
+        try (FileChannel in = FileChannel.open(source, READ)) {
+            long transferred = 0;
+            while (transferred < length) {
+                final long count = in.transferTo(transferred, length - transferred, out);
+                if (count <= 0) {
+                    throw new IOException("Partial upload is shorter than declared: " + source);
+                }
+                transferred += count;
+            }
         }
     }
 
+    void closeChannel(@NonNull final Channel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            throw new RuntimeException("Channel close error", e);
+        }
+    }
 
 }
@@ -0,0 +1,360 @@
+package io.pozhidaev.sisyphus.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Timer;
+import io.pozhidaev.sisyphus.configurations.SisyphusServerConfiguration;
+import io.pozhidaev.sisyphus.domain.File;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.stereotype.Service;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Writes chunks of uploads up to the mapped threshold by copying them into a mapping of the whole file.
+ * The file is sized to its Upload-Length on creation and mapped once per upload, mappings are reference counted
+ * like pooled channels. When the upload completes or the mapping is evicted, it is unmapped as soon as the last
+ * write holding it lets go, see {@link Unmapper}, so pages of finished uploads don't stay mapped until a GC.
+ * Copies and forces run under the lock of the mapping and skip it once unmapped, a cancelled write may still
+ * be copying when it lets go.
+ * Everything but chunk writes goes through {@link LocalStorage}, both work on the same files.
+ */
+@Slf4j
+@Service
+@ConditionalOnProperty(prefix = "sisyphus-server", name = "storage-backend", havingValue = "local", matchIfMissing = true)
+public class MappedFileStorage implements FileStorage {
+
+    private final LocalStorage localStorage;
+    private final StoragePathResolver pathResolver;
+    private final Scheduler storageScheduler;
+    private final GroupCommitter groupCommitter;
+    private final long threshold;
+    private final int maxMappings;
+    private final Duration idleTimeout;
+    private final Timer chunkWrites;
+    private final Counter bytesWritten;
+    private final Map<Long, Mapping> mappings = new ConcurrentHashMap<>();
+
+    private Disposable sweeper;
+
+    @Autowired
+    public MappedFileStorage(
+        final LocalStorage localStorage,
+        final StoragePathResolver pathResolver,
+        @Qualifier("storageScheduler") final Scheduler storageScheduler,
+        final GroupCommitter groupCommitter,
+        final UploadMetrics metrics,
+        final SisyphusServerConfiguration configuration
+    ) {
+        this.threshold = configuration.getMappedThreshold().toBytes();
+        if (threshold < 0 || threshold > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Mapped threshold should be between 0 and 2GB: " + threshold);
+        }
+        this.localStorage = localStorage;
+        this.pathResolver = pathResolver;
+        this.storageScheduler = storageScheduler;
+        this.groupCommitter = groupCommitter;
+        this.maxMappings = configuration.getChannelPoolSize();
+        this.idleTimeout = configuration.getChannelIdleTimeout();
+        this.chunkWrites = metrics.chunkWrites("mapped");
+        this.bytesWritten = metrics.bytesWritten("mapped");
+    }
+
+    @PostConstruct
+    public void start() {
+        sweeper = Flux
+            .interval(idleTimeout)
+            .onBackpressureDrop()
+            .subscribe(tick -> evictIdle());
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (sweeper != null) {
+            sweeper.dispose();
+        }
+        mappings.keySet().forEach(this::invalidate);
+    }
+
+    /**
+     * Uploads of a known length up to the threshold, a zero threshold turns mapped writes off.
+     */
+    public boolean accepts(final Long contentLength) {
+        return contentLength != null && contentLength > 0 && contentLength <= threshold;
+    }
+
+    @Override
+    public Mono<Void> checkSpace(final Long contentLength) {
+        return localStorage.checkSpace(contentLength);
+    }
+
+    /**
+     * Sized to its length whatever the preallocation, mapping beyond the end of a file is undefined.
+     */
+    @Override
+    public Mono<File> createFile(@NonNull final File file) {
+        return localStorage
+            .createFile(file)
+            .doOnNext(created -> {
+                try (RandomAccessFile raf = new RandomAccessFile(pathResolver.resolve(created.getId()).toFile(), "rw")) {
+                    if (raf.length() < created.getContentLength()) {
+                        raf.setLength(created.getContentLength());
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException("File sizing failed: " + created.getId(), e);
+                }
+            });
+    }
+
+    @Override
+    public Mono<Integer> putObject(@NonNull final Long id, @NonNull final Flux<DataBuffer> parts) {
+        return localStorage.putObject(id, parts);
+    }
+
+    /**
+     * Page faults of the copy can block on the disk, it runs on the storage scheduler.
+     * Buffers are taken one at a time, like channel writes do, so the in-flight limit holds.
+     */
+    @Override
+    public Mono<Integer> writeChunk(
+        @NonNull final Long id,
+        @NonNull final Flux<DataBuffer> parts,
+        final long offset
+    ) {
+        return Mono.defer(() -> {
+            final long start = System.nanoTime();
+            return acquire(id).flatMap(mapping -> Mono
+                .defer(() -> {
+                    if (offset > mapping.buffer.capacity()) {
+                        throw new IllegalStateException("Chunk offset exceeds upload length: " + id);
+                    }
+                    final ByteBuffer target = mapping.buffer.duplicate();
+                    target.position((int) offset);
+                    return parts
+                        .publishOn(storageScheduler, 1)
+                        .map(dataBuffer -> {
+                            try {
+                                final ByteBuffer source = dataBuffer.asByteBuffer();
+                                final int length = source.remaining();
+                                if (length > target.remaining()) {
+                                    throw new IllegalStateException("Chunk exceeds upload length: " + id);
+                                }
+                                mapping.put(target, source);
+                                return length;
+                            } finally {
+                                DataBufferUtils.release(dataBuffer);
+                            }
+                        })
+                        .reduce(0, Integer::sum);
+                })
+                .flatMap(written -> groupCommitter.commit(mapping.buffer, mapping::force).thenReturn(written))
+                .doFinally(signalType -> release(mapping))
+            ).doOnNext(written -> {
+                chunkWrites.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                bytesWritten.increment(written);
+            });
+        });
+    }
+
+    @Override
+    public Mono<Void> complete(@NonNull final Long id) {
+        return Mono.fromRunnable(() -> invalidate(id));
+    }
+
+    @Override
+    public Mono<File> concatenate(@NonNull final File file, @NonNull final List<File> parts) {
+        return localStorage.concatenate(file, parts);
+    }
+
+    @Override
+    public Mono<Resource> getObject(@NonNull final Long id) {
+        return localStorage.getObject(id);
+    }
+
+    /**
+     * Runs after {@link #complete(Long)}, the file isn't mapped anymore.
+     */
+    @Override
+    public Mono<Long> deduplicate(@NonNull final Long id, @NonNull final String checksum, final long contentLength) {
+        return localStorage.deduplicate(id, checksum, contentLength);
+    }
+
+    @Override
+    public Mono<Void> delete(@NonNull final File file) {
+        return Mono.fromRunnable(() -> invalidate(file.getId())).then(localStorage.delete(file));
+    }
+
+    int getMappings() {
+        return mappings.size();
+    }
+
+    void evictIdle() {
+        final long deadline = System.nanoTime() - idleTimeout.toNanos();
+        mappings.values().stream()
+            .filter(m -> m.getLastAccessTime() < deadline)
+            .forEach(this::evict);
+    }
+
+    private Mono<Mapping> acquire(final Long id) {
+        final Mapping mapped = mappings.get(id);
+        if (mapped != null && mapped.retain()) {
+            return Mono.just(mapped);
+        }
+        return Mono
+            .fromCallable(() -> {
+                final Path path = pathResolver.resolve(id);
+                try (FileChannel channel = FileChannel.open(path, READ, WRITE)) {
+                    return new Mapping(id, channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size()));
+                }
+            })
+            .subscribeOn(storageScheduler)
+            .map(this::register);
+    }
+
+    private Mapping register(final Mapping mapping) {
+        final Mapping leased = mappings.compute(mapping.id, (k, previous) ->
+            previous != null && previous.retain() ? previous : mapping
+        );
+        if (leased != mapping) {
+            mapping.retire();
+            mapping.release();
+            return leased;
+        }
+        if (mappings.size() > maxMappings) {
+            evictEldest(mappings.size() - maxMappings);
+        }
+        return mapping;
+    }
+
+    private void release(final Mapping mapping) {
+        mapping.release();
+    }
+
+    /**
+     * Writes holding the mapping keep using it, it is unmapped once the last of them lets go.
+     */
+    private void invalidate(final Long id) {
+        final Mapping mapping = mappings.remove(id);
+        if (mapping != null) {
+            mapping.retire();
+        }
+    }
+
+    private void evictEldest(final int count) {
+        mappings.values().stream()
+            .filter(Mapping::isIdle)
+            .sorted(Comparator.comparingLong(Mapping::getLastAccessTime))
+            .limit(count)
+            .forEach(this::evict);
+    }
+
+    private void evict(final Mapping mapping) {
+        if (mapping.retireIfIdle()) {
+            mappings.remove(mapping.id, mapping);
+            log.debug("Mapping evicted: {}", mapping.id);
+        }
+    }
+
+    /**
+     * Leased mapping of one upload, released and retired like a pooled channel handle.
+     * Unmapped once retired and released by every holder.
+     */
+    private static final class Mapping {
+
+        private final Long id;
+        private final MappedByteBuffer buffer;
+        private int refCount = 1;
+        private boolean retired;
+        private boolean unmapped;
+        private long lastAccessTime = System.nanoTime();
+
+        private Mapping(final Long id, final MappedByteBuffer buffer) {
+            this.id = id;
+            this.buffer = buffer;
+        }
+
+        synchronized long getLastAccessTime() {
+            return lastAccessTime;
+        }
+
+        synchronized boolean isIdle() {
+            return refCount == 0;
+        }
+
+        synchronized boolean retain() {
+            if (retired) {
+                return false;
+            }
+            refCount++;
+            lastAccessTime = System.nanoTime();
+            return true;
+        }
+
+        synchronized void release() {
+            refCount--;
+            lastAccessTime = System.nanoTime();
+            unmapIfUnused();
+        }
+
+        synchronized void retire() {
+            retired = true;
+            unmapIfUnused();
+        }
+
+        synchronized boolean retireIfIdle() {
+            if (refCount != 0 || retired) {
+                return false;
+            }
+            retire();
+            return true;
+        }
+
+        /**
+         * Copies the source into the mapping at the position of the target view.
+         */
+        synchronized void put(final ByteBuffer target, final ByteBuffer source) {
+            if (unmapped) {
+                throw new IllegalStateException("Mapping released: " + id);
+            }
+            target.put(source);
+        }
+
+        synchronized void force() {
+            if (!unmapped) {
+                buffer.force();
+            }
+        }
+
+        private void unmapIfUnused() {
+            if (retired && refCount == 0 && !unmapped) {
+                unmapped = Unmapper.unmap(buffer);
+            }
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package io.pozhidaev.sisyphus.service;
+
+import io.pozhidaev.sisyphus.configurations.SisyphusServerConfiguration;
+import io.pozhidaev.sisyphus.domain.File;
+import io.pozhidaev.sisyphus.repository.ReactiveFileRepository;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Writes upload metadata of all uploads together: new uploads and offset writes are collected for a window
+ * or until a batch is full, then go to the database as JDBC batches of one transaction.
+ * Each caller completes once the transaction of its write commits.
+ */
+@Slf4j
+@Component
+public class MetadataWriter {
+
+    private final ReactiveFileRepository fileRepository;
+    private final Duration window;
+    private final int batchSize;
+
+    private final Object lock = new Object();
+    private List<Waiter> batch = new ArrayList<>();
+    private boolean scheduled;
+
+    @Autowired
+    public MetadataWriter(
+        final ReactiveFileRepository fileRepository,
+        final SisyphusServerConfiguration configuration
+    ) {
+        this.fileRepository = fileRepository;
+        this.window = configuration.getMetadataBatchWindow();
+        this.batchSize = configuration.getMetadataBatchSize();
+    }
+
+    /**
+     * The inserted upload, with its id, timestamps and version set.
+     */
+    public Mono<File> insert(@NonNull final File file) {
+        return Mono.<Boolean>create(sink -> enqueue(new Waiter(file, true, sink))).thenReturn(file);
+    }
+
+    /**
+     * Writes the content offset, chunk number and known checksum of the upload.
+     * False when the upload is gone or the database holds a further offset already.
+     */
+    public Mono<Boolean> updateOffset(@NonNull final File file) {
+        return Mono.create(sink -> enqueue(new Waiter(file, false, sink)));
+    }
+
+    /**
+     * Count of uploads whose offsets were written.
+     */
+    public Mono<Integer> updateOffsets(@NonNull final Collection<File> files) {
+        return Flux
+            .fromIterable(files)
+            .flatMap(this::updateOffset)
+            .filter(Boolean::booleanValue)
+            .count()
+            .map(Long::intValue);
+    }
+
+    private void enqueue(final Waiter waiter) {
+        final boolean full;
+        final boolean schedule;
+        synchronized (lock) {
+            batch.add(waiter);
+            full = batch.size() >= batchSize;
+            schedule = !full && !scheduled;
+            scheduled |= schedule;
+        }
+        if (full) {
+            writeBatch();
+        } else if (schedule) {
+            Mono.delay(window).subscribe(tick -> writeBatch());
+        }
+    }
+
+    /**
+     * Writes arriving meanwhile go to the next batch.
+     */
+    void writeBatch() {
+        final List<Waiter> writing;
+        synchronized (lock) {
+            writing = batch;
+            batch = new ArrayList<>();
+            scheduled = false;
+        }
+        if (!writing.isEmpty()) {
+            write(writing);
+        }
+    }
+
+    /**
+     * A failed batch is written again one upload at a time, so a bad row fails only its own caller.
+     */
+    private void write(final List<Waiter> waiters) {
+        final List<Waiter> inserts = waiters.stream().filter(w -> w.insert).collect(Collectors.toList());
+        final List<Waiter> updates = waiters.stream().filter(w -> !w.insert).collect(Collectors.toList());
+        log.trace("Metadata batch: {} inserts, {} offset writes", inserts.size(), updates.size());
+        fileRepository
+            .write(files(inserts), files(updates))
+            .subscribe(
+                counts -> {
+                    inserts.forEach(w -> w.sink.success(true));
+                    for (int i = 0; i < updates.size(); i++) {
+                        updates.get(i).sink.success(counts[i] > 0 || counts[i] == Statement.SUCCESS_NO_INFO);
+                    }
+                },
+                e -> {
+                    if (waiters.size() > 1) {
+                        log.warn("Metadata batch of {} writes failed, writing one by one", waiters.size(), e);
+                        waiters.forEach(w -> write(Collections.singletonList(w)));
+                    } else {
+                        waiters.forEach(w -> w.sink.error(e));
+                    }
+                }
+            );
+    }
+
+    private static List<File> files(final List<Waiter> waiters) {
+        return waiters.stream().map(w -> w.file).collect(Collectors.toList());
+    }
+
+    private static final class Waiter {
+        private final File file;
+        private final boolean insert;
+        private final MonoSink<Boolean> sink;
+
+        private Waiter(final File file, final boolean insert, final MonoSink<Boolean> sink) {
+            this.file = file;
+            this.insert = insert;
+            this.sink = sink;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package io.pozhidaev.sisyphus.service;
+
+import lombok.NonNull;
+import org.springframework.core.io.AbstractResource;
+import org.springframework.core.io.buffer.DataBuffer;
+import reactor.core.publisher.Flux;
+
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+
+/**
+ * Object of an {@link ObjectStore} in responses, read by ranges through the store without blocking.
+ * There is no input stream, blocking reads of a remote object are refused.
+ */
+public class ObjectResource extends AbstractResource {
+
+    private final ObjectStore objectStore;
+    private final String key;
+    private final long length;
+
+    public ObjectResource(@NonNull final ObjectStore objectStore, @NonNull final String key, final long length) {
+        this.objectStore = objectStore;
+        this.key = key;
+        this.length = length;
+    }
+
+    /**
+     * Count bytes of the object from the position.
+     */
+    public Flux<DataBuffer> read(final long position, final long count) {
+        return objectStore.read(key, position, count);
+    }
+
+    @Override
+    public InputStream getInputStream() throws FileNotFoundException {
+        throw new FileNotFoundException(getDescription() + " is read by ranges only");
+    }
+
+    @Override
+    public boolean exists() {
+        return true;
+    }
+
+    @Override
+    public long contentLength() {
+        return length;
+    }
+
+    @Override
+    public String getFilename() {
+        return key;
+    }
+
+    @Override
+    public String getDescription() {
+        return "Object [" + key + "]";
+    }
+}
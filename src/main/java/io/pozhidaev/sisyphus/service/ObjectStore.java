@@ -0,0 +1,64 @@
+package io.pozhidaev.sisyphus.service;
+
+import org.springframework.core.io.buffer.DataBuffer;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * The calls of an S3 compatible bucket {@link S3Storage} makes, keys are relative to the bucket.
+ * Buffers handed in stay untouched and are not referenced once the returned publisher completes.
+ */
+public interface ObjectStore {
+
+    /**
+     * Starts a multipart upload of the key, returns its upload id.
+     */
+    Mono<String> createMultipartUpload(String key);
+
+    /**
+     * Stores the remaining bytes of the content as the part, returns its ETag.
+     */
+    Mono<String> uploadPart(String key, String uploadId, int partNumber, ByteBuffer content);
+
+    /**
+     * The latest multipart upload of the key that is neither completed nor aborted.
+     */
+    Mono<String> findMultipartUpload(String key);
+
+    /**
+     * ETags of the uploaded parts from part 1 on, up to the first missing part.
+     */
+    Mono<List<String>> listParts(String key, String uploadId);
+
+    /**
+     * Makes the object out of the parts with the ETags, in order.
+     */
+    Mono<Void> completeMultipartUpload(String key, String uploadId, List<String> etags);
+
+    Mono<Void> abortMultipartUpload(String key, String uploadId);
+
+    Mono<Void> putObject(String key, ByteBuffer content);
+
+    /**
+     * Content of the object, an error when it doesn't exist.
+     */
+    Flux<DataBuffer> read(String key);
+
+    /**
+     * Count bytes of the object from the position, an error when it doesn't exist.
+     */
+    Flux<DataBuffer> read(String key, long position, long count);
+
+    /**
+     * Handle of the object for responses, read by ranges through {@link #read(String, long, long)},
+     * empty when it doesn't exist.
+     */
+    Mono<ObjectResource> getObject(String key);
+
+    Flux<String> list(String prefix);
+
+    Mono<Void> deleteObject(String key);
+}
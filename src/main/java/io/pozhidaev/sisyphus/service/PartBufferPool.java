@@ -0,0 +1,106 @@
+package io.pozhidaev.sisyphus.service;
+
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Queue;
+
+/**
+ * Direct buffers of one part size, allocated on demand up to a fixed count and reused after that.
+ * Acquiring with all of them leased waits for a release, so the count caps the memory parts are gathered in.
+ */
+final class PartBufferPool {
+
+    private final int partSize;
+    private final int capacity;
+    private final Deque<ByteBuffer> free = new ArrayDeque<>();
+    private final Queue<Waiter> waiting = new ArrayDeque<>();
+    private int allocated;
+
+    PartBufferPool(final int partSize, final int capacity) {
+        if (partSize <= 0 || capacity <= 0) {
+            throw new IllegalArgumentException("Part size and buffer count should be positive: " + partSize + ", " + capacity);
+        }
+        this.partSize = partSize;
+        this.capacity = capacity;
+    }
+
+    /**
+     * A cleared buffer, every one acquired has to be released exactly once.
+     */
+    Mono<ByteBuffer> acquire() {
+        return Mono.create(sink -> {
+            final ByteBuffer buffer;
+            synchronized (this) {
+                buffer = take();
+                if (buffer == null) {
+                    final Waiter waiter = new Waiter(sink);
+                    waiting.add(waiter);
+                    sink.onCancel(() -> cancel(waiter));
+                    return;
+                }
+            }
+            sink.success(buffer);
+        });
+    }
+
+    void release(final ByteBuffer buffer) {
+        buffer.clear();
+        final Waiter waiter;
+        synchronized (this) {
+            waiter = waiting.poll();
+            if (waiter == null) {
+                free.push(buffer);
+                return;
+            }
+            waiter.handed = buffer;
+        }
+        waiter.sink.success(buffer);
+    }
+
+    synchronized int getAllocated() {
+        return allocated;
+    }
+
+    synchronized int getWaiting() {
+        return waiting.size();
+    }
+
+    private ByteBuffer take() {
+        final ByteBuffer buffer = free.poll();
+        if (buffer != null || allocated == capacity) {
+            return buffer;
+        }
+        allocated++;
+        return ByteBuffer.allocateDirect(partSize);
+    }
+
+    /**
+     * A buffer handed to a waiter that cancelled meanwhile never reaches it, it goes back to the pool.
+     */
+    private void cancel(final Waiter waiter) {
+        final ByteBuffer handed;
+        synchronized (this) {
+            if (waiting.remove(waiter)) {
+                return;
+            }
+            handed = waiter.handed;
+        }
+        if (handed != null) {
+            release(handed);
+        }
+    }
+
+    private static final class Waiter {
+
+        private final MonoSink<ByteBuffer> sink;
+        private ByteBuffer handed;
+
+        private Waiter(final MonoSink<ByteBuffer> sink) {
+            this.sink = sink;
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package io.pozhidaev.sisyphus.service;
+
+/**
+ * How much of the declared Upload-Length is reserved on disk when an upload is created.
+ * A length that doesn't fit fails the creation with 413 or 507.
+ */
+public enum Preallocation {
+    /**
+     * Empty file, grown by every chunk.
+     */
+    NONE,
+    /**
+     * File set to its full length without writing, a hole on filesystems that support them.
+     * Free space is only checked against the length.
+     */
+    SPARSE,
+    /**
+     * File zero-filled to its full length on the storage scheduler before the creation answers, the blocks are
+     * allocated in one go instead of interleaved with other uploads. Java has no portable fallocate, the fill is
+     * a run of large positional writes, as long as writing the upload once more.
+     */
+    FULL
+}
@@ -0,0 +1,362 @@
+package io.pozhidaev.sisyphus.service;
+
+import io.pozhidaev.sisyphus.configurations.SisyphusServerConfiguration;
+import lombok.NonNull;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.BodyInserters;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.StringReader;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * {@link ObjectStore} of an S3 compatible endpoint over the reactive web client, with path style URLs
+ * and Signature Version 4. Part and object bodies are sent unsigned straight from their buffers.
+ */
+@Component
+@ConditionalOnProperty(prefix = "sisyphus-server", name = "storage-backend", havingValue = "s3")
+public class S3ObjectStore implements ObjectStore {
+
+    private final WebClient webClient;
+    private final S3Signer signer;
+    private final String endpoint;
+    private final String host;
+    private final String bucket;
+    private final Clock clock;
+    private final DefaultDataBufferFactory bufferFactory = new DefaultDataBufferFactory();
+
+    @Autowired
+    public S3ObjectStore(final WebClient.Builder webClientBuilder, final SisyphusServerConfiguration configuration) {
+        this(
+            webClientBuilder.build(),
+            configuration.getS3Endpoint(),
+            configuration.getS3Bucket(),
+            new S3Signer(configuration.getS3AccessKey(), configuration.getS3SecretKey(), configuration.getS3Region()),
+            Clock.systemUTC()
+        );
+    }
+
+    S3ObjectStore(
+        final WebClient webClient,
+        final String endpoint,
+        final String bucket,
+        final S3Signer signer,
+        final Clock clock
+    ) {
+        if (endpoint == null || bucket == null || bucket.isEmpty()) {
+            throw new IllegalArgumentException("S3 storage needs sisyphus-server.s3-endpoint and s3-bucket");
+        }
+        final URI uri = URI.create(endpoint);
+        this.webClient = webClient;
+        this.endpoint = endpoint.replaceAll("/+$", "");
+        this.host = uri.getPort() == -1 ? uri.getHost() : uri.getHost() + ":" + uri.getPort();
+        this.bucket = bucket;
+        this.signer = signer;
+        this.clock = clock;
+    }
+
+    @Override
+    public Mono<String> createMultipartUpload(@NonNull final String key) {
+        return exchange(HttpMethod.POST, key, query("uploads", ""), null)
+            .map(xml -> text(parse(xml).getDocumentElement(), "UploadId"));
+    }
+
+    @Override
+    public Mono<String> uploadPart(
+        @NonNull final String key,
+        @NonNull final String uploadId,
+        final int partNumber,
+        @NonNull final ByteBuffer content
+    ) {
+        final SortedMap<String, String> query = query("partNumber", String.valueOf(partNumber));
+        query.put("uploadId", uploadId);
+        return Mono.defer(() -> send(HttpMethod.PUT, key, query, content)
+            .exchange()
+            .flatMap(response -> response.statusCode().is2xxSuccessful()
+                ? response.toEntity(Void.class).flatMap(entity -> Mono.justOrEmpty(entity.getHeaders().getETag()))
+                : response.bodyToMono(String.class).defaultIfEmpty("").flatMap(body -> Mono.error(new IllegalStateException(
+                    "Upload of part " + partNumber + " of " + key + " failed: " + response.rawStatusCode() + " " + body
+                )))
+            )
+            .switchIfEmpty(Mono.error(() -> new IllegalStateException("No ETag of part " + partNumber + " of " + key)))
+        );
+    }
+
+    /**
+     * Uploads of the key come first among the ones with it as prefix, the first page holds them.
+     */
+    @Override
+    public Mono<String> findMultipartUpload(@NonNull final String key) {
+        final SortedMap<String, String> query = query("uploads", "");
+        query.put("prefix", key);
+        return exchange(HttpMethod.GET, null, query, null)
+            .flatMap(xml -> {
+                String uploadId = null;
+                for (final Element upload : elements(parse(xml).getDocumentElement(), "Upload")) {
+                    if (key.equals(text(upload, "Key"))) {
+                        uploadId = text(upload, "UploadId");
+                    }
+                }
+                return Mono.justOrEmpty(uploadId);
+            });
+    }
+
+    @Override
+    public Mono<List<String>> listParts(@NonNull final String key, @NonNull final String uploadId) {
+        return listPartsAfter(key, uploadId, "0")
+            .expand(page -> page.next == null ? Mono.empty() : listPartsAfter(key, uploadId, page.next))
+            .concatMapIterable(page -> page.values)
+            .collectList()
+            .map(parts -> {
+                final List<String> etags = new ArrayList<>(parts.size());
+                for (final String[] part : parts) {
+                    if (Integer.parseInt(part[0]) != etags.size() + 1) {
+                        break;
+                    }
+                    etags.add(part[1]);
+                }
+                return etags;
+            });
+    }
+
+    @Override
+    public Mono<Void> completeMultipartUpload(
+        @NonNull final String key,
+        @NonNull final String uploadId,
+        @NonNull final List<String> etags
+    ) {
+        final StringBuilder xml = new StringBuilder("<CompleteMultipartUpload>");
+        for (int i = 0; i < etags.size(); i++) {
+            xml.append("<Part><PartNumber>").append(i + 1).append("</PartNumber><ETag>")
+                .append(etags.get(i).replace("&", "&amp;").replace("\"", "&quot;"))
+                .append("</ETag></Part>");
+        }
+        xml.append("</CompleteMultipartUpload>");
+        return exchange(HttpMethod.POST, key, query("uploadId", uploadId), ByteBuffer.wrap(xml.toString().getBytes(UTF_8)))
+            .doOnNext(response -> {
+                final Element root = parse(response).getDocumentElement();
+                if ("Error".equals(root.getTagName())) {
+                    throw new IllegalStateException("Completing " + key + " failed: " + text(root, "Code") + " " + text(root, "Message"));
+                }
+            })
+            .then();
+    }
+
+    @Override
+    public Mono<Void> abortMultipartUpload(@NonNull final String key, @NonNull final String uploadId) {
+        return exchange(HttpMethod.DELETE, key, query("uploadId", uploadId), null)
+            .onErrorResume(WebClientResponseException.NotFound.class, e -> Mono.empty())
+            .then();
+    }
+
+    @Override
+    public Mono<Void> putObject(@NonNull final String key, @NonNull final ByteBuffer content) {
+        return Mono.defer(() -> send(HttpMethod.PUT, key, new TreeMap<>(), content).retrieve().bodyToMono(Void.class));
+    }
+
+    @Override
+    public Flux<DataBuffer> read(@NonNull final String key) {
+        return Flux.defer(() -> send(HttpMethod.GET, key, new TreeMap<>(), null).retrieve().bodyToFlux(DataBuffer.class));
+    }
+
+    /**
+     * A ranged GET streamed as it arrives, an empty range is never requested.
+     */
+    @Override
+    public Flux<DataBuffer> read(@NonNull final String key, final long position, final long count) {
+        if (count <= 0) {
+            return Flux.empty();
+        }
+        return Flux.defer(() -> send(HttpMethod.GET, key, new TreeMap<>(), null, "bytes=" + position + "-" + (position + count - 1))
+            .retrieve()
+            .bodyToFlux(DataBuffer.class)
+        );
+    }
+
+    /**
+     * A HEAD tells whether the object exists and its length, its content is only read by the ranges served.
+     */
+    @Override
+    public Mono<ObjectResource> getObject(@NonNull final String key) {
+        return Mono
+            .defer(() -> send(HttpMethod.HEAD, key, new TreeMap<>(), null).exchange())
+            .flatMap(response -> response.bodyToMono(Void.class).then(Mono.defer(() -> {
+                if (response.rawStatusCode() == 404) {
+                    return Mono.empty();
+                }
+                if (response.rawStatusCode() >= 400) {
+                    return Mono.error(new IllegalStateException("Reading " + key + " failed: " + response.rawStatusCode()));
+                }
+                return Mono.just(new ObjectResource(this, key, response.headers().asHttpHeaders().getContentLength()));
+            })));
+    }
+
+    @Override
+    public Flux<String> list(@NonNull final String prefix) {
+        return listAfter(prefix, null)
+            .expand(page -> page.next == null ? Mono.empty() : listAfter(prefix, page.next))
+            .concatMapIterable(page -> page.values);
+    }
+
+    @Override
+    public Mono<Void> deleteObject(@NonNull final String key) {
+        return exchange(HttpMethod.DELETE, key, new TreeMap<>(), null)
+            .onErrorResume(WebClientResponseException.NotFound.class, e -> Mono.empty())
+            .then();
+    }
+
+    private Mono<Page<String[]>> listPartsAfter(final String key, final String uploadId, final String marker) {
+        final SortedMap<String, String> query = query("uploadId", uploadId);
+        query.put("part-number-marker", marker);
+        return exchange(HttpMethod.GET, key, query, null).map(xml -> {
+            final Element root = parse(xml).getDocumentElement();
+            final List<String[]> parts = elements(root, "Part").stream()
+                .map(part -> new String[]{text(part, "PartNumber"), text(part, "ETag")})
+                .collect(Collectors.toList());
+            return new Page<>(parts, "true".equals(text(root, "IsTruncated")) ? text(root, "NextPartNumberMarker") : null);
+        });
+    }
+
+    private Mono<Page<String>> listAfter(final String prefix, final String continuationToken) {
+        final SortedMap<String, String> query = query("list-type", "2");
+        query.put("prefix", prefix);
+        Optional.ofNullable(continuationToken).ifPresent(token -> query.put("continuation-token", token));
+        return exchange(HttpMethod.GET, null, query, null).map(xml -> {
+            final Element root = parse(xml).getDocumentElement();
+            final List<String> keys = elements(root, "Contents").stream()
+                .map(contents -> text(contents, "Key"))
+                .collect(Collectors.toList());
+            return new Page<>(keys, "true".equals(text(root, "IsTruncated")) ? text(root, "NextContinuationToken") : null);
+        });
+    }
+
+    private Mono<String> exchange(
+        final HttpMethod method,
+        final String key,
+        final SortedMap<String, String> query,
+        final ByteBuffer content
+    ) {
+        return Mono.defer(() -> send(method, key, query, content).retrieve().bodyToMono(String.class)).defaultIfEmpty("");
+    }
+
+    private WebClient.RequestHeadersSpec<?> send(
+        final HttpMethod method,
+        final String key,
+        final SortedMap<String, String> query,
+        final ByteBuffer content
+    ) {
+        return send(method, key, query, content, null);
+    }
+
+    /**
+     * Signs at subscription, small XML bodies with their hash and others unsigned. A range is signed like any header.
+     */
+    private WebClient.RequestHeadersSpec<?> send(
+        final HttpMethod method,
+        final String key,
+        final SortedMap<String, String> query,
+        final ByteBuffer content,
+        final String range
+    ) {
+        final String path = path(key);
+        final String payloadHash = content == null
+            ? S3Signer.EMPTY_PAYLOAD
+            : method == HttpMethod.POST ? S3Signer.sha256Hex(bytes(content)) : S3Signer.UNSIGNED_PAYLOAD;
+        final SortedMap<String, String> headers = new TreeMap<>();
+        headers.put("host", host);
+        Optional.ofNullable(range).ifPresent(value -> headers.put("range", value));
+        headers.put("x-amz-content-sha256", payloadHash);
+        headers.put("x-amz-date", S3Signer.AMZ_DATE.format(clock.instant()));
+        final WebClient.RequestBodySpec request = webClient.method(method).uri(uri(path, query));
+        headers.forEach(request::header);
+        request.header(HttpHeaders.AUTHORIZATION, signer.authorization(method.name(), path, query, headers, payloadHash));
+        if (content == null) {
+            return request;
+        }
+        return request
+            .contentLength(content.remaining())
+            .body(BodyInserters.fromPublisher(Mono.fromSupplier(() -> bufferFactory.wrap(content.duplicate())), DataBuffer.class));
+    }
+
+    private String path(final String key) {
+        return "/" + bucket + (key == null ? "" : "/" + key);
+    }
+
+    private URI uri(final String path, final SortedMap<String, String> query) {
+        final String encodedQuery = S3Signer.canonicalQuery(query);
+        return URI.create(endpoint + S3Signer.encode(path, false) + (encodedQuery.isEmpty() ? "" : "?" + encodedQuery));
+    }
+
+    private static SortedMap<String, String> query(final String name, final String value) {
+        return new TreeMap<>(Collections.singletonMap(name, value));
+    }
+
+    private static byte[] bytes(final ByteBuffer content) {
+        final byte[] bytes = new byte[content.remaining()];
+        content.duplicate().get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Responses of the bucket, document type declarations are refused.
+     */
+    private static Document parse(final String xml) {
+        try {
+            final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+            return factory.newDocumentBuilder().parse(new InputSource(new StringReader(xml)));
+        } catch (Exception e) {
+            throw new IllegalStateException("Unreadable S3 response: " + xml, e);
+        }
+    }
+
+    private static List<Element> elements(final Element parent, final String name) {
+        final NodeList nodes = parent.getElementsByTagName(name);
+        final List<Element> elements = new ArrayList<>(nodes.getLength());
+        for (int i = 0; i < nodes.getLength(); i++) {
+            elements.add((Element) nodes.item(i));
+        }
+        return elements;
+    }
+
+    private static String text(final Element parent, final String name) {
+        final NodeList nodes = parent.getElementsByTagName(name);
+        return nodes.getLength() == 0 ? null : nodes.item(0).getTextContent();
+    }
+
+    private static final class Page<T> {
+
+        private final List<T> values;
+        private final String next;
+
+        private Page(final List<T> values, final String next) {
+            this.values = values;
+            this.next = next;
+        }
+    }
+}
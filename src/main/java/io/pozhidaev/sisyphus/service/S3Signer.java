@@ -0,0 +1,124 @@
+package io.pozhidaev.sisyphus.service;
+
+import lombok.NonNull;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.SortedMap;
+import java.util.stream.Collectors;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * AWS Signature Version 4 of S3 requests as an Authorization header.
+ * Paths and query parameters are given unencoded, {@link #encode} turns them into what goes on the wire.
+ */
+final class S3Signer {
+
+    static final String ALGORITHM = "AWS4-HMAC-SHA256";
+    static final String UNSIGNED_PAYLOAD = "UNSIGNED-PAYLOAD";
+    static final String EMPTY_PAYLOAD = "e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855";
+    static final DateTimeFormatter AMZ_DATE = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'").withZone(ZoneOffset.UTC);
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final String accessKey;
+    private final byte[] secretKey;
+    private final String region;
+
+    S3Signer(@NonNull final String accessKey, @NonNull final String secretKey, @NonNull final String region) {
+        this.accessKey = accessKey;
+        this.secretKey = ("AWS4" + secretKey).getBytes(UTF_8);
+        this.region = region;
+    }
+
+    /**
+     * Authorization header of a request signing all given headers, names in lower case, x-amz-date among them.
+     */
+    String authorization(
+        @NonNull final String method,
+        @NonNull final String path,
+        @NonNull final SortedMap<String, String> query,
+        @NonNull final SortedMap<String, String> headers,
+        @NonNull final String payloadHash
+    ) {
+        final String amzDate = headers.get("x-amz-date");
+        final String signedHeaders = String.join(";", headers.keySet());
+        final String canonicalHeaders = headers.entrySet().stream()
+            .map(e -> e.getKey() + ":" + e.getValue().trim() + "\n")
+            .collect(Collectors.joining());
+        final String canonicalRequest = method + "\n" + encode(path, false) + "\n" + canonicalQuery(query) + "\n"
+            + canonicalHeaders + "\n" + signedHeaders + "\n" + payloadHash;
+        return ALGORITHM + " Credential=" + accessKey + "/" + scope(amzDate) + ",SignedHeaders=" + signedHeaders
+            + ",Signature=" + sign(amzDate, canonicalRequest);
+    }
+
+    static String canonicalQuery(final SortedMap<String, String> query) {
+        return query.entrySet().stream()
+            .map(e -> encode(e.getKey(), true) + "=" + encode(e.getValue(), true))
+            .sorted()
+            .collect(Collectors.joining("&"));
+    }
+
+    /**
+     * RFC 3986 encoding of everything but unreserved characters, slashes too unless it is a path.
+     */
+    static String encode(final String value, final boolean encodeSlash) {
+        final StringBuilder encoded = new StringBuilder(value.length());
+        for (final byte b : value.getBytes(UTF_8)) {
+            final char c = (char) (b & 0xff);
+            if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')
+                || c == '-' || c == '_' || c == '.' || c == '~' || (c == '/' && !encodeSlash)) {
+                encoded.append(c);
+            } else {
+                encoded.append('%').append(Character.toUpperCase(HEX[c >> 4])).append(Character.toUpperCase(HEX[c & 0xf]));
+            }
+        }
+        return encoded.toString();
+    }
+
+    static String sha256Hex(final byte[] content) {
+        try {
+            return hex(MessageDigest.getInstance("SHA-256").digest(content));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private String scope(final String amzDate) {
+        return amzDate.substring(0, 8) + "/" + region + "/s3/aws4_request";
+    }
+
+    private String sign(final String amzDate, final String canonicalRequest) {
+        final String stringToSign = ALGORITHM + "\n" + amzDate + "\n" + scope(amzDate) + "\n"
+            + sha256Hex(canonicalRequest.getBytes(UTF_8));
+        byte[] key = hmac(secretKey, amzDate.substring(0, 8));
+        key = hmac(key, region);
+        key = hmac(key, "s3");
+        key = hmac(key, "aws4_request");
+        return hex(hmac(key, stringToSign));
+    }
+
+    private static byte[] hmac(final byte[] key, final String data) {
+        try {
+            final Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return mac.doFinal(data.getBytes(UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 is not available", e);
+        }
+    }
+
+    private static String hex(final byte[] bytes) {
+        final char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[2 * i] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[2 * i + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+}
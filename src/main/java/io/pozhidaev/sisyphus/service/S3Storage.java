@@ -0,0 +1,394 @@
+package io.pozhidaev.sisyphus.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Timer;
+import io.pozhidaev.sisyphus.configurations.SisyphusServerConfiguration;
+import io.pozhidaev.sisyphus.domain.File;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Stores every upload as a multipart upload of an S3 compatible bucket, keyed by the upload id.
+ * Chunks are gathered into parts of the part size in pooled direct buffers, leased only while a chunk is written.
+ * A chunk ending mid part leaves the rest in a tail object named by the offset it ends at, the next chunk starts
+ * from there. The Upload-Offset stays the only truth: a chunk rejected after it was stored is overwritten by its
+ * retry, parts by their number and the tail by its offset. The object exists once the last chunk completes it.
+ */
+@Slf4j
+@Service
+@ConditionalOnProperty(prefix = "sisyphus-server", name = "storage-backend", havingValue = "s3")
+public class S3Storage implements FileStorage {
+
+    static final long MIN_PART_SIZE = 5L * 1024 * 1024;
+    private static final String TAIL = ".part-";
+
+    private final ObjectStore objectStore;
+    private final PartBufferPool buffers;
+    private final int partSize;
+    private final Timer chunkWrites;
+    private final Counter bytesWritten;
+    private final Map<Long, Multipart> uploads = new ConcurrentHashMap<>();
+
+    @Autowired
+    public S3Storage(
+        final ObjectStore objectStore,
+        final UploadMetrics metrics,
+        final SisyphusServerConfiguration configuration
+    ) {
+        final long partSize = configuration.getS3PartSize().toBytes();
+        if (partSize < MIN_PART_SIZE || partSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("S3 part size should be between 5MB and 2GB: " + partSize);
+        }
+        this.objectStore = objectStore;
+        this.partSize = (int) partSize;
+        this.buffers = new PartBufferPool(this.partSize, configuration.getS3PartBuffers());
+        this.chunkWrites = metrics.chunkWrites("s3");
+        this.bytesWritten = metrics.bytesWritten("s3");
+    }
+
+    /**
+     * The bucket sets no limit the server could check up front, its errors surface with the parts.
+     */
+    @Override
+    public Mono<Void> checkSpace(final Long contentLength) {
+        return Mono.empty();
+    }
+
+    /**
+     * Starts the multipart upload, empty uploads are stored right away as there are no parts to come.
+     */
+    @Override
+    public Mono<File> createFile(@NonNull final File file) {
+        final Long id = file.getId();
+        if (file.getContentLength() != null && file.getContentLength() == 0) {
+            return objectStore.putObject(key(id), ByteBuffer.allocate(0)).thenReturn(file);
+        }
+        return objectStore
+            .createMultipartUpload(key(id))
+            .doOnNext(uploadId -> uploads.put(id, new Multipart(uploadId, file.getContentLength(), new ArrayList<>(), new HashSet<>())))
+            .thenReturn(file);
+    }
+
+    /**
+     * The whole object in one go, as a multipart upload of unknown length.
+     */
+    @Override
+    public Mono<Integer> putObject(@NonNull final Long id, @NonNull final Flux<DataBuffer> parts) {
+        return Mono
+            .defer(() -> uploads.containsKey(id)
+                ? Mono.empty()
+                : createFile(File.builder().id(id).build()).then()
+            )
+            .then(writeChunk(id, parts, 0))
+            .flatMap(written -> complete(id).thenReturn(written));
+    }
+
+    /**
+     * Parts are uploaded as soon as the buffer fills up, the chunk's body is read meanwhile only as far as
+     * the buffer has room. Tail objects of other offsets are removed meanwhile, the offset proves them outdated.
+     */
+    @Override
+    public Mono<Integer> writeChunk(
+        @NonNull final Long id,
+        @NonNull final Flux<DataBuffer> parts,
+        final long offset
+    ) {
+        return Mono.defer(() -> {
+            final long start = System.nanoTime();
+            return multipart(id)
+                .flatMap(upload -> buffers
+                    .acquire()
+                    .flatMap(buffer -> write(id, upload, parts, offset, buffer).doFinally(signalType -> buffers.release(buffer)))
+                )
+                .switchIfEmpty(Mono.defer(() -> empty(id, parts)))
+                .doOnNext(written -> {
+                    chunkWrites.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                    bytesWritten.increment(written);
+                });
+        });
+    }
+
+    /**
+     * Uploads the remaining tail as the last part unless the last chunk did, and completes the multipart upload.
+     */
+    @Override
+    public Mono<Void> complete(@NonNull final Long id) {
+        return multipart(id).flatMap(upload -> {
+            final Mono<Void> lastPart = upload.lastPart
+                ? Mono.empty()
+                : upload.tail != null
+                    ? buffers.acquire().flatMap(buffer -> restore(id, upload.tail, buffer)
+                        .then(Mono.defer(() -> flushPart(id, upload, buffer)))
+                        .doFinally(signalType -> buffers.release(buffer))
+                    )
+                    : upload.etags.isEmpty() ? uploadPart(id, upload, ByteBuffer.allocate(0)) : Mono.empty();
+            return lastPart
+                .then(Mono.defer(() -> objectStore.completeMultipartUpload(key(id), upload.uploadId, upload.etags)))
+                .then(deleteTails(id, new ArrayList<>(upload.tails)))
+                .doOnSuccess(v -> uploads.remove(id, upload));
+        });
+    }
+
+    /**
+     * Streams the parts through the same buffers as chunks and completes the final upload right away.
+     */
+    @Override
+    public Mono<File> concatenate(@NonNull final File file, @NonNull final List<File> parts) {
+        if (file.getContentLength() != null && file.getContentLength() == 0) {
+            return Mono.just(file);
+        }
+        return writeChunk(file.getId(), Flux.fromIterable(parts).concatMap(part -> objectStore.read(key(part.getId()))), 0)
+            .then(complete(file.getId()))
+            .thenReturn(file);
+    }
+
+    /**
+     * The completed object, streamed from the bucket by ranges. Empty while the upload is in progress.
+     */
+    @Override
+    public Mono<Resource> getObject(@NonNull final Long id) {
+        return objectStore.getObject(key(id)).cast(Resource.class);
+    }
+
+    /**
+     * Hard links are a file system matter, the bucket keeps its own copies.
+     */
+    @Override
+    public Mono<Long> deduplicate(@NonNull final Long id, @NonNull final String checksum, final long contentLength) {
+        return Mono.just(0L);
+    }
+
+    /**
+     * Aborts the multipart upload so its parts are freed, then removes the object and tail objects.
+     */
+    @Override
+    public Mono<Void> delete(@NonNull final File file) {
+        final Long id = file.getId();
+        return Mono
+            .defer(() -> {
+                final Multipart upload = uploads.remove(id);
+                return upload != null ? Mono.just(upload.uploadId) : objectStore.findMultipartUpload(key(id));
+            })
+            .flatMap(uploadId -> objectStore.abortMultipartUpload(key(id), uploadId))
+            .then(objectStore.deleteObject(key(id)))
+            .then(objectStore.list(key(id) + TAIL).concatMap(objectStore::deleteObject).then());
+    }
+
+    int getUploads() {
+        return uploads.size();
+    }
+
+    private Mono<Integer> write(
+        final Long id,
+        final Multipart upload,
+        final Flux<DataBuffer> parts,
+        final long offset,
+        final ByteBuffer buffer
+    ) {
+        final int kept = (int) (offset / partSize);
+        final boolean midPart = offset % partSize != 0;
+        if (upload.etags.size() < kept || (midPart && !upload.tails.contains(offset))) {
+            return Mono.error(new IllegalStateException("Stored parts of " + id + " end before offset " + offset));
+        }
+        upload.etags.subList(kept, upload.etags.size()).clear();
+        upload.lastPart = false;
+        upload.tail = midPart ? offset : null;
+        final List<Long> outdated = upload.tails.stream().filter(end -> end != offset).collect(Collectors.toList());
+        upload.tails.removeAll(outdated);
+
+        return Mono
+            .when(midPart ? restore(id, offset, buffer) : Mono.empty(), deleteTails(id, outdated))
+            .then(parts.concatMap(dataBuffer -> append(id, upload, buffer, dataBuffer), 1).reduce(0, Integer::sum))
+            .flatMap(written -> finish(id, upload, offset + written, written > 0, buffer).thenReturn(written));
+    }
+
+    /**
+     * Uploads stored empty on creation have no multipart upload, only an empty chunk can come for them.
+     */
+    private Mono<Integer> empty(final Long id, final Flux<DataBuffer> parts) {
+        return parts
+            .map(dataBuffer -> {
+                final int length = dataBuffer.readableByteCount();
+                DataBufferUtils.release(dataBuffer);
+                return length;
+            })
+            .reduce(0, Integer::sum)
+            .filter(written -> written == 0)
+            .switchIfEmpty(Mono.error(() -> new IllegalStateException("No multipart upload of " + id)));
+    }
+
+    /**
+     * The last chunk uploads the rest as the last part when the length is known, others leave it in a tail object.
+     */
+    private Mono<Void> finish(
+        final Long id,
+        final Multipart upload,
+        final long end,
+        final boolean written,
+        final ByteBuffer buffer
+    ) {
+        if (upload.contentLength != null && end == upload.contentLength) {
+            final Mono<Void> lastPart = buffer.position() > 0 || upload.etags.isEmpty() ? flushPart(id, upload, buffer) : Mono.empty();
+            return lastPart.doOnSuccess(v -> {
+                upload.lastPart = true;
+                upload.tail = null;
+            });
+        }
+        if (buffer.position() == 0) {
+            upload.tail = null;
+            return Mono.empty();
+        }
+        if (!written) {
+            return Mono.empty();
+        }
+        buffer.flip();
+        return objectStore
+            .putObject(tailKey(id, end), buffer)
+            .doOnSuccess(v -> {
+                upload.tails.add(end);
+                upload.tail = end;
+            });
+    }
+
+    private Mono<Integer> append(
+        final Long id,
+        final Multipart upload,
+        final ByteBuffer buffer,
+        final DataBuffer dataBuffer
+    ) {
+        final ByteBuffer source = dataBuffer.asByteBuffer();
+        final int length = source.remaining();
+        return fill(id, upload, buffer, source)
+            .thenReturn(length)
+            .doFinally(signalType -> DataBufferUtils.release(dataBuffer));
+    }
+
+    private Mono<Void> fill(final Long id, final Multipart upload, final ByteBuffer buffer, final ByteBuffer source) {
+        return Mono.defer(() -> {
+            final ByteBuffer slice = source.duplicate();
+            slice.limit(slice.position() + Math.min(source.remaining(), buffer.remaining()));
+            buffer.put(slice);
+            source.position(slice.position());
+            if (buffer.hasRemaining()) {
+                return Mono.empty();
+            }
+            return flushPart(id, upload, buffer).then(fill(id, upload, buffer, source));
+        });
+    }
+
+    private Mono<Void> flushPart(final Long id, final Multipart upload, final ByteBuffer buffer) {
+        buffer.flip();
+        return uploadPart(id, upload, buffer).doOnSuccess(v -> buffer.clear());
+    }
+
+    private Mono<Void> uploadPart(final Long id, final Multipart upload, final ByteBuffer content) {
+        return objectStore
+            .uploadPart(key(id), upload.uploadId, upload.etags.size() + 1, content)
+            .doOnNext(upload.etags::add)
+            .then();
+    }
+
+    private Mono<Void> restore(final Long id, final long end, final ByteBuffer buffer) {
+        return objectStore
+            .read(tailKey(id, end))
+            .doOnNext(dataBuffer -> {
+                try {
+                    buffer.put(dataBuffer.asByteBuffer());
+                } finally {
+                    DataBufferUtils.release(dataBuffer);
+                }
+            })
+            .then(Mono.fromRunnable(() -> {
+                if (buffer.position() != end % partSize) {
+                    throw new IllegalStateException("Tail of " + id + " at " + end + " has " + buffer.position() + " bytes");
+                }
+            }));
+    }
+
+    /**
+     * Leftovers only take space, a failed removal is retried when the upload goes.
+     */
+    private Mono<Void> deleteTails(final Long id, final Collection<Long> ends) {
+        return Flux
+            .fromIterable(ends)
+            .concatMap(end -> objectStore.deleteObject(tailKey(id, end)))
+            .onErrorResume(throwable -> {
+                log.warn("Removal of tail objects of {} failed", id, throwable);
+                return Mono.empty();
+            })
+            .then();
+    }
+
+    /**
+     * The state of the upload in memory, or as the bucket has it after a restart.
+     */
+    private Mono<Multipart> multipart(final Long id) {
+        final Multipart known = uploads.get(id);
+        if (known != null) {
+            return Mono.just(known);
+        }
+        final String key = key(id);
+        return objectStore
+            .findMultipartUpload(key)
+            .flatMap(uploadId -> Mono.zip(
+                objectStore.listParts(key, uploadId),
+                objectStore.list(key + TAIL).map(tail -> Long.valueOf(tail.substring(key.length() + TAIL.length()))).collectList(),
+                (etags, tails) -> {
+                    final Multipart recovered = new Multipart(uploadId, null, new ArrayList<>(etags), new HashSet<>(tails));
+                    recovered.tail = tails.stream().max(Long::compare).orElse(null);
+                    return recovered;
+                }
+            ))
+            .map(recovered -> {
+                final Multipart raced = uploads.putIfAbsent(id, recovered);
+                return raced != null ? raced : recovered;
+            });
+    }
+
+    private static String key(final Long id) {
+        return String.valueOf(id);
+    }
+
+    private static String tailKey(final Long id, final long end) {
+        return id + TAIL + end;
+    }
+
+    /**
+     * Multipart upload of one upload, written by the single chunk write of the upload at a time.
+     */
+    private static final class Multipart {
+
+        private final String uploadId;
+        private final Long contentLength;
+        private final List<String> etags;
+        private final Set<Long> tails;
+        private Long tail;
+        private boolean lastPart;
+
+        private Multipart(final String uploadId, final Long contentLength, final List<String> etags, final Set<Long> tails) {
+            this.uploadId = uploadId;
+            this.contentLength = contentLength;
+            this.etags = etags;
+            this.tails = tails;
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package io.pozhidaev.sisyphus.service;
+
+/**
+ * Where upload content is stored.
+ */
+public enum StorageBackend {
+    /**
+     * Files under the file directory, written through pooled channels or mappings.
+     */
+    LOCAL,
+    /**
+     * Objects of an S3 compatible bucket, every upload a multipart upload.
+     */
+    S3
+}
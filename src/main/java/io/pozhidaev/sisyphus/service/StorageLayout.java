@@ -0,0 +1,20 @@
+package io.pozhidaev.sisyphus.service;
+
+/**
+ * How stored files are spread over directories under the file directory.
+ */
+public enum StorageLayout {
+    /**
+     * Every file right in the file directory, as "id".
+     */
+    FLAT,
+    /**
+     * Two hex characters of a mixed id per level, as "3f/a0/id", 256 directories per level. Up to 8 levels.
+     */
+    HASHED,
+    /**
+     * Thousands of the id per level, as "001/234/1234567", consecutive uploads share a directory.
+     * Up to 6 levels, a long has no more thousands.
+     */
+    RANGE
+}
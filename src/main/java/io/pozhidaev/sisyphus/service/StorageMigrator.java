@@ -0,0 +1,103 @@
+package io.pozhidaev.sisyphus.service;
+
+import io.pozhidaev.sisyphus.configurations.SisyphusServerConfiguration;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Moves flat files into the configured layout in the background while the server keeps serving uploads.
+ * Enabled with sisyphus-server.storage-migrate, a restart picks up where a stopped run left off.
+ */
+@Slf4j
+@Component
+public class StorageMigrator {
+
+    private final StoragePathResolver pathResolver;
+    private final Scheduler storageScheduler;
+    private final boolean enabled;
+    private final AtomicLong migrated = new AtomicLong();
+
+    private volatile boolean stopped;
+    private Disposable migration;
+
+    @Autowired
+    public StorageMigrator(
+        final StoragePathResolver pathResolver,
+        @Qualifier("storageScheduler") final Scheduler storageScheduler,
+        final SisyphusServerConfiguration configuration
+    ) {
+        this.pathResolver = pathResolver;
+        this.storageScheduler = storageScheduler;
+        this.enabled = configuration.isStorageMigrate();
+    }
+
+    @PostConstruct
+    public void start() {
+        if (enabled && pathResolver.isLegacy()) {
+            migration = migrate().subscribe();
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        stopped = true;
+        if (migration != null) {
+            migration.dispose();
+        }
+    }
+
+    /**
+     * Walks the file directory once, files failing to move are logged and left for the next run.
+     */
+    public Mono<Long> migrate() {
+        return Mono
+            .fromCallable(() -> {
+                log.info("Migrating flat files of {} to {} layout", pathResolver.getRoot(), pathResolver.getLayout());
+                long failed = 0;
+                try (DirectoryStream<Path> files = pathResolver.flatFiles()) {
+                    for (final Path file : files) {
+                        if (stopped) {
+                            log.info("Migration stopped after {} files", migrated.get());
+                            return migrated.get();
+                        }
+                        failed += migrate(Long.valueOf(file.getFileName().toString())) ? 0 : 1;
+                    }
+                }
+                if (failed == 0) {
+                    pathResolver.flatFilesMigrated();
+                }
+                log.info("Migration finished: {} files moved, {} failed", migrated.get(), failed);
+                return migrated.get();
+            })
+            .subscribeOn(storageScheduler);
+    }
+
+    public long getMigrated() {
+        return migrated.get();
+    }
+
+    private boolean migrate(@NonNull final Long id) {
+        try {
+            if (pathResolver.migrate(id) && migrated.incrementAndGet() % 10_000 == 0) {
+                log.info("Migrated {} files", migrated.get());
+            }
+            return true;
+        } catch (IOException e) {
+            log.error("Migration of {} failed", id, e);
+            return false;
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package io.pozhidaev.sisyphus.service;
+
+import io.pozhidaev.sisyphus.configurations.SisyphusServerConfiguration;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+
+/**
+ * Maps upload ids to paths under the file directory according to the configured {@link StorageLayout}.
+ * Until flat files left from an earlier layout are migrated, lookups fall back to their old location.
+ */
+@Slf4j
+@Component
+public class StoragePathResolver {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final String MIGRATING = ".migrating";
+
+    @Getter
+    private final Path root;
+    @Getter
+    private final StorageLayout layout;
+    private final int depth;
+    private volatile boolean legacy;
+
+    @Autowired
+    public StoragePathResolver(
+        final Path fileDirectory,
+        final SisyphusServerConfiguration configuration
+    ) {
+        this(fileDirectory, configuration.getStorageLayout(), configuration.getStorageDepth());
+    }
+
+    StoragePathResolver(@NonNull final Path root, @NonNull final StorageLayout layout, final int depth) {
+        final int maxDepth = layout == StorageLayout.RANGE ? 6 : 8;
+        if (layout != StorageLayout.FLAT && (depth < 1 || depth > maxDepth)) {
+            throw new IllegalArgumentException("Storage depth of " + layout + " layout should be between 1 and " + maxDepth + ": " + depth);
+        }
+        this.root = root;
+        this.layout = layout;
+        this.depth = depth;
+        this.legacy = layout != StorageLayout.FLAT && hasFlatFiles(root);
+        if (legacy) {
+            log.warn("Flat files found in {}, lookups fall back to them until migrated to {} layout", root, layout);
+        }
+    }
+
+    public static StoragePathResolver flat(@NonNull final Path root) {
+        return new StoragePathResolver(root, StorageLayout.FLAT, 0);
+    }
+
+    /**
+     * Where the file of the upload is, or should be when it doesn't exist yet.
+     */
+    public Path resolve(@NonNull final Long id) {
+        final Path path = layoutPath(id);
+        if (!legacy || Files.exists(path)) {
+            return path;
+        }
+        final Path flat = root.resolve(id.toString());
+        if (Files.exists(flat)) {
+            return flat;
+        }
+        final Path migrating = root.resolve(id + MIGRATING);
+        return Files.exists(migrating) ? migrating : path;
+    }
+
+    /**
+     * Resolves the file of a new upload, creating its directories.
+     */
+    public Path prepare(@NonNull final Long id) throws IOException {
+        final Path path = resolve(id);
+        if (!Files.exists(path)) {
+            createParents(path);
+        }
+        return path;
+    }
+
+    /**
+     * Moves a flat file into the layout. The file stays reachable through {@link #resolve(Long)} all the way,
+     * channels already open on it keep writing to the same inode.
+     *
+     * @return false when there is no flat file of the upload
+     */
+    public boolean migrate(@NonNull final Long id) throws IOException {
+        final Path flat = root.resolve(id.toString());
+        if (layout == StorageLayout.FLAT || !Files.isRegularFile(flat)) {
+            return false;
+        }
+        final Path path = layoutPath(id);
+        if (Files.exists(path)) {
+            log.warn("Both flat and {} files exist for {}, the flat one is left in place", layout, id);
+            return false;
+        }
+        final Path migrating = root.resolve(id + MIGRATING);
+        Files.move(flat, migrating, ATOMIC_MOVE);
+        createParents(path);
+        Files.move(migrating, path, ATOMIC_MOVE);
+        return true;
+    }
+
+    /**
+     * Ids of flat files in the file directory.
+     */
+    DirectoryStream<Path> flatFiles() throws IOException {
+        return Files.newDirectoryStream(root, StoragePathResolver::isFlatFile);
+    }
+
+    void flatFilesMigrated() {
+        legacy = false;
+    }
+
+    boolean isLegacy() {
+        return legacy;
+    }
+
+    Path layoutPath(final Long id) {
+        final String name = id.toString();
+        switch (layout) {
+            case HASHED: {
+                final long hash = mix(id);
+                Path path = root;
+                for (int level = 0; level < depth; level++) {
+                    final int b = (int) (hash >>> (56 - 8 * level)) & 0xff;
+                    path = path.resolve(new String(new char[]{HEX[b >>> 4], HEX[b & 0xf]}));
+                }
+                return path.resolve(name);
+            }
+            case RANGE: {
+                Path path = root;
+                long divisor = 1;
+                for (int level = 0; level < depth; level++) {
+                    divisor *= 1000;
+                }
+                for (int level = 0; level < depth; level++) {
+                    path = path.resolve(String.format("%03d", (id / divisor) % 1000));
+                    divisor /= 1000;
+                }
+                return path.resolve(name);
+            }
+            default:
+                return root.resolve(name);
+        }
+    }
+
+    /**
+     * The file directory itself is expected to exist. A flat file may have the name of a top level directory
+     * of the layout, it is moved out of the way first.
+     */
+    private void createParents(final Path path) throws IOException {
+        if (path.getParent().equals(root)) {
+            return;
+        }
+        final Path top = root.resolve(root.relativize(path).getName(0));
+        if (legacy && isFlatFile(top)) {
+            migrate(Long.valueOf(top.getFileName().toString()));
+        }
+        Files.createDirectories(path.getParent());
+    }
+
+    /**
+     * SplitMix64 finalizer, part of the on-disk format: changing it orphans every hashed file.
+     */
+    private static long mix(final long id) {
+        long z = id;
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    private static boolean isFlatFile(final Path path) {
+        final String name = path.getFileName().toString();
+        for (int i = 0; i < name.length(); i++) {
+            if (!Character.isDigit(name.charAt(i))) {
+                return false;
+            }
+        }
+        return !name.isEmpty() && Files.isRegularFile(path);
+    }
+
+    private static boolean hasFlatFiles(final Path root) {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(root, StoragePathResolver::isFlatFile)) {
+            return files.iterator().hasNext();
+        } catch (IOException e) {
+            throw new UncheckedIOException("File directory listing failed: " + root, e);
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package io.pozhidaev.sisyphus.service;
+
+import lombok.Getter;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.zip.CRC32;
+
+/**
+ * Digest fed buffer by buffer while the body is being written, so data never has to be read back.
+ */
+public abstract class StreamingDigest {
+
+    @Getter
+    private final String algorithm;
+
+    private StreamingDigest(final String algorithm) {
+        this.algorithm = algorithm;
+    }
+
+    /**
+     * Consumes the remaining bytes of the buffer.
+     */
+    public abstract void update(ByteBuffer buffer);
+
+    /**
+     * Completes the digest, it can't be updated afterwards.
+     */
+    public abstract byte[] digest();
+
+    /**
+     * Independent digest of the bytes consumed so far.
+     */
+    public abstract StreamingDigest copy();
+
+    /**
+     * Completes the digest and renders it the way Upload-Checksum does: algorithm and base64 value.
+     */
+    public String encode() {
+        return algorithm + " " + Base64.getEncoder().encodeToString(digest());
+    }
+
+    static StreamingDigest messageDigest(final String algorithm, final String jcaName) {
+        try {
+            return new MessageDigestImpl(algorithm, MessageDigest.getInstance(jcaName));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Digest algorithm not available: " + jcaName, e);
+        }
+    }
+
+    static StreamingDigest crc32(final String algorithm) {
+        return new Crc32Impl(algorithm);
+    }
+
+    private static final class MessageDigestImpl extends StreamingDigest {
+
+        private final MessageDigest messageDigest;
+
+        private MessageDigestImpl(final String algorithm, final MessageDigest messageDigest) {
+            super(algorithm);
+            this.messageDigest = messageDigest;
+        }
+
+        @Override
+        public void update(final ByteBuffer buffer) {
+            messageDigest.update(buffer);
+        }
+
+        @Override
+        public byte[] digest() {
+            return messageDigest.digest();
+        }
+
+        @Override
+        public StreamingDigest copy() {
+            try {
+                return new MessageDigestImpl(getAlgorithm(), (MessageDigest) messageDigest.clone());
+            } catch (CloneNotSupportedException e) {
+                throw new IllegalStateException("Digest can't be copied: " + getAlgorithm(), e);
+            }
+        }
+    }
+
+    /**
+     * {@link CRC32} can't be cloned nor started from a value, so a copy starts a new one and combines its value
+     * with the value copied, the way zlib's crc32_combine does.
+     */
+    private static final class Crc32Impl extends StreamingDigest {
+
+        private static final long POLYNOMIAL = 0xedb88320L;
+
+        private final long prefix;
+        private final CRC32 crc32 = new CRC32();
+        private long length;
+
+        private Crc32Impl(final String algorithm) {
+            this(algorithm, 0);
+        }
+
+        private Crc32Impl(final String algorithm, final long prefix) {
+            super(algorithm);
+            this.prefix = prefix;
+        }
+
+        @Override
+        public void update(final ByteBuffer buffer) {
+            length += buffer.remaining();
+            crc32.update(buffer);
+        }
+
+        @Override
+        public byte[] digest() {
+            final long value = value();
+            return new byte[]{(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+        }
+
+        @Override
+        public StreamingDigest copy() {
+            return new Crc32Impl(getAlgorithm(), value());
+        }
+
+        private long value() {
+            return combine(prefix, crc32.getValue(), length);
+        }
+
+        /**
+         * CRC of two byte sequences one after another, from the CRCs of both and the length of the second.
+         */
+        static long combine(long crc1, final long crc2, long length2) {
+            if (length2 == 0) {
+                return crc1;
+            }
+            final long[] even = new long[32];
+            final long[] odd = new long[32];
+            odd[0] = POLYNOMIAL;
+            for (int n = 1; n < 32; n++) {
+                odd[n] = 1L << (n - 1);
+            }
+            square(even, odd);
+            square(odd, even);
+            while (true) {
+                square(even, odd);
+                if ((length2 & 1) != 0) {
+                    crc1 = times(even, crc1);
+                }
+                length2 >>>= 1;
+                if (length2 == 0) {
+                    break;
+                }
+                square(odd, even);
+                if ((length2 & 1) != 0) {
+                    crc1 = times(odd, crc1);
+                }
+                length2 >>>= 1;
+                if (length2 == 0) {
+                    break;
+                }
+            }
+            return crc1 ^ crc2;
+        }
+
+        private static long times(final long[] matrix, long vector) {
+            long sum = 0;
+            for (int i = 0; vector != 0; i++, vector >>>= 1) {
+                if ((vector & 1) != 0) {
+                    sum ^= matrix[i];
+                }
+            }
+            return sum;
+        }
+
+        private static void square(final long[] square, final long[] matrix) {
+            for (int n = 0; n < 32; n++) {
+                square[n] = times(matrix, matrix[n]);
+            }
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package io.pozhidaev.sisyphus.service;
+
+import io.pozhidaev.sisyphus.configurations.SisyphusServerConfiguration;
+import io.pozhidaev.sisyphus.repository.ReactiveFileRepository;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+
+/**
+ * Frees the space of terminated uploads off the request path: DELETE only marks the row,
+ * unlinking a large file on a slow filesystem happens here, one batch per run.
+ * Runs are skipped while storage can't keep up with clients. In a cluster every node reclaims the uploads it owns.
+ */
+@Slf4j
+@Component
+public class TerminationReclaimer {
+
+    private final UploadService uploadService;
+    private final ReactiveFileRepository fileRepository;
+    private final InFlightLimiter inFlightLimiter;
+    private final ClusterNodes clusterNodes;
+    private final Duration interval;
+    private final int batchSize;
+
+    private Disposable reclaimer;
+
+    @Autowired
+    public TerminationReclaimer(
+        final UploadService uploadService,
+        final ReactiveFileRepository fileRepository,
+        final InFlightLimiter inFlightLimiter,
+        final ClusterNodes clusterNodes,
+        final SisyphusServerConfiguration configuration
+    ) {
+        if (configuration.getReclaimBatchSize() <= 0) {
+            throw new IllegalArgumentException("Reclaim batch size should be positive: " + configuration.getReclaimBatchSize());
+        }
+        this.uploadService = uploadService;
+        this.fileRepository = fileRepository;
+        this.inFlightLimiter = inFlightLimiter;
+        this.clusterNodes = clusterNodes;
+        this.interval = configuration.getReclaimInterval();
+        this.batchSize = configuration.getReclaimBatchSize();
+    }
+
+    @PostConstruct
+    public void start() {
+        reclaimer = Flux
+            .interval(interval)
+            .onBackpressureDrop()
+            .concatMap(tick -> reclaim().onErrorResume(throwable -> {
+                log.error("Reclaiming terminated uploads failed", throwable);
+                return Mono.empty();
+            }))
+            .subscribe();
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (reclaimer != null) {
+            reclaimer.dispose();
+        }
+    }
+
+    /**
+     * Removes the earliest terminated uploads, returns how many rows went.
+     */
+    public Mono<Integer> reclaim() {
+        if (inFlightLimiter.isCongested()) {
+            log.debug("Reclaim skipped, uploads wait for buffers");
+            return Mono.just(0);
+        }
+        return fileRepository
+            .findTerminated(clusterNodes.getOwnedNode(), batchSize)
+            .flatMap(uploadService::reclaim)
+            .doOnNext(reclaimed -> {
+                if (reclaimed > 0) {
+                    log.info("Reclaimed {} terminated uploads", reclaimed);
+                }
+            });
+    }
+}
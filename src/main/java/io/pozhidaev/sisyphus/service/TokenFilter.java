@@ -3,6 +3,7 @@ package io.pozhidaev.sisyphus.service;
 import io.pozhidaev.sisyphus.domain.Token;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.annotation.Order;
 import org.springframework.stereotype.Component;
 import org.springframework.web.server.ServerWebExchange;
 import org.springframework.web.server.WebFilter;
@@ -13,6 +14,7 @@ import java.util.Collections;
 
 @Slf4j
 @Component
+@Order(0)
 public class TokenFilter implements WebFilter {
 
     private Token authToken;
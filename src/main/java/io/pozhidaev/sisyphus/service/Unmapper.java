@@ -0,0 +1,65 @@
+package io.pozhidaev.sisyphus.service;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+
+/**
+ * Unmaps mappings right away through their cleaner instead of waiting for the garbage collector.
+ * The JDK has no public API for it, the cleaner is reached by reflection: {@code Unsafe.invokeCleaner} on 9+,
+ * the cleaner of the buffer on 8. On a JVM offering neither, mappings are left to the garbage collector.
+ * A buffer must never be touched once unmapped, the memory behind it is gone.
+ */
+@Slf4j
+final class Unmapper {
+
+    private static final Cleaner CLEANER = cleaner();
+
+    private Unmapper() {
+    }
+
+    /**
+     * False when the mapping is left to the garbage collector.
+     */
+    static boolean unmap(final MappedByteBuffer buffer) {
+        if (CLEANER == null) {
+            return false;
+        }
+        try {
+            CLEANER.clean(buffer);
+            return true;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            log.warn("Unmapping failed, the garbage collector unmaps the mapping", e);
+            return false;
+        }
+    }
+
+    private static Cleaner cleaner() {
+        try {
+            final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            final Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            final Object unsafe = theUnsafe.get(null);
+            return buffer -> invokeCleaner.invoke(unsafe, buffer);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            log.trace("No Unsafe.invokeCleaner, trying the cleaner of JDK 8 buffers", e);
+        }
+        try {
+            final Method cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+            final Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+            return buffer -> clean.invoke(cleaner.invoke(buffer));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            log.warn("Mappings can't be unmapped on this JVM, the garbage collector unmaps them", e);
+            return null;
+        }
+    }
+
+    @FunctionalInterface
+    private interface Cleaner {
+        void clean(MappedByteBuffer buffer) throws ReflectiveOperationException;
+    }
+}
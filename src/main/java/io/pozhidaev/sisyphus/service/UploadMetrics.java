@@ -0,0 +1,117 @@
+package io.pozhidaev.sisyphus.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.NonNull;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Upload meters. Hot path meters are created once and handed out, so recording is a plain increment.
+ */
+@Component
+public class UploadMetrics {
+
+    private final MeterRegistry meterRegistry;
+    private final Counter created;
+    private final Counter completed;
+    private final Counter failed;
+    private final Counter checksumMismatch;
+    private final Counter expired;
+    private final Counter terminated;
+    private final Counter deduplicated;
+    private final Counter bytesSaved;
+
+    @Autowired
+    public UploadMetrics(
+        final MeterRegistry meterRegistry,
+        final UploadStateCache uploadStateCache,
+        final FileChannelPool channelPool
+    ) {
+        this.meterRegistry = meterRegistry;
+        this.created = outcome("created");
+        this.completed = outcome("completed");
+        this.failed = outcome("failed");
+        this.checksumMismatch = outcome("checksum_mismatch");
+        this.expired = outcome("expired");
+        this.terminated = outcome("terminated");
+        this.deduplicated = Counter.builder("sisyphus.dedup.uploads")
+            .description("Completed uploads that share the file of an identical one")
+            .register(meterRegistry);
+        this.bytesSaved = Counter.builder("sisyphus.dedup.bytes.saved")
+            .description("Bytes freed by sharing files of identical uploads")
+            .baseUnit("bytes")
+            .register(meterRegistry);
+
+        Gauge.builder("sisyphus.uploads.active", uploadStateCache, UploadStateCache::size)
+            .description("Uploads with their state held in memory")
+            .register(meterRegistry);
+        Gauge.builder("sisyphus.channels.open", channelPool, FileChannelPool::getOpenChannels)
+            .description("File channels kept open by the channel pool")
+            .register(meterRegistry);
+        FunctionCounter.builder("sisyphus.channels.opens", channelPool, FileChannelPool::getOpens)
+            .register(meterRegistry);
+        FunctionCounter.builder("sisyphus.channels.hits", channelPool, FileChannelPool::getHits)
+            .register(meterRegistry);
+        FunctionCounter.builder("sisyphus.channels.evictions", channelPool, FileChannelPool::getEvictions)
+            .register(meterRegistry);
+    }
+
+    /**
+     * Latency of a chunk write including reading its body, tagged by storage backend.
+     */
+    public Timer chunkWrites(@NonNull final String storage) {
+        return Timer.builder("sisyphus.chunk.write")
+            .tag("storage", storage)
+            .publishPercentileHistogram()
+            .register(meterRegistry);
+    }
+
+    /**
+     * Bytes taken in by a storage backend, its rate is the ingest throughput.
+     */
+    public Counter bytesWritten(@NonNull final String storage) {
+        return Counter.builder("sisyphus.storage.bytes.written")
+            .tag("storage", storage)
+            .baseUnit("bytes")
+            .register(meterRegistry);
+    }
+
+    public void uploadCreated() {
+        created.increment();
+    }
+
+    public void uploadCompleted() {
+        completed.increment();
+    }
+
+    public void uploadFailed() {
+        failed.increment();
+    }
+
+    public void checksumMismatch() {
+        checksumMismatch.increment();
+    }
+
+    public void uploadExpired() {
+        expired.increment();
+    }
+
+    public void uploadTerminated() {
+        terminated.increment();
+    }
+
+    public void uploadDeduplicated(final long bytesSaved) {
+        deduplicated.increment();
+        this.bytesSaved.increment(bytesSaved);
+    }
+
+    private Counter outcome(final String outcome) {
+        return Counter.builder("sisyphus.uploads")
+            .tag("outcome", outcome)
+            .register(meterRegistry);
+    }
+}
@@ -1,71 +1,502 @@
 package io.pozhidaev.sisyphus.service;
 
+import io.pozhidaev.sisyphus.configurations.SisyphusServerConfiguration;
+import io.pozhidaev.sisyphus.domain.ConcatType;
 import io.pozhidaev.sisyphus.domain.File;
+import io.pozhidaev.sisyphus.repository.ReactiveFileRepository;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.Resource;
 import org.springframework.core.io.buffer.DataBuffer;
-import org.springframework.data.repository.PagingAndSortingRepository;
 import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
 import java.util.Arrays;
 import java.util.Base64;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Optional;
 import java.util.stream.Collectors;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.springframework.http.HttpStatus.BAD_REQUEST;
+import static org.springframework.http.HttpStatus.CONFLICT;
+import static org.springframework.http.HttpStatus.FORBIDDEN;
+import static org.springframework.http.HttpStatus.GONE;
+import static org.springframework.http.HttpStatus.LOCKED;
+import static org.springframework.http.HttpStatus.NOT_FOUND;
+import static org.springframework.http.HttpStatus.PAYLOAD_TOO_LARGE;
 
 @Slf4j
 @Service
 public class UploadService {
 
     private final FileStorage fileStorage;
-    private final PagingAndSortingRepository<File, Long> fileRepository;
-
+    private final ReactiveFileRepository fileRepository;
+    private final MetadataWriter metadataWriter;
+    private final UploadStateCache uploadStateCache;
+    private final UploadMetrics metrics;
+    private final InFlightLimiter inFlightLimiter;
+    private MappedFileStorage mappedStorage;
+    private Duration uploadExpiration = Duration.ZERO;
+    private FingerprintIndex fingerprintIndex = new FingerprintIndex(0);
+    private boolean reuseIncompleteUploads;
 
     @Autowired
     public UploadService(
             final FileStorage fileStorage,
-            final PagingAndSortingRepository<File, Long> fileRepository
+            final ReactiveFileRepository fileRepository,
+            final MetadataWriter metadataWriter,
+            final UploadStateCache uploadStateCache,
+            final UploadMetrics metrics,
+            final InFlightLimiter inFlightLimiter
             ) {
         this.fileStorage = fileStorage;
         this.fileRepository = fileRepository;
+        this.metadataWriter = metadataWriter;
+        this.uploadStateCache = uploadStateCache;
+        this.metrics = metrics;
+        this.inFlightLimiter = inFlightLimiter;
+    }
+
+    @Autowired(required = false)
+    public void setMappedStorage(final MappedFileStorage mappedStorage) {
+        this.mappedStorage = mappedStorage;
+    }
+
+    @Autowired
+    public void setConfiguration(final SisyphusServerConfiguration configuration) {
+        this.uploadExpiration = configuration.getUploadExpiration();
+        this.fingerprintIndex = new FingerprintIndex(configuration.getFingerprintIndexSize());
+        this.reuseIncompleteUploads = configuration.isReuseIncompleteUploads();
     }
 
+    /**
+     * Space is checked before the row is inserted, the row is removed again when its storage can't be created.
+     */
     public Mono<File> createUpload(
         final File file
     ){
-        return Mono.fromSupplier(() -> file)
-            .map(fileRepository::save)
-            .flatMap(fileStorage::createFile);
+        final FileStorage storage = storageOf(file.getContentLength());
+        return storage
+            .checkSpace(file.getContentLength())
+            .then(Mono.defer(() -> metadataWriter.insert(file)))
+            .flatMap(saved -> storage.createFile(saved).onErrorResume(e -> discard(saved, e)))
+            .doOnNext(uploadStateCache::register)
+            .doOnNext(this::index)
+            .doOnNext(f -> metrics.uploadCreated());
+
+    }
+
+    /**
+     * The unfinished upload a new one would duplicate, empty unless sisyphus-server.reuse-incomplete-uploads is on.
+     */
+    public Mono<File> findReusable(final File file) {
+        if (!reuseIncompleteUploads || file.getContentLength() == null) {
+            return Mono.empty();
+        }
+        return findResumable(file.getFingerprint(), file.getContentLength())
+            .filter(existing -> existing.getConcatType() == file.getConcatType());
+    }
+
+    /**
+     * The latest unfinished upload of the fingerprint and length, with its offset from the state cache.
+     * Recently created uploads are found in memory, others by the fingerprint index of the database.
+     */
+    public Mono<File> findResumable(final String fingerprint, final long contentLength) {
+        if (File.NO_FINGERPRINT.equals(fingerprint)) {
+            return Mono.empty();
+        }
+        return Mono
+            .justOrEmpty(fingerprintIndex.get(fingerprint, contentLength))
+            .flatMap(id -> getFile(id)
+                .filter(file -> isResumable(file, fingerprint, contentLength))
+                .switchIfEmpty(Mono.fromRunnable(() -> fingerprintIndex.remove(fingerprint, contentLength, id)))
+            )
+            .switchIfEmpty(Mono.defer(() -> fileRepository
+                .findResumable(fingerprint, contentLength)
+                .map(this::withState)
+                .filter(file -> isResumable(file, fingerprint, contentLength))
+                .doOnNext(this::index)
+            ));
+    }
+
+    /**
+     * Creates a final upload out of completed partial uploads, in the given order.
+     * A failed stitch removes the final upload again, its file and row.
+     */
+    public Mono<File> concatenateUploads(
+        final File file,
+        final List<Long> partIds
+    ) {
+        final String concatParts = partIds.stream().map(String::valueOf).collect(Collectors.joining(" "));
+        if (concatParts.length() > File.MAX_CONCAT_PARTS_LENGTH) {
+            return Mono.error(new ResponseStatusException(BAD_REQUEST, "Upload-Concat lists too many parts: " + partIds.size()));
+        }
+        return Flux
+            .fromIterable(partIds)
+            .concatMap(partId -> getFile(partId)
+                .switchIfEmpty(Mono.error(() -> new ResponseStatusException(BAD_REQUEST, "Partial upload not found: " + partId)))
+            )
+            .doOnNext(part -> {
+                if (part.getConcatType() != ConcatType.PARTIAL) {
+                    throw new ResponseStatusException(BAD_REQUEST, "Upload is not partial: " + part.getId());
+                }
+                if (!part.getContentOffset().equals(part.getContentLength())) {
+                    throw new ResponseStatusException(BAD_REQUEST, "Partial upload is not complete: " + part.getId());
+                }
+            })
+            .collectList()
+            .flatMap(parts -> {
+                file.setConcatType(ConcatType.FINAL);
+                file.setConcatParts(concatParts);
+                file.setContentLength(parts.stream().mapToLong(File::getContentLength).sum());
+                file.setContentOffset(0L);
+                return fileStorage
+                    .checkSpace(file.getContentLength())
+                    .then(Mono.defer(() -> metadataWriter.insert(file)))
+                    .flatMap(saved -> fileStorage
+                        .createFile(saved)
+                        .flatMap(created -> fileStorage.concatenate(created, parts))
+                        .onErrorResume(e -> fileStorage
+                            .delete(saved)
+                            .onErrorResume(deleteError -> {
+                                log.warn("Removal of failed concatenation {} failed", saved.getId(), deleteError);
+                                return Mono.empty();
+                            })
+                            .then(discard(saved, e))
+                        )
+                    );
+            })
+            .flatMap(created -> {
+                created.setContentOffset(created.getContentLength());
+                return fileRepository.save(created);
+            })
+            .doOnNext(uploadStateCache::register)
+            .doOnNext(f -> {
+                metrics.uploadCreated();
+                metrics.uploadCompleted();
+            });
+    }
 
+    /**
+     * Uploads that are not terminated, with offsets from the state cache.
+     */
+    public Mono<File> getFile(final Long id) {
+        return fileRepository
+            .findById(id)
+            .filter(file -> file.getTerminatedAt() == null)
+            .map(this::withState);
     }
 
+    public Mono<UploadState> getUploadState(final Long id) {
+        return uploadStateCache.get(id);
+    }
+
+    public Mono<Resource> getContent(final Long id) {
+        return fileStorage.getObject(id);
+    }
+
+    /**
+     * Marks the upload terminated, a single row update whatever its size. Its file and row are removed later by
+     * {@link TerminationReclaimer}, until then PATCH and HEAD answer 410.
+     */
+    public Mono<Boolean> terminate(final Long id) {
+        return fileRepository
+            .terminate(id, LocalDateTime.now(ZoneId.systemDefault()))
+            .doOnNext(terminated -> {
+                if (terminated) {
+                    uploadStateCache.peek(id).ifPresent(UploadState::terminate);
+                    metrics.uploadTerminated();
+                }
+            });
+    }
+
+    /**
+     * Removes files of terminated uploads one at a time, then their rows in one statement.
+     * Uploads whose file removal failed keep their row and are retried by a later run.
+     */
+    public Mono<Integer> reclaim(final List<File> files) {
+        return Flux
+            .fromIterable(files)
+            .concatMap(file -> storageOf(file.getContentLength())
+                .delete(file)
+                .thenReturn(file.getId())
+                .onErrorResume(throwable -> {
+                    log.warn("Reclaiming {} failed", file.getId(), throwable);
+                    return Mono.empty();
+                })
+            )
+            .doOnNext(uploadStateCache::remove)
+            .collectList()
+            .flatMap(ids -> ids.isEmpty() ? Mono.just(0) : fileRepository.deleteTerminated(ids));
+    }
+
+    /**
+     * When the upload expires unless a chunk comes in, empty for finished uploads and with expiration off.
+     */
+    public Optional<ZonedDateTime> expiresAt(final UploadState state) {
+        return state.isComplete() ? Optional.empty() : expiresAt(state.getUpdatedAt());
+    }
 
-    public Mono<File> uploadChunkAndGetUpdatedOffset(
+    public Optional<ZonedDateTime> expiresAt(final File file) {
+        return file.getContentLength() != null && file.getContentOffset() >= file.getContentLength()
+            ? Optional.empty()
+            : expiresAt(file.getUpdatedAt());
+    }
+
+    /**
+     * Removes an unfinished upload idle since before the given time, unless a chunk came in meanwhile
+     * or is being written right now. The row goes first, an upload is never listed without its file.
+     */
+    public Mono<Boolean> expire(final File file, final LocalDateTime before) {
+        return Mono
+            .fromSupplier(() -> uploadStateCache.peek(file.getId())
+                .map(state -> !state.isWriting() && (state.getUpdatedAt() == null || state.getUpdatedAt().isBefore(before)))
+                .orElse(true)
+            )
+            .filter(Boolean::booleanValue)
+            .flatMap(idle -> fileRepository.deleteExpired(file.getId(), before))
+            .filter(Boolean::booleanValue)
+            .flatMap(deleted -> {
+                uploadStateCache.remove(file.getId());
+                return storageOf(file.getContentLength()).delete(file).thenReturn(true);
+            })
+            .doOnNext(deleted -> metrics.uploadExpired())
+            .defaultIfEmpty(false);
+    }
+
+
+    /**
+     * Writes a chunk and advances the offset by the bytes written, which is less than the declared length
+     * when the client went away mid chunk. Chunks that don't continue the upload or don't fit into it
+     * are rejected before their body is read.
+     * One chunk of an upload is written at a time, a concurrent PATCH of the same upload gets 423 right away.
+     * Rejected chunks aren't failed uploads, only errors writing the chunk are counted as such.
+     */
+    public Mono<UploadState> uploadChunkAndGetUpdatedOffset(
             final Long id,
             final Flux<DataBuffer> parts,
             final long offset,
-            final long length
+            final long length,
+            final String checksum
     ) {
-        //TODO Check content length
-        return fileStorage
-            .writeChunk(id, parts, offset)
-            .map((e) -> {
-                final File file = fileRepository.findById(id)
-                    .orElseThrow(() -> new RuntimeException("File record not found."));
-                log.info("[OLD OFFSET] {}", file.getContentOffset());
-                log.info("[OFFSET] {}", file.getContentOffset() + length);
-                file.setContentOffset(file.getContentOffset() + length);
-                file.setLastUploadedChunkNumber(file.getLastUploadedChunkNumber() + 1);
-                log.debug("File patching: {}", file);
-                fileRepository.save(file);
-                return file;
+        return Mono
+            .fromSupplier(() -> parseChecksum(checksum))
+            .flatMap(expected -> writeChunk(id, parts, offset, length, expected))
+            .flatMap(state -> state.isComplete()
+                ? storageOf(state.getContentLength()).complete(id)
+                    .then(deduplicate(state))
+                    .thenReturn(state)
+                    .doOnNext(s -> metrics.uploadCompleted())
+                : Mono.just(state)
+            )
+            .doOnNext(state -> log.debug("File patching: {}", state))
+            .doOnError(e -> {
+                if (e instanceof ChecksumMismatchException) {
+                    metrics.checksumMismatch();
+                } else if (!(e instanceof ResponseStatusException)) {
+                    metrics.uploadFailed();
+                }
             });
     }
 
+    /**
+     * Shares the file of an identical completed upload when the whole file digest is known.
+     * It only saves space, a failure leaves the upload with its own file.
+     */
+    private Mono<Void> deduplicate(final UploadState state) {
+        if (state.getChecksum() == null) {
+            return Mono.empty();
+        }
+        return storageOf(state.getContentLength())
+            .deduplicate(state.getId(), state.getChecksum(), state.getContentLength())
+            .doOnNext(saved -> {
+                if (saved > 0) {
+                    log.debug("Upload {} shares its content, {} bytes freed", state.getId(), saved);
+                    metrics.uploadDeduplicated(saved);
+                }
+            })
+            .onErrorResume(throwable -> {
+                log.warn("Deduplication of {} failed", state.getId(), throwable);
+                return Mono.empty();
+            })
+            .then();
+    }
+
+    /**
+     * Writes the chunk holding the write slot of the upload. A state evicted between the lookup and taking
+     * the slot is looked up again.
+     */
+    private Mono<UploadState> writeChunk(
+        final Long id,
+        final Flux<DataBuffer> parts,
+        final long offset,
+        final long length,
+        final Optional<ExpectedChecksum> expected
+    ) {
+        return uploadStateCache
+            .get(id)
+            .switchIfEmpty(Mono.error(() -> new ResponseStatusException(NOT_FOUND, "Upload not found: " + id)))
+            .doOnNext(state -> {
+                if (state.isTerminated()) {
+                    throw new ResponseStatusException(GONE, "Upload terminated: " + id);
+                }
+                if (state.getConcatType() == ConcatType.FINAL) {
+                    throw new ResponseStatusException(FORBIDDEN, "Final upload can not be patched: " + id);
+                }
+            })
+            .flatMap(state -> {
+                if (!state.tryAcquireWrite()) {
+                    return state.isEvicted()
+                        ? writeChunk(id, parts, offset, length, expected)
+                        : Mono.error(new ResponseStatusException(LOCKED, "Upload is being written: " + id));
+                }
+                return Mono
+                    .defer(() -> {
+                        checkChunk(state, offset, length);
+                        return writeChunk(state, parts, offset, expected);
+                    })
+                    .doFinally(signalType -> state.releaseWrite());
+            });
+    }
+
+    private void checkChunk(final UploadState state, final long offset, final long length) {
+        if (offset < 0 || length < 0) {
+            throw new ResponseStatusException(BAD_REQUEST, "Negative Upload-Offset or Content-Length: " + state.getId());
+        }
+        if (offset != state.getContentOffset()) {
+            throw new ResponseStatusException(CONFLICT,
+                "Upload-Offset " + offset + " of " + state.getId() + " is not at its offset " + state.getContentOffset());
+        }
+        if (offset + length > state.getContentLength()) {
+            throw new ResponseStatusException(PAYLOAD_TOO_LARGE, "Chunk exceeds Upload-Length: " + state.getId());
+        }
+    }
+
+    /**
+     * Feeds the chunk and the whole file digests from the buffers on their way to the storage,
+     * reading them from the client only as fast as the in-flight limit lets through.
+     * A body cut short ends the chunk, what arrived is written and digested.
+     * A rejected chunk leaves both the offset and the whole file digest where they were.
+     */
+    private Mono<UploadState> writeChunk(
+        final UploadState state,
+        final Flux<DataBuffer> parts,
+        final long offset,
+        final Optional<ExpectedChecksum> expected
+    ) {
+        final StreamingDigest chunkDigest = expected.map(e -> e.algorithm.newDigest()).orElse(null);
+        final StreamingDigest fileDigest = Optional.ofNullable(state.getFileDigest()).map(StreamingDigest::copy).orElse(null);
+        final Flux<DataBuffer> limited = inFlightLimiter.limit(parts.onErrorResume(throwable -> {
+            log.debug("Body of {} cut short at offset {}", state.getId(), offset, throwable);
+            return Flux.empty();
+        }));
+        final Flux<DataBuffer> digested = chunkDigest == null && fileDigest == null
+            ? limited
+            : limited.doOnNext(dataBuffer -> {
+                if (chunkDigest != null) {
+                    chunkDigest.update(dataBuffer.asByteBuffer());
+                }
+                if (fileDigest != null) {
+                    fileDigest.update(dataBuffer.asByteBuffer());
+                }
+            });
+
+        return storageOf(state.getContentLength())
+            .writeChunk(state.getId(), digested, offset)
+            .flatMap(written -> {
+                if (chunkDigest != null && !MessageDigest.isEqual(chunkDigest.digest(), expected.get().value)) {
+                    return Mono.error(new ChecksumMismatchException(state.getId(), chunkDigest.getAlgorithm()));
+                }
+                if (fileDigest != null) {
+                    state.setFileDigest(fileDigest);
+                }
+                log.debug("Offset of {}: {} -> {}", state.getId(), state.getContentOffset(), state.getContentOffset() + written);
+                return uploadStateCache.advance(state, written);
+            });
+    }
+
+    private Optional<ZonedDateTime> expiresAt(final LocalDateTime updatedAt) {
+        if (updatedAt == null || uploadExpiration.isZero() || uploadExpiration.isNegative()) {
+            return Optional.empty();
+        }
+        return Optional.of(updatedAt.atZone(ZoneId.systemDefault()).plus(uploadExpiration));
+    }
+
+    /**
+     * Offsets of the cached state, ahead of the row until the next flush.
+     */
+    private File withState(final File file) {
+        uploadStateCache.peek(file.getId()).ifPresent(state -> {
+            file.setContentOffset(state.getContentOffset());
+            file.setLastUploadedChunkNumber(state.getLastUploadedChunkNumber());
+        });
+        return file;
+    }
+
+    private void index(final File file) {
+        if (file.getContentLength() != null && !File.NO_FINGERPRINT.equals(file.getFingerprint())) {
+            fingerprintIndex.put(file.getFingerprint(), file.getContentLength(), file.getId());
+        }
+    }
+
+    private static boolean isResumable(final File file, final String fingerprint, final long contentLength) {
+        return fingerprint.equals(file.getFingerprint())
+            && file.getContentLength() != null
+            && file.getContentLength() == contentLength
+            && file.getContentOffset() < contentLength
+            && file.getConcatType() != ConcatType.FINAL;
+    }
+
+    /**
+     * Removes the row of an upload whose storage failed, the failure goes on to the client.
+     */
+    private <T> Mono<T> discard(final File file, final Throwable error) {
+        return fileRepository
+            .deleteById(file.getId())
+            .onErrorResume(e -> {
+                log.warn("Removal of failed upload {} failed", file.getId(), e);
+                return Mono.empty();
+            })
+            .then(Mono.error(error));
+    }
+
+    /**
+     * Small uploads are written through a mapping, the rest through channels, both end up in the same file.
+     */
+    private FileStorage storageOf(final Long contentLength) {
+        return mappedStorage != null && mappedStorage.accepts(contentLength) ? mappedStorage : fileStorage;
+    }
+
+    /**
+     * Parses "algorithm base64" of the Upload-Checksum header.
+     */
+    Optional<ExpectedChecksum> parseChecksum(final String checksum) {
+        if (checksum == null) {
+            return Optional.empty();
+        }
+        final String[] parts = checksum.trim().split(" ");
+        final ChecksumAlgorithm algorithm = ChecksumAlgorithm.of(parts[0])
+            .orElseThrow(() -> new ResponseStatusException(BAD_REQUEST, "Unsupported checksum algorithm: " + parts[0]));
+        try {
+            if (parts.length != 2) {
+                throw new IllegalArgumentException(checksum);
+            }
+            return Optional.of(new ExpectedChecksum(algorithm, Base64.getDecoder().decode(parts[1])));
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(BAD_REQUEST, "Invalid Upload-Checksum: " + checksum);
+        }
+    }
+
     public Map<String, String> parseMetadata(final String metadata){
         return Arrays.stream(Objects.requireNonNull(metadata).split(","))
             .map(v -> v.split(" "))
@@ -86,4 +517,14 @@ public class UploadService {
         return result;
     }
 
+    static final class ExpectedChecksum {
+        private final ChecksumAlgorithm algorithm;
+        private final byte[] value;
+
+        private ExpectedChecksum(final ChecksumAlgorithm algorithm, final byte[] value) {
+            this.algorithm = algorithm;
+            this.value = value;
+        }
+    }
+
 }
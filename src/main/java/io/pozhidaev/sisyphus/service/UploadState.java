@@ -0,0 +1,186 @@
+package io.pozhidaev.sisyphus.service;
+
+import io.pozhidaev.sisyphus.domain.ConcatType;
+import io.pozhidaev.sisyphus.domain.File;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.ToString;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Mutable in-memory view of upload progress.
+ * Offsets are bumped here on every chunk and persisted to the file table later by {@link UploadStateCache}.
+ */
+@Getter
+@ToString
+public class UploadState {
+
+    private static final int FREE = 0;
+    private static final int WRITING = 1;
+    private static final int EVICTED = 2;
+
+    private final Long id;
+    private final Long contentLength;
+    private final ConcatType concatType;
+    private final String concatParts;
+    private long contentOffset;
+    private long lastUploadedChunkNumber;
+    private boolean dirty;
+    private boolean flushing;
+    private long lastAccessTime;
+    private LocalDateTime updatedAt;
+    private boolean terminated;
+    @Getter(AccessLevel.NONE)
+    @ToString.Exclude
+    private final AtomicInteger slot = new AtomicInteger(FREE);
+    private StreamingDigest fileDigest;
+    private String checksum;
+
+    public UploadState(@NonNull final File file) {
+        this.id = file.getId();
+        this.contentLength = file.getContentLength();
+        this.concatType = file.getConcatType();
+        this.concatParts = file.getConcatParts();
+        this.contentOffset = file.getContentOffset();
+        this.lastUploadedChunkNumber = file.getLastUploadedChunkNumber();
+        this.checksum = file.getChecksum();
+        this.lastAccessTime = System.nanoTime();
+        this.updatedAt = file.getUpdatedAt();
+        this.terminated = file.getTerminatedAt() != null;
+    }
+
+    public synchronized long getContentOffset() {
+        return contentOffset;
+    }
+
+    public synchronized long getLastUploadedChunkNumber() {
+        return lastUploadedChunkNumber;
+    }
+
+    public synchronized boolean isDirty() {
+        return dirty;
+    }
+
+    /**
+     * Drained offsets are being written, the state has to stay until they commit or are marked dirty again.
+     */
+    public synchronized boolean isFlushing() {
+        return flushing;
+    }
+
+    public synchronized long getLastAccessTime() {
+        return lastAccessTime;
+    }
+
+    /**
+     * Wall clock time of the last chunk, ahead of the file table until the next flush.
+     */
+    public synchronized LocalDateTime getUpdatedAt() {
+        return updatedAt;
+    }
+
+    public synchronized boolean isTerminated() {
+        return terminated;
+    }
+
+    /**
+     * Takes the write slot of the upload, false when another chunk holds it or the state was evicted.
+     */
+    public boolean tryAcquireWrite() {
+        return slot.compareAndSet(FREE, WRITING);
+    }
+
+    public void releaseWrite() {
+        slot.compareAndSet(WRITING, FREE);
+    }
+
+    public boolean isWriting() {
+        return slot.get() == WRITING;
+    }
+
+    /**
+     * Left the cache, writes have to look the upload up again.
+     */
+    public boolean isEvicted() {
+        return slot.get() == EVICTED;
+    }
+
+    public synchronized boolean isComplete() {
+        return contentOffset >= contentLength;
+    }
+
+    public synchronized String getChecksum() {
+        return checksum;
+    }
+
+    synchronized UploadState advance(final long bytes) {
+        contentOffset += bytes;
+        lastUploadedChunkNumber++;
+        dirty = true;
+        lastAccessTime = System.nanoTime();
+        updatedAt = LocalDateTime.now(ZoneId.systemDefault());
+        if (isComplete() && fileDigest != null) {
+            checksum = fileDigest.encode();
+            fileDigest = null;
+        }
+        return this;
+    }
+
+    /**
+     * Running digest of everything written so far, null when it isn't tracked for this upload.
+     */
+    synchronized StreamingDigest getFileDigest() {
+        return fileDigest;
+    }
+
+    synchronized void setFileDigest(final StreamingDigest fileDigest) {
+        this.fileDigest = fileDigest;
+    }
+
+    synchronized void terminate() {
+        terminated = true;
+    }
+
+    /**
+     * Closes the write slot for good when nothing is pending, false when a chunk holds the slot or offsets
+     * aren't persisted yet. Chunks advance under the same lock, so none slips in between the check and the close.
+     */
+    synchronized boolean tryEvict() {
+        return !dirty && !flushing && slot.compareAndSet(FREE, EVICTED);
+    }
+
+    synchronized void touch() {
+        lastAccessTime = System.nanoTime();
+    }
+
+    /**
+     * Ends the flush of drained offsets, ones that weren't written are dirty again.
+     */
+    synchronized void flushed(final boolean written) {
+        flushing = false;
+        dirty |= !written;
+    }
+
+    /**
+     * Clears the dirty flag and returns the offsets to persist, if there are any.
+     * The state is flushing until {@link #flushed(boolean)}.
+     */
+    synchronized Optional<File> drain() {
+        if (!dirty) {
+            return Optional.empty();
+        }
+        dirty = false;
+        flushing = true;
+        return Optional.of(File.builder()
+            .id(id)
+            .contentOffset(contentOffset)
+            .lastUploadedChunkNumber(lastUploadedChunkNumber)
+            .checksum(checksum)
+            .build());
+    }
+}
@@ -0,0 +1,192 @@
+package io.pozhidaev.sisyphus.service;
+
+import io.pozhidaev.sisyphus.configurations.SisyphusServerConfiguration;
+import io.pozhidaev.sisyphus.domain.File;
+import io.pozhidaev.sisyphus.repository.ReactiveFileRepository;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.SignalType;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Bounded table of active uploads keyed by upload id.
+ * PATCH and HEAD read offsets from here, changed offsets are written behind in batches.
+ * There is one state per upload while it is in the table, uploads being written are never evicted.
+ */
+@Slf4j
+@Service
+public class UploadStateCache {
+
+    private final ReactiveFileRepository fileRepository;
+    private final MetadataWriter metadataWriter;
+    private final int maxSize;
+    private final Duration flushInterval;
+    private final Duration idleTimeout;
+    private final ChecksumAlgorithm fileDigestAlgorithm;
+    private final Map<Long, UploadState> states = new ConcurrentHashMap<>();
+
+    private Disposable flusher;
+
+    @Autowired
+    public UploadStateCache(
+        final ReactiveFileRepository fileRepository,
+        final MetadataWriter metadataWriter,
+        final SisyphusServerConfiguration configuration
+    ) {
+        this.fileRepository = fileRepository;
+        this.metadataWriter = metadataWriter;
+        this.maxSize = configuration.getStateCacheSize();
+        this.flushInterval = configuration.getStateFlushInterval();
+        this.idleTimeout = configuration.getStateIdleTimeout();
+        this.fileDigestAlgorithm = Optional
+            .ofNullable(configuration.getFileDigestAlgorithm())
+            .filter(name -> !name.isEmpty())
+            .map(name -> ChecksumAlgorithm.of(name)
+                .orElseThrow(() -> new IllegalArgumentException("Unsupported file digest algorithm: " + name))
+            )
+            .orElse(null);
+    }
+
+    @PostConstruct
+    public void start() {
+        flusher = Flux
+            .interval(flushInterval)
+            .onBackpressureDrop()
+            .concatMap(tick -> flush().then(Mono.fromRunnable(this::evictIdle)))
+            .subscribe();
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (flusher != null) {
+            flusher.dispose();
+        }
+        flush().block();
+    }
+
+    public Mono<UploadState> get(@NonNull final Long id) {
+        final UploadState cached = states.get(id);
+        if (cached != null) {
+            cached.touch();
+            return Mono.just(cached);
+        }
+        return fileRepository
+            .findById(id)
+            .map(this::register);
+    }
+
+    public Optional<UploadState> peek(@NonNull final Long id) {
+        return Optional.ofNullable(states.get(id));
+    }
+
+    public UploadState register(@NonNull final File file) {
+        final UploadState state = states.computeIfAbsent(file.getId(), k -> newState(file));
+        if (states.size() > maxSize) {
+            evictEldest(states.size() - maxSize);
+        }
+        return state;
+    }
+
+    /**
+     * Forgets the upload, its pending offsets included, for uploads that are gone.
+     */
+    public void remove(@NonNull final Long id) {
+        states.remove(id);
+    }
+
+    /**
+     * Records a written chunk. Completed uploads are flushed right away and leave the table.
+     */
+    public Mono<UploadState> advance(@NonNull final UploadState state, final long bytes) {
+        state.advance(bytes);
+        if (!state.isComplete()) {
+            return Mono.just(state);
+        }
+        final Optional<File> drained = state.drain();
+        return flush(drained.map(Collections::singletonList).orElseGet(Collections::emptyList))
+            .doOnSuccess(v -> states.remove(state.getId(), state))
+            .doFinally(signal -> drained.ifPresent(f -> state.flushed(signal == SignalType.ON_COMPLETE)))
+            .thenReturn(state);
+    }
+
+    /**
+     * Drained states stay flushing, and so in the table, until their offsets commit. Failed or cancelled
+     * writes leave them dirty for the next flush.
+     */
+    public Mono<Void> flush() {
+        final List<UploadState> flushing = new ArrayList<>();
+        final List<File> files = new ArrayList<>();
+        states.values().forEach(state -> state.drain().ifPresent(file -> {
+            flushing.add(state);
+            files.add(file);
+        }));
+        return flush(files)
+            .doOnError(throwable -> log.error("Offsets flush failed, {} uploads will be retried", flushing.size(), throwable))
+            .doFinally(signal -> flushing.forEach(state -> state.flushed(signal == SignalType.ON_COMPLETE)))
+            .onErrorResume(throwable -> Mono.empty());
+    }
+
+    /**
+     * A whole file digest can only start from the first byte, uploads resumed from the database go without it.
+     */
+    private UploadState newState(final File file) {
+        final UploadState state = new UploadState(file);
+        if (fileDigestAlgorithm != null && file.getContentOffset() == 0 && file.getChecksum() == null) {
+            state.setFileDigest(fileDigestAlgorithm.newDigest());
+        }
+        return state;
+    }
+
+    int size() {
+        return states.size();
+    }
+
+    void evictIdle() {
+        final long deadline = System.nanoTime() - idleTimeout.toNanos();
+        states.values().stream()
+            .filter(s -> !s.isDirty() && !s.isFlushing() && !s.isWriting())
+            .filter(s -> s.isComplete() || s.getLastAccessTime() < deadline)
+            .forEach(s -> evict(s.getId()));
+    }
+
+    private void evictEldest(final int count) {
+        states.values().stream()
+            .filter(s -> !s.isDirty() && !s.isFlushing() && !s.isWriting())
+            .sorted(Comparator.comparingLong(UploadState::getLastAccessTime))
+            .limit(count)
+            .forEach(s -> evict(s.getId()));
+    }
+
+    /**
+     * The filters above only pick candidates, a chunk may take the write slot right after. The state is only
+     * removed if it can be closed to writers at the same time.
+     */
+    private void evict(final Long id) {
+        states.computeIfPresent(id, (k, s) -> s.tryEvict() ? null : s);
+    }
+
+    private Mono<Void> flush(final List<File> files) {
+        if (files.isEmpty()) {
+            return Mono.empty();
+        }
+        return metadataWriter
+            .updateOffsets(files)
+            .doOnNext(updated -> log.debug("Offsets flushed: {} of {}", updated, files.size()))
+            .then();
+    }
+}
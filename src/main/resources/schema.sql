@@ -7,7 +7,21 @@ CREATE TABLE if not exists file
   last_uploaded_chunk_number BIGINT NOT NULL DEFAULT 0,
   original_name VARCHAR(500),
   fingerprint VARCHAR(500) NOT NULL,
+  concat_type VARCHAR(16),
+  concat_parts VARCHAR(4000),
+  checksum VARCHAR(255),
   created_at TIMESTAMP WITH TIME ZONE NOT NULL,
-  updated_at TIMESTAMP WITH TIME ZONE NOT NULL
+  updated_at TIMESTAMP WITH TIME ZONE NOT NULL,
+  terminated_at TIMESTAMP WITH TIME ZONE,
+  version BIGINT DEFAULT 0 NOT NULL
 );
-CREATE UNIQUE INDEX if not exists file_id_uindex ON file (id);
\ No newline at end of file
+CREATE UNIQUE INDEX if not exists file_id_uindex ON file (id);
+ALTER TABLE file ADD COLUMN IF NOT EXISTS concat_type VARCHAR(16);
+ALTER TABLE file ADD COLUMN IF NOT EXISTS concat_parts VARCHAR(4000);
+ALTER TABLE file ADD COLUMN IF NOT EXISTS checksum VARCHAR(255);
+ALTER TABLE file ADD COLUMN IF NOT EXISTS terminated_at TIMESTAMP WITH TIME ZONE;
+ALTER TABLE file ADD COLUMN IF NOT EXISTS version BIGINT DEFAULT 0 NOT NULL;
+CREATE INDEX if not exists file_updated_at_index ON file (updated_at, id);
+CREATE INDEX if not exists file_terminated_at_index ON file (terminated_at, id);
+CREATE INDEX if not exists file_created_at_index ON file (created_at, id);
+CREATE INDEX if not exists file_fingerprint_index ON file (fingerprint, content_length);
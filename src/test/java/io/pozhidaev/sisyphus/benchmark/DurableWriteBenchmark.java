@@ -0,0 +1,108 @@
+package io.pozhidaev.sisyphus.benchmark;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.pozhidaev.sisyphus.configurations.SisyphusServerConfiguration;
+import io.pozhidaev.sisyphus.service.DurabilityPolicy;
+import io.pozhidaev.sisyphus.service.FileChannelPool;
+import io.pozhidaev.sisyphus.service.GroupCommitter;
+import io.pozhidaev.sisyphus.service.LocalStorage;
+import io.pozhidaev.sisyphus.service.StoragePathResolver;
+import io.pozhidaev.sisyphus.service.UploadMetrics;
+import io.pozhidaev.sisyphus.service.UploadStateCache;
+import org.apache.commons.io.FileUtils;
+import org.mockito.Mockito;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Chunks of concurrent uploads, one per benchmark thread, under each durability policy.
+ * Group commit trades up to a window of latency for one force per channel and batch instead of one per chunk.
+ * Offsets wrap around at the file size, so files don't grow without bound.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(16)
+@Fork(1)
+public class DurableWriteBenchmark {
+
+    @Param({"NONE", "PER_CHUNK", "GROUP_COMMIT"})
+    DurabilityPolicy durabilityPolicy;
+
+    @Param({"65536"})
+    int chunkSize;
+
+    @Param({"67108864"})
+    long fileSize;
+
+    private final DefaultDataBufferFactory factory = new DefaultDataBufferFactory(true);
+    private final AtomicLong ids = new AtomicLong();
+    private ByteBuffer source;
+    private Path directory;
+    private Scheduler storageScheduler;
+    private FileChannelPool channelPool;
+    private LocalStorage localStorage;
+
+    @State(Scope.Thread)
+    public static class Upload {
+        long id;
+        long offset;
+
+        @Setup(Level.Trial)
+        public void setUp(final DurableWriteBenchmark benchmark) throws IOException {
+            id = benchmark.ids.incrementAndGet();
+            Files.createFile(benchmark.directory.resolve(Long.toString(id)));
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        source = ByteBuffer.allocateDirect(chunkSize);
+        while (source.hasRemaining()) {
+            source.put((byte) 'x');
+        }
+        source.flip();
+        directory = Files.createTempDirectory("durableWriteBenchmark");
+        storageScheduler = Schedulers.newParallel("durableWriteBenchmark", 4);
+        final SisyphusServerConfiguration configuration = new SisyphusServerConfiguration();
+        configuration.setDurabilityPolicy(durabilityPolicy);
+        channelPool = new FileChannelPool(path -> Mono.fromCallable(() -> AsynchronousFileChannel.open(path, WRITE)), configuration);
+        localStorage = new LocalStorage();
+        localStorage.setPathResolver(StoragePathResolver.flat(directory));
+        localStorage.setChannelPool(channelPool);
+        localStorage.setGroupCommitter(new GroupCommitter(storageScheduler, configuration));
+        localStorage.setMetrics(new UploadMetrics(new SimpleMeterRegistry(), Mockito.mock(UploadStateCache.class), channelPool));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        channelPool.stop();
+        storageScheduler.dispose();
+        FileUtils.deleteDirectory(directory.toFile());
+    }
+
+    @Benchmark
+    public Integer writeChunk(final Upload upload) {
+        final Integer written = localStorage
+            .writeChunk(upload.id, Flux.just(factory.wrap(source.duplicate())), upload.offset)
+            .block();
+        upload.offset = (upload.offset + chunkSize) % fileSize;
+        return written;
+    }
+}
@@ -0,0 +1,112 @@
+package io.pozhidaev.sisyphus.benchmark;
+
+import io.pozhidaev.sisyphus.SisyphusServerApplication;
+import io.pozhidaev.sisyphus.domain.File;
+import io.pozhidaev.sisyphus.repository.ReactiveFileRepository;
+import io.pozhidaev.sisyphus.service.MetadataWriter;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import reactor.core.publisher.Flux;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Concurrent upload inserts and offset writes against an in-memory H2, each in its own transaction
+ * (a JPA save per new upload, a write per offset) or batched across uploads by the {@link MetadataWriter}.
+ * One operation is a round of writes, one per upload.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MetadataWriteBenchmark {
+
+    @Param({"single", "batched"})
+    String writes;
+
+    @Param({"1", "64"})
+    int uploads;
+
+    private ConfigurableApplicationContext context;
+    private Path directory;
+    private ReactiveFileRepository fileRepository;
+    private MetadataWriter metadataWriter;
+    private List<File> created;
+    private long offset;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("metadataWriteBenchmark");
+        context = new SpringApplicationBuilder(SisyphusServerApplication.class)
+            .web(WebApplicationType.REACTIVE)
+            .run(
+                "--server.port=0",
+                "--spring.datasource.url=jdbc:h2:mem:benchmark",
+                "--logging.level.root=warn",
+                "--logging.level.org.springframework=warn",
+                "--logging.level.io.pozhidaev=warn",
+                "--sisyphus-server.file-directory=" + directory,
+                "--sisyphus-server.token=aW4gaW90IHMgc3RhbmRzIGZvciBzZWN1cml0eQo="
+            );
+        fileRepository = context.getBean(ReactiveFileRepository.class);
+        metadataWriter = context.getBean(MetadataWriter.class);
+        created = Flux
+            .range(0, uploads)
+            .concatMap(i -> fileRepository.save(upload()))
+            .collectList()
+            .block();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        context.close();
+        FileUtils.deleteDirectory(directory.toFile());
+    }
+
+    @Benchmark
+    public Long createUploads() {
+        return Flux
+            .range(0, uploads)
+            .flatMap(i -> "batched".equals(writes) ? metadataWriter.insert(upload()) : fileRepository.save(upload()), uploads)
+            .count()
+            .block();
+    }
+
+    @Benchmark
+    public Long writeOffsets() {
+        offset++;
+        final List<File> files = created.stream()
+            .map(f -> File.builder().id(f.getId()).contentOffset(offset).lastUploadedChunkNumber(offset).build())
+            .collect(Collectors.toList());
+        return Flux
+            .fromIterable(files)
+            .flatMap(f -> "batched".equals(writes)
+                ? metadataWriter.updateOffset(f)
+                : fileRepository.write(Collections.emptyList(), Collections.singletonList(f)).map(counts -> counts[0] > 0),
+                uploads
+            )
+            .count()
+            .block();
+    }
+
+    private static File upload() {
+        return File.builder()
+            .mimeType("application/octet-stream")
+            .contentLength(Long.MAX_VALUE / 2)
+            .contentOffset(0L)
+            .lastUploadedChunkNumber(0L)
+            .fingerprint(File.NO_FINGERPRINT)
+            .build();
+    }
+}
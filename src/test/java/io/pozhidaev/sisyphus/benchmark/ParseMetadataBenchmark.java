@@ -0,0 +1,40 @@
+package io.pozhidaev.sisyphus.benchmark;
+
+import io.pozhidaev.sisyphus.service.UploadService;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Upload-Metadata decoding as tus-js-client sends it on every creation request.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParseMetadataBenchmark {
+
+    private final UploadService uploadService = new UploadService(null, null, null, null, null, null);
+    private String metadata;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        metadata = "filename " + b64("quarterly report (final).pdf")
+            + ",filetype " + b64("application/pdf")
+            + ",fingerprint " + b64("tus-br-quarterly report (final).pdf-application/pdf-1048576-1550000000000-http://localhost/upload");
+    }
+
+    @Benchmark
+    public Map<String, String> parseMetadata() {
+        return uploadService.parseMetadata(metadata);
+    }
+
+    private static String b64(final String value) {
+        return Base64.getEncoder().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,113 @@
+package io.pozhidaev.sisyphus.benchmark;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.pozhidaev.sisyphus.configurations.SisyphusServerConfiguration;
+import io.pozhidaev.sisyphus.domain.File;
+import io.pozhidaev.sisyphus.service.FileChannelPool;
+import io.pozhidaev.sisyphus.service.GroupCommitter;
+import io.pozhidaev.sisyphus.service.LocalStorage;
+import io.pozhidaev.sisyphus.service.Preallocation;
+import io.pozhidaev.sisyphus.service.StoragePathResolver;
+import io.pozhidaev.sisyphus.service.UploadMetrics;
+import io.pozhidaev.sisyphus.service.UploadStateCache;
+import org.apache.commons.io.FileUtils;
+import org.mockito.Mockito;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Sequential read of uploads written the way concurrent clients write them: chunks of several uploads interleaved,
+ * into files that grow chunk by chunk, were set to their length sparse or had their blocks allocated up front.
+ * The interleaving fragments growing and sparse files on most filesystems. Files are read through the page cache, make them larger than memory to see the disk layout.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PreallocatedReadBenchmark {
+
+    @Param({"NONE", "SPARSE", "FULL"})
+    Preallocation preallocation;
+
+    @Param({"67108864"})
+    long fileSize;
+
+    @Param({"65536"})
+    int chunkSize;
+
+    @Param({"8"})
+    int uploads;
+
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(1 << 20);
+    private Path directory;
+    private long next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("preallocatedReadBenchmark");
+        final SisyphusServerConfiguration configuration = new SisyphusServerConfiguration();
+        configuration.setPreallocation(preallocation);
+        final FileChannelPool channelPool = new FileChannelPool(
+            path -> Mono.fromCallable(() -> AsynchronousFileChannel.open(path, WRITE)), configuration
+        );
+        final LocalStorage localStorage = new LocalStorage();
+        localStorage.setPathResolver(StoragePathResolver.flat(directory));
+        localStorage.setStorageScheduler(Schedulers.immediate());
+        localStorage.setChannelPool(channelPool);
+        localStorage.setConfiguration(configuration);
+        localStorage.setGroupCommitter(new GroupCommitter(Schedulers.immediate(), configuration));
+        localStorage.setMetrics(new UploadMetrics(new SimpleMeterRegistry(), Mockito.mock(UploadStateCache.class), channelPool));
+
+        for (long id = 1; id <= uploads; id++) {
+            localStorage.createFile(File.builder().id(id).contentLength(fileSize).build()).block();
+        }
+        final byte[] chunk = new byte[chunkSize];
+        final DefaultDataBufferFactory factory = new DefaultDataBufferFactory(true);
+        for (long offset = 0; offset < fileSize; offset += chunkSize) {
+            for (long id = 1; id <= uploads; id++) {
+                localStorage.writeChunk(id, Flux.just(factory.wrap(chunk)), offset).block();
+            }
+        }
+        for (long id = 1; id <= uploads; id++) {
+            localStorage.complete(id).block();
+            try (FileChannel channel = FileChannel.open(directory.resolve(Long.toString(id)), WRITE)) {
+                channel.force(true);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(directory.toFile());
+    }
+
+    @Benchmark
+    public long read() throws IOException {
+        final Path file = directory.resolve(Long.toString(next++ % uploads + 1));
+        long read = 0;
+        try (FileChannel channel = FileChannel.open(file, READ)) {
+            int count;
+            while ((count = channel.read(readBuffer)) >= 0) {
+                read += count;
+                readBuffer.clear();
+            }
+        }
+        return read;
+    }
+}
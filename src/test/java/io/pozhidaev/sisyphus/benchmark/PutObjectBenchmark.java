@@ -0,0 +1,106 @@
+package io.pozhidaev.sisyphus.benchmark;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.pozhidaev.sisyphus.configurations.SisyphusServerConfiguration;
+import io.pozhidaev.sisyphus.service.FileChannelPool;
+import io.pozhidaev.sisyphus.service.GroupCommitter;
+import io.pozhidaev.sisyphus.service.LocalStorage;
+import io.pozhidaev.sisyphus.service.StoragePathResolver;
+import io.pozhidaev.sisyphus.service.UploadMetrics;
+import io.pozhidaev.sisyphus.service.UploadStateCache;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.mockito.Mockito;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import reactor.core.publisher.Flux;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Streaming putObject against the former InputStream to byte[] copy with a reopen per buffer.
+ * Buffers are direct and wrapped without copying, like the ones Netty hands over.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PutObjectBenchmark {
+
+    @Param({"8192", "65536"})
+    int bufferSize;
+
+    @Param({"128"})
+    int buffers;
+
+    private final DefaultDataBufferFactory factory = new DefaultDataBufferFactory(true);
+    private final AtomicLong ids = new AtomicLong();
+    private ByteBuffer source;
+    private Path directory;
+    private LocalStorage localStorage;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        source = ByteBuffer.allocateDirect(bufferSize);
+        while (source.hasRemaining()) {
+            source.put((byte) 'x');
+        }
+        source.flip();
+        directory = Files.createTempDirectory("putObjectBenchmark");
+        localStorage = new LocalStorage();
+        localStorage.setPathResolver(StoragePathResolver.flat(directory));
+        localStorage.setMetrics(new UploadMetrics(new SimpleMeterRegistry(), Mockito.mock(UploadStateCache.class), Mockito.mock(FileChannelPool.class)));
+        localStorage.setGroupCommitter(new GroupCommitter(Schedulers.immediate(), new SisyphusServerConfiguration()));
+    }
+
+    @TearDown(Level.Iteration)
+    public void cleanFiles() throws IOException {
+        FileUtils.cleanDirectory(directory.toFile());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(directory.toFile());
+    }
+
+    @Benchmark
+    public Integer streaming() {
+        return localStorage.putObject(ids.incrementAndGet(), parts()).block();
+    }
+
+    @Benchmark
+    public Integer copyPerBuffer() {
+        final Path file = Paths.get(directory.toString(), Long.toString(ids.incrementAndGet()));
+        return parts()
+            .map(dataBuffer -> {
+                try (InputStream inputStream = dataBuffer.asInputStream(true)) {
+                    final int length = inputStream.available();
+                    if (!Files.exists(file)) {
+                        Files.createFile(file);
+                    }
+                    Files.write(file, IOUtils.toByteArray(inputStream), StandardOpenOption.APPEND);
+                    return length;
+                } catch (IOException e) {
+                    throw new RuntimeException("file write error", e);
+                }
+            })
+            .reduce(0, Integer::sum)
+            .block();
+    }
+
+    private Flux<DataBuffer> parts() {
+        return Flux.range(0, buffers).map(i -> factory.wrap(source.duplicate()));
+    }
+}
@@ -0,0 +1,50 @@
+package io.pozhidaev.sisyphus.benchmark;
+
+import io.pozhidaev.sisyphus.domain.Token;
+import io.pozhidaev.sisyphus.service.TokenFilter;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.mock.http.server.reactive.MockServerHttpRequest;
+import org.springframework.mock.web.server.MockServerWebExchange;
+import org.springframework.web.server.WebFilterChain;
+import reactor.core.publisher.Mono;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token check that runs in front of every request, accepted and rejected.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TokenFilterBenchmark {
+
+    private static final String TOKEN = "aW4gaW90IHMgc3RhbmRzIGZvciBzZWN1cml0eQo=";
+
+    private final WebFilterChain chain = exchange -> Mono.empty();
+    private TokenFilter tokenFilter;
+    private MockServerWebExchange accepted;
+    private MockServerWebExchange rejected;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        final Token token = new Token();
+        token.setLiteral(TOKEN);
+        tokenFilter = new TokenFilter();
+        tokenFilter.setAuthToken(token);
+        accepted = MockServerWebExchange.from(MockServerHttpRequest.patch("/upload/1").header("X-Token", TOKEN));
+        rejected = MockServerWebExchange.from(MockServerHttpRequest.patch("/upload/1").header("X-Token", "wrong"));
+    }
+
+    @Benchmark
+    public Void accepted() {
+        return tokenFilter.filter(accepted, chain).block();
+    }
+
+    @Benchmark
+    public Void rejected() {
+        return tokenFilter.filter(rejected, chain).onErrorResume(e -> Mono.empty()).block();
+    }
+}
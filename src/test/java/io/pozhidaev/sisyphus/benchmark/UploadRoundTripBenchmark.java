@@ -0,0 +1,106 @@
+package io.pozhidaev.sisyphus.benchmark;
+
+import io.pozhidaev.sisyphus.SisyphusServerApplication;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.reactive.server.WebTestClient;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PATCH through the whole application on an in-process WebTestClient: token filter, controller, state cache and storage.
+ * Each iteration appends to one fresh upload that never completes, against an in-memory H2.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UploadRoundTripBenchmark {
+
+    private static final String TOKEN = "aW4gaW90IHMgc3RhbmRzIGZvciBzZWN1cml0eQo=";
+
+    @Param({"8192", "262144"})
+    int chunkSize;
+
+    private ConfigurableApplicationContext context;
+    private WebTestClient webClient;
+    private Path directory;
+    private byte[] chunk;
+    private URI upload;
+    private long offset;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("uploadRoundTripBenchmark");
+        context = new SpringApplicationBuilder(SisyphusServerApplication.class)
+            .web(WebApplicationType.REACTIVE)
+            .run(
+                "--server.port=0",
+                "--spring.datasource.url=jdbc:h2:mem:benchmark",
+                "--logging.level.root=warn",
+                "--logging.level.org.springframework=warn",
+                "--logging.level.io.pozhidaev=warn",
+                "--sisyphus-server.file-directory=" + directory,
+                "--sisyphus-server.token=" + TOKEN
+            );
+        webClient = WebTestClient
+            .bindToApplicationContext(context)
+            .configureClient()
+            .responseTimeout(Duration.ofMinutes(1))
+            .build();
+        chunk = new byte[chunkSize];
+        Arrays.fill(chunk, (byte) 'x');
+    }
+
+    @Setup(Level.Iteration)
+    public void createUpload() {
+        upload = webClient
+            .post()
+            .uri("/upload")
+            .header("X-Token", TOKEN)
+            .header("Upload-Length", Long.toString(Long.MAX_VALUE / 2))
+            .exchange()
+            .expectStatus().isCreated()
+            .returnResult(Void.class)
+            .getResponseHeaders()
+            .getLocation();
+        offset = 0;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        context.close();
+        FileUtils.deleteDirectory(directory.toFile());
+    }
+
+    @Benchmark
+    public String uploadProcess() {
+        final String uploadOffset = webClient
+            .patch()
+            .uri(Objects.requireNonNull(upload).getPath())
+            .header("X-Token", TOKEN)
+            .header("Upload-Offset", Long.toString(offset))
+            .contentType(MediaType.valueOf("application/offset+octet-stream"))
+            .syncBody(chunk)
+            .exchange()
+            .expectStatus().isNoContent()
+            .returnResult(Void.class)
+            .getResponseHeaders()
+            .getFirst("Upload-Offset");
+        offset += chunkSize;
+        return uploadOffset;
+    }
+}
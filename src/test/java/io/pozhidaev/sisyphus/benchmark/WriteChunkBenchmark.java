@@ -0,0 +1,126 @@
+package io.pozhidaev.sisyphus.benchmark;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.pozhidaev.sisyphus.configurations.SisyphusServerConfiguration;
+import io.pozhidaev.sisyphus.domain.File;
+import io.pozhidaev.sisyphus.service.FileChannelPool;
+import io.pozhidaev.sisyphus.service.FileStorage;
+import io.pozhidaev.sisyphus.service.GroupCommitter;
+import io.pozhidaev.sisyphus.service.InMemoryObjectStore;
+import io.pozhidaev.sisyphus.service.LocalStorage;
+import io.pozhidaev.sisyphus.service.MappedFileStorage;
+import io.pozhidaev.sisyphus.service.S3Storage;
+import io.pozhidaev.sisyphus.service.StoragePathResolver;
+import io.pozhidaev.sisyphus.service.UploadMetrics;
+import io.pozhidaev.sisyphus.service.UploadStateCache;
+import org.apache.commons.io.FileUtils;
+import org.mockito.Mockito;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.util.unit.DataSize;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * One PATCH worth of buffers through writeChunk, appended at the running offset, into a pooled channel,
+ * a cached mapping of the file or multipart parts of an in-memory object store. The offset wraps around at the file size and the file is recreated every iteration.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WriteChunkBenchmark {
+
+    private static final long ID = 1L;
+
+    @Param({"8192", "65536"})
+    int bufferSize;
+
+    @Param({"1", "16", "128"})
+    int buffers;
+
+    @Param({"channel", "mapped", "s3"})
+    String engine;
+
+    @Param({"67108864"})
+    long fileSize;
+
+    private final DefaultDataBufferFactory factory = new DefaultDataBufferFactory(true);
+    private ByteBuffer source;
+    private Path directory;
+    private FileChannelPool channelPool;
+    private FileStorage storage;
+    private long offset;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        source = ByteBuffer.allocateDirect(bufferSize);
+        while (source.hasRemaining()) {
+            source.put((byte) 'x');
+        }
+        source.flip();
+        directory = Files.createTempDirectory("writeChunkBenchmark");
+        final SisyphusServerConfiguration configuration = new SisyphusServerConfiguration();
+        configuration.setMappedThreshold(DataSize.ofBytes(fileSize));
+        channelPool = new FileChannelPool(path -> Mono.fromCallable(() -> AsynchronousFileChannel.open(path, WRITE)), configuration);
+        final StoragePathResolver pathResolver = StoragePathResolver.flat(directory);
+        final GroupCommitter groupCommitter = new GroupCommitter(Schedulers.immediate(), configuration);
+        final UploadMetrics metrics = new UploadMetrics(new SimpleMeterRegistry(), Mockito.mock(UploadStateCache.class), Mockito.mock(FileChannelPool.class));
+        final LocalStorage localStorage = new LocalStorage();
+        localStorage.setPathResolver(pathResolver);
+        localStorage.setStorageScheduler(Schedulers.immediate());
+        localStorage.setMetrics(metrics);
+        localStorage.setGroupCommitter(groupCommitter);
+        localStorage.setChannelPool(channelPool);
+        configuration.setS3PartBuffers(4);
+        if ("s3".equals(engine)) {
+            storage = new S3Storage(new InMemoryObjectStore(), metrics, configuration);
+        } else {
+            storage = "mapped".equals(engine)
+                ? new MappedFileStorage(localStorage, pathResolver, Schedulers.immediate(), groupCommitter, metrics, configuration)
+                : localStorage;
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void createFile() {
+        storage.createFile(File.builder().id(ID).contentLength(fileSize).build()).block();
+        offset = 0;
+    }
+
+    @TearDown(Level.Iteration)
+    public void cleanFiles() throws IOException {
+        storage.complete(ID).block();
+        channelPool.invalidate(ID);
+        FileUtils.cleanDirectory(directory.toFile());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(directory.toFile());
+    }
+
+    @Benchmark
+    public Integer writeChunk() {
+        final Integer written = storage.writeChunk(ID, parts(), offset).block();
+        offset = (offset + (long) bufferSize * buffers) % fileSize;
+        return written;
+    }
+
+    private Flux<DataBuffer> parts() {
+        return Flux.range(0, buffers).map(i -> factory.wrap(source.duplicate()));
+    }
+}
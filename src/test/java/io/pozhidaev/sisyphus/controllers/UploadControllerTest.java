@@ -1,29 +1,48 @@
 package io.pozhidaev.sisyphus.controllers;
 
+import io.pozhidaev.sisyphus.configurations.WebConfiguration;
+import io.pozhidaev.sisyphus.domain.ConcatType;
 import io.pozhidaev.sisyphus.domain.File;
-import io.pozhidaev.sisyphus.repository.FileRepository;
+import io.pozhidaev.sisyphus.domain.UploadStatus;
+import io.pozhidaev.sisyphus.repository.FileCursor;
+import io.pozhidaev.sisyphus.repository.FileFilter;
+import io.pozhidaev.sisyphus.repository.ReactiveFileRepository;
+import io.pozhidaev.sisyphus.service.ChecksumMismatchException;
+import io.pozhidaev.sisyphus.service.InMemoryObjectStore;
 import io.pozhidaev.sisyphus.service.UploadService;
+import io.pozhidaev.sisyphus.service.UploadState;
+import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mockito;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.reactive.WebFluxTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
 import org.springframework.core.io.buffer.DataBuffer;
 import org.springframework.core.io.buffer.DefaultDataBuffer;
 import org.springframework.core.io.buffer.DefaultDataBufferFactory;
-import org.springframework.data.domain.PageImpl;
-import org.springframework.data.domain.PageRequest;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.http.server.reactive.ServerHttpRequest;
 import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.test.web.reactive.server.WebTestClient;
+import org.springframework.web.server.ResponseStatusException;
 import org.springframework.web.util.UriComponentsBuilder;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
 import java.util.*;
 
 import static org.junit.Assert.*;
@@ -38,27 +57,90 @@ public class UploadControllerTest {
     @MockBean
     UploadService uploadService;
     @MockBean
-    FileRepository filesRepository;
+    ReactiveFileRepository filesRepository;
     @MockBean
     ServerHttpRequest request;
 
+    @Before
+    public void setUp() {
+        Mockito.when(uploadService.findReusable(Mockito.any())).thenReturn(Mono.empty());
+    }
+
     @Test
     public void getFilesList() {
         final List<File> files = Collections.singletonList(File.builder().id(1L).build());
         Mockito
-            .when(filesRepository.findAll(PageRequest.of(0, 50)))
-            .thenReturn(new PageImpl<>(files));
+            .when(filesRepository.findPage(FileFilter.ALL, FileCursor.START, 50))
+            .thenReturn(Mono.just(files));
         webClient.get().uri("/upload").exchange()
             .expectStatus()
             .isOk()
-            .expectBodyList(File.class);
+            .expectHeader().doesNotExist("Link")
+            .expectBodyList(File.class).hasSize(1);
+    }
+
+    @Test
+    public void getFilesList_next() {
+        final File last = File.builder().id(2L).createdAt(LocalDateTime.of(2019, 3, 1, 12, 0)).build();
+        final FileFilter filter = FileFilter.builder().status(UploadStatus.ACTIVE).fingerprint("f").build();
+        Mockito
+            .when(filesRepository.findPage(filter, FileCursor.START, 2))
+            .thenReturn(Mono.just(Arrays.asList(File.builder().id(1L).build(), last)));
+        Mockito
+            .when(filesRepository.findPage(filter, FileCursor.after(last), 2))
+            .thenReturn(Mono.just(Collections.emptyList()));
+
+        final String link = webClient.get().uri("/upload?limit=2&status=active&fingerprint=f").exchange()
+            .expectStatus().isOk()
+            .expectBodyList(File.class).hasSize(2)
+            .returnResult()
+            .getResponseHeaders()
+            .getFirst("Link");
+
+        assertNotNull(link);
+        assertTrue(link.endsWith(">; rel=\"next\""));
+        final String next = link.substring(link.indexOf("/upload"), link.indexOf('>'));
+        assertTrue(next.contains("after=" + FileCursor.after(last).encode()));
+        webClient.get().uri(next).exchange()
+            .expectStatus().isOk()
+            .expectBodyList(File.class).hasSize(0);
+    }
+
+    @Test
+    public void getFilesList_badRequest() {
+        webClient.get().uri("/upload?limit=0").exchange().expectStatus().isBadRequest();
+        webClient.get().uri("/upload?status=paused").exchange().expectStatus().isBadRequest();
+        webClient.get().uri("/upload?after=bm90IGEgY3Vyc29y").exchange().expectStatus().isBadRequest();
+        Mockito.verifyZeroInteractions(filesRepository);
+    }
+
+    @Test
+    public void streamFilesList() {
+        final FileFilter filter = FileFilter.builder().createdFrom(LocalDateTime.of(2019, 3, 1, 0, 0)).build();
+        Mockito
+            .when(filesRepository.stream(Mockito.eq(filter), Mockito.anyInt()))
+            .thenReturn(Flux.just(File.builder().id(1L).build(), File.builder().id(2L).build()));
+
+        final String body = webClient.get().uri("/upload?createdFrom=2019-03-01T00:00:00")
+            .accept(WebConfiguration.APPLICATION_NDJSON)
+            .exchange()
+            .expectStatus().isOk()
+            .expectHeader().contentType(WebConfiguration.APPLICATION_NDJSON)
+            .expectBody(String.class)
+            .returnResult()
+            .getResponseBody();
+
+        final String[] lines = body.split("\n");
+        assertEquals(2, lines.length);
+        assertTrue(lines[0].startsWith("{\"id\":1,"));
+        assertTrue(lines[1].startsWith("{\"id\":2,"));
     }
 
     @Test
     public void getFileInfo() {
         Mockito
-            .when(filesRepository.findById(1L))
-            .thenReturn(Optional.of(File.builder().id(1L).build()));
+            .when(uploadService.getFile(1L))
+            .thenReturn(Mono.just(File.builder().id(1L).build()));
         webClient.get().uri("/upload/1").exchange()
             .expectStatus()
             .isOk()
@@ -75,13 +157,121 @@ public class UploadControllerTest {
     @Test
     public void getFileInfo_notFound(){
         Mockito
-            .when(filesRepository.findById(1L))
-            .thenReturn(Optional.empty());
+            .when(uploadService.getFile(1L))
+            .thenReturn(Mono.empty());
         webClient.get().uri("/upload/1").exchange()
             .expectStatus()
             .isNotFound();
     }
 
+    @Test
+    public void getContent() throws IOException {
+        mockContent();
+        webClient.get().uri("/upload/1/content").exchange()
+            .expectStatus().isOk()
+            .expectHeader().valueEquals("ETag", "\"1-6\"")
+            .expectHeader().valueEquals("Accept-Ranges", "bytes")
+            .expectHeader().contentType(MediaType.TEXT_PLAIN)
+            .expectHeader().contentLength(6)
+            .expectBody(String.class).isEqualTo("foobar");
+    }
+
+    @Test
+    public void getContent_range() throws IOException {
+        mockContent();
+        webClient.get().uri("/upload/1/content").header("Range", "bytes=1-2").exchange()
+            .expectStatus().isEqualTo(HttpStatus.PARTIAL_CONTENT)
+            .expectHeader().valueEquals("Content-Range", "bytes 1-2/6")
+            .expectBody(String.class).isEqualTo("oo");
+        webClient.get().uri("/upload/1/content").header("Range", "bytes=-10").exchange()
+            .expectStatus().isEqualTo(HttpStatus.PARTIAL_CONTENT)
+            .expectHeader().valueEquals("Content-Range", "bytes 0-5/6")
+            .expectBody(String.class).isEqualTo("foobar");
+    }
+
+    @Test
+    public void getContent_multipleRanges() throws IOException {
+        mockContent();
+        final String body = webClient.get().uri("/upload/1/content").header("Range", "bytes=0-0,3-3").exchange()
+            .expectStatus().isEqualTo(HttpStatus.PARTIAL_CONTENT)
+            .expectHeader().value("Content-Type", v -> assertTrue(v.startsWith("multipart/byteranges;boundary=")))
+            .expectBody(String.class).returnResult().getResponseBody();
+        assertTrue(Objects.requireNonNull(body).contains("Content-Range: bytes 0-0/6"));
+        assertTrue(body.contains("Content-Range: bytes 3-3/6"));
+    }
+
+    @Test
+    public void getContent_notSatisfiable() throws IOException {
+        mockContent();
+        webClient.get().uri("/upload/1/content").header("Range", "bytes=6-").exchange()
+            .expectStatus().isEqualTo(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE)
+            .expectHeader().valueEquals("Content-Range", "bytes */6");
+    }
+
+    @Test
+    public void getContent_conditional() throws IOException {
+        mockContent();
+        webClient.get().uri("/upload/1/content").header("If-None-Match", "\"1-6\"").exchange()
+            .expectStatus().isNotModified();
+        webClient.get().uri("/upload/1/content").header("If-Match", "\"1-3\"").exchange()
+            .expectStatus().isEqualTo(HttpStatus.PRECONDITION_FAILED);
+        webClient.get().uri("/upload/1/content").header("Range", "bytes=1-2").header("If-Range", "\"1-3\"").exchange()
+            .expectStatus().isOk()
+            .expectBody(String.class).isEqualTo("foobar");
+        webClient.get().uri("/upload/1/content").header("Range", "bytes=1-2").header("If-Range", "\"1-6\"").exchange()
+            .expectStatus().isEqualTo(HttpStatus.PARTIAL_CONTENT)
+            .expectBody(String.class).isEqualTo("oo");
+    }
+
+    @Test
+    public void getContent_notFound() {
+        Mockito.when(uploadService.getFile(1L)).thenReturn(Mono.empty());
+        webClient.get().uri("/upload/1/content").exchange()
+            .expectStatus().isNotFound();
+
+        Mockito.when(uploadService.getFile(2L)).thenReturn(Mono.just(File.builder().id(2L).contentOffset(0L).build()));
+        Mockito.when(uploadService.getContent(2L)).thenReturn(Mono.empty());
+        webClient.get().uri("/upload/2/content").exchange()
+            .expectStatus().isNotFound();
+    }
+
+    @Test
+    public void getContent_objectStore() {
+        final InMemoryObjectStore objectStore = new InMemoryObjectStore();
+        objectStore.putObject("1", ByteBuffer.wrap("foobar".getBytes(StandardCharsets.UTF_8))).block();
+        Mockito
+            .when(uploadService.getFile(1L))
+            .thenReturn(Mono.just(File.builder().id(1L).mimeType("text/plain").contentLength(6L).contentOffset(6L).build()));
+        Mockito
+            .when(uploadService.getContent(1L))
+            .thenReturn(objectStore.getObject("1").cast(Resource.class));
+
+        webClient.get().uri("/upload/1/content").exchange()
+            .expectStatus().isOk()
+            .expectHeader().contentLength(6)
+            .expectBody(String.class).isEqualTo("foobar");
+        webClient.get().uri("/upload/1/content").header("Range", "bytes=1-2").exchange()
+            .expectStatus().isEqualTo(HttpStatus.PARTIAL_CONTENT)
+            .expectHeader().valueEquals("Content-Range", "bytes 1-2/6")
+            .expectBody(String.class).isEqualTo("oo");
+        final String body = webClient.get().uri("/upload/1/content").header("Range", "bytes=0-0,3-4").exchange()
+            .expectStatus().isEqualTo(HttpStatus.PARTIAL_CONTENT)
+            .expectBody(String.class).returnResult().getResponseBody();
+        assertTrue(Objects.requireNonNull(body).contains("Content-Range: bytes 0-0/6\r\n\r\nf\r\n--"));
+        assertTrue(body.contains("Content-Range: bytes 3-4/6\r\n\r\nba\r\n--"));
+    }
+
+    private void mockContent() throws IOException {
+        final Path path = Files.createTempFile("content", "");
+        Files.write(path, "foobarbaz".getBytes(StandardCharsets.UTF_8));
+        Mockito
+            .when(uploadService.getFile(1L))
+            .thenReturn(Mono.just(File.builder().id(1L).mimeType("text/plain").contentLength(9L).contentOffset(6L).build()));
+        Mockito
+            .when(uploadService.getContent(1L))
+            .thenReturn(Mono.just(new FileSystemResource(path)));
+    }
+
     @Test
     public void uploadStart() {
         Mockito
@@ -123,6 +313,54 @@ public class UploadControllerTest {
             .expectHeader().exists("Location");
     }
 
+    @Test
+    public void uploadStart_reused() {
+        Mockito
+            .when(uploadService.parseMetadata("testMetadata"))
+            .thenReturn(Collections.singletonMap("fingerprint", "test-fing"));
+        Mockito
+            .when(uploadService.findReusable(Mockito.argThat(f -> "test-fing".equals(f.getFingerprint()))))
+            .thenReturn(Mono.just(File.builder().id(7L).contentLength(100L).contentOffset(40L).build()));
+
+        webClient
+            .post()
+            .uri("/upload")
+            .header("Upload-Length", "100")
+            .header("Upload-Metadata", "testMetadata")
+            .exchange()
+            .expectStatus().isOk()
+            .expectHeader().valueEquals("Location", "/upload/7")
+            .expectHeader().valueEquals("Upload-Offset", "40");
+        Mockito.verify(uploadService, Mockito.never()).createUpload(Mockito.any());
+    }
+
+    @Test
+    public void lookup() {
+        Mockito
+            .when(uploadService.findResumable("test-fing", 100L))
+            .thenReturn(Mono.just(File.builder().id(7L).contentLength(100L).contentOffset(40L).build()));
+
+        webClient.get().uri("/upload/lookup?fingerprint=test-fing&length=100").exchange()
+            .expectStatus().isOk()
+            .expectHeader().valueEquals("Location", "/upload/7")
+            .expectHeader().valueEquals("Upload-Offset", "40")
+            .expectHeader().valueEquals("Upload-Length", "100")
+            .expectHeader().valueEquals("Tus-Resumable", "1.0.0")
+            .expectBody(File.class);
+    }
+
+    @Test
+    public void lookup_notFound() {
+        Mockito
+            .when(uploadService.findResumable("test-fing", 100L))
+            .thenReturn(Mono.empty());
+
+        webClient.get().uri("/upload/lookup?fingerprint=test-fing&length=100").exchange()
+            .expectStatus().isNotFound();
+        webClient.get().uri("/upload/lookup?length=100").exchange()
+            .expectStatus().isBadRequest();
+    }
+
     @Test
     public void uploadStart_doOnError() {
         Mockito
@@ -153,10 +391,84 @@ public class UploadControllerTest {
             .expectStatus().is5xxServerError();
     }
 
+    @Test
+    public void uploadStart_partial() {
+        final File partial = File.builder()
+            .mimeType("")
+            .contentLength(100L)
+            .originalName("FILE NAME NOT EXISTS")
+            .contentOffset(0L)
+            .lastUploadedChunkNumber(0L)
+            .fingerprint(File.NO_FINGERPRINT)
+            .concatType(ConcatType.PARTIAL)
+            .build();
+        Mockito
+            .when(uploadService.createUpload(partial))
+            .thenReturn(Mono.just(File.builder().id(1L).build()));
+
+        webClient
+            .post()
+            .uri("/upload")
+            .header("Upload-Length", "100")
+            .header("Upload-Concat", "partial")
+            .exchange()
+            .expectStatus().isCreated()
+            .expectHeader().valueEquals("Location", "/upload/1");
+    }
+
+    @Test
+    public void uploadStart_final() {
+        Mockito
+            .when(uploadService.concatenateUploads(Mockito.any(), Mockito.eq(Arrays.asList(1L, 2L))))
+            .thenReturn(Mono.just(File.builder().id(3L).build()));
+
+        webClient
+            .post()
+            .uri("/upload")
+            .header("Upload-Concat", "final;/upload/1 http://localhost/upload/2")
+            .exchange()
+            .expectStatus().isCreated()
+            .expectHeader().valueEquals("Location", "/upload/3");
+    }
+
+    @Test
+    public void uploadStart_finalInvalid() {
+        webClient
+            .post()
+            .uri("/upload")
+            .header("Upload-Concat", "final;/upload/a")
+            .exchange()
+            .expectStatus().isBadRequest();
+    }
+
+    @Test
+    public void uploadStart_finalPartsRejected() {
+        Mockito
+            .when(uploadService.concatenateUploads(Mockito.any(), Mockito.eq(Collections.singletonList(1L))))
+            .thenReturn(Mono.error(new ResponseStatusException(HttpStatus.BAD_REQUEST, "Partial upload is not complete: 1")));
+
+        webClient
+            .post()
+            .uri("/upload")
+            .header("Upload-Concat", "final;/upload/1")
+            .exchange()
+            .expectStatus().isBadRequest();
+    }
+
+    @Test
+    public void uploadStart_lengthRequired() {
+        webClient
+            .post()
+            .uri("/upload")
+            .header("Upload-Metadata", "testMetadata")
+            .exchange()
+            .expectStatus().isBadRequest();
+    }
+
     @Test(expected = NullPointerException.class)
     public void uploadStart_nullPointer_1() {
         final UploadController uploadController = new UploadController(uploadService, filesRepository);
-        uploadController.uploadStart(15L, "", "", null, null);
+        uploadController.uploadStart(15L, "", "", null, null, null);
     }
 
     @Test(expected = NullPointerException.class)
@@ -164,7 +476,7 @@ public class UploadControllerTest {
 
         final UriComponentsBuilder mock = Mockito.mock(UriComponentsBuilder.class);
         final UploadController uploadController = new UploadController(uploadService, filesRepository);
-        uploadController.uploadStart(15L, "", "", mock, null);
+        uploadController.uploadStart(15L, "", "", null, mock, null);
 
     }
 
@@ -184,38 +496,75 @@ public class UploadControllerTest {
                 put("test", Collections.singletonList("test"));
             }});
         Mockito
-            .when(uploadService.uploadChunkAndGetUpdatedOffset(1L, body, 0, 3))
-            .thenReturn(Mono.just(File.builder().contentOffset(3L).build()));
+            .when(uploadService.uploadChunkAndGetUpdatedOffset(1L, body, 0, 3, null))
+            .thenReturn(Mono.just(new UploadState(File.builder()
+                .contentLength(3L)
+                .contentOffset(3L)
+                .lastUploadedChunkNumber(1L).build())));
 
 
         final UploadController uploadController = new UploadController(uploadService, filesRepository);
-        uploadController.uploadProcess(1L, request, 0, 3)
+        uploadController.uploadProcess(1L, request, 0, 3, null)
             .subscribe(v -> {
                 assertEquals(v.getStatusCode(), NO_CONTENT);
                 assertEquals(Objects.requireNonNull(v.getHeaders().get("Upload-Offset")).get(0), "3");
             });
     }
 
+    @Test
+    public void uploadProcess_checksumMismatch() {
+        final Flux<DataBuffer> body = Flux.just(new DefaultDataBufferFactory()
+            .wrap(ByteBuffer.wrap("foo".getBytes(StandardCharsets.UTF_8))));
+        Mockito.when(request.getBody()).thenReturn(body);
+        Mockito.when(request.getHeaders()).thenReturn(new HttpHeaders());
+        Mockito
+            .when(uploadService.uploadChunkAndGetUpdatedOffset(1L, body, 0, 3, "sha1 AAAA"))
+            .thenReturn(Mono.error(new ChecksumMismatchException(1L, "sha1")));
+
+        final UploadController uploadController = new UploadController(uploadService, filesRepository);
+        final ResponseEntity<Object> response = uploadController.uploadProcess(1L, request, 0, 3, "sha1 AAAA").block();
+
+        assertEquals(460, Objects.requireNonNull(response).getStatusCodeValue());
+        assertEquals("1.0.0", response.getHeaders().getFirst("Tus-Resumable"));
+    }
+
+    @Test
+    public void uploadProcess_conflict() {
+        final Flux<DataBuffer> body = Flux.empty();
+        Mockito.when(request.getBody()).thenReturn(body);
+        Mockito.when(request.getHeaders()).thenReturn(new HttpHeaders());
+        Mockito
+            .when(uploadService.uploadChunkAndGetUpdatedOffset(1L, body, 5, 3, null))
+            .thenReturn(Mono.error(new ResponseStatusException(HttpStatus.CONFLICT, "Upload-Offset 5 of 1 is not at its offset 3")));
+
+        final UploadController uploadController = new UploadController(uploadService, filesRepository);
+        final ResponseEntity<Object> response = uploadController.uploadProcess(1L, request, 5, 3, null).block();
+
+        assertEquals(HttpStatus.CONFLICT, Objects.requireNonNull(response).getStatusCode());
+        assertEquals("1.0.0", response.getHeaders().getFirst("Tus-Resumable"));
+    }
+
     @Test(expected = NullPointerException.class)
     public void uploadProcess_nullPointer_1() {
         final ServerHttpRequest mock = Mockito.mock(ServerHttpRequest.class);
         final UploadController uploadController = new UploadController(uploadService, filesRepository);
-        uploadController.uploadProcess(null, mock, 0, 0);
+        uploadController.uploadProcess(null, mock, 0, 0, null);
     }
 
     @Test(expected = NullPointerException.class)
     public void uploadProcess_nullPointer_2() {
         final UploadController uploadController = new UploadController(uploadService, filesRepository);
-        uploadController.uploadProcess(1L, null, 0, 0);
+        uploadController.uploadProcess(1L, null, 0, 0, null);
     }
 
     @Test
     public void header() {
         Mockito
-            .when(filesRepository.findById(1L))
-            .thenReturn(Optional.of(File.builder().id(1L)
+            .when(uploadService.getUploadState(1L))
+            .thenReturn(Mono.just(new UploadState(File.builder().id(1L)
                 .contentLength(100L)
-                .contentOffset(0L).build()));
+                .contentOffset(0L)
+                .lastUploadedChunkNumber(0L).build())));
         webClient
             .head()
             .uri("/upload/1")
@@ -228,11 +577,92 @@ public class UploadControllerTest {
         ;
     }
 
+    @Test
+    public void header_expires() {
+        final UploadState state = new UploadState(File.builder().id(1L)
+            .contentLength(100L)
+            .contentOffset(0L)
+            .lastUploadedChunkNumber(0L).build());
+        Mockito.when(uploadService.getUploadState(1L)).thenReturn(Mono.just(state));
+        Mockito.when(uploadService.expiresAt(state))
+            .thenReturn(Optional.of(ZonedDateTime.of(2019, 3, 1, 12, 0, 0, 0, ZoneOffset.ofHours(3))));
+        webClient
+            .head()
+            .uri("/upload/1")
+            .exchange()
+            .expectStatus().isNoContent()
+            .expectHeader().valueEquals("Upload-Expires", "Fri, 1 Mar 2019 09:00:00 GMT");
+    }
+
+    @Test
+    public void header_terminated() {
+        Mockito
+            .when(uploadService.getUploadState(1L))
+            .thenReturn(Mono.just(new UploadState(File.builder().id(1L)
+                .contentLength(100L)
+                .contentOffset(0L)
+                .lastUploadedChunkNumber(0L)
+                .terminatedAt(LocalDateTime.now()).build())));
+        webClient
+            .head()
+            .uri("/upload/1")
+            .exchange()
+            .expectStatus().isEqualTo(HttpStatus.GONE)
+            .expectHeader().doesNotExist("Upload-Offset");
+    }
+
+    @Test
+    public void terminate() {
+        Mockito.when(uploadService.terminate(1L)).thenReturn(Mono.just(true));
+        Mockito.when(uploadService.terminate(2L)).thenReturn(Mono.just(false));
+
+        webClient.delete().uri("/upload/1").exchange()
+            .expectStatus().isNoContent()
+            .expectHeader().valueEquals("Tus-Resumable", "1.0.0");
+        webClient.delete().uri("/upload/2").exchange()
+            .expectStatus().isNotFound();
+    }
+
+    @Test
+    public void header_final() {
+        Mockito
+            .when(uploadService.getUploadState(3L))
+            .thenReturn(Mono.just(new UploadState(File.builder().id(3L)
+                .contentLength(100L)
+                .contentOffset(100L)
+                .lastUploadedChunkNumber(0L)
+                .concatType(ConcatType.FINAL)
+                .concatParts("1 2").build())));
+        webClient
+            .head()
+            .uri("/upload/3")
+            .exchange()
+            .expectStatus().isNoContent()
+            .expectHeader().valueEquals("Upload-Concat", "final;/upload/1 /upload/2");
+    }
+
+    @Test
+    public void header_partial() {
+        Mockito
+            .when(uploadService.getUploadState(1L))
+            .thenReturn(Mono.just(new UploadState(File.builder().id(1L)
+                .contentLength(100L)
+                .contentOffset(10L)
+                .lastUploadedChunkNumber(1L)
+                .concatType(ConcatType.PARTIAL).build())));
+        webClient
+            .head()
+            .uri("/upload/1")
+            .exchange()
+            .expectStatus().isNoContent()
+            .expectHeader().valueEquals("Upload-Concat", "partial");
+    }
+
     @Test
     public void header_notFound() {
         Mockito
-            .when(filesRepository.findById(1L))
-            .thenReturn(Optional.empty());
+            .when(uploadService.getUploadState(1L))
+            .thenReturn(Mono.empty());
         webClient
             .head()
             .uri("/upload/1")
@@ -257,7 +687,8 @@ public class UploadControllerTest {
             .expectHeader().exists("Tus-Version")
             .expectHeader().exists("Tus-Resumable")
             .expectHeader().exists("Access-Control-Expose-Headers")
-            .expectHeader().exists("Tus-Extension")
+            .expectHeader().valueEquals("Tus-Extension", "creation,expiration,concatenation,checksum,termination")
+            .expectHeader().valueEquals("Tus-Checksum-Algorithm", "sha1,md5,sha256,sha512,crc32")
             .expectHeader().exists("Access-Control-Allow-Methods")
         ;
 
@@ -0,0 +1,253 @@
+package io.pozhidaev.sisyphus.load;
+
+import io.pozhidaev.sisyphus.SisyphusServerApplication;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.apache.commons.io.FileUtils;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.logging.LogLevel;
+import org.springframework.boot.logging.LoggingSystem;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.web.reactive.function.BodyInserters;
+import org.springframework.web.reactive.function.client.ClientResponse;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs the tus flow - OPTIONS, POST, PATCH chunks - from many concurrent clients and prints throughput,
+ * chunk latency percentiles and errors.
+ * Without --url a server is started in-process on a random port, with a temporary file directory and in-memory H2.
+ * Some uploads can be cut mid chunk and resumed from the offset HEAD reports, like a client that was killed.
+ * <pre>
+ * mvn -Pload test-compile exec:exec -Dload.args="--concurrency=64 --uploads=512 --file-size=8388608 --chunk-size=262144 --kill-ratio=0.1"
+ * </pre>
+ */
+public class TusLoadGenerator {
+
+    private static final String TUS_RESUMABLE = "1.0.0";
+    private static final MediaType OFFSET_OCTET_STREAM = MediaType.valueOf("application/offset+octet-stream");
+
+    private final WebClient webClient;
+    private final String token;
+    private final int concurrency;
+    private final int uploads;
+    private final long fileSize;
+    private final int chunkSize;
+    private final double killRatio;
+    private final Random random;
+
+    private final DefaultDataBufferFactory bufferFactory = new DefaultDataBufferFactory();
+    private final byte[] chunk;
+    private final Recorder chunkLatency = new Recorder(TimeUnit.MINUTES.toMicros(1), 3);
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder chunks = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder resumes = new LongAdder();
+    private final Map<String, AtomicLong> errors = new ConcurrentHashMap<>();
+
+    TusLoadGenerator(final String url, final Map<String, String> options) {
+        this.webClient = WebClient.create(url);
+        this.token = options.getOrDefault("token", "aW4gaW90IHMgc3RhbmRzIGZvciBzZWN1cml0eQo=");
+        this.concurrency = Integer.parseInt(options.getOrDefault("concurrency", "16"));
+        this.uploads = Integer.parseInt(options.getOrDefault("uploads", "128"));
+        this.fileSize = Long.parseLong(options.getOrDefault("file-size", Integer.toString(4 << 20)));
+        this.chunkSize = Integer.parseInt(options.getOrDefault("chunk-size", Integer.toString(256 << 10)));
+        this.killRatio = Double.parseDouble(options.getOrDefault("kill-ratio", "0"));
+        this.random = new Random(Long.parseLong(options.getOrDefault("seed", "42")));
+        this.chunk = new byte[chunkSize];
+        random.nextBytes(chunk);
+    }
+
+    public static void main(final String[] args) throws IOException {
+        final Map<String, String> options = parse(args);
+        final LoggingSystem loggingSystem = LoggingSystem.get(TusLoadGenerator.class.getClassLoader());
+        loggingSystem.setLogLevel(LoggingSystem.ROOT_LOGGER_NAME, LogLevel.WARN);
+        loggingSystem.setLogLevel("reactor.netty.http.client", LogLevel.ERROR);
+        final String url = options.get("url");
+        if (url != null) {
+            new TusLoadGenerator(url, options).run();
+            return;
+        }
+
+        final Path directory = Files.createTempDirectory("tusLoadGenerator");
+        try (ConfigurableApplicationContext context = new SpringApplicationBuilder(SisyphusServerApplication.class)
+            .web(WebApplicationType.REACTIVE)
+            .run(
+                "--server.port=0",
+                "--spring.datasource.url=jdbc:h2:mem:load",
+                "--logging.level.root=warn",
+                "--logging.level.org.springframework=warn",
+                "--logging.level.io.pozhidaev=warn",
+                "--logging.level.reactor.netty.http.client=error",
+                "--sisyphus-server.file-directory=" + directory
+            )) {
+            final String port = context.getEnvironment().getProperty("local.server.port");
+            options.putIfAbsent("token", context.getEnvironment().getProperty("sisyphus-server.token"));
+            new TusLoadGenerator("http://localhost:" + port, options).run();
+        } finally {
+            FileUtils.deleteDirectory(directory.toFile());
+        }
+    }
+
+    void run() {
+        System.out.printf("uploads=%d concurrency=%d file-size=%d chunk-size=%d kill-ratio=%.2f%n",
+            uploads, concurrency, fileSize, chunkSize, killRatio);
+        final boolean[] kills = new boolean[uploads];
+        for (int i = 0; i < uploads; i++) {
+            kills[i] = random.nextDouble() < killRatio;
+        }
+
+        final long start = System.nanoTime();
+        Flux
+            .range(0, uploads)
+            .flatMap(i -> upload(kills[i]).onErrorResume(e -> {
+                error(e.getClass().getSimpleName());
+                return Mono.empty();
+            }), concurrency)
+            .blockLast();
+        report(System.nanoTime() - start);
+    }
+
+    private Mono<Void> upload(final boolean kill) {
+        return webClient
+            .options()
+            .uri("/upload")
+            .header("X-Token", token)
+            .exchange()
+            .flatMap(response -> expect(response, HttpStatus.NO_CONTENT, "options"))
+            .then(webClient
+                .post()
+                .uri("/upload")
+                .header("X-Token", token)
+                .header("Tus-Resumable", TUS_RESUMABLE)
+                .header("Upload-Length", Long.toString(fileSize))
+                .exchange()
+                .flatMap(response -> expect(response, HttpStatus.CREATED, "create")
+                    .then(Mono.justOrEmpty(response.headers().asHttpHeaders().getLocation())))
+            )
+            .flatMap(location -> patch(location.getPath(), 0, kill))
+            .doOnSuccess(v -> completed.increment());
+    }
+
+    /**
+     * Sends chunks from the offset on, a killed client drops its connection in the middle of the chunk
+     * that crosses half of the file and comes back with HEAD.
+     */
+    private Mono<Void> patch(final String path, final long offset, final boolean kill) {
+        if (offset >= fileSize) {
+            return Mono.empty();
+        }
+        final int length = (int) Math.min(chunkSize, fileSize - offset);
+        if (kill && offset + length > fileSize / 2) {
+            return webClient
+                .method(HttpMethod.PATCH)
+                .uri(path)
+                .header("X-Token", token)
+                .header("Tus-Resumable", TUS_RESUMABLE)
+                .header("Upload-Offset", Long.toString(offset))
+                .contentType(OFFSET_OCTET_STREAM)
+                .contentLength(length)
+                .body(BodyInserters.fromDataBuffers(Flux.concat(Mono.just(buffer(length / 2)), Mono.never())))
+                .exchange()
+                .timeout(Duration.ofMillis(200))
+                .onErrorResume(e -> Mono.empty())
+                .then(head(path))
+                .doOnNext(resumed -> resumes.increment())
+                .flatMap(resumed -> patch(path, resumed, false));
+        }
+        final long started = System.nanoTime();
+        return webClient
+            .method(HttpMethod.PATCH)
+            .uri(path)
+            .header("X-Token", token)
+            .header("Tus-Resumable", TUS_RESUMABLE)
+            .header("Upload-Offset", Long.toString(offset))
+            .contentType(OFFSET_OCTET_STREAM)
+            .contentLength(length)
+            .body(BodyInserters.fromDataBuffers(Mono.just(buffer(length))))
+            .exchange()
+            .flatMap(response -> expect(response, HttpStatus.NO_CONTENT, "patch")
+                .then(Mono.fromSupplier(() -> Long.parseLong(Objects.requireNonNull(
+                    response.headers().asHttpHeaders().getFirst("Upload-Offset"))))))
+            .doOnNext(next -> {
+                chunkLatency.recordValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - started));
+                chunks.increment();
+                bytes.add(next - offset);
+            })
+            .flatMap(next -> patch(path, next, kill));
+    }
+
+    private Mono<Long> head(final String path) {
+        return webClient
+            .head()
+            .uri(path)
+            .header("X-Token", token)
+            .header("Tus-Resumable", TUS_RESUMABLE)
+            .exchange()
+            .flatMap(response -> expect(response, HttpStatus.NO_CONTENT, "head")
+                .then(Mono.fromSupplier(() -> Long.parseLong(Objects.requireNonNull(
+                    response.headers().asHttpHeaders().getFirst("Upload-Offset"))))));
+    }
+
+    private Mono<Void> expect(final ClientResponse response, final HttpStatus status, final String step) {
+        if (response.statusCode() == status) {
+            return response.bodyToMono(Void.class);
+        }
+        final String error = step + " " + response.rawStatusCode();
+        return response.bodyToMono(Void.class).then(Mono.error(() -> new IllegalStateException(error)));
+    }
+
+    private DataBuffer buffer(final int length) {
+        return bufferFactory.wrap(Arrays.copyOf(chunk, length));
+    }
+
+    private void error(final String error) {
+        errors.computeIfAbsent(error, k -> new AtomicLong()).incrementAndGet();
+    }
+
+    private void report(final long elapsedNanos) {
+        final double seconds = elapsedNanos / 1e9;
+        final Histogram histogram = chunkLatency.getIntervalHistogram();
+        System.out.printf("elapsed           %.2f s%n", seconds);
+        System.out.printf("uploads           %d completed, %d resumed%n", completed.sum(), resumes.sum());
+        System.out.printf("throughput        %.1f MiB/s, %.1f chunks/s%n", bytes.sum() / seconds / (1 << 20), chunks.sum() / seconds);
+        System.out.printf("chunk latency ms  p50=%.2f p99=%.2f p999=%.2f max=%.2f%n",
+            histogram.getValueAtPercentile(50) / 1e3,
+            histogram.getValueAtPercentile(99) / 1e3,
+            histogram.getValueAtPercentile(99.9) / 1e3,
+            histogram.getMaxValue() / 1e3);
+        System.out.printf("errors            %s%n", errors.isEmpty() ? "none" : errors);
+    }
+
+    private static Map<String, String> parse(final String[] args) {
+        final Map<String, String> options = new HashMap<>();
+        for (final String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Expected --name=value, got " + arg);
+            }
+            options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+        return options;
+    }
+}
@@ -0,0 +1,34 @@
+package io.pozhidaev.sisyphus.repository;
+
+import io.pozhidaev.sisyphus.domain.File;
+import org.junit.Test;
+
+import java.time.LocalDateTime;
+
+import static org.junit.Assert.*;
+
+public class FileCursorTest {
+
+    @Test
+    public void encode_decode() {
+        final FileCursor cursor = FileCursor.after(File.builder()
+            .id(42L)
+            .createdAt(LocalDateTime.of(2019, 3, 1, 12, 30, 15, 123_456_000))
+            .build());
+
+        final String token = cursor.encode();
+
+        assertTrue(token.matches("[A-Za-z0-9_-]+"));
+        assertEquals(cursor, FileCursor.decode(token));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void decode_invalid() {
+        FileCursor.decode("bm90IGEgY3Vyc29y");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void decode_notBase64() {
+        FileCursor.decode("not a cursor!");
+    }
+}
@@ -0,0 +1,150 @@
+package io.pozhidaev.sisyphus.repository;
+
+import io.pozhidaev.sisyphus.domain.File;
+import io.pozhidaev.sisyphus.domain.UploadStatus;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.boot.test.autoconfigure.orm.jpa.TestEntityManager;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.*;
+
+@RunWith(SpringRunner.class)
+@DataJpaTest
+public class FileRepositoryTest {
+
+    @Autowired
+    FileRepository fileRepository;
+
+    @Autowired
+    TestEntityManager entityManager;
+
+    private final List<File> files = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        for (long i = 0; i < 5; i++) {
+            files.add(fileRepository.save(File.builder()
+                .mimeType("text/plain")
+                .contentLength(10L)
+                .contentOffset(i % 2 == 0 ? 10L : 3L)
+                .lastUploadedChunkNumber(1L)
+                .fingerprint(i < 3 ? "a" : "b")
+                .build()));
+        }
+        fileRepository.terminate(files.get(4).getId(), LocalDateTime.now());
+    }
+
+    @Test
+    public void findPage() {
+        final List<File> first = fileRepository.findPage(FileFilter.ALL, FileCursor.START, 3);
+        final List<File> second = fileRepository.findPage(FileFilter.ALL, FileCursor.after(first.get(2)), 3);
+
+        assertEquals(ids(0, 1, 2), ids(first));
+        assertEquals(ids(3), ids(second));
+    }
+
+    @Test
+    public void findPage_filtered() {
+        assertEquals(ids(0, 2), ids(fileRepository.findPage(
+            FileFilter.builder().status(UploadStatus.COMPLETE).build(), FileCursor.START, 10
+        )));
+        assertEquals(ids(1, 3), ids(fileRepository.findPage(
+            FileFilter.builder().status(UploadStatus.ACTIVE).build(), FileCursor.START, 10
+        )));
+        assertEquals(ids(3), ids(fileRepository.findPage(
+            FileFilter.builder().fingerprint("b").build(), FileCursor.START, 10
+        )));
+        final LocalDateTime later = LocalDateTime.now().plusHours(1);
+        assertEquals(ids(0, 1, 2, 3), ids(fileRepository.findPage(
+            FileFilter.builder().createdFrom(files.get(0).getCreatedAt()).createdTo(later).build(), FileCursor.START, 10
+        )));
+        assertTrue(fileRepository.findPage(
+            FileFilter.builder().createdFrom(later).build(), FileCursor.START, 10
+        ).isEmpty());
+    }
+
+    @Test
+    public void findResumable() {
+        final List<File> resumable = fileRepository.findResumable("a", 10L, PageRequest.of(0, 1));
+        assertEquals(ids(1), ids(resumable));
+        assertTrue(fileRepository.findResumable("a", 11L, PageRequest.of(0, 1)).isEmpty());
+        assertEquals(ids(3), ids(fileRepository.findResumable("b", 10L, PageRequest.of(0, 10))));
+    }
+
+    @Test
+    public void findTerminated() {
+        assertEquals(ids(4), ids(fileRepository.findTerminated(-1, PageRequest.of(0, 10))));
+        assertEquals(ids(4), ids(fileRepository.findTerminated(0, PageRequest.of(0, 10))));
+        assertTrue(fileRepository.findTerminated(1, PageRequest.of(0, 10)).isEmpty());
+    }
+
+    @Test
+    public void findTerminated_databaseIdAboveNodeUnit() {
+        entityManager.getEntityManager().createNativeQuery(
+            "insert into file (id, mime_type, content_length, content_offset, fingerprint, created_at, updated_at, terminated_at) " +
+                "values (5000, 'text/plain', 10, 0, 'c', current_timestamp, current_timestamp, current_timestamp)"
+        ).executeUpdate();
+
+        assertEquals(Arrays.asList(files.get(4).getId(), 5000L),
+            ids(fileRepository.findTerminated(0, PageRequest.of(0, 10))));
+        assertTrue(fileRepository.findTerminated(1, PageRequest.of(0, 10)).isEmpty());
+    }
+
+    @Test
+    public void insertAll() {
+        final List<File> inserted = Arrays.asList(
+            File.builder().mimeType("text/plain").contentLength(4L).contentOffset(0L).lastUploadedChunkNumber(0L)
+                .fingerprint("c").originalName("first").build(),
+            File.builder().mimeType("text/plain").contentLength(8L).contentOffset(0L).lastUploadedChunkNumber(0L)
+                .fingerprint("c").originalName("second").build()
+        );
+        fileRepository.insertAll(inserted);
+        entityManager.clear();
+
+        assertTrue(inserted.get(0).getId() > files.get(4).getId());
+        assertTrue(inserted.get(1).getId() > inserted.get(0).getId());
+        final File second = fileRepository.findById(inserted.get(1).getId()).get();
+        assertEquals("second", second.getOriginalName());
+        assertEquals(Long.valueOf(8), second.getContentLength());
+        assertEquals(Long.valueOf(0), second.getVersion());
+        assertNotNull(second.getCreatedAt());
+    }
+
+    @Test
+    public void updateOffsets() {
+        final File behind = File.builder().id(files.get(1).getId()).contentOffset(7L).lastUploadedChunkNumber(2L)
+            .checksum("sha1 test").build();
+        final File stale = File.builder().id(files.get(0).getId()).contentOffset(5L).lastUploadedChunkNumber(2L).build();
+
+        assertArrayEquals(new int[]{1, 0}, fileRepository.updateOffsets(Arrays.asList(behind, stale), LocalDateTime.now()));
+        entityManager.clear();
+
+        final File updated = fileRepository.findById(behind.getId()).get();
+        assertEquals(Long.valueOf(7), updated.getContentOffset());
+        assertEquals("sha1 test", updated.getChecksum());
+        assertEquals(Long.valueOf(files.get(1).getVersion() + 1), updated.getVersion());
+        assertEquals(Long.valueOf(10), fileRepository.findById(stale.getId()).get().getContentOffset());
+    }
+
+    private List<Long> ids(final int... indexes) {
+        return IntStream.of(indexes)
+            .mapToObj(i -> files.get(i).getId())
+            .collect(Collectors.toList());
+    }
+
+    private static List<Long> ids(final List<File> files) {
+        return files.stream().map(File::getId).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,206 @@
+package io.pozhidaev.sisyphus.repository;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.pozhidaev.sisyphus.domain.File;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mockito;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.transaction.PlatformTransactionManager;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+import reactor.test.StepVerifier;
+
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+@RunWith(SpringRunner.class)
+public class ReactiveFileRepositoryTest {
+
+    @MockBean
+    FileRepository fileRepository;
+
+    @MockBean
+    PlatformTransactionManager transactionManager;
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private Scheduler jdbcScheduler;
+    private ReactiveFileRepository reactiveFileRepository;
+
+    @Before
+    public void setUp() {
+        jdbcScheduler = Schedulers.fromExecutorService(
+            Executors.newFixedThreadPool(2, new CustomizableThreadFactory("test-jdbc-"))
+        );
+        reactiveFileRepository = new ReactiveFileRepository(fileRepository, jdbcScheduler, transactionManager, meterRegistry);
+    }
+
+    @After
+    public void tearDown() {
+        jdbcScheduler.dispose();
+    }
+
+    @Test
+    public void findById_notOnNonBlockingThread() {
+        final AtomicReference<Thread> caller = new AtomicReference<>();
+        Mockito.when(fileRepository.findById(1L)).thenAnswer(invocation -> {
+            caller.set(Thread.currentThread());
+            return Optional.of(File.builder().id(1L).build());
+        });
+
+        final File file = Mono
+            .defer(() -> reactiveFileRepository.findById(1L))
+            .subscribeOn(Schedulers.parallel())
+            .block();
+
+        assertNotNull(file);
+        assertFalse(Schedulers.isNonBlockingThread(caller.get()));
+        assertTrue(caller.get().getName().startsWith("test-jdbc-"));
+    }
+
+    @Test
+    public void findById_empty() {
+        Mockito.when(fileRepository.findById(1L)).thenReturn(Optional.empty());
+        assertNull(reactiveFileRepository.findById(1L).block());
+    }
+
+    @Test
+    public void save_notOnNonBlockingThread() {
+        final AtomicReference<Thread> caller = new AtomicReference<>();
+        final File file = File.builder().id(1L).build();
+        Mockito.when(fileRepository.save(file)).thenAnswer(invocation -> {
+            caller.set(Thread.currentThread());
+            return file;
+        });
+
+        assertEquals(file, Mono
+            .defer(() -> reactiveFileRepository.save(file))
+            .subscribeOn(Schedulers.parallel())
+            .block());
+        assertFalse(Schedulers.isNonBlockingThread(caller.get()));
+    }
+
+    @Test
+    public void findPage_notOnNonBlockingThread() {
+        final AtomicReference<Thread> caller = new AtomicReference<>();
+        Mockito.when(fileRepository.findPage(FileFilter.ALL, FileCursor.START, 50)).thenAnswer(invocation -> {
+            caller.set(Thread.currentThread());
+            return Collections.singletonList(File.builder().id(1L).build());
+        });
+
+        assertEquals(1, Mono
+            .defer(() -> reactiveFileRepository.findPage(FileFilter.ALL, FileCursor.START, 50))
+            .subscribeOn(Schedulers.parallel())
+            .block()
+            .size());
+        assertFalse(Schedulers.isNonBlockingThread(caller.get()));
+    }
+
+    @Test
+    public void stream() {
+        final List<File> files = Arrays.asList(file(1L), file(2L), file(3L), file(4L), file(5L));
+        Mockito.when(fileRepository.findPage(FileFilter.ALL, FileCursor.START, 2)).thenReturn(files.subList(0, 2));
+        Mockito.when(fileRepository.findPage(FileFilter.ALL, FileCursor.after(files.get(1)), 2)).thenReturn(files.subList(2, 4));
+        Mockito.when(fileRepository.findPage(FileFilter.ALL, FileCursor.after(files.get(3)), 2)).thenReturn(files.subList(4, 5));
+
+        StepVerifier.create(reactiveFileRepository.stream(FileFilter.ALL, 2), 1)
+            .expectNext(files.get(0))
+            .then(() -> Mockito.verify(fileRepository, Mockito.atMost(2)).findPage(Mockito.any(), Mockito.any(), Mockito.anyInt()))
+            .thenRequest(Long.MAX_VALUE)
+            .expectNextSequence(files.subList(1, 5))
+            .verifyComplete();
+        Mockito.verify(fileRepository, Mockito.times(3)).findPage(Mockito.any(), Mockito.any(), Mockito.anyInt());
+    }
+
+    @Test
+    public void write() {
+        final List<File> inserts = Collections.singletonList(File.builder().mimeType("test").build());
+        final List<File> updates = Arrays.asList(
+            File.builder().id(1L).contentOffset(5L).lastUploadedChunkNumber(1L).build(),
+            File.builder().id(2L).contentOffset(7L).lastUploadedChunkNumber(2L).checksum("sha1 test").build()
+        );
+        Mockito.when(fileRepository.updateOffsets(Mockito.eq(updates), Mockito.any())).thenReturn(new int[]{1, 0});
+
+        assertArrayEquals(new int[]{1, 0}, reactiveFileRepository.write(inserts, updates).block());
+        Mockito.verify(transactionManager, Mockito.times(1)).commit(Mockito.any());
+        Mockito.verify(fileRepository).insertAll(inserts);
+    }
+
+    @Test
+    public void findExpired() {
+        final LocalDateTime before = LocalDateTime.of(2019, 3, 1, 0, 0);
+        final LocalDateTime after = LocalDateTime.of(2019, 2, 1, 0, 0);
+        Mockito.when(fileRepository.findExpired(before, after, 7L, PageRequest.of(0, 100)))
+            .thenReturn(Collections.singletonList(File.builder().id(8L).build()));
+
+        assertEquals(1, reactiveFileRepository.findExpired(before, after, 7L, 100).block().size());
+    }
+
+    @Test
+    public void deleteExpired() {
+        final LocalDateTime before = LocalDateTime.of(2019, 3, 1, 0, 0);
+        Mockito.when(fileRepository.deleteExpired(1L, before)).thenReturn(1);
+        Mockito.when(fileRepository.deleteExpired(2L, before)).thenReturn(0);
+
+        assertTrue(reactiveFileRepository.deleteExpired(1L, before).block());
+        assertFalse(reactiveFileRepository.deleteExpired(2L, before).block());
+        Mockito.verify(transactionManager, Mockito.times(2)).commit(Mockito.any());
+    }
+
+    @Test
+    public void terminate() {
+        final LocalDateTime now = LocalDateTime.of(2019, 3, 1, 0, 0);
+        Mockito.when(fileRepository.terminate(1L, now)).thenReturn(1);
+
+        assertTrue(reactiveFileRepository.terminate(1L, now).block());
+        assertFalse(reactiveFileRepository.terminate(2L, now).block());
+        Mockito.verify(transactionManager, Mockito.times(2)).commit(Mockito.any());
+    }
+
+    @Test
+    public void findTerminated() {
+        Mockito.when(fileRepository.findTerminated(3, PageRequest.of(0, 10)))
+            .thenReturn(Collections.singletonList(File.builder().id(1L).build()));
+
+        assertEquals(1, reactiveFileRepository.findTerminated(3, 10).block().size());
+    }
+
+    @Test
+    public void deleteTerminated() {
+        Mockito.when(fileRepository.deleteTerminated(Arrays.asList(1L, 2L))).thenReturn(2);
+
+        assertEquals(Integer.valueOf(2), reactiveFileRepository.deleteTerminated(Arrays.asList(1L, 2L)).block());
+        Mockito.verify(transactionManager).commit(Mockito.any());
+    }
+
+    @Test
+    public void findResumable() {
+        Mockito.when(fileRepository.findResumable("fp", 10L, PageRequest.of(0, 1)))
+            .thenReturn(Collections.singletonList(File.builder().id(1L).build()));
+
+        assertEquals(Long.valueOf(1), reactiveFileRepository.findResumable("fp", 10L).block().getId());
+        assertNull(reactiveFileRepository.findResumable("fp", 11L).block());
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void findById_nullPointer() {
+        reactiveFileRepository.findById(null);
+    }
+
+    private File file(final Long id) {
+        return File.builder().id(id).createdAt(LocalDateTime.of(2019, 3, 1, 12, 0).plusSeconds(id)).build();
+    }
+}
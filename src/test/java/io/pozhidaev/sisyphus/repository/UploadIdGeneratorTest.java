@@ -0,0 +1,71 @@
+package io.pozhidaev.sisyphus.repository;
+
+import io.pozhidaev.sisyphus.domain.File;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.time.LocalDateTime;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+@RunWith(SpringRunner.class)
+@DataJpaTest(properties = "spring.jpa.properties." + UploadIdGenerator.NODE_ID_PROPERTY + "=5")
+public class UploadIdGeneratorTest {
+
+    @Autowired
+    FileRepository fileRepository;
+
+    @Test
+    public void save() {
+        final File file = fileRepository.save(File.builder()
+            .mimeType("text/plain")
+            .contentLength(10L)
+            .contentOffset(0L)
+            .lastUploadedChunkNumber(0L)
+            .fingerprint(File.NO_FINGERPRINT)
+            .build());
+        fileRepository.terminate(file.getId(), LocalDateTime.now());
+
+        assertEquals(5, UploadIdGenerator.nodeOf(file.getId()));
+        assertTrue(file.getId() >= UploadIdGenerator.FIRST_ID);
+        assertEquals(1, fileRepository.findTerminated(5, PageRequest.of(0, 10)).size());
+        assertTrue(fileRepository.findTerminated(0, PageRequest.of(0, 10)).isEmpty());
+    }
+
+    @Test
+    public void next() {
+        final UploadIdGenerator generator = new UploadIdGenerator(1023);
+        final long now = System.currentTimeMillis();
+        final Set<Long> ids = new HashSet<>();
+        long last = 0;
+        for (int i = 0; i < 10_000; i++) {
+            final long id = generator.next(i < 5_000 ? now : now - 1);
+            assertTrue(id > last);
+            assertEquals(1023, UploadIdGenerator.nodeOf(id));
+            ids.add(id);
+            last = id;
+        }
+        assertEquals(10_000, ids.size());
+    }
+
+    @Test
+    public void nodeOf_databaseIds() {
+        assertEquals(0, UploadIdGenerator.nodeOf(1L));
+        assertEquals(0, UploadIdGenerator.nodeOf(UploadIdGenerator.NODE_UNIT - 1));
+        assertEquals(0, UploadIdGenerator.nodeOf(5000L));
+        assertEquals(0, UploadIdGenerator.nodeOf(UploadIdGenerator.FIRST_ID - 1));
+        assertEquals(1, UploadIdGenerator.nodeOf(UploadIdGenerator.FIRST_ID + UploadIdGenerator.NODE_UNIT));
+    }
+
+    @Test
+    public void next_beforeFirstId() {
+        assertEquals(UploadIdGenerator.FIRST_ID | 7L << UploadIdGenerator.SEQUENCE_BITS,
+            new UploadIdGenerator(7).next(UploadIdGenerator.EPOCH));
+    }
+}
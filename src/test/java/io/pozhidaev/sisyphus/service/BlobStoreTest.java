@@ -0,0 +1,125 @@
+package io.pozhidaev.sisyphus.service;
+
+import io.pozhidaev.sisyphus.configurations.SisyphusServerConfiguration;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+
+import static org.junit.Assert.*;
+
+public class BlobStoreTest {
+
+    private static final String FOO = "sha1 C+7Hteo/D9vJXQ3UfzxbwnXaijM=";
+
+    private Path directory;
+    private BlobStore blobStore;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("blobStore");
+        blobStore = new BlobStore(directory, true);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(directory.toFile());
+    }
+
+    @Test
+    public void link() throws IOException {
+        final Path first = write("1", "foo");
+        final Path second = write("2", "foo");
+
+        assertEquals(0, blobStore.link(first, FOO, 3));
+        assertEquals(0, blobStore.link(first, FOO, 3));
+        assertEquals(3, blobStore.link(second, FOO, 3));
+
+        assertTrue(Files.isSameFile(first, second));
+        assertTrue(Files.isSameFile(first, blobStore.blob(FOO).get()));
+        assertEquals(3, Files.getAttribute(first, "unix:nlink"));
+        assertFalse(Files.exists(directory.resolve("2.dedup")));
+    }
+
+    @Test
+    public void link_lengthDiffers() throws IOException {
+        blobStore.link(write("1", "foo"), FOO, 3);
+        final Path other = write("2", "foobar");
+
+        assertEquals(0, blobStore.link(other, FOO, 6));
+        assertEquals("foobar", new String(Files.readAllBytes(other), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void isLinked() throws IOException {
+        final Path first = write("1", "foo");
+        final Path second = write("2", "foo");
+        assertFalse(blobStore.isLinked(first, FOO));
+
+        blobStore.link(first, FOO, 3);
+        assertTrue(blobStore.isLinked(first, FOO));
+        assertFalse(blobStore.isLinked(second, FOO));
+        assertFalse(blobStore.isLinked(first, "sha1 "));
+    }
+
+    @Test
+    public void release() throws IOException {
+        final Path first = write("1", "foo");
+        final Path second = write("2", "foo");
+        blobStore.link(first, FOO, 3);
+        blobStore.link(second, FOO, 3);
+        final Path blob = blobStore.blob(FOO).get();
+
+        Files.delete(first);
+        blobStore.release(FOO);
+        assertTrue(Files.exists(blob));
+
+        Files.delete(second);
+        blobStore.release(FOO);
+        assertFalse(Files.exists(blob));
+        blobStore.release(FOO);
+    }
+
+    @Test
+    public void blob() {
+        assertEquals(
+            Optional.of(directory.resolve(".blobs/sha1/0b/0beec7b5ea3f0fdbc95d0dd47f3c5bc275da8a33")),
+            blobStore.blob(FOO)
+        );
+        assertEquals(Optional.empty(), blobStore.blob("sha1"));
+        assertEquals(Optional.empty(), blobStore.blob("sha1 not base64!"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void digestRequired() {
+        final SisyphusServerConfiguration configuration = new SisyphusServerConfiguration();
+        configuration.setDeduplication(true);
+        new BlobStore(directory, configuration);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void digestTooWeak() {
+        final SisyphusServerConfiguration configuration = new SisyphusServerConfiguration();
+        configuration.setDeduplication(true);
+        configuration.setFileDigestAlgorithm("sha1");
+        new BlobStore(directory, configuration);
+    }
+
+    @Test
+    public void digestStrong() {
+        final SisyphusServerConfiguration configuration = new SisyphusServerConfiguration();
+        configuration.setDeduplication(true);
+        configuration.setFileDigestAlgorithm("sha256");
+        assertTrue(new BlobStore(directory, configuration).isEnabled());
+    }
+
+    private Path write(final String name, final String content) throws IOException {
+        return Files.write(directory.resolve(name), content.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,63 @@
+package io.pozhidaev.sisyphus.service;
+
+import io.pozhidaev.sisyphus.configurations.SisyphusServerConfiguration;
+import io.pozhidaev.sisyphus.repository.UploadIdGenerator;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Optional;
+
+import static org.junit.Assert.*;
+
+public class ClusterNodesTest {
+
+    private static final long NODE_1_ID = UploadIdGenerator.FIRST_ID | (5L << 22) | (1L << 12) | 7;
+
+    @Test
+    public void ownerUrl() {
+        final ClusterNodes clusterNodes = new ClusterNodes(configuration(0, "http://a/", "http://b"));
+
+        assertEquals(Optional.of("http://b"), clusterNodes.ownerUrl(NODE_1_ID));
+        assertEquals(Optional.empty(), clusterNodes.ownerUrl(7L));
+        assertFalse(clusterNodes.isLocal(NODE_1_ID));
+        assertEquals(0, clusterNodes.getOwnedNode());
+    }
+
+    @Test
+    public void ownerUrl_databaseId() {
+        final ClusterNodes clusterNodes = new ClusterNodes(configuration(1, "http://a", "http://b"));
+
+        assertEquals(Optional.of("http://a"), clusterNodes.ownerUrl(5000L));
+        assertFalse(clusterNodes.isLocal(5000L));
+        assertTrue(new ClusterNodes(configuration(0, "http://a", "http://b")).isLocal(5000L));
+    }
+
+    @Test
+    public void ownerUrl_unknownNode() {
+        final ClusterNodes clusterNodes = new ClusterNodes(configuration(0, "http://a"));
+
+        assertEquals(Optional.empty(), clusterNodes.ownerUrl(NODE_1_ID));
+        assertFalse(clusterNodes.isLocal(NODE_1_ID));
+    }
+
+    @Test
+    public void standalone() {
+        final ClusterNodes clusterNodes = new ClusterNodes(new SisyphusServerConfiguration());
+
+        assertFalse(clusterNodes.isEnabled());
+        assertTrue(clusterNodes.isLocal(NODE_1_ID));
+        assertEquals(-1, clusterNodes.getOwnedNode());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nodeId_invalid() {
+        new ClusterNodes(configuration(2, "http://a", "http://b"));
+    }
+
+    private static SisyphusServerConfiguration configuration(final int nodeId, final String... urls) {
+        final SisyphusServerConfiguration configuration = new SisyphusServerConfiguration();
+        configuration.setClusterNodes(Arrays.asList(urls));
+        configuration.setClusterNodeId(nodeId);
+        return configuration;
+    }
+}
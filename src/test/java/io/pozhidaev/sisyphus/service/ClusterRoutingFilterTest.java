@@ -0,0 +1,160 @@
+package io.pozhidaev.sisyphus.service;
+
+import io.pozhidaev.sisyphus.SisyphusServerApplication;
+import io.pozhidaev.sisyphus.repository.UploadIdGenerator;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.reactive.function.client.ClientResponse;
+import org.springframework.web.reactive.function.client.WebClient;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URI;
+
+import static org.junit.Assert.*;
+
+/**
+ * Two nodes on localhost sharing an in-memory database: node 0 proxies requests for uploads of node 1,
+ * node 1 redirects requests for uploads of node 0.
+ */
+public class ClusterRoutingFilterTest {
+
+    @ClassRule
+    public static final TemporaryFolder folder = new TemporaryFolder();
+
+    private static final WebClient webClient = WebClient.create();
+    private static String[] urls;
+    private static ConfigurableApplicationContext proxying;
+    private static ConfigurableApplicationContext redirecting;
+    private static String token;
+
+    @BeforeClass
+    public static void startNodes() throws IOException {
+        urls = new String[]{"http://127.0.0.1:" + freePort(), "http://127.0.0.1:" + freePort()};
+        proxying = start(0, "proxy");
+        redirecting = start(1, "redirect");
+        token = proxying.getEnvironment().getProperty("sisyphus-server.token");
+    }
+
+    @AfterClass
+    public static void stopNodes() {
+        if (redirecting != null) {
+            redirecting.close();
+        }
+        if (proxying != null) {
+            proxying.close();
+        }
+    }
+
+    @Test
+    public void proxy() {
+        final URI location = create(urls[1], 10);
+        final long id = Long.parseLong(location.getPath().substring("/upload/".length()));
+        assertEquals(1, UploadIdGenerator.nodeOf(id));
+
+        final ClientResponse first = patch(urls[0] + "/upload/" + id, 0, "hello", null);
+        assertEquals(HttpStatus.NO_CONTENT, first.statusCode());
+        assertEquals("5", first.headers().asHttpHeaders().getFirst("Upload-Offset"));
+        final ClientResponse mismatch = patch(urls[0] + "/upload/" + id, 5, "world", "md5 AAAAAAAAAAAAAAAAAAAAAA==");
+        assertEquals(460, mismatch.rawStatusCode());
+        assertEquals(HttpStatus.NO_CONTENT, patch(urls[0] + "/upload/" + id, 5, "world", null).statusCode());
+
+        final ClientResponse head = send(HttpMethod.HEAD, urls[0] + "/upload/" + id);
+        assertEquals("10", head.headers().asHttpHeaders().getFirst("Upload-Offset"));
+        assertEquals("helloworld", send(HttpMethod.GET, urls[0] + "/upload/" + id + "/content").bodyToMono(String.class).block());
+        assertEquals(HttpStatus.NO_CONTENT, send(HttpMethod.DELETE, urls[0] + "/upload/" + id).statusCode());
+        assertEquals(HttpStatus.GONE, send(HttpMethod.HEAD, urls[1] + "/upload/" + id).statusCode());
+    }
+
+    @Test
+    public void redirect() {
+        final URI location = create(urls[0], 5);
+        final long id = Long.parseLong(location.getPath().substring("/upload/".length()));
+        assertEquals(0, UploadIdGenerator.nodeOf(id));
+
+        final ClientResponse redirected = patch(urls[1] + "/upload/" + id, 0, "hello", null);
+        assertEquals(HttpStatus.TEMPORARY_REDIRECT, redirected.statusCode());
+        final URI owner = redirected.headers().asHttpHeaders().getLocation();
+        assertEquals(URI.create(urls[0] + "/upload/" + id), owner);
+        assertEquals("5", patch(owner.toString(), 0, "hello", null).headers().asHttpHeaders().getFirst("Upload-Offset"));
+    }
+
+    @Test
+    public void concatenation_partsOnDifferentNodes() {
+        final String first = create(urls[0], 5).getPath();
+        final String second = create(urls[1], 5).getPath();
+
+        final ClientResponse response = webClient.post()
+            .uri(urls[0] + "/upload")
+            .header("X-Token", token)
+            .header("Upload-Concat", "final;" + first + " " + second)
+            .exchange()
+            .block();
+        response.bodyToMono(Void.class).block();
+        assertEquals(HttpStatus.BAD_REQUEST, response.statusCode());
+    }
+
+    private static URI create(final String url, final long length) {
+        final ClientResponse response = webClient.post()
+            .uri(url + "/upload")
+            .header("X-Token", token)
+            .header("Upload-Length", Long.toString(length))
+            .exchange()
+            .block();
+        response.bodyToMono(Void.class).block();
+        assertEquals(HttpStatus.CREATED, response.statusCode());
+        return response.headers().asHttpHeaders().getLocation();
+    }
+
+    private static ClientResponse patch(final String url, final long offset, final String chunk, final String checksum) {
+        final WebClient.RequestBodySpec request = webClient.patch()
+            .uri(url)
+            .header("X-Token", token)
+            .header("Content-Type", "application/offset+octet-stream")
+            .header("Upload-Offset", Long.toString(offset));
+        if (checksum != null) {
+            request.header("Upload-Checksum", checksum);
+        }
+        final ClientResponse response = request.syncBody(chunk.getBytes()).exchange().block();
+        response.bodyToMono(Void.class).block();
+        return response;
+    }
+
+    /**
+     * Leaves the body unread for callers reading it.
+     */
+    private static ClientResponse send(final HttpMethod method, final String url) {
+        return webClient.method(method).uri(url).header("X-Token", token).exchange().block();
+    }
+
+    private static ConfigurableApplicationContext start(final int nodeId, final String routing) throws IOException {
+        return new SpringApplicationBuilder(SisyphusServerApplication.class)
+            .web(WebApplicationType.REACTIVE)
+            .run(
+                "--server.port=" + URI.create(urls[nodeId]).getPort(),
+                "--spring.datasource.url=jdbc:h2:mem:cluster;DB_CLOSE_DELAY=-1",
+                "--spring.jmx.enabled=false",
+                "--logging.level.root=warn",
+                "--logging.level.org.springframework=warn",
+                "--logging.level.io.pozhidaev=warn",
+                "--sisyphus-server.file-directory=" + folder.newFolder(),
+                "--sisyphus-server.cluster-nodes=" + String.join(",", urls),
+                "--sisyphus-server.cluster-node-id=" + nodeId,
+                "--sisyphus-server.cluster-routing=" + routing
+            );
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package io.pozhidaev.sisyphus.service;
+
+import io.pozhidaev.sisyphus.configurations.SisyphusServerConfiguration;
+import io.pozhidaev.sisyphus.domain.File;
+import io.pozhidaev.sisyphus.repository.ReactiveFileRepository;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class ExpirationSweeperTest {
+
+    private static final LocalDateTime START = LocalDateTime.of(1970, 1, 1, 0, 0);
+
+    private final UploadService uploadService = Mockito.mock(UploadService.class);
+    private final ReactiveFileRepository fileRepository = Mockito.mock(ReactiveFileRepository.class);
+    private final InFlightLimiter inFlightLimiter = Mockito.mock(InFlightLimiter.class);
+    private ExpirationSweeper sweeper;
+
+    @Before
+    public void setUp() {
+        final SisyphusServerConfiguration configuration = new SisyphusServerConfiguration();
+        configuration.setExpirationBatchSize(2);
+        configuration.setExpirationDeleteRate(1000);
+        sweeper = new ExpirationSweeper(uploadService, fileRepository, inFlightLimiter, new ClusterNodes(configuration), configuration);
+    }
+
+    @Test
+    public void sweep() {
+        final File first = file(1L, 3);
+        final File second = file(2L, 2);
+        final File third = file(3L, 1);
+        Mockito.when(fileRepository.findExpired(Mockito.any(), Mockito.eq(START), Mockito.eq(0L), Mockito.eq(2)))
+            .thenReturn(Mono.just(Arrays.asList(first, second)));
+        Mockito.when(fileRepository.findExpired(Mockito.any(), Mockito.eq(second.getUpdatedAt()), Mockito.eq(2L), Mockito.eq(2)))
+            .thenReturn(Mono.just(Collections.singletonList(third)));
+        Mockito.when(uploadService.expire(Mockito.any(), Mockito.any())).thenReturn(Mono.just(true));
+        Mockito.when(uploadService.expire(Mockito.eq(second), Mockito.any())).thenReturn(Mono.just(false));
+
+        assertEquals(Long.valueOf(1), sweeper.sweep().block());
+        assertEquals(Long.valueOf(1), sweeper.sweep().block());
+        assertEquals(Long.valueOf(1), sweeper.sweep().block());
+
+        Mockito.verify(fileRepository, Mockito.times(2))
+            .findExpired(Mockito.any(), Mockito.eq(START), Mockito.eq(0L), Mockito.eq(2));
+    }
+
+    @Test
+    public void sweep_failureSkipsUpload() {
+        final File first = file(1L, 2);
+        final File second = file(2L, 1);
+        Mockito.when(fileRepository.findExpired(Mockito.any(), Mockito.any(), Mockito.anyLong(), Mockito.anyInt()))
+            .thenReturn(Mono.just(Arrays.asList(first, second)));
+        Mockito.when(uploadService.expire(Mockito.eq(first), Mockito.any()))
+            .thenReturn(Mono.error(new RuntimeException("File removal failed: 1")));
+        Mockito.when(uploadService.expire(Mockito.eq(second), Mockito.any())).thenReturn(Mono.just(true));
+
+        assertEquals(Long.valueOf(1), sweeper.sweep().block());
+    }
+
+    @Test
+    public void sweep_rateLimited() {
+        final SisyphusServerConfiguration configuration = new SisyphusServerConfiguration();
+        configuration.setExpirationDeleteRate(20);
+        final ExpirationSweeper limited = new ExpirationSweeper(uploadService, fileRepository, inFlightLimiter, new ClusterNodes(configuration), configuration);
+        Mockito.when(fileRepository.findExpired(Mockito.any(), Mockito.any(), Mockito.anyLong(), Mockito.anyInt()))
+            .thenReturn(Mono.just(Arrays.asList(file(1L, 3), file(2L, 2), file(3L, 1))));
+        Mockito.when(uploadService.expire(Mockito.any(), Mockito.any())).thenReturn(Mono.just(true));
+
+        final long start = System.nanoTime();
+        assertEquals(Long.valueOf(3), limited.sweep().block());
+        assertTrue(Duration.ofNanos(System.nanoTime() - start).toMillis() >= 150);
+    }
+
+    @Test
+    public void sweep_congested() {
+        Mockito.when(inFlightLimiter.isCongested()).thenReturn(true);
+
+        assertEquals(Long.valueOf(0), sweeper.sweep().block());
+        Mockito.verifyZeroInteractions(fileRepository);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void deleteRate_invalid() {
+        final SisyphusServerConfiguration configuration = new SisyphusServerConfiguration();
+        configuration.setExpirationDeleteRate(0);
+        new ExpirationSweeper(uploadService, fileRepository, inFlightLimiter, new ClusterNodes(configuration), configuration);
+    }
+
+    private File file(final Long id, final int idleHours) {
+        return File.builder()
+            .id(id)
+            .contentLength(10L)
+            .contentOffset(1L)
+            .updatedAt(LocalDateTime.now().minusHours(24 + idleHours))
+            .build();
+    }
+}
@@ -0,0 +1,170 @@
+package io.pozhidaev.sisyphus.service;
+
+import io.pozhidaev.sisyphus.configurations.SisyphusServerConfiguration;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mockito;
+import org.springframework.test.context.junit4.SpringRunner;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+@RunWith(SpringRunner.class)
+public class FileChannelPoolTest {
+
+    private final List<AsynchronousFileChannel> opened = new ArrayList<>();
+    private final Path path = Paths.get("test");
+    private SisyphusServerConfiguration configuration;
+
+    @Before
+    public void setUp() {
+        configuration = new SisyphusServerConfiguration();
+        configuration.setChannelPoolSize(2);
+    }
+
+    @Test
+    public void acquire_reusesChannel() {
+        final FileChannelPool pool = pool();
+
+        final FileChannelPool.Handle first = pool.acquire(1L, path).block();
+        pool.release(first);
+        final FileChannelPool.Handle second = pool.acquire(1L, path).block();
+        pool.release(second);
+
+        assertSame(first.getChannel(), second.getChannel());
+        assertEquals(1, pool.getOpens());
+        assertEquals(1, pool.getHits());
+        assertEquals(1, opened.size());
+    }
+
+    @Test
+    public void invalidate_closesAfterLastRelease() throws IOException {
+        final FileChannelPool pool = pool();
+
+        final FileChannelPool.Handle first = pool.acquire(1L, path).block();
+        final FileChannelPool.Handle second = pool.acquire(1L, path).block();
+        pool.invalidate(1L);
+        pool.release(first);
+        Mockito.verify(first.getChannel(), Mockito.never()).close();
+        pool.release(second);
+        Mockito.verify(first.getChannel(), Mockito.times(1)).close();
+
+        assertEquals(0, pool.getOpenChannels());
+        pool.release(pool.acquire(1L, path).block());
+        assertEquals(2, pool.getOpens());
+    }
+
+    @Test
+    public void release_evictsOverCap() throws IOException {
+        final FileChannelPool pool = pool();
+
+        final FileChannelPool.Handle first = pool.acquire(1L, path).block();
+        pool.release(first);
+        pool.release(pool.acquire(2L, path).block());
+        pool.release(pool.acquire(3L, path).block());
+
+        assertEquals(2, pool.getOpenChannels());
+        assertEquals(1, pool.getEvictions());
+        Mockito.verify(first.getChannel(), Mockito.times(1)).close();
+    }
+
+    @Test
+    public void release_keepsLeasedOverCap() throws IOException {
+        final FileChannelPool pool = pool();
+
+        final FileChannelPool.Handle first = pool.acquire(1L, path).block();
+        final FileChannelPool.Handle second = pool.acquire(2L, path).block();
+        final FileChannelPool.Handle third = pool.acquire(3L, path).block();
+
+        assertEquals(3, pool.getOpenChannels());
+        Mockito.verify(first.getChannel(), Mockito.never()).close();
+
+        pool.release(first);
+        pool.release(second);
+        pool.release(third);
+        assertEquals(2, pool.getOpenChannels());
+    }
+
+    @Test
+    public void evictIdle() throws IOException {
+        configuration.setChannelIdleTimeout(Duration.ZERO);
+        final FileChannelPool pool = pool();
+
+        final FileChannelPool.Handle idle = pool.acquire(1L, path).block();
+        pool.release(idle);
+        final FileChannelPool.Handle leased = pool.acquire(2L, path).block();
+
+        pool.evictIdle();
+
+        assertEquals(1, pool.getOpenChannels());
+        assertEquals(1, pool.getEvictions());
+        Mockito.verify(idle.getChannel(), Mockito.times(1)).close();
+        Mockito.verify(leased.getChannel(), Mockito.never()).close();
+    }
+
+    @Test
+    public void stop_closesIdle() throws IOException {
+        final FileChannelPool pool = pool();
+        final FileChannelPool.Handle handle = pool.acquire(1L, path).block();
+        pool.release(handle);
+
+        pool.stop();
+
+        assertEquals(0, pool.getOpenChannels());
+        Mockito.verify(handle.getChannel(), Mockito.times(1)).close();
+    }
+
+    @Test
+    public void acquire_openError() {
+        final FileChannelPool pool = new FileChannelPool(
+            p -> Mono.error(new RuntimeException("File open operation fault")), configuration
+        );
+        pool.acquire(1L, path)
+            .doOnError(throwable -> assertEquals("File open operation fault", throwable.getMessage()))
+            .doOnSuccess(handle -> fail())
+            .onErrorResume(throwable -> Mono.empty())
+            .block();
+        assertEquals(0, pool.getOpenChannels());
+    }
+
+    @Test
+    public void closeChannel() throws IOException {
+        final AsynchronousFileChannel channel = Mockito.mock(AsynchronousFileChannel.class);
+        Mockito.doNothing().when(channel).close();
+        pool().closeChannel(channel);
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void closeChannel_nullPointer() {
+        pool().closeChannel(null);
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void closeChannel_exception() throws IOException {
+        final AsynchronousFileChannel channel = Mockito.mock(AsynchronousFileChannel.class);
+        Mockito.doThrow(IOException.class).when(channel).close();
+        pool().closeChannel(channel);
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void acquire_nullPointer() {
+        pool().acquire(null, path);
+    }
+
+    private FileChannelPool pool() {
+        return new FileChannelPool(p -> Mono.fromSupplier(() -> {
+            final AsynchronousFileChannel channel = Mockito.mock(AsynchronousFileChannel.class);
+            opened.add(channel);
+            return channel;
+        }), configuration);
+    }
+}
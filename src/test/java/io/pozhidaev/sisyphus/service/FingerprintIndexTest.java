@@ -0,0 +1,44 @@
+package io.pozhidaev.sisyphus.service;
+
+import org.junit.Test;
+
+import java.util.Optional;
+
+import static org.junit.Assert.*;
+
+public class FingerprintIndexTest {
+
+    @Test
+    public void get() {
+        final FingerprintIndex index = new FingerprintIndex(10);
+        index.put("fp", 10L, 1L);
+
+        assertEquals(Optional.of(1L), index.get("fp", 10L));
+        assertEquals(Optional.empty(), index.get("fp", 11L));
+        assertEquals(Optional.empty(), index.get("other", 10L));
+    }
+
+    @Test
+    public void put_leastRecentlyUsedDropped() {
+        final FingerprintIndex index = new FingerprintIndex(2);
+        index.put("a", 1L, 1L);
+        index.put("b", 1L, 2L);
+        index.get("a", 1L);
+        index.put("c", 1L, 3L);
+
+        assertEquals(2, index.size());
+        assertEquals(Optional.of(1L), index.get("a", 1L));
+        assertEquals(Optional.empty(), index.get("b", 1L));
+    }
+
+    @Test
+    public void remove_onlySameUpload() {
+        final FingerprintIndex index = new FingerprintIndex(10);
+        index.put("fp", 10L, 2L);
+
+        index.remove("fp", 10L, 1L);
+        assertEquals(Optional.of(2L), index.get("fp", 10L));
+        index.remove("fp", 10L, 2L);
+        assertEquals(Optional.empty(), index.get("fp", 10L));
+    }
+}
@@ -0,0 +1,89 @@
+package io.pozhidaev.sisyphus.service;
+
+import io.pozhidaev.sisyphus.configurations.SisyphusServerConfiguration;
+import org.junit.Test;
+import org.mockito.Mockito;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import reactor.test.StepVerifier;
+
+import java.io.IOException;
+import java.nio.channels.AsynchronousFileChannel;
+import java.time.Duration;
+
+import static org.mockito.Mockito.*;
+
+public class GroupCommitterTest {
+
+    @Test
+    public void commit_none() throws IOException {
+        final AsynchronousFileChannel channel = mock(AsynchronousFileChannel.class);
+
+        StepVerifier.create(committer(DurabilityPolicy.NONE, Duration.ofSeconds(1), 10).commit(channel)).verifyComplete();
+
+        verify(channel, never()).force(anyBoolean());
+    }
+
+    @Test
+    public void commit_perChunk() throws IOException {
+        final AsynchronousFileChannel channel = mock(AsynchronousFileChannel.class);
+        final GroupCommitter committer = committer(DurabilityPolicy.PER_CHUNK, Duration.ofSeconds(1), 10);
+
+        committer.commit(channel).then(committer.commit(channel)).block();
+
+        verify(channel, times(2)).force(false);
+    }
+
+    @Test
+    public void commit_groupWindow() throws IOException {
+        final AsynchronousFileChannel first = mock(AsynchronousFileChannel.class);
+        final AsynchronousFileChannel second = mock(AsynchronousFileChannel.class);
+        final GroupCommitter committer = committer(DurabilityPolicy.GROUP_COMMIT, Duration.ofMillis(50), 100);
+
+        Flux.merge(committer.commit(first), committer.commit(first), committer.commit(second))
+            .then()
+            .block(Duration.ofSeconds(5));
+
+        verify(first, times(1)).force(false);
+        verify(second, times(1)).force(false);
+    }
+
+    @Test
+    public void commit_groupFull() throws IOException {
+        final AsynchronousFileChannel channel = mock(AsynchronousFileChannel.class);
+        final GroupCommitter committer = committer(DurabilityPolicy.GROUP_COMMIT, Duration.ofHours(1), 3);
+
+        StepVerifier
+            .create(Flux.merge(committer.commit(channel), committer.commit(channel), committer.commit(channel)))
+            .verifyComplete();
+
+        verify(channel, times(1)).force(false);
+    }
+
+    @Test
+    public void commit_groupError() throws IOException {
+        final AsynchronousFileChannel failing = mock(AsynchronousFileChannel.class);
+        final AsynchronousFileChannel channel = mock(AsynchronousFileChannel.class);
+        doThrow(new IOException("disk")).when(failing).force(false);
+        final GroupCommitter committer = committer(DurabilityPolicy.GROUP_COMMIT, Duration.ofHours(1), 2);
+
+        final Mono<Void> failed = committer.commit(failing).cache();
+        failed.subscribe(v -> {}, e -> {});
+        StepVerifier.create(committer.commit(channel)).verifyComplete();
+        StepVerifier.create(failed).verifyErrorMessage("Chunk sync failed");
+    }
+
+    @Test
+    public void commitBatch_empty() {
+        committer(DurabilityPolicy.GROUP_COMMIT, Duration.ofHours(1), 2).commitBatch();
+    }
+
+    private GroupCommitter committer(final DurabilityPolicy policy, final Duration window, final int size) {
+        final SisyphusServerConfiguration configuration = new SisyphusServerConfiguration();
+        configuration.setDurabilityPolicy(policy);
+        configuration.setGroupCommitWindow(window);
+        configuration.setGroupCommitSize(size);
+        return new GroupCommitter(Schedulers.immediate(), configuration);
+    }
+}
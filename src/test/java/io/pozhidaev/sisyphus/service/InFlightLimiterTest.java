@@ -0,0 +1,156 @@
+package io.pozhidaev.sisyphus.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.pozhidaev.sisyphus.configurations.SisyphusServerConfiguration;
+import org.junit.Test;
+import org.reactivestreams.Subscription;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.util.unit.DataSize;
+import reactor.core.publisher.BaseSubscriber;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class InFlightLimiterTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final DefaultDataBufferFactory factory = new DefaultDataBufferFactory();
+
+    @Test
+    public void limit() {
+        final InFlightLimiter limiter = limiter(8, 16);
+
+        StepVerifier
+            .create(limiter.limit(Flux.range(0, 10).map(i -> buffer(4))).concatMap(Mono::just, 1))
+            .expectNextCount(10)
+            .verifyComplete();
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    public void limit_unbounded() {
+        final InFlightLimiter limiter = limiter(8, 16);
+
+        StepVerifier
+            .create(limiter.limit(Flux.range(0, 10).map(i -> buffer(4))))
+            .expectNextCount(10)
+            .verifyComplete();
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void limits_invalid() {
+        limiter(16, 8);
+    }
+
+    @Test
+    public void limit_upload() {
+        final InFlightLimiter limiter = limiter(10, 100);
+        final AtomicInteger read = new AtomicInteger();
+        final Holder holder = new Holder();
+
+        limiter.limit(Flux.range(0, 100).map(i -> buffer(4)).doOnNext(b -> read.incrementAndGet())).subscribe(holder);
+        holder.request(100);
+
+        assertEquals(3, read.get());
+        assertEquals(12, limiter.getInFlight());
+        assertEquals(12, meterRegistry.get("sisyphus.buffers.inflight").gauge().value(), 0);
+
+        holder.request(1);
+        assertEquals(4, read.get());
+        assertEquals(12, limiter.getInFlight());
+
+        holder.dispose();
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    public void limit_global() {
+        final InFlightLimiter limiter = limiter(12, 20);
+        final AtomicInteger readFirst = new AtomicInteger();
+        final AtomicInteger readSecond = new AtomicInteger();
+        final Holder first = new Holder();
+        final Holder second = new Holder();
+
+        limiter.limit(Flux.range(0, 100).map(i -> buffer(4)).doOnNext(b -> readFirst.incrementAndGet())).subscribe(first);
+        limiter.limit(Flux.range(0, 100).map(i -> buffer(4)).doOnNext(b -> readSecond.incrementAndGet())).subscribe(second);
+        first.request(100);
+        second.request(100);
+
+        assertEquals(3, readFirst.get());
+        assertEquals(2, readSecond.get());
+        assertEquals(20, limiter.getInFlight());
+        assertEquals(1, meterRegistry.get("sisyphus.buffers.waiting").gauge().value(), 0);
+
+        first.dispose();
+
+        assertEquals(3, readSecond.get());
+        assertEquals(0, meterRegistry.get("sisyphus.buffers.waiting").gauge().value(), 0);
+        second.dispose();
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    /**
+     * A client far faster than the storage: reading keeps pace with writing instead of running ahead.
+     */
+    @Test
+    public void limit_slowStorage() {
+        final InFlightLimiter limiter = limiter(4096, 1 << 20);
+        final AtomicInteger read = new AtomicInteger();
+        final AtomicInteger written = new AtomicInteger();
+        final AtomicInteger maxAhead = new AtomicInteger();
+
+        final Flux<DataBuffer> client = Flux.range(0, 200)
+            .map(i -> buffer(1024))
+            .doOnNext(b -> maxAhead.accumulateAndGet(read.incrementAndGet() - written.get(), Math::max));
+        final Mono<Integer> slowStorage = limiter.limit(client)
+            .concatMap(b -> Mono.delay(Duration.ofMillis(1)).thenReturn(b), 1)
+            .map(b -> {
+                written.incrementAndGet();
+                final int size = b.readableByteCount();
+                DataBufferUtils.release(b);
+                return size;
+            })
+            .reduce(0, Integer::sum);
+
+        assertEquals(Integer.valueOf(200 * 1024), slowStorage.block(Duration.ofSeconds(10)));
+        assertTrue("Read ahead of storage: " + maxAhead.get(), maxAhead.get() <= 5);
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    private InFlightLimiter limiter(final long upload, final long global) {
+        final SisyphusServerConfiguration configuration = new SisyphusServerConfiguration();
+        configuration.setUploadBufferLimit(DataSize.ofBytes(upload));
+        configuration.setGlobalBufferLimit(DataSize.ofBytes(global));
+        return new InFlightLimiter(configuration, meterRegistry);
+    }
+
+    private DataBuffer buffer(final int size) {
+        return factory.wrap(new byte[size]);
+    }
+
+    /**
+     * Takes buffers and never finishes writing them, like a stalled disk.
+     */
+    private static final class Holder extends BaseSubscriber<DataBuffer> {
+        private final List<DataBuffer> held = new ArrayList<>();
+
+        @Override
+        protected void hookOnSubscribe(final Subscription subscription) {
+        }
+
+        @Override
+        protected void hookOnNext(final DataBuffer value) {
+            held.add(value);
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package io.pozhidaev.sisyphus.service;
+
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * In-process stand-in of an S3 bucket with the multipart rules S3 enforces: parts but the last of at least 5MB,
+ * completion only with the ETags of the stored parts, parts replaced when uploaded again.
+ */
+public class InMemoryObjectStore implements ObjectStore {
+
+    private static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+
+    private final SortedMap<String, byte[]> objects = new TreeMap<>();
+    private final Map<String, Upload> uploads = new TreeMap<>();
+    private final AtomicLong requests = new AtomicLong();
+    private final DefaultDataBufferFactory bufferFactory = new DefaultDataBufferFactory();
+
+    @Override
+    public Mono<String> createMultipartUpload(final String key) {
+        return call(() -> {
+            final String uploadId = UUID.randomUUID().toString();
+            uploads.put(uploadId, new Upload(key));
+            return uploadId;
+        });
+    }
+
+    @Override
+    public Mono<String> uploadPart(final String key, final String uploadId, final int partNumber, final ByteBuffer content) {
+        return call(() -> {
+            final byte[] bytes = new byte[content.remaining()];
+            content.duplicate().get(bytes);
+            upload(key, uploadId).parts.put(partNumber, bytes);
+            return etag(bytes);
+        });
+    }
+
+    @Override
+    public Mono<String> findMultipartUpload(final String key) {
+        return call(() -> uploads.entrySet().stream()
+            .filter(e -> e.getValue().key.equals(key))
+            .reduce((first, second) -> second.getValue().initiated > first.getValue().initiated ? second : first)
+            .map(Map.Entry::getKey)
+            .orElse(null)
+        );
+    }
+
+    @Override
+    public Mono<List<String>> listParts(final String key, final String uploadId) {
+        return call(() -> {
+            final List<String> etags = new ArrayList<>();
+            for (final Map.Entry<Integer, byte[]> part : upload(key, uploadId).parts.entrySet()) {
+                if (part.getKey() != etags.size() + 1) {
+                    break;
+                }
+                etags.add(etag(part.getValue()));
+            }
+            return etags;
+        });
+    }
+
+    @Override
+    public Mono<Void> completeMultipartUpload(final String key, final String uploadId, final List<String> etags) {
+        return call(() -> {
+            final Upload upload = upload(key, uploadId);
+            if (etags.isEmpty()) {
+                throw new IllegalStateException("MalformedXML: no parts");
+            }
+            final ByteArrayOutputStream content = new ByteArrayOutputStream();
+            for (int i = 0; i < etags.size(); i++) {
+                final byte[] part = upload.parts.get(i + 1);
+                if (part == null || !etag(part).equals(etags.get(i))) {
+                    throw new IllegalStateException("InvalidPart: " + (i + 1));
+                }
+                if (i < etags.size() - 1 && part.length < MIN_PART_SIZE) {
+                    throw new IllegalStateException("EntityTooSmall: " + (i + 1));
+                }
+                content.write(part, 0, part.length);
+            }
+            uploads.remove(uploadId);
+            objects.put(key, content.toByteArray());
+            return null;
+        });
+    }
+
+    @Override
+    public Mono<Void> abortMultipartUpload(final String key, final String uploadId) {
+        return call(() -> uploads.remove(uploadId)).then();
+    }
+
+    @Override
+    public Mono<Void> putObject(final String key, final ByteBuffer content) {
+        return call(() -> {
+            final byte[] bytes = new byte[content.remaining()];
+            content.duplicate().get(bytes);
+            objects.put(key, bytes);
+            return null;
+        });
+    }
+
+    @Override
+    public Flux<DataBuffer> read(final String key) {
+        return call(() -> {
+            final byte[] content = objects.get(key);
+            if (content == null) {
+                throw new IllegalStateException("NoSuchKey: " + key);
+            }
+            return content;
+        }).flatMapMany(content -> Flux
+            .range(0, (content.length + 8191) / 8192)
+            .map(i -> bufferFactory.wrap(ByteBuffer.wrap(content, i * 8192, Math.min(8192, content.length - i * 8192)).slice()))
+        );
+    }
+
+    @Override
+    public Flux<DataBuffer> read(final String key, final long position, final long count) {
+        return DataBufferUtils.takeUntilByteCount(DataBufferUtils.skipUntilByteCount(read(key), position), count);
+    }
+
+    @Override
+    public Mono<ObjectResource> getObject(final String key) {
+        return call(() -> objects.get(key)).map(content -> new ObjectResource(this, key, content.length));
+    }
+
+    @Override
+    public Flux<String> list(final String prefix) {
+        return call(() -> objects.keySet().stream().filter(key -> key.startsWith(prefix)).collect(Collectors.toList()))
+            .flatMapIterable(keys -> keys);
+    }
+
+    @Override
+    public Mono<Void> deleteObject(final String key) {
+        return call(() -> objects.remove(key)).then();
+    }
+
+    public synchronized byte[] content(final String key) {
+        return objects.get(key);
+    }
+
+    public synchronized List<String> keys() {
+        return new ArrayList<>(objects.keySet());
+    }
+
+    public synchronized int getMultipartUploads() {
+        return uploads.size();
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    private <T> Mono<T> call(final Callable<T> request) {
+        return Mono.fromCallable(() -> {
+            requests.incrementAndGet();
+            synchronized (this) {
+                return request.call();
+            }
+        });
+    }
+
+    private Upload upload(final String key, final String uploadId) {
+        final Upload upload = uploads.get(uploadId);
+        if (upload == null || !upload.key.equals(key)) {
+            throw new IllegalStateException("NoSuchUpload: " + uploadId);
+        }
+        return upload;
+    }
+
+    static String etag(final byte[] content) {
+        try {
+            final StringBuilder etag = new StringBuilder("\"");
+            for (final byte b : MessageDigest.getInstance("MD5").digest(content)) {
+                etag.append(String.format("%02x", b));
+            }
+            return etag.append('"').toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static final class Upload {
+
+        private static final AtomicLong SEQUENCE = new AtomicLong();
+
+        private final String key;
+        private final long initiated = SEQUENCE.incrementAndGet();
+        private final SortedMap<Integer, byte[]> parts = Collections.synchronizedSortedMap(new TreeMap<>());
+
+        private Upload(final String key) {
+            this.key = key;
+        }
+    }
+}
@@ -1,25 +1,36 @@
 package io.pozhidaev.sisyphus.service;
 
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.pozhidaev.sisyphus.configurations.SisyphusServerConfiguration;
+import io.pozhidaev.sisyphus.domain.ConcatType;
 import io.pozhidaev.sisyphus.domain.File;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mockito;
+import org.springframework.core.io.Resource;
+import org.springframework.http.HttpStatus;
 import org.springframework.core.io.buffer.DataBuffer;
 import org.springframework.core.io.buffer.DataBufferFactory;
 import org.springframework.core.io.buffer.DefaultDataBuffer;
 import org.springframework.core.io.buffer.DefaultDataBufferFactory;
 import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.web.server.ResponseStatusException;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import reactor.test.StepVerifier;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
 
 import static java.nio.file.StandardOpenOption.WRITE;
 import static org.junit.Assert.*;
@@ -27,22 +38,39 @@ import static org.junit.Assert.*;
 @RunWith(SpringRunner.class)
 public class LocalStorageTest {
 
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
     private LocalStorage localStorage;
 
     @Before
     public void setUp() {
         this.localStorage = new LocalStorage();
+        this.localStorage.setStorageScheduler(Schedulers.immediate());
+        this.localStorage.setMetrics(new UploadMetrics(meterRegistry, Mockito.mock(UploadStateCache.class), Mockito.mock(FileChannelPool.class)));
+        this.localStorage.setGroupCommitter(new GroupCommitter(Schedulers.immediate(), new SisyphusServerConfiguration()));
     }
 
     @Test
     public void putObject() throws IOException {
         Flux<DataBuffer> body = Flux.just(stringBuffer("foo"));
         final Path fileDir = Files.createTempDirectory("fileDirectory").toAbsolutePath();
-        localStorage.setFileDirectory(fileDir);
+        localStorage.setPathResolver(StoragePathResolver.flat(fileDir));
         localStorage.putObject(1L, body).subscribe(v -> assertEquals(v, Integer.valueOf(3)));
         assertTrue(Files.exists(Paths.get(fileDir.toString(), "1")));
     }
 
+    @Test
+    public void putObject_appendsAllBuffers() throws IOException {
+        final Path fileDir = Files.createTempDirectory("fileDirectory").toAbsolutePath();
+        localStorage.setPathResolver(StoragePathResolver.flat(fileDir));
+
+        final DataBuffer partiallyFilled = new DefaultDataBufferFactory(true).allocateBuffer(1024);
+        partiallyFilled.write("baz".getBytes(StandardCharsets.UTF_8));
+
+        assertEquals(Integer.valueOf(6), localStorage.putObject(1L, Flux.just(stringBuffer("foo"), partiallyFilled)).block());
+        assertEquals(Integer.valueOf(3), localStorage.putObject(1L, Flux.just(stringBuffer("bar"))).block());
+        assertEquals("foobazbar", new String(Files.readAllBytes(Paths.get(fileDir.toString(), "1")), StandardCharsets.UTF_8));
+    }
+
     @Test(expected = NullPointerException.class)
     public void putObject_nullPointer_1() {
         localStorage.putObject(null, Flux.just(stringBuffer("foo")));
@@ -58,7 +86,7 @@ public class LocalStorageTest {
         Flux<DataBuffer> body = Flux.just(stringBuffer("foo"));
         final Path fileDir = Files.createTempDirectory("fileDirectory").toAbsolutePath();
         Files.createFile(Paths.get(fileDir.toString(), "1"));
-        localStorage.setFileDirectory(fileDir);
+        localStorage.setPathResolver(StoragePathResolver.flat(fileDir));
         localStorage.putObject(1L, body).subscribe(v -> assertEquals(v, Integer.valueOf(3)));
     }
 
@@ -71,7 +99,7 @@ public class LocalStorageTest {
         Flux<DataBuffer> body = Flux.just(dataBuffer);
 
         final Path fileDir = Paths.get("fileDirectoryThatsNotExists");
-        localStorage.setFileDirectory(fileDir);
+        localStorage.setPathResolver(StoragePathResolver.flat(fileDir));
         localStorage.putObject(1L, body)
             .subscribe(v -> assertEquals(v, Integer.valueOf(3)));
     }
@@ -83,12 +111,95 @@ public class LocalStorageTest {
         final Path fileDir = Files.createTempDirectory("fileDirectory").toAbsolutePath();
 
         final File file = File.builder().id(1L).build();
-        localStorage.setFileDirectory(fileDir);
+        localStorage.setPathResolver(StoragePathResolver.flat(fileDir));
         localStorage.createFile(file).subscribe(path ->
             assertTrue(Files.exists(Paths.get(fileDir.toString(), path.getId().toString())))
         );
     }
 
+    @Test
+    public void createFile_sparse() throws IOException {
+        final Path fileDir = Files.createTempDirectory("fileDirectory").toAbsolutePath();
+        localStorage.setPathResolver(StoragePathResolver.flat(fileDir));
+        localStorage.setConfiguration(preallocation(Preallocation.SPARSE));
+
+        localStorage.createFile(File.builder().id(1L).contentLength(3L << 20).build()).block();
+
+        assertEquals(3L << 20, Files.size(fileDir.resolve("1")));
+    }
+
+    @Test
+    public void createFile_full() throws IOException {
+        final Path fileDir = Files.createTempDirectory("fileDirectory").toAbsolutePath();
+        localStorage.setPathResolver(StoragePathResolver.flat(fileDir));
+        localStorage.setChannelPool(channelPool());
+        localStorage.setConfiguration(preallocation(Preallocation.FULL));
+
+        localStorage.createFile(File.builder().id(1L).contentLength((1L << 20) + 5).build()).block();
+        assertEquals(0, localStorage.getBooked());
+        final byte[] allocated = Files.readAllBytes(fileDir.resolve("1"));
+        assertEquals((1 << 20) + 5, allocated.length);
+        for (byte b : allocated) {
+            assertEquals(0, b);
+        }
+
+        localStorage.writeChunk(1L, Flux.just(stringBuffer("foo")), 0L).block();
+        final byte[] content = Files.readAllBytes(fileDir.resolve("1"));
+        assertEquals((1 << 20) + 5, content.length);
+        assertEquals("foo", new String(content, 0, 3, StandardCharsets.UTF_8));
+        assertEquals(0, content[3]);
+    }
+
+    @Test
+    public void createFile_final() throws IOException {
+        final Path fileDir = Files.createTempDirectory("fileDirectory").toAbsolutePath();
+        localStorage.setPathResolver(StoragePathResolver.flat(fileDir));
+        localStorage.setConfiguration(preallocation(Preallocation.FULL));
+
+        localStorage.createFile(File.builder().id(1L).contentLength(3L << 20).concatType(ConcatType.FINAL).build()).block();
+
+        assertEquals(0, Files.size(fileDir.resolve("1")));
+        assertEquals(0, localStorage.getBooked());
+    }
+
+    @Test
+    public void createFile_withoutLength() throws IOException {
+        final Path fileDir = Files.createTempDirectory("fileDirectory").toAbsolutePath();
+        localStorage.setPathResolver(StoragePathResolver.flat(fileDir));
+        localStorage.setConfiguration(preallocation(Preallocation.FULL));
+
+        localStorage.createFile(File.builder().id(1L).build()).block();
+
+        assertEquals(0, Files.size(fileDir.resolve("1")));
+    }
+
+    @Test
+    public void checkSpace_tooLarge() throws IOException {
+        localStorage.setPathResolver(StoragePathResolver.flat(Files.createTempDirectory("fileDirectory")));
+        localStorage.setConfiguration(preallocation(Preallocation.FULL));
+
+        StepVerifier
+            .create(localStorage.checkSpace(Long.MAX_VALUE))
+            .expectErrorMatches(e -> e instanceof ResponseStatusException
+                && ((ResponseStatusException) e).getStatus() == HttpStatus.PAYLOAD_TOO_LARGE)
+            .verify();
+        StepVerifier.create(localStorage.checkSpace(3L)).verifyComplete();
+    }
+
+    @Test
+    public void createFile_tooLarge() throws IOException {
+        final Path fileDir = Files.createTempDirectory("fileDirectory").toAbsolutePath();
+        localStorage.setPathResolver(StoragePathResolver.flat(fileDir));
+        localStorage.setConfiguration(preallocation(Preallocation.SPARSE));
+
+        StepVerifier
+            .create(localStorage.createFile(File.builder().id(1L).contentLength(Long.MAX_VALUE).build()))
+            .expectErrorMatches(e -> e instanceof ResponseStatusException
+                && ((ResponseStatusException) e).getStatus() == HttpStatus.PAYLOAD_TOO_LARGE)
+            .verify();
+        assertFalse(Files.exists(fileDir.resolve("1")));
+    }
+
     @Test(expected = NullPointerException.class)
     public void createFile_nullPointer() {
         localStorage.createFile(null);
@@ -98,7 +209,7 @@ public class LocalStorageTest {
     public void createFile_exception() {
 
         final Path fileDir = Paths.get("fileDirectoryThatsNotExists");
-        localStorage.setFileDirectory(fileDir);
+        localStorage.setPathResolver(StoragePathResolver.flat(fileDir));
 
         final File file = File.builder().id(1L).build();
         localStorage.createFile(file)
@@ -111,15 +222,10 @@ public class LocalStorageTest {
     public void writeChunk() throws IOException {
 
         final Path filePath = filePathToWrite("writeChunk_test");
-        localStorage.setFileDirectory(filePath.getParent());
+        localStorage.setPathResolver(StoragePathResolver.flat(filePath.getParent()));
 
-        localStorage.setChannelFunction(path -> Mono.fromSupplier(() -> {
-            try {
-                return AsynchronousFileChannel.open(path, WRITE);
-            } catch (IOException e) {
-                throw new RuntimeException("File open operation fault", e);
-            }
-        }));
+        final FileChannelPool channelPool = channelPool();
+        localStorage.setChannelPool(channelPool);
 
         localStorage
             .writeChunk(1L, Flux.just(stringBuffer("foo"), stringBuffer("baz")), 0L)
@@ -145,7 +251,112 @@ public class LocalStorageTest {
                     throw new RuntimeException("Read result error", e);
                 }
             })
-            .subscribe();
+            .block();
+
+        assertEquals(1, channelPool.getOpens());
+        assertEquals(1, channelPool.getHits());
+        assertEquals(1, channelPool.getOpenChannels());
+        assertEquals(2, meterRegistry.get("sisyphus.chunk.write").tag("storage", "local").timer().count());
+        assertEquals(9, meterRegistry.get("sisyphus.storage.bytes.written").counter().count(), 0);
+    }
+
+    @Test
+    public void complete() throws IOException {
+        final Path filePath = filePathToWrite("complete_test");
+        final FileChannelPool channelPool = channelPool();
+        localStorage.setPathResolver(StoragePathResolver.flat(filePath.getParent()));
+        localStorage.setChannelPool(channelPool);
+
+        localStorage.writeChunk(1L, Flux.just(stringBuffer("foo")), 0L).block();
+        localStorage.complete(1L).block();
+
+        assertEquals(0, channelPool.getOpenChannels());
+    }
+
+    @Test
+    public void writeChunk_partiallyFilledBuffer() throws IOException {
+        final Path filePath = filePathToWrite("writeChunk_partial_test");
+        localStorage.setPathResolver(StoragePathResolver.flat(filePath.getParent()));
+        localStorage.setChannelPool(channelPool());
+        final DataBuffer partiallyFilled = new DefaultDataBufferFactory(true).allocateBuffer(1024);
+        partiallyFilled.write("foo".getBytes(StandardCharsets.UTF_8));
+
+        assertEquals(Integer.valueOf(3), localStorage.writeChunk(1L, Flux.just(partiallyFilled), 0L).block());
+        assertEquals(3, meterRegistry.get("sisyphus.storage.bytes.written").counter().count(), 0);
+    }
+
+    @Test
+    public void delete() throws IOException {
+        final Path filePath = filePathToWrite("delete_test");
+        final FileChannelPool channelPool = channelPool();
+        localStorage.setPathResolver(StoragePathResolver.flat(filePath.getParent()));
+        localStorage.setChannelPool(channelPool);
+        localStorage.setStorageScheduler(Schedulers.immediate());
+
+        localStorage.writeChunk(1L, Flux.just(stringBuffer("foo")), 0L).block();
+        localStorage.delete(File.builder().id(1L).build()).block();
+        localStorage.delete(File.builder().id(1L).build()).block();
+
+        assertEquals(0, channelPool.getOpenChannels());
+        assertFalse(Files.exists(filePath.getParent().resolve("1")));
+    }
+
+    @Test
+    public void deduplicate() throws IOException {
+        final Path fileDir = Files.createTempDirectory("fileDirectory").toAbsolutePath();
+        final String checksum = "sha1 C+7Hteo/D9vJXQ3UfzxbwnXaijM=";
+        localStorage.setPathResolver(StoragePathResolver.flat(fileDir));
+        localStorage.setChannelPool(channelPool());
+        localStorage.setStorageScheduler(Schedulers.immediate());
+        localStorage.setBlobStore(new BlobStore(fileDir, true));
+        localStorage.putObject(1L, Flux.just(stringBuffer("foo"))).block();
+        localStorage.putObject(2L, Flux.just(stringBuffer("foo"))).block();
+
+        assertEquals(Long.valueOf(0), localStorage.deduplicate(1L, checksum, 3).block());
+        assertEquals(Long.valueOf(3), localStorage.deduplicate(2L, checksum, 3).block());
+        assertTrue(Files.isSameFile(fileDir.resolve("1"), fileDir.resolve("2")));
+
+        localStorage.delete(File.builder().id(1L).checksum(checksum).build()).block();
+        assertEquals("foo", new String(Files.readAllBytes(fileDir.resolve("2")), StandardCharsets.UTF_8));
+        localStorage.delete(File.builder().id(2L).checksum(checksum).build()).block();
+        assertFalse(new BlobStore(fileDir, true).blob(checksum).map(Files::exists).orElse(true));
+    }
+
+    @Test
+    public void delete_keepsBlobsNotLinked() throws IOException {
+        final Path fileDir = Files.createTempDirectory("fileDirectory").toAbsolutePath();
+        final String checksum = "sha1 C+7Hteo/D9vJXQ3UfzxbwnXaijM=";
+        final Path blob = new BlobStore(fileDir, true).blob(checksum).get();
+        Files.createDirectories(blob.getParent());
+        Files.write(blob, "foo".getBytes(StandardCharsets.UTF_8));
+        localStorage.setPathResolver(StoragePathResolver.flat(fileDir));
+        localStorage.setChannelPool(channelPool());
+        localStorage.putObject(1L, Flux.just(stringBuffer("foo"))).block();
+        localStorage.putObject(2L, Flux.just(stringBuffer("foo"))).block();
+
+        localStorage.setBlobStore(new BlobStore(fileDir, true));
+        localStorage.delete(File.builder().id(1L).checksum(checksum).build()).block();
+        assertTrue(Files.exists(blob));
+
+        localStorage.setBlobStore(new BlobStore(fileDir, false));
+        localStorage.delete(File.builder().id(2L).checksum(checksum).build()).block();
+        assertTrue(Files.exists(blob));
+        assertFalse(Files.exists(fileDir.resolve("2")));
+    }
+
+    @Test
+    public void deduplicate_disabled() throws IOException {
+        final Path fileDir = Files.createTempDirectory("fileDirectory").toAbsolutePath();
+        localStorage.setPathResolver(StoragePathResolver.flat(fileDir));
+        localStorage.setBlobStore(new BlobStore(fileDir, false));
+
+        assertEquals(Long.valueOf(0), localStorage.deduplicate(1L, "sha1 C+7Hteo/D9vJXQ3UfzxbwnXaijM=", 3).block());
+        assertFalse(Files.exists(fileDir.resolve(".blobs")));
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void complete_nullPointer() {
+        localStorage.complete(null);
     }
 
     @Test(expected = NullPointerException.class)
@@ -161,12 +372,82 @@ public class LocalStorageTest {
 
     }
 
+    @Test
+    public void concatenate() throws IOException {
+        final Path fileDir = Files.createTempDirectory("concatenate").toAbsolutePath();
+        localStorage.setPathResolver(StoragePathResolver.flat(fileDir));
+        localStorage.setStorageScheduler(Schedulers.immediate());
+        Files.write(Paths.get(fileDir.toString(), "1"), "foo".getBytes(StandardCharsets.UTF_8));
+        Files.write(Paths.get(fileDir.toString(), "2"), "barbaz".getBytes(StandardCharsets.UTF_8));
+        Files.createFile(Paths.get(fileDir.toString(), "3"));
+
+        localStorage.concatenate(
+            File.builder().id(3L).build(),
+            Arrays.asList(File.builder().id(1L).contentLength(3L).build(), File.builder().id(2L).contentLength(6L).build())
+        ).block();
+
+        assertEquals("foobarbaz", new String(Files.readAllBytes(Paths.get(fileDir.toString(), "3")), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void concatenate_shortPart() throws IOException {
+        final Path fileDir = Files.createTempDirectory("concatenate").toAbsolutePath();
+        localStorage.setPathResolver(StoragePathResolver.flat(fileDir));
+        localStorage.setStorageScheduler(Schedulers.immediate());
+        Files.write(Paths.get(fileDir.toString(), "1"), "foo".getBytes(StandardCharsets.UTF_8));
+        Files.createFile(Paths.get(fileDir.toString(), "3"));
+
+        localStorage
+            .concatenate(File.builder().id(3L).build(), Collections.singletonList(File.builder().id(1L).contentLength(5L).build()))
+            .as(StepVerifier::create)
+            .expectErrorMessage("File concatenation failed: 3")
+            .verify();
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void concatenate_nullPointer() {
+        localStorage.concatenate(null, Collections.emptyList());
+    }
+
+    @Test
+    public void hashedLayout() throws IOException {
+        final Path fileDir = Files.createTempDirectory("fileDirectory").toAbsolutePath();
+        final StoragePathResolver pathResolver = new StoragePathResolver(fileDir, StorageLayout.HASHED, 2);
+        localStorage.setPathResolver(pathResolver);
+        localStorage.setChannelPool(channelPool());
+
+        localStorage.createFile(File.builder().id(1L).build()).block();
+        localStorage.writeChunk(1L, Flux.just(stringBuffer("foo")), 0L).block();
+
+        assertFalse(Files.exists(fileDir.resolve("1")));
+        assertEquals("foo", new String(Files.readAllBytes(pathResolver.resolve(1L)), StandardCharsets.UTF_8));
+        assertEquals(pathResolver.resolve(1L).toFile(), localStorage.getObject(1L).block().getFile());
+    }
+
+    @Test
+    public void getObject() throws IOException {
+        final Path fileDir = Files.createTempDirectory("fileDirectory").toAbsolutePath();
+        Files.write(Paths.get(fileDir.toString(), "1"), "foo".getBytes(StandardCharsets.UTF_8));
+        localStorage.setPathResolver(StoragePathResolver.flat(fileDir));
+
+        final Resource resource = localStorage.getObject(1L).block();
+
+        assertNotNull(resource);
+        assertTrue(resource.isFile());
+        assertEquals(3, resource.contentLength());
+        StepVerifier.create(localStorage.getObject(2L)).verifyComplete();
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void getObject_nullPointer() {
+        localStorage.getObject(null);
+    }
+
     @Test
     public void closeChannel() throws IOException {
-        final AsynchronousFileChannel channel = Mockito.mock(AsynchronousFileChannel.class);
-        Mockito.doNothing().when(channel).close();
-        final LocalStorage localStorage = new LocalStorage();
+        final FileChannel channel = FileChannel.open(filePathToWrite("closeChannel_test"), WRITE);
         localStorage.closeChannel(channel);
+        assertFalse(channel.isOpen());
     }
 
     @Test(expected = NullPointerException.class)
@@ -178,18 +459,17 @@ public class LocalStorageTest {
     public void closeChannel_exception() throws IOException {
         final AsynchronousFileChannel channel = Mockito.mock(AsynchronousFileChannel.class);
         Mockito.doThrow(IOException.class).when(channel).close();
-        final LocalStorage localStorage = new LocalStorage();
         localStorage.closeChannel(channel);
     }
 
-    @Test(expected = NullPointerException.class)
-    public void flushBufferToFile_nullPointer_1() {
-        localStorage.flushBufferToFile(null, 1L);
-    }
-
-    @Test(expected = NullPointerException.class)
-    public void flushBufferToFile_nullPointer_2() {
-        localStorage.flushBufferToFile(stringBuffer("fii"), null);
+    private FileChannelPool channelPool() {
+        return new FileChannelPool(path -> Mono.fromSupplier(() -> {
+            try {
+                return AsynchronousFileChannel.open(path, WRITE);
+            } catch (IOException e) {
+                throw new RuntimeException("File open operation fault", e);
+            }
+        }), new SisyphusServerConfiguration());
     }
 
     private Path filePathToWrite(final String testName) throws IOException {
@@ -210,4 +490,10 @@ public class LocalStorageTest {
         buffer.write(value);
         return buffer;
     }
-}
\ No newline at end of file
+
+    private SisyphusServerConfiguration preallocation(final Preallocation preallocation) {
+        final SisyphusServerConfiguration configuration = new SisyphusServerConfiguration();
+        configuration.setPreallocation(preallocation);
+        return configuration;
+    }
+}
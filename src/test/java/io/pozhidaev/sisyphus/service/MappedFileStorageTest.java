@@ -0,0 +1,139 @@
+package io.pozhidaev.sisyphus.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.pozhidaev.sisyphus.configurations.SisyphusServerConfiguration;
+import io.pozhidaev.sisyphus.domain.File;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.util.unit.DataSize;
+import reactor.core.publisher.Flux;
+import reactor.core.scheduler.Schedulers;
+import reactor.test.StepVerifier;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+
+import static org.junit.Assert.*;
+
+public class MappedFileStorageTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private Path fileDir;
+    private MappedFileStorage mappedStorage;
+
+    @Before
+    public void setUp() throws IOException {
+        fileDir = Files.createTempDirectory("fileDirectory").toAbsolutePath();
+        final SisyphusServerConfiguration configuration = new SisyphusServerConfiguration();
+        configuration.setMappedThreshold(DataSize.ofMegabytes(1));
+        final StoragePathResolver pathResolver = StoragePathResolver.flat(fileDir);
+        final GroupCommitter groupCommitter = new GroupCommitter(Schedulers.immediate(), configuration);
+        final UploadMetrics metrics = new UploadMetrics(
+            meterRegistry, Mockito.mock(UploadStateCache.class), Mockito.mock(FileChannelPool.class)
+        );
+        final LocalStorage localStorage = new LocalStorage();
+        localStorage.setPathResolver(pathResolver);
+        localStorage.setGroupCommitter(groupCommitter);
+        localStorage.setMetrics(metrics);
+        localStorage.setChannelPool(Mockito.mock(FileChannelPool.class));
+        localStorage.setStorageScheduler(Schedulers.immediate());
+        mappedStorage = new MappedFileStorage(
+            localStorage, pathResolver, Schedulers.immediate(), groupCommitter, metrics, configuration
+        );
+    }
+
+    @Test
+    public void accepts() {
+        assertTrue(mappedStorage.accepts(1L << 20));
+        assertFalse(mappedStorage.accepts((1L << 20) + 1));
+        assertFalse(mappedStorage.accepts(0L));
+        assertFalse(mappedStorage.accepts(null));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void threshold_tooLarge() {
+        final SisyphusServerConfiguration configuration = new SisyphusServerConfiguration();
+        configuration.setMappedThreshold(DataSize.ofGigabytes(3));
+        new MappedFileStorage(null, null, Schedulers.immediate(), null, Mockito.mock(UploadMetrics.class), configuration);
+    }
+
+    @Test
+    public void createFile() throws IOException {
+        mappedStorage.createFile(File.builder().id(1L).contentLength(9L).build()).block();
+
+        assertEquals(9, Files.size(fileDir.resolve("1")));
+    }
+
+    @Test
+    public void writeChunk() throws IOException {
+        mappedStorage.createFile(File.builder().id(1L).contentLength(9L).build()).block();
+
+        assertEquals(Integer.valueOf(6), mappedStorage.writeChunk(1L, Flux.just(buffer("foo"), buffer("bar")), 0).block());
+        assertEquals(1, mappedStorage.getMappings());
+        assertEquals(Integer.valueOf(3), mappedStorage.writeChunk(1L, Flux.just(buffer("baz")), 6).block());
+        mappedStorage.complete(1L).block();
+
+        assertEquals(0, mappedStorage.getMappings());
+        assertEquals("foobarbaz", new String(Files.readAllBytes(fileDir.resolve("1")), StandardCharsets.UTF_8));
+        assertEquals(2, meterRegistry.get("sisyphus.chunk.write").tag("storage", "mapped").timer().count());
+        assertEquals(9, meterRegistry.get("sisyphus.storage.bytes.written").tag("storage", "mapped").counter().count(), 0);
+    }
+
+    @Test
+    public void delete() {
+        mappedStorage.createFile(File.builder().id(1L).contentLength(9L).build()).block();
+        mappedStorage.writeChunk(1L, Flux.just(buffer("foo")), 0).block();
+
+        mappedStorage.delete(File.builder().id(1L).build()).block();
+
+        assertEquals(0, mappedStorage.getMappings());
+        assertFalse(Files.exists(fileDir.resolve("1")));
+    }
+
+    @Test
+    public void writeChunk_exceedsLength() throws IOException {
+        mappedStorage.createFile(File.builder().id(1L).contentLength(4L).build()).block();
+
+        StepVerifier
+            .create(mappedStorage.writeChunk(1L, Flux.just(buffer("foo"), buffer("bar")), 0))
+            .verifyErrorMessage("Chunk exceeds upload length: 1");
+        StepVerifier
+            .create(mappedStorage.writeChunk(1L, Flux.just(buffer("foo")), 5))
+            .verifyErrorMessage("Chunk offset exceeds upload length: 1");
+
+        mappedStorage.complete(1L).block();
+        assertEquals(0, mappedStorage.getMappings());
+    }
+
+    @Test
+    public void evictIdle() throws IOException {
+        final SisyphusServerConfiguration configuration = new SisyphusServerConfiguration();
+        configuration.setMappedThreshold(DataSize.ofMegabytes(1));
+        configuration.setChannelIdleTimeout(Duration.ZERO);
+        final LocalStorage localStorage = new LocalStorage();
+        localStorage.setPathResolver(StoragePathResolver.flat(fileDir));
+        final MappedFileStorage storage = new MappedFileStorage(
+            localStorage, StoragePathResolver.flat(fileDir), Schedulers.immediate(),
+            new GroupCommitter(Schedulers.immediate(), configuration),
+            new UploadMetrics(meterRegistry, Mockito.mock(UploadStateCache.class), Mockito.mock(FileChannelPool.class)),
+            configuration
+        );
+        Files.write(fileDir.resolve("1"), new byte[3]);
+
+        storage.writeChunk(1L, Flux.just(buffer("foo")), 0).block();
+        storage.evictIdle();
+
+        assertEquals(0, storage.getMappings());
+        assertEquals("foo", new String(Files.readAllBytes(fileDir.resolve("1")), StandardCharsets.UTF_8));
+    }
+
+    private DataBuffer buffer(final String value) {
+        return new DefaultDataBufferFactory().wrap(value.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,84 @@
+package io.pozhidaev.sisyphus.service;
+
+import io.pozhidaev.sisyphus.configurations.SisyphusServerConfiguration;
+import io.pozhidaev.sisyphus.domain.File;
+import io.pozhidaev.sisyphus.repository.ReactiveFileRepository;
+import org.junit.Test;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.*;
+
+public class MetadataWriterTest {
+
+    private final ReactiveFileRepository fileRepository = mock(ReactiveFileRepository.class);
+
+    @Test
+    public void write_window() {
+        when(fileRepository.write(anyList(), anyList())).thenAnswer(invocation -> {
+            invocation.<List<File>>getArgument(0).forEach(f -> f.setId(9L));
+            return Mono.just(new int[]{1, 0});
+        });
+        final MetadataWriter writer = writer(Duration.ofMillis(50), 100);
+        final File created = File.builder().mimeType("test").build();
+        final File first = File.builder().id(1L).contentOffset(5L).build();
+        final File second = File.builder().id(2L).contentOffset(5L).build();
+
+        final Mono<File> insert = writer.insert(created).cache();
+        final Mono<Boolean> firstUpdate = writer.updateOffset(first).cache();
+        final Mono<Boolean> secondUpdate = writer.updateOffset(second).cache();
+        Mono.when(insert, firstUpdate, secondUpdate).block(Duration.ofSeconds(5));
+
+        assertEquals(Long.valueOf(9), insert.block().getId());
+        assertTrue(firstUpdate.block());
+        assertFalse(secondUpdate.block());
+        verify(fileRepository, times(1)).write(Collections.singletonList(created), Arrays.asList(first, second));
+    }
+
+    @Test
+    public void write_full() {
+        when(fileRepository.write(anyList(), anyList())).thenReturn(Mono.just(new int[]{1, 1}));
+        final MetadataWriter writer = writer(Duration.ofHours(1), 2);
+
+        StepVerifier
+            .create(writer.updateOffsets(Arrays.asList(File.builder().id(1L).build(), File.builder().id(2L).build())))
+            .expectNext(2)
+            .verifyComplete();
+    }
+
+    @Test
+    public void write_failedBatchOneByOne() {
+        final File bad = File.builder().mimeType("bad").build();
+        final File good = File.builder().mimeType("good").build();
+        when(fileRepository.write(anyList(), anyList())).thenAnswer(invocation ->
+            invocation.<List<File>>getArgument(0).contains(bad)
+                ? Mono.error(new IllegalStateException("constraint"))
+                : Mono.just(new int[0])
+        );
+        final MetadataWriter writer = writer(Duration.ofMillis(50), 100);
+
+        final Mono<File> failing = writer.insert(bad).cache();
+        final Mono<File> passing = writer.insert(good).cache();
+        failing.subscribe(file -> { }, error -> { });
+        passing.subscribe();
+
+        StepVerifier.create(failing).verifyError(IllegalStateException.class);
+        assertSame(good, passing.block(Duration.ofSeconds(5)));
+        verify(fileRepository, times(3)).write(anyList(), any());
+    }
+
+    private MetadataWriter writer(final Duration window, final int batchSize) {
+        final SisyphusServerConfiguration configuration = new SisyphusServerConfiguration();
+        configuration.setMetadataBatchWindow(window);
+        configuration.setMetadataBatchSize(batchSize);
+        return new MetadataWriter(fileRepository, configuration);
+    }
+}
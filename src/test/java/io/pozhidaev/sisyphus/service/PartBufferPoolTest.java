@@ -0,0 +1,57 @@
+package io.pozhidaev.sisyphus.service;
+
+import org.junit.Test;
+import reactor.core.Disposable;
+import reactor.core.publisher.MonoProcessor;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class PartBufferPoolTest {
+
+    private final PartBufferPool pool = new PartBufferPool(16, 2);
+
+    @Test
+    public void acquire_reusesReleased() {
+        final ByteBuffer first = pool.acquire().block();
+        first.put((byte) 1);
+        pool.release(first);
+
+        final ByteBuffer second = pool.acquire().block();
+        assertSame(first, second);
+        assertEquals(0, second.position());
+        assertTrue(second.isDirect());
+        assertEquals(1, pool.getAllocated());
+    }
+
+    @Test
+    public void acquire_waitsForRelease() {
+        final ByteBuffer first = pool.acquire().block();
+        pool.acquire().block();
+        final MonoProcessor<ByteBuffer> waiting = pool.acquire().toProcessor();
+
+        assertFalse(waiting.isTerminated());
+        assertEquals(1, pool.getWaiting());
+        pool.release(first);
+        assertSame(first, waiting.peek());
+        assertEquals(2, pool.getAllocated());
+    }
+
+    @Test
+    public void acquire_cancelled() {
+        final ByteBuffer first = pool.acquire().block();
+        pool.acquire().block();
+        final Disposable cancelled = pool.acquire().subscribe();
+
+        cancelled.dispose();
+        assertEquals(0, pool.getWaiting());
+        pool.release(first);
+        assertSame(first, pool.acquire().block());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void capacity_invalid() {
+        new PartBufferPool(16, 0);
+    }
+}
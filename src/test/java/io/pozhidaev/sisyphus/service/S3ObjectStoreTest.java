@@ -0,0 +1,280 @@
+package io.pozhidaev.sisyphus.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import io.pozhidaev.sisyphus.configurations.SisyphusServerConfiguration;
+import io.pozhidaev.sisyphus.domain.File;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.netty.DisposableServer;
+import reactor.netty.http.server.HttpServer;
+import reactor.netty.http.server.HttpServerRequest;
+import reactor.netty.http.server.HttpServerResponse;
+
+import java.nio.ByteBuffer;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.*;
+
+/**
+ * The client against a local HTTP stand-in of the S3 API, backed by {@link InMemoryObjectStore},
+ * that refuses requests whose signature doesn't match what it received.
+ */
+public class S3ObjectStoreTest {
+
+    private static final String BUCKET = "uploads";
+    private static final int MB = 1 << 20;
+    private static final Pattern ETAG = Pattern.compile("<ETag>([^<]*)</ETag>");
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d+)");
+
+    private final InMemoryObjectStore backend = new InMemoryObjectStore();
+    private final S3Signer serverSigner = new S3Signer("access", "secret", "eu-central-1");
+    private DisposableServer server;
+    private S3ObjectStore objectStore;
+
+    @Before
+    public void setUp() {
+        server = HttpServer.create().host("127.0.0.1").port(0).handle(this::handle).bindNow();
+        objectStore = objectStore("secret");
+    }
+
+    @After
+    public void tearDown() {
+        server.disposeNow();
+    }
+
+    @Test
+    public void multipartUpload() {
+        final byte[] content = new byte[10 * MB + 3];
+        new Random(7).nextBytes(content);
+        final String key = "dir/a b+é";
+        final String uploadId = objectStore.createMultipartUpload(key).block();
+        objectStore.createMultipartUpload(key + "0").block();
+
+        final List<String> etags = new ArrayList<>();
+        for (int part = 0; part < 3; part++) {
+            final ByteBuffer buffer = ByteBuffer.allocateDirect(5 * MB);
+            buffer.put(content, part * 5 * MB, Math.min(5 * MB, content.length - part * 5 * MB)).flip();
+            etags.add(objectStore.uploadPart(key, uploadId, part + 1, buffer).block());
+            assertEquals(0, buffer.position());
+        }
+
+        assertEquals(uploadId, objectStore.findMultipartUpload(key).block());
+        assertEquals(etags, objectStore.listParts(key, uploadId).block());
+        objectStore.completeMultipartUpload(key, uploadId, etags).block();
+
+        assertArrayEquals(content, DataBufferUtils.join(objectStore.read(key)).map(this::bytes).block());
+        final ObjectResource resource = objectStore.getObject(key).block();
+        assertEquals(content.length, resource.contentLength());
+        assertArrayEquals(
+            Arrays.copyOfRange(content, 5 * MB - 3, 5 * MB + 4),
+            DataBufferUtils.join(resource.read(5 * MB - 3, 7)).map(this::bytes).block()
+        );
+        assertNull(objectStore.findMultipartUpload(key).block());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void completeMultipartUpload_invalidPart() {
+        final String uploadId = objectStore.createMultipartUpload("1").block();
+        objectStore.uploadPart("1", uploadId, 1, ByteBuffer.wrap("foo".getBytes(UTF_8))).block();
+
+        objectStore.completeMultipartUpload("1", uploadId, Collections.singletonList("\"0\"")).block();
+    }
+
+    @Test
+    public void objects() {
+        for (final String key : Arrays.asList("1.part-1", "1.part-2", "1.part-3", "10.part-1")) {
+            objectStore.putObject(key, ByteBuffer.wrap(key.getBytes(UTF_8))).block();
+        }
+
+        assertEquals(Arrays.asList("1.part-1", "1.part-2", "1.part-3"), objectStore.list("1.part-").collectList().block());
+        objectStore.deleteObject("1.part-2").block();
+        objectStore.deleteObject("1.part-2").block();
+        assertEquals(Arrays.asList("1.part-1", "1.part-3", "10.part-1"), backend.keys());
+        assertNull(objectStore.getObject("1.part-2").block());
+        assertEquals("1.part-3", new String(DataBufferUtils.join(objectStore.read("1.part-3")).map(this::bytes).block(), UTF_8));
+    }
+
+    @Test
+    public void abortMultipartUpload() {
+        final String uploadId = objectStore.createMultipartUpload("1").block();
+
+        objectStore.abortMultipartUpload("1", uploadId).block();
+        assertEquals(0, backend.getMultipartUploads());
+    }
+
+    @Test(expected = WebClientResponseException.Forbidden.class)
+    public void wrongSecret() {
+        objectStore("other").createMultipartUpload("1").block();
+    }
+
+    @Test
+    public void s3Storage() {
+        final SisyphusServerConfiguration configuration = new SisyphusServerConfiguration();
+        configuration.setS3PartBuffers(1);
+        final S3Storage storage = new S3Storage(
+            objectStore,
+            new UploadMetrics(new SimpleMeterRegistry(), Mockito.mock(UploadStateCache.class), Mockito.mock(FileChannelPool.class)),
+            configuration
+        );
+        final byte[] content = new byte[7 * MB];
+        new Random(3).nextBytes(content);
+        final DefaultDataBufferFactory factory = new DefaultDataBufferFactory();
+
+        storage.createFile(File.builder().id(1L).contentLength((long) content.length).build()).block();
+        storage.writeChunk(1L, Flux.just(factory.wrap(Arrays.copyOf(content, 2 * MB))), 0).block();
+        storage.writeChunk(1L, Flux.just(factory.wrap(Arrays.copyOfRange(content, 2 * MB, content.length))), 2 * MB).block();
+        storage.complete(1L).block();
+
+        assertArrayEquals(content, backend.content("1"));
+        assertEquals(Collections.singletonList("1"), backend.keys());
+    }
+
+    private S3ObjectStore objectStore(final String secretKey) {
+        return new S3ObjectStore(
+            WebClient.create(),
+            "http://127.0.0.1:" + server.port() + "/",
+            BUCKET,
+            new S3Signer("access", secretKey, "eu-central-1"),
+            Clock.fixed(Instant.now(), ZoneOffset.UTC)
+        );
+    }
+
+    private byte[] bytes(final org.springframework.core.io.buffer.DataBuffer dataBuffer) {
+        final byte[] bytes = new byte[dataBuffer.readableByteCount()];
+        dataBuffer.read(bytes);
+        DataBufferUtils.release(dataBuffer);
+        return bytes;
+    }
+
+    private Mono<Void> handle(final HttpServerRequest request, final HttpServerResponse response) {
+        return request.receive().aggregate().asByteArray().defaultIfEmpty(new byte[0]).flatMap(body -> {
+            final QueryStringDecoder decoder = new QueryStringDecoder(request.uri());
+            final String path = decoder.path();
+            final SortedMap<String, String> query = new TreeMap<>();
+            decoder.parameters().forEach((name, values) -> query.put(name, values.get(0)));
+            if (!authorized(request, path, query, body)) {
+                return response.status(403).send().then();
+            }
+            final String key = path.length() > BUCKET.length() + 2 ? path.substring(BUCKET.length() + 2) : null;
+            final String method = request.method().name();
+            final String uploadId = query.get("uploadId");
+            if ("POST".equals(method) && query.containsKey("uploads")) {
+                return xml(response, backend.createMultipartUpload(key)
+                    .map(id -> "<InitiateMultipartUploadResult><Key>" + key + "</Key><UploadId>" + id + "</UploadId></InitiateMultipartUploadResult>"));
+            }
+            if ("GET".equals(method) && query.containsKey("uploads")) {
+                return xml(response, backend.findMultipartUpload(query.get("prefix"))
+                    .map(id -> "<Upload><Key>" + query.get("prefix") + "</Key><UploadId>" + id + "</UploadId></Upload>")
+                    .defaultIfEmpty("")
+                    .map(upload -> "<ListMultipartUploadsResult>" + upload
+                        + "<Upload><Key>" + query.get("prefix") + "0</Key><UploadId>other</UploadId></Upload></ListMultipartUploadsResult>"));
+            }
+            if ("PUT".equals(method) && uploadId != null) {
+                return backend.uploadPart(key, uploadId, Integer.parseInt(query.get("partNumber")), ByteBuffer.wrap(body))
+                    .flatMap(etag -> response.header("ETag", etag).send().then());
+            }
+            if ("GET".equals(method) && uploadId != null) {
+                final int marker = Integer.parseInt(query.get("part-number-marker"));
+                return xml(response, backend.listParts(key, uploadId).map(etags -> {
+                    final StringBuilder xml = new StringBuilder("<ListPartsResult>");
+                    for (int i = marker; i < Math.min(marker + 2, etags.size()); i++) {
+                        xml.append("<Part><PartNumber>").append(i + 1).append("</PartNumber><ETag>").append(etags.get(i)).append("</ETag></Part>");
+                    }
+                    final boolean truncated = marker + 2 < etags.size();
+                    return xml.append("<IsTruncated>").append(truncated).append("</IsTruncated><NextPartNumberMarker>")
+                        .append(marker + 2).append("</NextPartNumberMarker></ListPartsResult>").toString();
+                }));
+            }
+            if ("POST".equals(method) && uploadId != null) {
+                final List<String> etags = new ArrayList<>();
+                final Matcher matcher = ETAG.matcher(new String(body, UTF_8));
+                while (matcher.find()) {
+                    etags.add(matcher.group(1).replace("&quot;", "\""));
+                }
+                return xml(response, backend.completeMultipartUpload(key, uploadId, etags)
+                    .thenReturn("<CompleteMultipartUploadResult><Key>" + key + "</Key></CompleteMultipartUploadResult>")
+                    .onErrorResume(e -> Mono.just("<Error><Code>InvalidPart</Code><Message>" + e.getMessage() + "</Message></Error>")));
+            }
+            if ("DELETE".equals(method) && uploadId != null) {
+                return backend.abortMultipartUpload(key, uploadId).then(response.status(204).send().then());
+            }
+            if ("GET".equals(method) && key == null) {
+                final int from = Integer.parseInt(query.getOrDefault("continuation-token", "0"));
+                return xml(response, backend.list(query.get("prefix")).collectList().map(keys -> {
+                    final StringBuilder xml = new StringBuilder("<ListBucketResult>");
+                    keys.stream().skip(from).limit(2).forEach(k -> xml.append("<Contents><Key>").append(k).append("</Key></Contents>"));
+                    return xml.append("<IsTruncated>").append(from + 2 < keys.size()).append("</IsTruncated><NextContinuationToken>")
+                        .append(from + 2).append("</NextContinuationToken></ListBucketResult>").toString();
+                }));
+            }
+            if ("PUT".equals(method)) {
+                return backend.putObject(key, ByteBuffer.wrap(body)).then(response.send().then());
+            }
+            if ("DELETE".equals(method)) {
+                return backend.deleteObject(key).then(response.status(204).send().then());
+            }
+            final byte[] content = backend.content(key);
+            if (content == null) {
+                return response.status(404).send().then();
+            }
+            if ("HEAD".equals(method)) {
+                return response.header("Content-Length", String.valueOf(content.length)).send().then();
+            }
+            final Matcher range = RANGE.matcher(String.valueOf(request.requestHeaders().get("range")));
+            if (range.matches()) {
+                final int start = Integer.parseInt(range.group(1));
+                final int end = Math.min(Integer.parseInt(range.group(2)), content.length - 1);
+                return response.status(206).sendByteArray(Mono.just(Arrays.copyOfRange(content, start, end + 1))).then();
+            }
+            return response.sendByteArray(Mono.just(content)).then();
+        });
+    }
+
+    private boolean authorized(
+        final HttpServerRequest request,
+        final String path,
+        final SortedMap<String, String> query,
+        final byte[] body
+    ) {
+        final String host = request.requestHeaders().get("host");
+        final String authorization = request.requestHeaders().get("authorization");
+        final Matcher signedHeaders = Pattern.compile("SignedHeaders=([^,]*)").matcher(authorization);
+        if (!signedHeaders.find()) {
+            return false;
+        }
+        final SortedMap<String, String> headers = new TreeMap<>();
+        for (final String name : signedHeaders.group(1).split(";")) {
+            headers.put(name, request.requestHeaders().get(name));
+        }
+        final String payloadHash = headers.get("x-amz-content-sha256");
+        if (!S3Signer.UNSIGNED_PAYLOAD.equals(payloadHash) && !S3Signer.sha256Hex(body).equals(payloadHash)) {
+            return false;
+        }
+        return authorization.equals(serverSigner.authorization(request.method().name(), path, query, headers, payloadHash));
+    }
+
+    private Mono<Void> xml(final HttpServerResponse response, final Mono<String> xml) {
+        return xml.flatMap(body -> response.header("Content-Type", "application/xml").sendString(Mono.just(body), UTF_8).then());
+    }
+}
@@ -0,0 +1,186 @@
+package io.pozhidaev.sisyphus.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.pozhidaev.sisyphus.configurations.SisyphusServerConfiguration;
+import io.pozhidaev.sisyphus.domain.File;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.util.unit.DataSize;
+import reactor.core.publisher.Flux;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class S3StorageTest {
+
+    private static final int MB = 1 << 20;
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final DefaultDataBufferFactory factory = new DefaultDataBufferFactory();
+    private final InMemoryObjectStore objectStore = new InMemoryObjectStore();
+    private final byte[] content = new byte[12 * MB + 17];
+    private SisyphusServerConfiguration configuration;
+    private S3Storage storage;
+
+    @Before
+    public void setUp() {
+        new Random(42).nextBytes(content);
+        configuration = new SisyphusServerConfiguration();
+        configuration.setS3PartBuffers(2);
+        storage = storage();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void partSize_tooSmall() {
+        configuration.setS3PartSize(DataSize.ofMegabytes(4));
+        storage();
+    }
+
+    @Test
+    public void writeChunk() {
+        storage.createFile(File.builder().id(1L).contentLength((long) content.length).build()).block();
+
+        assertEquals(Integer.valueOf(3 * MB), write(1L, 0, 3 * MB));
+        assertEquals(Collections.singletonList("1.part-" + 3 * MB), objectStore.keys());
+        assertEquals(Integer.valueOf(4 * MB), write(1L, 3 * MB, 7 * MB));
+        assertEquals(Arrays.asList("1.part-" + 3 * MB, "1.part-" + 7 * MB), objectStore.keys());
+        assertNull(storage.getObject(1L).block());
+        assertEquals(Integer.valueOf(content.length - 7 * MB), write(1L, 7 * MB, content.length));
+        storage.complete(1L).block();
+
+        assertArrayEquals(content, objectStore.content("1"));
+        assertEquals(Collections.singletonList("1"), objectStore.keys());
+        assertEquals(0, objectStore.getMultipartUploads());
+        assertEquals(0, storage.getUploads());
+        assertNotNull(storage.getObject(1L).block());
+        assertEquals(content.length, meterRegistry.get("sisyphus.storage.bytes.written").tag("storage", "s3").counter().count(), 0);
+    }
+
+    @Test
+    public void writeChunk_partBoundary() {
+        storage.createFile(File.builder().id(1L).contentLength((long) content.length).build()).block();
+
+        write(1L, 0, 5 * MB);
+        assertTrue(objectStore.keys().isEmpty());
+        write(1L, 5 * MB, content.length);
+        storage.complete(1L).block();
+
+        assertArrayEquals(content, objectStore.content("1"));
+    }
+
+    /**
+     * A chunk stored but rejected afterwards, like on a checksum mismatch, is replaced by its retry.
+     */
+    @Test
+    public void writeChunk_retryOverwrites() {
+        storage.createFile(File.builder().id(1L).contentLength((long) content.length).build()).block();
+        write(1L, 0, 3 * MB);
+
+        final byte[] rejected = new byte[4 * MB];
+        Arrays.fill(rejected, (byte) 7);
+        storage.writeChunk(1L, Flux.just(factory.wrap(rejected)), 3 * MB).block();
+        write(1L, 3 * MB, 7 * MB);
+        write(1L, 7 * MB, content.length);
+        storage.complete(1L).block();
+
+        assertArrayEquals(content, objectStore.content("1"));
+        assertEquals(Collections.singletonList("1"), objectStore.keys());
+    }
+
+    @Test
+    public void writeChunk_afterRestart() {
+        storage.createFile(File.builder().id(1L).contentLength((long) content.length).build()).block();
+        write(1L, 0, 6 * MB + 5);
+
+        final S3Storage restarted = storage();
+        assertEquals(Integer.valueOf(content.length - 6 * MB - 5),
+            restarted.writeChunk(1L, Flux.just(factory.wrap(Arrays.copyOfRange(content, 6 * MB + 5, content.length))), 6 * MB + 5).block());
+        restarted.complete(1L).block();
+
+        assertArrayEquals(content, objectStore.content("1"));
+        assertEquals(Collections.singletonList("1"), objectStore.keys());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void writeChunk_missingTail() {
+        storage.createFile(File.builder().id(1L).contentLength((long) content.length).build()).block();
+        write(1L, 0, 3 * MB);
+
+        write(1L, 2 * MB, 4 * MB);
+    }
+
+    @Test
+    public void emptyUpload() {
+        storage.createFile(File.builder().id(1L).contentLength(0L).build()).block();
+
+        assertEquals(Integer.valueOf(0), storage.writeChunk(1L, Flux.empty(), 0).block());
+        storage.complete(1L).block();
+        assertArrayEquals(new byte[0], objectStore.content("1"));
+    }
+
+    @Test
+    public void putObject() {
+        assertEquals(Integer.valueOf(content.length), storage.putObject(1L, Flux.just(factory.wrap(content.clone()))).block());
+
+        assertArrayEquals(content, objectStore.content("1"));
+        assertEquals(Collections.singletonList("1"), objectStore.keys());
+    }
+
+    @Test
+    public void concatenate() {
+        final File first = File.builder().id(1L).contentLength(6L * MB).build();
+        final File second = File.builder().id(2L).contentLength((long) content.length - 6 * MB).build();
+        storage.createFile(first).block();
+        storage.createFile(second).block();
+        write(1L, 0, 6 * MB);
+        storage.complete(1L).block();
+        storage.writeChunk(2L, Flux.just(factory.wrap(Arrays.copyOfRange(content, 6 * MB, content.length))), 0).block();
+        storage.complete(2L).block();
+
+        final File file = File.builder().id(3L).contentLength((long) content.length).build();
+        storage.createFile(file).block();
+        storage.concatenate(file, Arrays.asList(first, second)).block();
+
+        assertArrayEquals(content, objectStore.content("3"));
+    }
+
+    @Test
+    public void delete() {
+        storage.createFile(File.builder().id(1L).contentLength((long) content.length).build()).block();
+        storage.createFile(File.builder().id(10L).contentLength((long) content.length).build()).block();
+        write(1L, 0, 6 * MB);
+        write(10L, 0, 3 * MB);
+
+        storage().delete(File.builder().id(1L).build()).block();
+
+        assertEquals(Collections.singletonList("10.part-" + 3 * MB), objectStore.keys());
+        assertEquals(1, objectStore.getMultipartUploads());
+    }
+
+    private Integer write(final Long id, final int from, final int to) {
+        return storage.writeChunk(id, chunk(from, to), from).block();
+    }
+
+    /**
+     * The content between the offsets in buffers of at most 1MB, like a body read from the network.
+     */
+    private Flux<DataBuffer> chunk(final int from, final int to) {
+        return Flux
+            .range(0, (to - from + MB - 1) / MB)
+            .map(i -> factory.wrap(Arrays.copyOfRange(content, from + i * MB, Math.min(to, from + (i + 1) * MB))));
+    }
+
+    private S3Storage storage() {
+        return new S3Storage(
+            objectStore,
+            new UploadMetrics(meterRegistry, Mockito.mock(UploadStateCache.class), Mockito.mock(FileChannelPool.class)),
+            configuration
+        );
+    }
+}
@@ -0,0 +1,69 @@
+package io.pozhidaev.sisyphus.service;
+
+import io.pozhidaev.sisyphus.configurations.SisyphusServerConfiguration;
+import org.junit.Test;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.*;
+
+public class StorageMigratorTest {
+
+    @Test
+    public void migrate() throws IOException {
+        final Path root = Files.createTempDirectory("fileDirectory");
+        for (long id = 1000; id < 1020; id++) {
+            Files.write(root.resolve(Long.toString(id)), new byte[]{(byte) id});
+        }
+        Files.createFile(root.resolve("notes.txt"));
+        final StoragePathResolver resolver = new StoragePathResolver(root, StorageLayout.HASHED, 2);
+        final StorageMigrator migrator = new StorageMigrator(resolver, Schedulers.immediate(), configuration(true));
+
+        assertEquals(Long.valueOf(20), migrator.migrate().block());
+
+        assertFalse(resolver.isLegacy());
+        assertTrue(Files.exists(root.resolve("notes.txt")));
+        for (long id = 1000; id < 1020; id++) {
+            assertFalse(Files.exists(root.resolve(Long.toString(id))));
+            assertArrayEquals(new byte[]{(byte) id}, Files.readAllBytes(resolver.resolve(id)));
+        }
+    }
+
+    @Test
+    public void start_disabled() throws IOException {
+        final Path root = Files.createTempDirectory("fileDirectory");
+        Files.createFile(root.resolve("1"));
+        final StorageMigrator migrator = new StorageMigrator(
+            new StoragePathResolver(root, StorageLayout.RANGE, 2), Schedulers.immediate(), configuration(false)
+        );
+
+        migrator.start();
+
+        assertEquals(0, migrator.getMigrated());
+        assertTrue(Files.exists(root.resolve("1")));
+    }
+
+    @Test
+    public void start() throws IOException {
+        final Path root = Files.createTempDirectory("fileDirectory");
+        Files.createFile(root.resolve("1"));
+        final StorageMigrator migrator = new StorageMigrator(
+            new StoragePathResolver(root, StorageLayout.RANGE, 2), Schedulers.immediate(), configuration(true)
+        );
+
+        migrator.start();
+        migrator.stop();
+
+        assertEquals(1, migrator.getMigrated());
+        assertTrue(Files.exists(root.resolve("000/000/1")));
+    }
+
+    private SisyphusServerConfiguration configuration(final boolean migrate) {
+        final SisyphusServerConfiguration configuration = new SisyphusServerConfiguration();
+        configuration.setStorageMigrate(migrate);
+        return configuration;
+    }
+}
@@ -0,0 +1,123 @@
+package io.pozhidaev.sisyphus.service;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static java.nio.file.StandardOpenOption.WRITE;
+import static org.junit.Assert.*;
+
+public class StoragePathResolverTest {
+
+    @Test
+    public void resolve_flat() throws IOException {
+        final Path root = Files.createTempDirectory("fileDirectory");
+        assertEquals(root.resolve("42"), StoragePathResolver.flat(root).resolve(42L));
+    }
+
+    @Test
+    public void resolve_range() throws IOException {
+        final Path root = Files.createTempDirectory("fileDirectory");
+        final StoragePathResolver resolver = new StoragePathResolver(root, StorageLayout.RANGE, 2);
+        assertEquals(root.resolve("001/234/1234567"), resolver.resolve(1234567L));
+        assertEquals(root.resolve("000/000/7"), resolver.resolve(7L));
+    }
+
+    @Test
+    public void resolve_hashed() throws IOException {
+        final Path root = Files.createTempDirectory("fileDirectory");
+        final StoragePathResolver resolver = new StoragePathResolver(root, StorageLayout.HASHED, 3);
+        final Path path = resolver.resolve(1L);
+
+        assertEquals(4, root.relativize(path).getNameCount());
+        assertEquals("1", path.getFileName().toString());
+        assertTrue(root.relativize(path).getName(0).toString().matches("[0-9a-f]{2}"));
+        assertEquals(path, new StoragePathResolver(root, StorageLayout.HASHED, 3).resolve(1L));
+        assertNotEquals(path.getParent(), resolver.resolve(2L).getParent());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void depth_invalid() throws IOException {
+        new StoragePathResolver(Files.createTempDirectory("fileDirectory"), StorageLayout.HASHED, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void depth_rangeTooDeep() throws IOException {
+        new StoragePathResolver(Files.createTempDirectory("fileDirectory"), StorageLayout.RANGE, 7);
+    }
+
+    @Test
+    public void resolve_rangeDeepest() throws IOException {
+        final Path root = Files.createTempDirectory("fileDirectory");
+
+        assertEquals(
+            root.resolve("009/223/372/036/854/775/" + Long.MAX_VALUE),
+            new StoragePathResolver(root, StorageLayout.RANGE, 6).resolve(Long.MAX_VALUE)
+        );
+    }
+
+    @Test
+    public void prepare() throws IOException {
+        final Path root = Files.createTempDirectory("fileDirectory");
+        final Path path = new StoragePathResolver(root, StorageLayout.RANGE, 2).prepare(1234567L);
+
+        assertTrue(Files.isDirectory(path.getParent()));
+        assertFalse(Files.exists(path));
+    }
+
+    @Test
+    public void resolve_legacyFallback() throws IOException {
+        final Path root = Files.createTempDirectory("fileDirectory");
+        Files.write(root.resolve("5"), "foo".getBytes(StandardCharsets.UTF_8));
+        final StoragePathResolver resolver = new StoragePathResolver(root, StorageLayout.RANGE, 1);
+
+        assertTrue(resolver.isLegacy());
+        assertEquals(root.resolve("5"), resolver.resolve(5L));
+        assertEquals(root.resolve("000/6"), resolver.resolve(6L));
+
+        assertTrue(resolver.migrate(5L));
+        assertEquals(root.resolve("000/5"), resolver.resolve(5L));
+        assertFalse(Files.exists(root.resolve("5")));
+        assertFalse(resolver.migrate(5L));
+    }
+
+    @Test
+    public void migrate_keepsOpenChannel() throws IOException {
+        final Path root = Files.createTempDirectory("fileDirectory");
+        Files.write(root.resolve("5"), "foo".getBytes(StandardCharsets.UTF_8));
+        final StoragePathResolver resolver = new StoragePathResolver(root, StorageLayout.HASHED, 2);
+
+        try (FileChannel channel = FileChannel.open(resolver.resolve(5L), WRITE)) {
+            resolver.migrate(5L);
+            channel.write(ByteBuffer.wrap("bar".getBytes(StandardCharsets.UTF_8)), 3);
+        }
+
+        assertEquals("foobar", new String(Files.readAllBytes(resolver.resolve(5L)), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void prepare_flatFileInTheWay() throws IOException {
+        final Path root = Files.createTempDirectory("fileDirectory");
+        Files.write(root.resolve("123"), "foo".getBytes(StandardCharsets.UTF_8));
+        final StoragePathResolver resolver = new StoragePathResolver(root, StorageLayout.RANGE, 1);
+
+        final Path path = resolver.prepare(123_456L);
+
+        assertEquals(root.resolve("123/123456"), path);
+        assertTrue(Files.isDirectory(path.getParent()));
+        assertEquals("foo", new String(Files.readAllBytes(resolver.resolve(123L)), StandardCharsets.UTF_8));
+        assertEquals(root.resolve("000/123"), resolver.resolve(123L));
+    }
+
+    @Test
+    public void migrate_flatLayout() throws IOException {
+        final Path root = Files.createTempDirectory("fileDirectory");
+        Files.createFile(root.resolve("5"));
+        assertFalse(StoragePathResolver.flat(root).migrate(5L));
+    }
+}
@@ -0,0 +1,62 @@
+package io.pozhidaev.sisyphus.service;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class StreamingDigestTest {
+
+    @Test
+    public void encode() {
+        assertEquals("sha1 C+7Hteo/D9vJXQ3UfzxbwnXaijM=", digest(ChecksumAlgorithm.SHA1, "foo").encode());
+        assertEquals("md5 rL0Y20zC+Fzt72VPzMSk2A==", digest(ChecksumAlgorithm.MD5, "foo").encode());
+        assertEquals("crc32 jHNlIQ==", digest(ChecksumAlgorithm.CRC32, "foo").encode());
+    }
+
+    @Test
+    public void update_inParts() {
+        final StreamingDigest digest = ChecksumAlgorithm.SHA256.newDigest();
+        digest.update(ByteBuffer.wrap("fo".getBytes(StandardCharsets.UTF_8)));
+        digest.update(ByteBuffer.wrap("o".getBytes(StandardCharsets.UTF_8)));
+        assertEquals(digest(ChecksumAlgorithm.SHA256, "foo").encode(), digest.encode());
+    }
+
+    @Test
+    public void copy_isIndependent() {
+        final StreamingDigest digest = digest(ChecksumAlgorithm.SHA1, "fo");
+        final StreamingDigest copy = digest.copy();
+        copy.update(ByteBuffer.wrap("o".getBytes(StandardCharsets.UTF_8)));
+
+        assertEquals(digest(ChecksumAlgorithm.SHA1, "foo").encode(), copy.encode());
+        assertEquals(digest(ChecksumAlgorithm.SHA1, "fo").encode(), digest.encode());
+    }
+
+    @Test
+    public void copy_crc32() {
+        final StreamingDigest digest = digest(ChecksumAlgorithm.CRC32, "fo");
+        final StreamingDigest copy = digest.copy();
+        copy.update(ByteBuffer.wrap("o".getBytes(StandardCharsets.UTF_8)));
+        final StreamingDigest copyOfCopy = copy.copy();
+        copyOfCopy.update(ByteBuffer.wrap("bar".getBytes(StandardCharsets.UTF_8)));
+
+        assertEquals(digest(ChecksumAlgorithm.CRC32, "foo").encode(), copy.encode());
+        assertEquals(digest(ChecksumAlgorithm.CRC32, "foobar").encode(), copyOfCopy.encode());
+        assertEquals(digest(ChecksumAlgorithm.CRC32, "fo").encode(), digest.encode());
+        assertEquals(digest(ChecksumAlgorithm.CRC32, "").encode(), ChecksumAlgorithm.CRC32.newDigest().copy().encode());
+    }
+
+    @Test
+    public void algorithm_of() {
+        assertEquals(ChecksumAlgorithm.SHA1, ChecksumAlgorithm.of("SHA1").orElse(null));
+        assertFalse(ChecksumAlgorithm.of("sha3").isPresent());
+    }
+
+    private StreamingDigest digest(final ChecksumAlgorithm algorithm, final String value) {
+        final StreamingDigest digest = algorithm.newDigest();
+        digest.update(ByteBuffer.wrap(value.getBytes(StandardCharsets.UTF_8)));
+        return digest;
+    }
+}
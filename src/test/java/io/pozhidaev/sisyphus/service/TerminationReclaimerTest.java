@@ -0,0 +1,53 @@
+package io.pozhidaev.sisyphus.service;
+
+import io.pozhidaev.sisyphus.configurations.SisyphusServerConfiguration;
+import io.pozhidaev.sisyphus.domain.File;
+import io.pozhidaev.sisyphus.repository.ReactiveFileRepository;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import reactor.core.publisher.Mono;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TerminationReclaimerTest {
+
+    private final UploadService uploadService = Mockito.mock(UploadService.class);
+    private final ReactiveFileRepository fileRepository = Mockito.mock(ReactiveFileRepository.class);
+    private final InFlightLimiter inFlightLimiter = Mockito.mock(InFlightLimiter.class);
+    private TerminationReclaimer reclaimer;
+
+    @Before
+    public void setUp() {
+        final SisyphusServerConfiguration configuration = new SisyphusServerConfiguration();
+        configuration.setReclaimBatchSize(2);
+        reclaimer = new TerminationReclaimer(uploadService, fileRepository, inFlightLimiter, new ClusterNodes(configuration), configuration);
+    }
+
+    @Test
+    public void reclaim() {
+        final List<File> batch = Arrays.asList(File.builder().id(1L).build(), File.builder().id(2L).build());
+        Mockito.when(fileRepository.findTerminated(-1, 2)).thenReturn(Mono.just(batch));
+        Mockito.when(uploadService.reclaim(batch)).thenReturn(Mono.just(2));
+
+        assertEquals(Integer.valueOf(2), reclaimer.reclaim().block());
+    }
+
+    @Test
+    public void reclaim_congested() {
+        Mockito.when(inFlightLimiter.isCongested()).thenReturn(true);
+
+        assertEquals(Integer.valueOf(0), reclaimer.reclaim().block());
+        Mockito.verifyZeroInteractions(fileRepository);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void batchSize_invalid() {
+        final SisyphusServerConfiguration configuration = new SisyphusServerConfiguration();
+        configuration.setReclaimBatchSize(0);
+        new TerminationReclaimer(uploadService, fileRepository, inFlightLimiter, new ClusterNodes(configuration), configuration);
+    }
+}
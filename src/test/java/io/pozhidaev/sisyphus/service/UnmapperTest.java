@@ -0,0 +1,33 @@
+package io.pozhidaev.sisyphus.service;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static org.junit.Assert.*;
+
+public class UnmapperTest {
+
+    @Test
+    public void unmap() throws IOException {
+        final Path file = Files.createTempFile("unmapper", ".bin");
+        Files.write(file, new byte[3]);
+        final MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, READ, WRITE)) {
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, 3);
+        }
+        buffer.put("foo".getBytes(StandardCharsets.UTF_8));
+        buffer.force();
+
+        assertTrue(Unmapper.unmap(buffer));
+        assertEquals("foo", new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+        Files.delete(file);
+    }
+}
@@ -0,0 +1,155 @@
+package io.pozhidaev.sisyphus.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.pozhidaev.sisyphus.configurations.SisyphusServerConfiguration;
+import io.pozhidaev.sisyphus.domain.File;
+import io.pozhidaev.sisyphus.repository.ReactiveFileRepository;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.IOException;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.nio.file.StandardOpenOption.WRITE;
+import static org.junit.Assert.*;
+
+/**
+ * Retrying clients racing each other on one upload, each sending the chunk at the offset it last saw.
+ * Every chunk has to end up written once, at its place, whoever wins.
+ */
+public class UploadConcurrencyTest {
+
+    private static final int CHUNK = 1024;
+    private static final int CHUNKS = 64;
+    private static final int CLIENTS = 8;
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final DefaultDataBufferFactory factory = new DefaultDataBufferFactory();
+    private final ReactiveFileRepository fileRepository = Mockito.mock(ReactiveFileRepository.class);
+    private final MetadataWriter metadataWriter = Mockito.mock(MetadataWriter.class);
+    private Path directory;
+    private UploadService uploadService;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("uploadConcurrency");
+        final SisyphusServerConfiguration configuration = new SisyphusServerConfiguration();
+        final FileChannelPool channelPool = new FileChannelPool(path -> Mono.fromCallable(() ->
+            AsynchronousFileChannel.open(path, WRITE)
+        ), configuration);
+        final UploadStateCache uploadStateCache = new UploadStateCache(fileRepository, metadataWriter, configuration);
+        final UploadMetrics metrics = new UploadMetrics(meterRegistry, uploadStateCache, channelPool);
+        final LocalStorage localStorage = new LocalStorage();
+        localStorage.setPathResolver(StoragePathResolver.flat(directory));
+        localStorage.setChannelPool(channelPool);
+        localStorage.setStorageScheduler(Schedulers.immediate());
+        localStorage.setMetrics(metrics);
+        localStorage.setGroupCommitter(new GroupCommitter(Schedulers.immediate(), configuration));
+        localStorage.setConfiguration(configuration);
+        uploadService = new UploadService(localStorage, fileRepository, metadataWriter, uploadStateCache, metrics,
+            new InFlightLimiter(configuration, meterRegistry));
+
+        final File file = File.builder().id(1L).contentLength((long) CHUNK * CHUNKS).contentOffset(0L)
+            .lastUploadedChunkNumber(0L).build();
+        Mockito.when(fileRepository.findById(1L)).thenAnswer(invocation -> Mono.fromSupplier(() -> {
+            synchronized (file) {
+                return File.builder().id(1L).contentLength(file.getContentLength()).contentOffset(file.getContentOffset())
+                    .lastUploadedChunkNumber(file.getLastUploadedChunkNumber()).build();
+            }
+        }));
+        Mockito.when(metadataWriter.updateOffsets(Mockito.any())).thenAnswer(invocation -> Mono.fromSupplier(() -> {
+            synchronized (file) {
+                invocation.<Collection<File>>getArgument(0).stream()
+                    .filter(flushed -> flushed.getContentOffset() >= file.getContentOffset())
+                    .forEach(flushed -> {
+                        file.setContentOffset(flushed.getContentOffset());
+                        file.setLastUploadedChunkNumber(flushed.getLastUploadedChunkNumber());
+                    });
+                return 1;
+            }
+        }));
+        localStorage.createFile(file).block();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(directory.toFile());
+    }
+
+    @Test
+    public void patch_sameUpload() throws InterruptedException {
+        final Map<HttpStatus, AtomicLong> rejected = new ConcurrentHashMap<>();
+        final ExecutorService clients = Executors.newFixedThreadPool(CLIENTS);
+        final CountDownLatch start = new CountDownLatch(1);
+        for (int i = 0; i < CLIENTS; i++) {
+            clients.execute(() -> {
+                try {
+                    start.await();
+                    long offset;
+                    while ((offset = uploadService.getUploadState(1L).block().getContentOffset()) < CHUNK * CHUNKS) {
+                        try {
+                            uploadService.uploadChunkAndGetUpdatedOffset(1L, chunk(offset), offset, CHUNK, null).block();
+                        } catch (ResponseStatusException e) {
+                            rejected.computeIfAbsent(e.getStatus(), k -> new AtomicLong()).incrementAndGet();
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+        start.countDown();
+        clients.shutdown();
+        assertTrue(clients.awaitTermination(1, TimeUnit.MINUTES));
+
+        final UploadState state = uploadService.getUploadState(1L).block();
+        assertEquals(CHUNK * CHUNKS, state.getContentOffset());
+        assertEquals(CHUNKS, state.getLastUploadedChunkNumber());
+        assertFalse(state.isWriting());
+        assertFalse("No chunk was rejected: " + rejected, rejected.isEmpty());
+        assertTrue(rejected.keySet().stream().allMatch(s -> s == HttpStatus.LOCKED || s == HttpStatus.CONFLICT));
+        try {
+            final byte[] content = Files.readAllBytes(directory.resolve("1"));
+            for (int i = 0; i < CHUNKS; i++) {
+                final byte[] expected = new byte[CHUNK];
+                Arrays.fill(expected, (byte) i);
+                assertArrayEquals("Chunk " + i, expected, Arrays.copyOfRange(content, i * CHUNK, (i + 1) * CHUNK));
+            }
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    /**
+     * The chunk of the offset in two halves arriving a moment apart, like a body read from the network.
+     */
+    private Flux<DataBuffer> chunk(final long offset) {
+        final byte[] half = new byte[CHUNK / 2];
+        Arrays.fill(half, (byte) (offset / CHUNK));
+        return Flux.just(half, half.clone())
+            .delayElements(Duration.ofMillis(1))
+            .map(factory::wrap);
+    }
+}
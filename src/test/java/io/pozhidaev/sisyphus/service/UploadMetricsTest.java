@@ -0,0 +1,56 @@
+package io.pozhidaev.sisyphus.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mockito;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import static org.junit.Assert.*;
+
+@RunWith(SpringRunner.class)
+public class UploadMetricsTest {
+
+    @MockBean
+    UploadStateCache uploadStateCache;
+
+    @MockBean
+    FileChannelPool channelPool;
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    @Test
+    public void gauges() {
+        Mockito.when(uploadStateCache.size()).thenReturn(3);
+        Mockito.when(channelPool.getOpenChannels()).thenReturn(2);
+        Mockito.when(channelPool.getOpens()).thenReturn(5L);
+        new UploadMetrics(meterRegistry, uploadStateCache, channelPool);
+
+        assertEquals(3, meterRegistry.get("sisyphus.uploads.active").gauge().value(), 0);
+        assertEquals(2, meterRegistry.get("sisyphus.channels.open").gauge().value(), 0);
+        assertEquals(5, meterRegistry.get("sisyphus.channels.opens").functionCounter().count(), 0);
+    }
+
+    @Test
+    public void outcomes() {
+        final UploadMetrics metrics = new UploadMetrics(meterRegistry, uploadStateCache, channelPool);
+        metrics.uploadCreated();
+        metrics.uploadCreated();
+        metrics.uploadCompleted();
+        metrics.uploadFailed();
+        metrics.checksumMismatch();
+
+        assertEquals(2, meterRegistry.get("sisyphus.uploads").tag("outcome", "created").counter().count(), 0);
+        assertEquals(1, meterRegistry.get("sisyphus.uploads").tag("outcome", "completed").counter().count(), 0);
+        assertEquals(1, meterRegistry.get("sisyphus.uploads").tag("outcome", "failed").counter().count(), 0);
+        assertEquals(1, meterRegistry.get("sisyphus.uploads").tag("outcome", "checksum_mismatch").counter().count(), 0);
+    }
+
+    @Test
+    public void storageMeters_sharedPerBackend() {
+        final UploadMetrics metrics = new UploadMetrics(meterRegistry, uploadStateCache, channelPool);
+        assertSame(metrics.chunkWrites("local"), metrics.chunkWrites("local"));
+        assertNotSame(metrics.bytesWritten("local"), metrics.bytesWritten("s3"));
+    }
+}
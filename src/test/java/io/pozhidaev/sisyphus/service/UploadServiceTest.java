@@ -1,7 +1,10 @@
 package io.pozhidaev.sisyphus.service;
 
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.pozhidaev.sisyphus.configurations.SisyphusServerConfiguration;
+import io.pozhidaev.sisyphus.domain.ConcatType;
 import io.pozhidaev.sisyphus.domain.File;
-import io.pozhidaev.sisyphus.repository.FileRepository;
+import io.pozhidaev.sisyphus.repository.ReactiveFileRepository;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
@@ -11,18 +14,29 @@ import org.springframework.boot.test.mock.mockito.MockBean;
 import org.springframework.core.io.buffer.DataBuffer;
 import org.springframework.core.io.buffer.DefaultDataBuffer;
 import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.HttpStatus;
 import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.web.server.ResponseStatusException;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Arrays;
 import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
 
-import static org.junit.Assert.assertEquals;
-import static org.junit.Assert.fail;
+import static org.junit.Assert.*;
 
 @RunWith(SpringRunner.class)
 public class UploadServiceTest {
@@ -32,13 +46,23 @@ public class UploadServiceTest {
     FileStorage fileStorage;
 
     @MockBean
-    FileRepository fileRepository;
+    ReactiveFileRepository fileRepository;
 
+    @MockBean
+    MetadataWriter metadataWriter;
+
+    @MockBean
+    UploadStateCache uploadStateCache;
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
     private UploadService uploadService;
 
     @Before
     public void before() {
-        uploadService = new UploadService(fileStorage, fileRepository);
+        uploadService = new UploadService(fileStorage, fileRepository, metadataWriter, uploadStateCache,
+            new UploadMetrics(meterRegistry, uploadStateCache, Mockito.mock(FileChannelPool.class)),
+            new InFlightLimiter(new SisyphusServerConfiguration(), meterRegistry));
+        Mockito.when(fileStorage.checkSpace(Mockito.any())).thenReturn(Mono.empty());
     }
 
 
@@ -63,22 +87,44 @@ public class UploadServiceTest {
             .build();
 
         Mockito
-            .when(fileRepository.save(commingFile))
-            .thenReturn(outcomeFile);
+            .when(metadataWriter.insert(commingFile))
+            .thenReturn(Mono.just(outcomeFile));
 
         Mockito
             .when(fileStorage.createFile(outcomeFile))
             .thenReturn(Mono.just(outcomeFile));
 
         uploadService
-            .createUpload(File.builder()
-                    .contentLength(15L)
-                    .originalName("test45")
-                    .mimeType("application/test")
-                    .build())
+            .createUpload(commingFile)
             .doOnError(throwable -> fail())
-            .subscribe(file -> assertEquals(file.getId(), outcomeFile.getId()))
-        ;
+            .subscribe(file -> assertEquals(file.getId(), outcomeFile.getId()));
+        assertEquals(1, meterRegistry.get("sisyphus.uploads").tag("outcome", "created").counter().count(), 0);
+    }
+
+    @Test
+    public void createUpload_noSpace() {
+        final File file = File.builder().mimeType("test").contentLength(15L).build();
+        Mockito.when(fileStorage.checkSpace(15L))
+            .thenReturn(Mono.error(new ResponseStatusException(HttpStatus.INSUFFICIENT_STORAGE, "No space")));
+
+        StepVerifier.create(uploadService.createUpload(file)).verifyError(ResponseStatusException.class);
+        Mockito.verify(metadataWriter, Mockito.never()).insert(Mockito.any());
+    }
+
+    @Test
+    public void createUpload_storageFailed() {
+        final File file = File.builder().mimeType("test").contentLength(15L).build();
+        Mockito.when(metadataWriter.insert(file)).thenAnswer(invocation -> {
+            file.setId(1L);
+            return Mono.just(file);
+        });
+        Mockito.when(fileStorage.createFile(file))
+            .thenReturn(Mono.error(new ResponseStatusException(HttpStatus.INSUFFICIENT_STORAGE, "No space")));
+        Mockito.when(fileRepository.deleteById(1L)).thenReturn(Mono.just(true));
+
+        StepVerifier.create(uploadService.createUpload(file)).verifyError(ResponseStatusException.class);
+        Mockito.verify(fileRepository).deleteById(1L);
+        Mockito.verify(uploadStateCache, Mockito.never()).register(Mockito.any());
     }
 
     @Test
@@ -98,12 +144,163 @@ public class UploadServiceTest {
             .contentOffset(0L)
             .build();
 
-        Mockito.when(fileStorage.writeChunk(id, body, 0)).thenReturn(Mono.just(55));
-        Mockito.when(fileRepository.findById(id)).thenReturn(Optional.of(file));
-        Mockito.when(fileRepository.save(file)).thenReturn(file);
+        final UploadState state = new UploadState(file);
 
-        final Mono<File> longMono = uploadService.uploadChunkAndGetUpdatedOffset(id, body, 0,3);
-        longMono.subscribe(v -> Assert.assertEquals(v.getContentOffset(), new Long(3)));
+        Mockito.when(fileStorage.writeChunk(Mockito.eq(id), Mockito.any(), Mockito.eq(0L))).thenReturn(Mono.just(3));
+        Mockito.when(uploadStateCache.get(id)).thenReturn(Mono.just(state));
+        Mockito.when(uploadStateCache.advance(state, 3)).thenReturn(Mono.just(state.advance(3)));
+
+        final Mono<UploadState> longMono = uploadService.uploadChunkAndGetUpdatedOffset(id, body, 0, 3, null);
+        longMono.subscribe(v -> Assert.assertEquals(v.getContentOffset(), 3));
+    }
+
+    @Test
+    public void uploadChunkAndGetUpdatedOffset_complete() {
+        final Flux<DataBuffer> body = Flux.just(new DefaultDataBufferFactory()
+            .wrap(ByteBuffer.wrap("foo".getBytes(StandardCharsets.UTF_8))));
+        final UploadState state = new UploadState(File.builder()
+            .id(1L).contentLength(3L).contentOffset(0L).lastUploadedChunkNumber(0L).build());
+
+        Mockito.when(fileStorage.writeChunk(Mockito.eq(1L), Mockito.any(), Mockito.eq(0L))).thenReturn(Mono.just(3));
+        Mockito.when(fileStorage.complete(1L)).thenReturn(Mono.empty());
+        Mockito.when(uploadStateCache.get(1L)).thenReturn(Mono.just(state));
+        Mockito.when(uploadStateCache.advance(state, 3)).thenAnswer(invocation -> Mono.just(state.advance(3)));
+
+        assertEquals(3, uploadService.uploadChunkAndGetUpdatedOffset(1L, body, 0, 3, null).block().getContentOffset());
+        Mockito.verify(fileStorage).complete(1L);
+        assertEquals(1, meterRegistry.get("sisyphus.uploads").tag("outcome", "completed").counter().count(), 0);
+    }
+
+    @Test
+    public void uploadChunkAndGetUpdatedOffset_deduplicated() {
+        final Flux<DataBuffer> body = Flux.just(new DefaultDataBufferFactory()
+            .wrap(ByteBuffer.wrap("foo".getBytes(StandardCharsets.UTF_8))));
+        final UploadState state = new UploadState(File.builder()
+            .id(1L).contentLength(3L).contentOffset(0L).lastUploadedChunkNumber(0L).build());
+        state.setFileDigest(ChecksumAlgorithm.of("sha1").get().newDigest());
+
+        Mockito.when(fileStorage.writeChunk(Mockito.eq(1L), Mockito.any(), Mockito.eq(0L))).thenAnswer(invocation ->
+            invocation.<Flux<DataBuffer>>getArgument(1).then(Mono.just(3))
+        );
+        Mockito.when(fileStorage.complete(1L)).thenReturn(Mono.empty());
+        Mockito.when(fileStorage.deduplicate(Mockito.eq(1L), Mockito.startsWith("sha1 "), Mockito.eq(3L))).thenReturn(Mono.just(3L));
+        Mockito.when(uploadStateCache.get(1L)).thenReturn(Mono.just(state));
+        Mockito.when(uploadStateCache.advance(state, 3)).thenAnswer(invocation -> Mono.just(state.advance(3)));
+
+        assertEquals(3, uploadService.uploadChunkAndGetUpdatedOffset(1L, body, 0, 3, null).block().getContentOffset());
+        assertEquals(1, meterRegistry.get("sisyphus.dedup.uploads").counter().count(), 0);
+        assertEquals(3, meterRegistry.get("sisyphus.dedup.bytes.saved").counter().count(), 0);
+    }
+
+    @Test
+    public void uploadChunkAndGetUpdatedOffset_deduplicationFailed() {
+        final UploadState state = new UploadState(File.builder()
+            .id(1L).contentLength(3L).contentOffset(0L).lastUploadedChunkNumber(0L).checksum("sha1 C+7Hteo/D9vJXQ3UfzxbwnXaijM=").build());
+
+        Mockito.when(fileStorage.writeChunk(Mockito.eq(1L), Mockito.any(), Mockito.eq(0L))).thenReturn(Mono.just(3));
+        Mockito.when(fileStorage.complete(1L)).thenReturn(Mono.empty());
+        Mockito.when(fileStorage.deduplicate(Mockito.any(), Mockito.any(), Mockito.anyLong()))
+            .thenReturn(Mono.error(new RuntimeException("Deduplication failed: 1")));
+        Mockito.when(uploadStateCache.get(1L)).thenReturn(Mono.just(state));
+        Mockito.when(uploadStateCache.advance(state, 3)).thenAnswer(invocation -> Mono.just(state.advance(3)));
+
+        assertTrue(uploadService.uploadChunkAndGetUpdatedOffset(1L, Flux.empty(), 0, 3, null).block().isComplete());
+        assertEquals(0, meterRegistry.get("sisyphus.dedup.uploads").counter().count(), 0);
+    }
+
+    @Test
+    public void uploadChunkAndGetUpdatedOffset_mapped() {
+        final Flux<DataBuffer> body = Flux.just(new DefaultDataBufferFactory()
+            .wrap(ByteBuffer.wrap("foo".getBytes(StandardCharsets.UTF_8))));
+        final UploadState state = new UploadState(File.builder()
+            .id(1L).contentLength(3L).contentOffset(0L).lastUploadedChunkNumber(0L).build());
+        final MappedFileStorage mappedStorage = Mockito.mock(MappedFileStorage.class);
+        uploadService.setMappedStorage(mappedStorage);
+
+        Mockito.when(mappedStorage.accepts(3L)).thenReturn(true);
+        Mockito.when(mappedStorage.writeChunk(Mockito.eq(1L), Mockito.any(), Mockito.eq(0L))).thenReturn(Mono.just(3));
+        Mockito.when(mappedStorage.complete(1L)).thenReturn(Mono.empty());
+        Mockito.when(uploadStateCache.get(1L)).thenReturn(Mono.just(state));
+        Mockito.when(uploadStateCache.advance(state, 3)).thenAnswer(invocation -> Mono.just(state.advance(3)));
+
+        assertEquals(3, uploadService.uploadChunkAndGetUpdatedOffset(1L, body, 0, 3, null).block().getContentOffset());
+        Mockito.verify(mappedStorage).complete(1L);
+        Mockito.verifyZeroInteractions(fileStorage);
+    }
+
+    @Test
+    public void uploadChunkAndGetUpdatedOffset_checksum() {
+        final Flux<DataBuffer> body = Flux.just(new DefaultDataBufferFactory()
+            .wrap(ByteBuffer.wrap("foo".getBytes(StandardCharsets.UTF_8))));
+        final UploadState state = new UploadState(File.builder()
+            .id(1L).contentLength(10L).contentOffset(0L).lastUploadedChunkNumber(0L).build());
+        state.setFileDigest(ChecksumAlgorithm.SHA1.newDigest());
+
+        Mockito.when(fileStorage.writeChunk(Mockito.eq(1L), Mockito.any(), Mockito.eq(0L)))
+            .thenAnswer(invocation -> invocation.<Flux<DataBuffer>>getArgument(1).then(Mono.just(3)));
+        Mockito.when(uploadStateCache.get(1L)).thenReturn(Mono.just(state));
+        Mockito.when(uploadStateCache.advance(state, 3)).thenAnswer(invocation -> Mono.just(state.advance(3)));
+
+        final UploadState result = uploadService
+            .uploadChunkAndGetUpdatedOffset(1L, body, 0, 3, "sha1 C+7Hteo/D9vJXQ3UfzxbwnXaijM=")
+            .block();
+
+        assertEquals(3, result.getContentOffset());
+        assertEquals("sha1 C+7Hteo/D9vJXQ3UfzxbwnXaijM=", state.getFileDigest().encode());
+    }
+
+    @Test
+    public void uploadChunkAndGetUpdatedOffset_checksumMismatch() {
+        final Flux<DataBuffer> body = Flux.just(new DefaultDataBufferFactory()
+            .wrap(ByteBuffer.wrap("foo".getBytes(StandardCharsets.UTF_8))));
+        final UploadState state = new UploadState(File.builder()
+            .id(1L).contentLength(10L).contentOffset(0L).lastUploadedChunkNumber(0L).build());
+        final StreamingDigest fileDigest = ChecksumAlgorithm.SHA1.newDigest();
+        state.setFileDigest(fileDigest);
+
+        Mockito.when(fileStorage.writeChunk(Mockito.eq(1L), Mockito.any(), Mockito.eq(0L)))
+            .thenAnswer(invocation -> invocation.<Flux<DataBuffer>>getArgument(1).then(Mono.just(3)));
+        Mockito.when(uploadStateCache.get(1L)).thenReturn(Mono.just(state));
+
+        uploadService
+            .uploadChunkAndGetUpdatedOffset(1L, body, 0, 3, "crc32 AAAAAA==")
+            .as(StepVerifier::create)
+            .expectError(ChecksumMismatchException.class)
+            .verify();
+
+        assertEquals(0, state.getContentOffset());
+        assertSame(fileDigest, state.getFileDigest());
+        Mockito.verify(uploadStateCache, Mockito.never()).advance(Mockito.any(), Mockito.anyLong());
+        assertEquals(1, meterRegistry.get("sisyphus.uploads").tag("outcome", "checksum_mismatch").counter().count(), 0);
+        assertEquals(0, meterRegistry.get("sisyphus.uploads").tag("outcome", "failed").counter().count(), 0);
+    }
+
+    @Test
+    public void uploadChunkAndGetUpdatedOffset_checksumUnsupported() {
+        uploadService
+            .uploadChunkAndGetUpdatedOffset(1L, Flux.empty(), 0, 3, "sha3 AAAA")
+            .as(StepVerifier::create)
+            .expectErrorMatches(e -> e instanceof ResponseStatusException
+                && ((ResponseStatusException) e).getStatus() == HttpStatus.BAD_REQUEST)
+            .verify();
+        Mockito.verify(uploadStateCache, Mockito.never()).get(Mockito.any());
+        assertEquals(0, meterRegistry.get("sisyphus.uploads").tag("outcome", "failed").counter().count(), 0);
+    }
+
+    @Test
+    public void parseChecksum() {
+        assertFalse(uploadService.parseChecksum(null).isPresent());
+        assertTrue(uploadService.parseChecksum("md5 rL0Y20zC+Fzt72VPzMSk2A==").isPresent());
+    }
+
+    @Test(expected = ResponseStatusException.class)
+    public void parseChecksum_invalid() {
+        uploadService.parseChecksum("md5 ###");
+    }
+
+    @Test(expected = ResponseStatusException.class)
+    public void parseChecksum_noValue() {
+        uploadService.parseChecksum("md5");
     }
 
     @Test(expected = RuntimeException.class)
@@ -123,13 +320,447 @@ public class UploadServiceTest {
             .contentOffset(0L)
             .build();
 
-        Mockito.when(fileStorage.writeChunk(id, body, 0)).thenReturn(Mono.just(55));
-        Mockito.when(fileRepository.findById(id)).thenReturn(Optional.empty());
-        Mockito.when(fileRepository.save(file)).thenReturn(file);
+        Mockito.when(fileStorage.writeChunk(Mockito.eq(id), Mockito.any(), Mockito.eq(0L))).thenReturn(Mono.just(55));
+        Mockito.when(uploadStateCache.get(id)).thenReturn(Mono.empty());
+        Mockito.when(uploadStateCache.advance(Mockito.any(), Mockito.anyLong()))
+            .thenReturn(Mono.just(new UploadState(file)));
+
+        uploadService.uploadChunkAndGetUpdatedOffset(id, body, 0, 3, null).block();
+    }
+
+    @Test
+    public void concatenateUploads() {
+        final File first = partial(1L, 3L, 3L);
+        final File second = partial(2L, 4L, 4L);
+        Mockito.when(fileRepository.findById(1L)).thenReturn(Mono.just(first));
+        Mockito.when(fileRepository.findById(2L)).thenReturn(Mono.just(second));
+        Mockito.when(uploadStateCache.peek(Mockito.anyLong())).thenReturn(Optional.empty());
+        Mockito.when(metadataWriter.insert(Mockito.any())).thenAnswer(invocation -> {
+            final File inserted = invocation.getArgument(0);
+            inserted.setId(3L);
+            return Mono.just(inserted);
+        });
+        Mockito.when(fileRepository.save(Mockito.any())).thenAnswer(invocation -> Mono.just(invocation.getArgument(0)));
+        Mockito.when(fileStorage.createFile(Mockito.any())).thenAnswer(invocation -> Mono.just(invocation.getArgument(0)));
+        Mockito.when(fileStorage.concatenate(Mockito.any(), Mockito.eq(Arrays.asList(first, second))))
+            .thenAnswer(invocation -> Mono.just(invocation.getArgument(0)));
+
+        final File result = uploadService
+            .concatenateUploads(File.builder().mimeType("test").build(), Arrays.asList(1L, 2L))
+            .block();
+
+        assertEquals(ConcatType.FINAL, result.getConcatType());
+        assertEquals("1 2", result.getConcatParts());
+        assertEquals(Long.valueOf(7), result.getContentLength());
+        assertEquals(Long.valueOf(7), result.getContentOffset());
+        Mockito.verify(uploadStateCache).register(result);
+    }
+
+    @Test
+    public void concatenateUploads_tooManyParts() {
+        final List<Long> partIds = LongStream.range(0, 1000).map(i -> 1_000_000L + i).boxed().collect(Collectors.toList());
+
+        StepVerifier
+            .create(uploadService.concatenateUploads(File.builder().mimeType("test").build(), partIds))
+            .expectErrorMatches(e -> e instanceof ResponseStatusException
+                && ((ResponseStatusException) e).getStatus() == HttpStatus.BAD_REQUEST)
+            .verify();
+        Mockito.verify(fileRepository, Mockito.never()).findById(Mockito.anyLong());
+    }
+
+    @Test
+    public void concatenateUploads_stitchFailed() {
+        final File first = partial(1L, 3L, 3L);
+        Mockito.when(fileRepository.findById(1L)).thenReturn(Mono.just(first));
+        Mockito.when(uploadStateCache.peek(Mockito.anyLong())).thenReturn(Optional.empty());
+        Mockito.when(metadataWriter.insert(Mockito.any())).thenAnswer(invocation -> {
+            final File inserted = invocation.getArgument(0);
+            inserted.setId(3L);
+            return Mono.just(inserted);
+        });
+        Mockito.when(fileStorage.createFile(Mockito.any())).thenAnswer(invocation -> Mono.just(invocation.getArgument(0)));
+        Mockito.when(fileStorage.concatenate(Mockito.any(), Mockito.any())).thenReturn(Mono.error(new RuntimeException("disk")));
+        Mockito.when(fileStorage.delete(Mockito.any())).thenReturn(Mono.empty());
+        Mockito.when(fileRepository.deleteById(3L)).thenReturn(Mono.just(true));
+
+        StepVerifier
+            .create(uploadService.concatenateUploads(File.builder().mimeType("test").build(), Collections.singletonList(1L)))
+            .verifyErrorMessage("disk");
+        Mockito.verify(fileStorage).delete(Mockito.argThat(f -> f.getId() == 3L));
+        Mockito.verify(fileRepository).deleteById(3L);
+        Mockito.verify(fileRepository, Mockito.never()).save(Mockito.any());
+    }
+
+    @Test
+    public void concatenateUploads_incompletePart() {
+        Mockito.when(fileRepository.findById(1L)).thenReturn(Mono.just(partial(1L, 3L, 2L)));
+        Mockito.when(uploadStateCache.peek(1L)).thenReturn(Optional.empty());
+
+        uploadService
+            .concatenateUploads(File.builder().build(), Collections.singletonList(1L))
+            .as(StepVerifier::create)
+            .expectErrorMatches(e -> e instanceof ResponseStatusException
+                && ((ResponseStatusException) e).getStatus() == HttpStatus.BAD_REQUEST)
+            .verify();
+        Mockito.verify(fileStorage, Mockito.never()).concatenate(Mockito.any(), Mockito.any());
+    }
+
+    @Test
+    public void concatenateUploads_notPartial() {
+        final File file = partial(1L, 3L, 3L);
+        file.setConcatType(null);
+        Mockito.when(fileRepository.findById(1L)).thenReturn(Mono.just(file));
+        Mockito.when(uploadStateCache.peek(1L)).thenReturn(Optional.empty());
+
+        uploadService
+            .concatenateUploads(File.builder().build(), Collections.singletonList(1L))
+            .as(StepVerifier::create)
+            .expectError(ResponseStatusException.class)
+            .verify();
+    }
+
+    @Test
+    public void concatenateUploads_missingPart() {
+        Mockito.when(fileRepository.findById(1L)).thenReturn(Mono.empty());
+
+        uploadService
+            .concatenateUploads(File.builder().build(), Collections.singletonList(1L))
+            .as(StepVerifier::create)
+            .expectError(ResponseStatusException.class)
+            .verify();
+    }
+
+    @Test
+    public void uploadChunkAndGetUpdatedOffset_offsetMismatch() {
+        Mockito.when(uploadStateCache.get(3L)).thenReturn(Mono.just(new UploadState(partial(3L, 10L, 4L))));
+
+        uploadService
+            .uploadChunkAndGetUpdatedOffset(3L, Flux.error(new AssertionError("Body read")), 2, 3, null)
+            .as(StepVerifier::create)
+            .expectErrorMatches(e -> e instanceof ResponseStatusException
+                && ((ResponseStatusException) e).getStatus() == HttpStatus.CONFLICT)
+            .verify();
+        Mockito.verify(fileStorage, Mockito.never()).writeChunk(Mockito.any(), Mockito.any(), Mockito.anyLong());
+    }
+
+    @Test
+    public void uploadChunkAndGetUpdatedOffset_exceedsLength() {
+        Mockito.when(uploadStateCache.get(3L)).thenReturn(Mono.just(new UploadState(partial(3L, 10L, 4L))));
 
-        final Mono<File> longMono = uploadService.uploadChunkAndGetUpdatedOffset(id, body, 0,3);
-        longMono.subscribe(v -> Assert.assertEquals(v.getContentOffset(), new Long(55)));
+        uploadService
+            .uploadChunkAndGetUpdatedOffset(3L, Flux.error(new AssertionError("Body read")), 4, 7, null)
+            .as(StepVerifier::create)
+            .expectErrorMatches(e -> e instanceof ResponseStatusException
+                && ((ResponseStatusException) e).getStatus() == HttpStatus.PAYLOAD_TOO_LARGE)
+            .verify();
+        Mockito.verify(fileStorage, Mockito.never()).writeChunk(Mockito.any(), Mockito.any(), Mockito.anyLong());
+    }
+
+    @Test
+    public void uploadChunkAndGetUpdatedOffset_locked() {
+        final UploadState state = new UploadState(partial(3L, 10L, 4L));
+        Mockito.when(uploadStateCache.get(3L)).thenReturn(Mono.just(state));
+        assertTrue(state.tryAcquireWrite());
+
+        uploadService
+            .uploadChunkAndGetUpdatedOffset(3L, Flux.error(new AssertionError("Body read")), 4, 3, null)
+            .as(StepVerifier::create)
+            .expectErrorMatches(e -> e instanceof ResponseStatusException
+                && ((ResponseStatusException) e).getStatus() == HttpStatus.LOCKED)
+            .verify();
+        Mockito.verify(fileStorage, Mockito.never()).writeChunk(Mockito.any(), Mockito.any(), Mockito.anyLong());
+        assertTrue(state.isWriting());
+    }
+
+    @Test
+    public void uploadChunkAndGetUpdatedOffset_evicted() {
+        final UploadState evicted = new UploadState(partial(3L, 10L, 4L));
+        assertTrue(evicted.tryEvict());
+        final UploadState reloaded = new UploadState(partial(3L, 10L, 4L));
+        Mockito.when(uploadStateCache.get(3L)).thenReturn(Mono.just(evicted), Mono.just(reloaded));
+        Mockito.when(uploadStateCache.advance(reloaded, 3)).thenAnswer(invocation -> Mono.just(reloaded.advance(3)));
+        Mockito.when(fileStorage.writeChunk(Mockito.eq(3L), Mockito.any(), Mockito.eq(4L))).thenReturn(Mono.just(3));
+
+        StepVerifier
+            .create(uploadService.uploadChunkAndGetUpdatedOffset(3L, Flux.empty(), 4, 3, null))
+            .expectNext(reloaded)
+            .verifyComplete();
+        assertEquals(7, reloaded.getContentOffset());
+        assertFalse(reloaded.isWriting());
+    }
+
+    @Test
+    public void uploadChunkAndGetUpdatedOffset_releasesWrite() {
+        final UploadState state = new UploadState(partial(3L, 10L, 4L));
+        Mockito.when(uploadStateCache.get(3L)).thenReturn(Mono.just(state));
+        Mockito.when(fileStorage.writeChunk(Mockito.eq(3L), Mockito.any(), Mockito.eq(4L)))
+            .thenReturn(Mono.error(new RuntimeException("file write error")));
+
+        StepVerifier.create(uploadService.uploadChunkAndGetUpdatedOffset(3L, Flux.empty(), 4, 3, null)).verifyError();
+        StepVerifier.create(uploadService.uploadChunkAndGetUpdatedOffset(3L, Flux.empty(), 2, 3, null)).verifyError();
+        assertFalse(state.isWriting());
+        assertEquals(1, meterRegistry.get("sisyphus.uploads").tag("outcome", "failed").counter().count(), 0);
+    }
+
+    @Test
+    public void uploadChunkAndGetUpdatedOffset_truncated() {
+        final UploadState state = new UploadState(partial(3L, 10L, 4L));
+        final Flux<DataBuffer> body = Flux.concat(
+            Flux.just(new DefaultDataBufferFactory().wrap("fo".getBytes(StandardCharsets.UTF_8))),
+            Flux.error(new IOException("Connection reset by peer"))
+        );
+        Mockito.when(uploadStateCache.get(3L)).thenReturn(Mono.just(state));
+        Mockito.when(fileStorage.writeChunk(Mockito.eq(3L), Mockito.any(), Mockito.eq(4L))).thenAnswer(invocation -> invocation
+            .<Flux<DataBuffer>>getArgument(1)
+            .map(DataBuffer::readableByteCount)
+            .reduce(0, Integer::sum));
+        Mockito.when(uploadStateCache.advance(state, 2)).thenAnswer(invocation -> Mono.just(state.advance(2)));
+
+        assertEquals(6, uploadService.uploadChunkAndGetUpdatedOffset(3L, body, 4, 3, null).block().getContentOffset());
+    }
+
+    @Test
+    public void uploadChunkAndGetUpdatedOffset_final() {
+        final Flux<DataBuffer> body = Flux.just(new DefaultDataBufferFactory()
+            .wrap(ByteBuffer.wrap("foo".getBytes(StandardCharsets.UTF_8))));
+        final File file = partial(3L, 7L, 7L);
+        file.setConcatType(ConcatType.FINAL);
+        Mockito.when(uploadStateCache.get(3L)).thenReturn(Mono.just(new UploadState(file)));
+
+        uploadService
+            .uploadChunkAndGetUpdatedOffset(3L, body, 7, 3, null)
+            .as(StepVerifier::create)
+            .expectErrorMatches(e -> e instanceof ResponseStatusException
+                && ((ResponseStatusException) e).getStatus() == HttpStatus.FORBIDDEN)
+            .verify();
+        Mockito.verify(fileStorage, Mockito.never()).writeChunk(Mockito.any(), Mockito.any(), Mockito.anyLong());
+    }
+
+    private File partial(final Long id, final Long contentLength, final Long contentOffset) {
+        return File.builder()
+            .id(id)
+            .contentLength(contentLength)
+            .contentOffset(contentOffset)
+            .lastUploadedChunkNumber(1L)
+            .concatType(ConcatType.PARTIAL)
+            .build();
+    }
+
+    @Test
+    public void getFile_cachedOffset() {
+        final File file = File.builder().id(1L).contentLength(10L).contentOffset(0L).lastUploadedChunkNumber(0L).build();
+        final UploadState state = new UploadState(File.builder()
+            .id(1L).contentLength(10L).contentOffset(7L).lastUploadedChunkNumber(2L).build());
+
+        Mockito.when(fileRepository.findById(1L)).thenReturn(Mono.just(file));
+        Mockito.when(uploadStateCache.peek(1L)).thenReturn(Optional.of(state));
+
+        final File result = uploadService.getFile(1L).block();
+        assertEquals(Long.valueOf(7), result.getContentOffset());
+        assertEquals(Long.valueOf(2), result.getLastUploadedChunkNumber());
+    }
+
+    @Test
+    public void findResumable_indexed() {
+        final File file = fingerprinted(1L, 4L);
+        Mockito.when(metadataWriter.insert(Mockito.any())).thenReturn(Mono.just(file));
+        Mockito.when(fileStorage.createFile(file)).thenReturn(Mono.just(file));
+        Mockito.when(fileRepository.findById(1L)).thenReturn(Mono.just(file));
+        uploadService.setConfiguration(new SisyphusServerConfiguration());
+
+        uploadService.createUpload(file).block();
+
+        assertEquals(Long.valueOf(1), uploadService.findResumable("fp", 10L).block().getId());
+        Mockito.verify(fileRepository, Mockito.never()).findResumable(Mockito.any(), Mockito.anyLong());
+    }
+
+    @Test
+    public void findResumable_staleIndex() {
+        final File completed = fingerprinted(1L, 10L);
+        final File older = fingerprinted(2L, 4L);
+        Mockito.when(metadataWriter.insert(Mockito.any())).thenReturn(Mono.just(completed));
+        Mockito.when(fileStorage.createFile(completed)).thenReturn(Mono.just(completed));
+        Mockito.when(fileRepository.findById(1L)).thenReturn(Mono.just(completed));
+        Mockito.when(fileRepository.findResumable("fp", 10L)).thenReturn(Mono.just(older));
+        Mockito.when(fileRepository.findById(2L)).thenReturn(Mono.just(older));
+        uploadService.setConfiguration(new SisyphusServerConfiguration());
+        uploadService.createUpload(completed).block();
+
+        assertEquals(Long.valueOf(2), uploadService.findResumable("fp", 10L).block().getId());
+        assertEquals(Long.valueOf(2), uploadService.findResumable("fp", 10L).block().getId());
+        Mockito.verify(fileRepository, Mockito.times(1)).findResumable("fp", 10L);
+    }
+
+    @Test
+    public void findResumable_cachedOffset() {
+        Mockito.when(fileRepository.findResumable("fp", 10L)).thenReturn(Mono.just(fingerprinted(1L, 4L)));
+        Mockito.when(uploadStateCache.peek(1L)).thenReturn(Optional.of(new UploadState(fingerprinted(1L, 10L))));
+
+        assertNull(uploadService.findResumable("fp", 10L).block());
+    }
+
+    @Test
+    public void findResumable_noFingerprint() {
+        assertNull(uploadService.findResumable(File.NO_FINGERPRINT, 10L).block());
+        Mockito.verifyZeroInteractions(fileRepository);
+    }
+
+    @Test
+    public void findReusable() {
+        final File requested = File.builder().contentLength(10L).fingerprint("fp").build();
+        Mockito.when(fileRepository.findResumable("fp", 10L)).thenReturn(Mono.just(fingerprinted(1L, 4L)));
+        Mockito.when(fileRepository.findById(1L)).thenReturn(Mono.just(fingerprinted(1L, 4L)));
+
+        assertNull(uploadService.findReusable(requested).block());
+
+        final SisyphusServerConfiguration configuration = new SisyphusServerConfiguration();
+        configuration.setReuseIncompleteUploads(true);
+        uploadService.setConfiguration(configuration);
+        assertEquals(Long.valueOf(1), uploadService.findReusable(requested).block().getId());
+        requested.setConcatType(ConcatType.PARTIAL);
+        assertNull(uploadService.findReusable(requested).block());
+    }
+
+    private File fingerprinted(final Long id, final Long contentOffset) {
+        return File.builder()
+            .id(id)
+            .fingerprint("fp")
+            .contentLength(10L)
+            .contentOffset(contentOffset)
+            .lastUploadedChunkNumber(1L)
+            .build();
+    }
+
+    @Test
+    public void expiresAt() {
+        final LocalDateTime updatedAt = LocalDateTime.of(2019, 3, 1, 12, 0);
+        final File file = File.builder().id(1L).contentLength(10L).contentOffset(3L).lastUploadedChunkNumber(1L)
+            .updatedAt(updatedAt).build();
+
+        assertFalse(uploadService.expiresAt(file).isPresent());
+
+        final SisyphusServerConfiguration configuration = new SisyphusServerConfiguration();
+        configuration.setUploadExpiration(Duration.ofHours(1));
+        uploadService.setConfiguration(configuration);
+
+        assertEquals(updatedAt.plusHours(1).atZone(ZoneId.systemDefault()), uploadService.expiresAt(file).get());
+        assertEquals(updatedAt.plusHours(1).atZone(ZoneId.systemDefault()), uploadService.expiresAt(new UploadState(file)).get());
+        file.setContentOffset(10L);
+        assertFalse(uploadService.expiresAt(file).isPresent());
+        assertFalse(uploadService.expiresAt(new UploadState(file)).isPresent());
+    }
+
+    @Test
+    public void expire() {
+        final LocalDateTime before = LocalDateTime.now();
+        final File file = File.builder().id(1L).contentLength(10L).contentOffset(3L).lastUploadedChunkNumber(1L)
+            .updatedAt(before.minusHours(1)).build();
+        Mockito.when(uploadStateCache.peek(1L)).thenReturn(Optional.of(new UploadState(file)));
+        Mockito.when(fileRepository.deleteExpired(1L, before)).thenReturn(Mono.just(true));
+        Mockito.when(fileStorage.delete(file)).thenReturn(Mono.empty());
+
+        assertTrue(uploadService.expire(file, before).block());
+        Mockito.verify(uploadStateCache).remove(1L);
+        Mockito.verify(fileStorage).delete(file);
+        assertEquals(1, meterRegistry.get("sisyphus.uploads").tag("outcome", "expired").counter().count(), 0);
+    }
+
+    @Test
+    public void expire_updatedMeanwhile() {
+        final LocalDateTime before = LocalDateTime.now();
+        final File file = File.builder().id(1L).contentLength(10L).contentOffset(3L).lastUploadedChunkNumber(1L)
+            .updatedAt(before.minusHours(1)).build();
+        Mockito.when(uploadStateCache.peek(1L)).thenReturn(Optional.empty());
+        Mockito.when(fileRepository.deleteExpired(1L, before)).thenReturn(Mono.just(false));
+
+        assertFalse(uploadService.expire(file, before).block());
+        Mockito.verify(fileStorage, Mockito.never()).delete(Mockito.any());
+    }
+
+    @Test
+    public void expire_activeInCache() {
+        final LocalDateTime before = LocalDateTime.now().minusMinutes(1);
+        final File file = File.builder().id(1L).contentLength(10L).contentOffset(3L).lastUploadedChunkNumber(1L)
+            .updatedAt(before.minusHours(1)).build();
+        final UploadState state = new UploadState(file);
+        state.advance(1);
+        Mockito.when(uploadStateCache.peek(1L)).thenReturn(Optional.of(state));
+
+        assertFalse(uploadService.expire(file, before).block());
+        Mockito.verify(fileRepository, Mockito.never()).deleteExpired(Mockito.any(), Mockito.any());
+    }
+
+    @Test
+    public void expire_writing() {
+        final LocalDateTime before = LocalDateTime.now();
+        final File file = File.builder().id(1L).contentLength(10L).contentOffset(3L).lastUploadedChunkNumber(1L)
+            .updatedAt(before.minusHours(1)).build();
+        final UploadState state = new UploadState(file);
+        assertTrue(state.tryAcquireWrite());
+        Mockito.when(uploadStateCache.peek(1L)).thenReturn(Optional.of(state));
+
+        assertFalse(uploadService.expire(file, before).block());
+        Mockito.verify(fileRepository, Mockito.never()).deleteExpired(Mockito.any(), Mockito.any());
+    }
+
+    @Test
+    public void getFile_terminated() {
+        Mockito.when(fileRepository.findById(1L))
+            .thenReturn(Mono.just(File.builder().id(1L).terminatedAt(LocalDateTime.now()).build()));
+
+        assertNull(uploadService.getFile(1L).block());
+    }
+
+    @Test
+    public void terminate() {
+        final UploadState state = new UploadState(File.builder().id(1L).contentLength(10L).contentOffset(3L)
+            .lastUploadedChunkNumber(1L).build());
+        Mockito.when(fileRepository.terminate(Mockito.eq(1L), Mockito.any())).thenReturn(Mono.just(true));
+        Mockito.when(fileRepository.terminate(Mockito.eq(2L), Mockito.any())).thenReturn(Mono.just(false));
+        Mockito.when(uploadStateCache.peek(1L)).thenReturn(Optional.of(state));
+
+        assertTrue(uploadService.terminate(1L).block());
+        assertFalse(uploadService.terminate(2L).block());
+        assertTrue(state.isTerminated());
+        assertEquals(1, meterRegistry.get("sisyphus.uploads").tag("outcome", "terminated").counter().count(), 0);
+    }
+
+    @Test
+    public void uploadChunk_terminated() {
+        final UploadState state = new UploadState(File.builder().id(1L).contentLength(10L).contentOffset(3L)
+            .lastUploadedChunkNumber(1L).terminatedAt(LocalDateTime.now()).build());
+        Mockito.when(uploadStateCache.get(1L)).thenReturn(Mono.just(state));
+
+        StepVerifier
+            .create(uploadService.uploadChunkAndGetUpdatedOffset(1L, Flux.empty(), 3, 0, null))
+            .expectErrorMatches(e -> e instanceof ResponseStatusException
+                && ((ResponseStatusException) e).getStatus() == HttpStatus.GONE)
+            .verify();
+        Mockito.verify(fileStorage, Mockito.never()).writeChunk(Mockito.any(), Mockito.any(), Mockito.anyLong());
+    }
+
+    @Test
+    public void reclaim() {
+        final File first = File.builder().id(1L).contentLength(10L).build();
+        final File second = File.builder().id(2L).contentLength(10L).build();
+        final File third = File.builder().id(3L).contentLength(10L).build();
+        Mockito.when(fileStorage.delete(first)).thenReturn(Mono.empty());
+        Mockito.when(fileStorage.delete(second)).thenReturn(Mono.error(new RuntimeException("File removal failed: 2")));
+        Mockito.when(fileStorage.delete(third)).thenReturn(Mono.empty());
+        Mockito.when(fileRepository.deleteTerminated(Arrays.asList(1L, 3L))).thenReturn(Mono.just(2));
+
+        assertEquals(Integer.valueOf(2), uploadService.reclaim(Arrays.asList(first, second, third)).block());
+        Mockito.verify(uploadStateCache).remove(1L);
+        Mockito.verify(uploadStateCache, Mockito.never()).remove(2L);
+    }
+
+    @Test
+    public void reclaim_nothingRemoved() {
+        final File file = File.builder().id(1L).build();
+        Mockito.when(fileStorage.delete(file)).thenReturn(Mono.error(new RuntimeException("File removal failed: 1")));
 
+        assertEquals(Integer.valueOf(0), uploadService.reclaim(Collections.singletonList(file)).block());
+        Mockito.verify(fileRepository, Mockito.never()).deleteTerminated(Mockito.any());
     }
 
     @Test
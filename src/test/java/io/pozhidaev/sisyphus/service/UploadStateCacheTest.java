@@ -0,0 +1,283 @@
+package io.pozhidaev.sisyphus.service;
+
+import io.pozhidaev.sisyphus.configurations.SisyphusServerConfiguration;
+import io.pozhidaev.sisyphus.domain.File;
+import io.pozhidaev.sisyphus.repository.ReactiveFileRepository;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.test.context.junit4.SpringRunner;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoProcessor;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+@RunWith(SpringRunner.class)
+public class UploadStateCacheTest {
+
+    @MockBean
+    ReactiveFileRepository fileRepository;
+
+    @MockBean
+    MetadataWriter metadataWriter;
+
+    private UploadStateCache uploadStateCache;
+
+    @Before
+    public void setUp() {
+        final SisyphusServerConfiguration configuration = new SisyphusServerConfiguration();
+        configuration.setStateCacheSize(2);
+        configuration.setStateIdleTimeout(Duration.ofMinutes(1));
+        uploadStateCache = new UploadStateCache(fileRepository, metadataWriter, configuration);
+        Mockito.when(metadataWriter.updateOffsets(Mockito.any())).thenReturn(Mono.just(1));
+    }
+
+    @Test
+    public void get_loadsOnce() {
+        Mockito.when(fileRepository.findById(1L)).thenReturn(Mono.just(file(1L, 100L)));
+
+        final UploadState first = uploadStateCache.get(1L).block();
+        final UploadState second = uploadStateCache.get(1L).block();
+
+        assertSame(first, second);
+        Mockito.verify(fileRepository, Mockito.times(1)).findById(1L);
+    }
+
+    @Test
+    public void get_notFound() {
+        Mockito.when(fileRepository.findById(1L)).thenReturn(Mono.empty());
+        assertNull(uploadStateCache.get(1L).block());
+        assertFalse(uploadStateCache.peek(1L).isPresent());
+    }
+
+    @Test
+    public void advance_coalescesWrites() {
+        final UploadState state = uploadStateCache.register(file(1L, 100L));
+
+        uploadStateCache.advance(state, 10).block();
+        uploadStateCache.advance(state, 10).block();
+        uploadStateCache.advance(state, 10).block();
+        Mockito.verify(metadataWriter, Mockito.never()).updateOffsets(Mockito.any());
+
+        uploadStateCache.flush().block();
+        uploadStateCache.flush().block();
+
+        final List<File> flushed = captureFlushes().get(0);
+        assertEquals(1, flushed.size());
+        assertEquals(Long.valueOf(30), flushed.get(0).getContentOffset());
+        assertEquals(Long.valueOf(3), flushed.get(0).getLastUploadedChunkNumber());
+    }
+
+    @Test
+    public void advance_flushesOnCompletion() {
+        final UploadState state = uploadStateCache.register(file(1L, 20L));
+
+        uploadStateCache.advance(state, 10).block();
+        uploadStateCache.advance(state, 10).block();
+
+        assertEquals(Long.valueOf(20), captureFlushes().get(0).get(0).getContentOffset());
+        assertFalse(state.isDirty());
+        assertFalse(uploadStateCache.peek(1L).isPresent());
+    }
+
+    @Test
+    public void flush_retriedOnError() {
+        final UploadState state = uploadStateCache.register(file(1L, 100L));
+        uploadStateCache.advance(state, 10).block();
+
+        Mockito.when(metadataWriter.updateOffsets(Mockito.any())).thenReturn(Mono.error(new RuntimeException()));
+        uploadStateCache.flush().block();
+
+        assertTrue(state.isDirty());
+    }
+
+    @Test
+    public void register_evictsEldestClean() {
+        final UploadState dirty = uploadStateCache.register(file(1L, 100L));
+        uploadStateCache.advance(dirty, 1).block();
+        uploadStateCache.register(file(2L, 100L));
+        uploadStateCache.register(file(3L, 100L));
+
+        assertEquals(2, uploadStateCache.size());
+        assertTrue(uploadStateCache.peek(1L).isPresent());
+        assertFalse(uploadStateCache.peek(2L).isPresent());
+    }
+
+    @Test
+    public void evictIdle_keepsDirty() {
+        final SisyphusServerConfiguration configuration = new SisyphusServerConfiguration();
+        configuration.setStateIdleTimeout(Duration.ZERO);
+        final UploadStateCache cache = new UploadStateCache(fileRepository, metadataWriter, configuration);
+        final UploadState dirty = cache.register(file(1L, 100L));
+        cache.advance(dirty, 1).block();
+        cache.register(file(2L, 100L));
+
+        cache.evictIdle();
+
+        assertTrue(cache.peek(1L).isPresent());
+        assertFalse(cache.peek(2L).isPresent());
+    }
+
+    @Test
+    public void evictIdle_keepsWriting() {
+        final SisyphusServerConfiguration configuration = new SisyphusServerConfiguration();
+        configuration.setStateIdleTimeout(Duration.ZERO);
+        final UploadStateCache cache = new UploadStateCache(fileRepository, metadataWriter, configuration);
+        final UploadState writing = cache.register(file(1L, 100L));
+        assertTrue(writing.tryAcquireWrite());
+        assertFalse(writing.tryAcquireWrite());
+
+        cache.evictIdle();
+        assertTrue(cache.peek(1L).isPresent());
+
+        writing.releaseWrite();
+        cache.evictIdle();
+        assertFalse(cache.peek(1L).isPresent());
+    }
+
+    @Test
+    public void evictIdle_closesWrites() {
+        final SisyphusServerConfiguration configuration = new SisyphusServerConfiguration();
+        configuration.setStateIdleTimeout(Duration.ZERO);
+        final UploadStateCache cache = new UploadStateCache(fileRepository, metadataWriter, configuration);
+        final UploadState evicted = cache.register(file(1L, 100L));
+
+        cache.evictIdle();
+
+        assertFalse(cache.peek(1L).isPresent());
+        assertTrue(evicted.isEvicted());
+        assertFalse(evicted.tryAcquireWrite());
+    }
+
+    @Test
+    public void evictIdle_racesWrites() throws Exception {
+        final SisyphusServerConfiguration configuration = new SisyphusServerConfiguration();
+        configuration.setStateIdleTimeout(Duration.ZERO);
+        final UploadStateCache cache = new UploadStateCache(fileRepository, metadataWriter, configuration);
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            for (long id = 1; id <= 2000; id++) {
+                final UploadState state = cache.register(file(id, 100L));
+                final CyclicBarrier start = new CyclicBarrier(2);
+                final Future<Boolean> written = executor.submit(() -> {
+                    start.await();
+                    if (!state.tryAcquireWrite()) {
+                        return false;
+                    }
+                    cache.advance(state, 1).block();
+                    state.releaseWrite();
+                    return true;
+                });
+                executor.submit(() -> {
+                    start.await();
+                    cache.evictIdle();
+                    return null;
+                }).get();
+
+                if (written.get()) {
+                    assertSame(state, cache.peek(id).orElse(null));
+                    assertTrue(state.isDirty());
+                } else {
+                    assertTrue(state.isEvicted());
+                    assertFalse(cache.peek(id).isPresent());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void register_keepsFlushing() {
+        final MonoProcessor<Integer> write = MonoProcessor.create();
+        Mockito.when(metadataWriter.updateOffsets(Mockito.any())).thenReturn(write);
+        final UploadState flushing = uploadStateCache.register(file(1L, 100L));
+        uploadStateCache.advance(flushing, 1).block();
+        final Mono<Void> flush = uploadStateCache.flush().cache();
+        flush.subscribe();
+
+        assertFalse(flushing.isDirty());
+        assertTrue(flushing.isFlushing());
+        uploadStateCache.register(file(2L, 100L));
+        uploadStateCache.register(file(3L, 100L));
+        assertTrue(uploadStateCache.peek(1L).isPresent());
+
+        write.onError(new RuntimeException());
+        flush.block();
+        assertFalse(flushing.isFlushing());
+        assertTrue(flushing.isDirty());
+        assertSame(flushing, uploadStateCache.peek(1L).orElse(null));
+    }
+
+    @Test
+    public void stop_flushes() {
+        final UploadState state = uploadStateCache.register(file(1L, 100L));
+        uploadStateCache.advance(state, 10).block();
+
+        uploadStateCache.stop();
+
+        assertEquals(Long.valueOf(10), captureFlushes().get(0).get(0).getContentOffset());
+    }
+
+    @Test
+    public void register_fileDigest() {
+        final SisyphusServerConfiguration configuration = new SisyphusServerConfiguration();
+        configuration.setFileDigestAlgorithm("sha256");
+        final UploadStateCache cache = new UploadStateCache(fileRepository, metadataWriter, configuration);
+
+        final UploadState fresh = cache.register(file(1L, 3L));
+        final File resumed = file(2L, 3L);
+        resumed.setContentOffset(1L);
+
+        assertEquals("sha256", fresh.getFileDigest().getAlgorithm());
+        assertNull(cache.register(resumed).getFileDigest());
+    }
+
+    @Test
+    public void advance_flushesChecksum() {
+        final UploadState state = uploadStateCache.register(file(1L, 3L));
+        final StreamingDigest digest = ChecksumAlgorithm.SHA1.newDigest();
+        digest.update(ByteBuffer.wrap("foo".getBytes(StandardCharsets.UTF_8)));
+        state.setFileDigest(digest);
+
+        uploadStateCache.advance(state, 3).block();
+
+        assertEquals("sha1 C+7Hteo/D9vJXQ3UfzxbwnXaijM=", captureFlushes().get(0).get(0).getChecksum());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void fileDigest_unsupported() {
+        final SisyphusServerConfiguration configuration = new SisyphusServerConfiguration();
+        configuration.setFileDigestAlgorithm("sha3");
+        new UploadStateCache(fileRepository, metadataWriter, configuration);
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<List<File>> captureFlushes() {
+        final ArgumentCaptor<Collection<File>> captor = ArgumentCaptor.forClass(Collection.class);
+        Mockito.verify(metadataWriter, Mockito.atLeastOnce()).updateOffsets(captor.capture());
+        return (List) captor.getAllValues();
+    }
+
+    private File file(final Long id, final Long contentLength) {
+        return File.builder()
+            .id(id)
+            .contentLength(contentLength)
+            .contentOffset(0L)
+            .lastUploadedChunkNumber(0L)
+            .build();
+    }
+}